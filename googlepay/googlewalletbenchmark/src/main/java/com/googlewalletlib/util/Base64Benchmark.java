@@ -0,0 +1,44 @@
+package com.googlewalletlib.util;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+
+/**
+ * Base64 编解码。256 字节是一个签名，294 字节是一个公钥，2048 字节接近一页购买信息中的大字段
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class Base64Benchmark {
+    @Param({"256", "294", "2048"})
+    int size;
+
+    byte[] mBytes;
+    String mEncoded;
+
+    @Setup
+    public void setUp() {
+        mBytes = new byte[size];
+        new Random(42).nextBytes(mBytes);
+        mEncoded = Base64.encode(mBytes);
+    }
+
+    @Benchmark
+    public String encode() {
+        return Base64.encode(mBytes);
+    }
+
+    @Benchmark
+    public byte[] decode() throws Base64DecoderException {
+        return Base64.decode(mEncoded);
+    }
+}
@@ -0,0 +1,56 @@
+package com.googlewalletlib.util;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+
+/**
+ * 基准测试共用的数据: 测试 RSA 密钥和用它签名的购买信息，格式和 Play 商店返回的一致
+ */
+final class BenchmarkData {
+
+    static final KeyPair KEY_PAIR = generateKeyPair();
+    static final String BASE64_PUBLIC_KEY = Base64.encode(KEY_PAIR.getPublic().getEncoded());
+
+    private BenchmarkData() {
+    }
+
+    static String purchaseJson(int i) {
+        return "{\"orderId\":\"GPA.1234-5678-9012-" + i + "\","
+                + "\"packageName\":\"com.googlepay\","
+                + "\"productId\":\"gas_" + i + "\","
+                + "\"purchaseTime\":" + (1480000000000L + i) + ","
+                + "\"purchaseState\":0,"
+                + "\"developerPayload\":\"order-" + i + "\","
+                + "\"purchaseToken\":\"opaque-token-up-to-150-characters-" + i
+                + "-abcdefghijklmnopqrstuvwxyzabcdefghijklmnopqrstuvwxyzabcdefghijklmnop\"}";
+    }
+
+    static String skuDetailsJson(int i) {
+        return "{\"productId\":\"gas_" + i + "\",\"type\":\"inapp\",\"price\":\"$0.99\","
+                + "\"price_amount_micros\":990000,\"price_currency_code\":\"USD\","
+                + "\"title\":\"Gas " + i + "\",\"description\":\"A tank of gas\"}";
+    }
+
+    static String sign(String data) {
+        try {
+            Signature sig = Signature.getInstance("SHA1withRSA");
+            sig.initSign(KEY_PAIR.getPrivate());
+            sig.update(data.getBytes());
+            return Base64.encode(sig.sign());
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static KeyPair generateKeyPair() {
+        try {
+            KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+            generator.initialize(2048);
+            return generator.generateKeyPair();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package com.googlewalletlib.util;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * SHA-256 十六进制摘要，输入是一个订单号加 payload 大小的字符串
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class EncryptToolsBenchmark {
+    String mInput = "GPA.1234-5678-9012-34567|order-1|com.googlepay|gas_1";
+
+    @Benchmark
+    public String encrypt() {
+        return EncryptTools.Encrypt(mInput);
+    }
+}
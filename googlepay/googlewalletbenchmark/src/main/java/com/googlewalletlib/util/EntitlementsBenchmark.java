@@ -0,0 +1,77 @@
+package com.googlewalletlib.util;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 权益查询: 每个 sku 一个 HashSet 的 userId，和 Entitlements 的压缩位图
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class EntitlementsBenchmark {
+    @Param({"1000000"})
+    int users;
+
+    Map<String, Set<String>> mSets;
+    Entitlements mEntitlements;
+    String mUser;
+
+    @Setup
+    public void setUp() {
+        mSets = new HashMap<String, Set<String>>();
+        mSets.put("vip", new HashSet<String>());
+        mSets.put("gas", new HashSet<String>());
+        mEntitlements = new Entitlements();
+        for (int i = 0; i < users; i++) {
+            String user = "user-" + i;
+            if (i % 3 == 0) {
+                mSets.get("vip").add(user);
+                mEntitlements.grant(user, "vip");
+            }
+            if (i % 2 == 0) {
+                mSets.get("gas").add(user);
+                mEntitlements.grant(user, "gas");
+            }
+        }
+        mUser = "user-" + (users / 2);
+    }
+
+    @Benchmark
+    public boolean ownsHashSet() {
+        return mSets.get("vip").contains(mUser);
+    }
+
+    @Benchmark
+    public boolean ownsBitmap() {
+        return mEntitlements.owns(mUser, "vip");
+    }
+
+    @Benchmark
+    public int countBothHashSet() {
+        Set<String> gas = mSets.get("gas");
+        int n = 0;
+        for (String user : mSets.get("vip")) {
+            if (gas.contains(user))
+                n++;
+        }
+        return n;
+    }
+
+    @Benchmark
+    public int countBothBitmap() {
+        return mEntitlements.countOwnersOfAll("vip", "gas");
+    }
+}
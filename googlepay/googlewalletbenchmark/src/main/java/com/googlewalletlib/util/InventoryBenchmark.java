@@ -0,0 +1,68 @@
+package com.googlewalletlib.util;
+
+import org.json.JSONException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.List;
+
+/**
+ * 填充 Inventory (购买和商品信息都已经解析好)、按 sku 查询、按类型列出拥有的 sku
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class InventoryBenchmark {
+    @Param({"10", "1000"})
+    int count;
+
+    Purchase[] mPurchases;
+    SkuDetails[] mDetails;
+    String[] mSkus;
+    Inventory mInventory;
+
+    @Setup
+    public void setUp() throws JSONException {
+        mPurchases = new Purchase[count];
+        mDetails = new SkuDetails[count];
+        mSkus = new String[count];
+        for (int i = 0; i < count; i++) {
+            String json = BenchmarkData.purchaseJson(i);
+            mPurchases[i] = new Purchase(IabConstants.ITEM_TYPE_INAPP, json, "sig");
+            mDetails[i] = new SkuDetails(IabConstants.ITEM_TYPE_INAPP, BenchmarkData.skuDetailsJson(i));
+            mSkus[i] = mPurchases[i].getSku();
+        }
+        mInventory = populate();
+    }
+
+    @Benchmark
+    public Inventory populate() {
+        Inventory inv = new Inventory();
+        for (int i = 0; i < count; i++) {
+            inv.addPurchase(mPurchases[i]);
+            inv.addSkuDetails(mDetails[i]);
+        }
+        return inv;
+    }
+
+    @Benchmark
+    public void lookup(Blackhole bh) {
+        for (String sku : mSkus) {
+            bh.consume(mInventory.getPurchase(sku));
+            bh.consume(mInventory.getSkuDetails(sku));
+        }
+    }
+
+    @Benchmark
+    public List<String> ownedSkusByType() {
+        return mInventory.getAllOwnedSkus(IabConstants.ITEM_TYPE_INAPP);
+    }
+}
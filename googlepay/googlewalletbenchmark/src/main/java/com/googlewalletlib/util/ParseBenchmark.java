@@ -0,0 +1,40 @@
+package com.googlewalletlib.util;
+
+import org.json.JSONException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * 从 Play 商店返回的 json 构造 Purchase 和 SkuDetails
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ParseBenchmark {
+    String mPurchaseJson;
+    String mSignature;
+    String mSkuDetailsJson;
+
+    @Setup
+    public void setUp() {
+        mPurchaseJson = BenchmarkData.purchaseJson(1);
+        mSignature = BenchmarkData.sign(mPurchaseJson);
+        mSkuDetailsJson = BenchmarkData.skuDetailsJson(1);
+    }
+
+    @Benchmark
+    public Purchase purchase() throws JSONException {
+        return new Purchase(IabConstants.ITEM_TYPE_INAPP, mPurchaseJson, mSignature);
+    }
+
+    @Benchmark
+    public SkuDetails skuDetails() throws JSONException {
+        return new SkuDetails(IabConstants.ITEM_TYPE_INAPP, mSkuDetailsJson);
+    }
+}
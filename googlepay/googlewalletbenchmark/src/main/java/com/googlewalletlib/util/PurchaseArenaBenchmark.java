@@ -0,0 +1,85 @@
+package com.googlewalletlib.util;
+
+import org.json.JSONException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * 遍历所有购买: 堆上的 Purchase 对象和 PurchaseArena 的堆外记录，按 sku 统计、按 orderId 查找
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class PurchaseArenaBenchmark {
+    @Param({"100000"})
+    int count;
+
+    Purchase[] mPurchases;
+    PurchaseArena mArena;
+    PurchaseArena.Record mRecord;
+    String mSku;
+    int mSkuId;
+    String mOrderId;
+
+    @Setup
+    public void setUp() throws JSONException {
+        mPurchases = new Purchase[count];
+        mArena = new PurchaseArena();
+        for (int i = 0; i < count; i++) {
+            mPurchases[i] = new Purchase(IabConstants.ITEM_TYPE_INAPP, BenchmarkData.purchaseJson(i), "sig");
+            mArena.add(mPurchases[i]);
+        }
+        mRecord = mArena.newRecord();
+        mSku = mPurchases[count / 2].getSku();
+        mSkuId = mArena.getStringId(mSku);
+        mOrderId = mPurchases[count - 1].getOrderId();
+    }
+
+    @Benchmark
+    public long sumPurchaseTimeHeap() {
+        long total = 0;
+        for (Purchase p : mPurchases) {
+            if (p.getPurchaseState() == 0 && !mSku.equals(p.getSku()))
+                total += p.getPurchaseTime();
+        }
+        return total;
+    }
+
+    @Benchmark
+    public long sumPurchaseTimeArena() {
+        long total = 0;
+        PurchaseArena.Record r = mRecord;
+        for (long ref = mArena.first(); ref != -1; ref = mArena.next(ref)) {
+            r.moveTo(ref);
+            if (r.getPurchaseState() == 0 && r.getSkuId() != mSkuId)
+                total += r.getPurchaseTime();
+        }
+        return total;
+    }
+
+    @Benchmark
+    public long findOrderIdHeap() {
+        for (int i = 0; i < mPurchases.length; i++) {
+            if (mOrderId.equals(mPurchases[i].getOrderId()))
+                return i;
+        }
+        return -1;
+    }
+
+    @Benchmark
+    public long findOrderIdArena() {
+        PurchaseArena.Record r = mRecord;
+        for (long ref = mArena.first(); ref != -1; ref = mArena.next(ref)) {
+            if (r.moveTo(ref).equals(PurchaseArena.ORDER_ID, mOrderId))
+                return ref;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,63 @@
+package com.googlewalletlib.util;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.security.PublicKey;
+
+/**
+ * 验签: 每次从 Base64 公钥开始、复用解析好的公钥、直接从 ByteBuffer 验证、只解析公钥
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class SecurityBenchmark {
+    String mSignedData;
+    String mSignature;
+    PublicKey mPublicKey;
+    ByteBuffer mSignedDataBytes;
+    ByteBuffer mSignatureBytes;
+
+    @Setup
+    public void setUp() {
+        mSignedData = BenchmarkData.purchaseJson(1);
+        mSignature = BenchmarkData.sign(mSignedData);
+        mPublicKey = Security.generatePublicKey(BenchmarkData.BASE64_PUBLIC_KEY);
+        mSignedDataBytes = ByteBuffer.wrap(mSignedData.getBytes());
+        mSignatureBytes = ByteBuffer.wrap(mSignature.getBytes());
+    }
+
+    @Benchmark
+    public boolean verifyPurchaseFromBase64Key() {
+        return Security.verifyPurchase(BenchmarkData.BASE64_PUBLIC_KEY, mSignedData, mSignature);
+    }
+
+    @Benchmark
+    public boolean verifyPurchaseWithParsedKey() {
+        return Security.verifyPurchase(mPublicKey, mSignedData, mSignature);
+    }
+
+    @Benchmark
+    public boolean verify() {
+        return Security.verify(mPublicKey, mSignedData, mSignature);
+    }
+
+    @Benchmark
+    public boolean verifyByteBuffer() {
+        // verify 会移动 signedData 的 position
+        mSignedDataBytes.rewind();
+        return Security.verify(mPublicKey, mSignedDataBytes, mSignatureBytes);
+    }
+
+    @Benchmark
+    public PublicKey generatePublicKey() {
+        return Security.generatePublicKey(BenchmarkData.BASE64_PUBLIC_KEY);
+    }
+}
@@ -14,6 +14,8 @@
 
 package com.googlewalletlib.util;
 
+import java.nio.ByteBuffer;
+
 // This code was converted from code at http://iharder.sourceforge.net/base64/
 // Lots of extraneous features were removed.
 /* The original code said:
@@ -441,6 +443,25 @@ public class Base64 {
         return decode(source, 0, source.length);
     }
 
+    /**
+     * Decodes the remaining Base64 content of a buffer without changing
+     * its position. Heap buffers are decoded in place; direct buffers are
+     * copied once.
+     *
+     * @param source the Base64 encoded data
+     * @return decoded data
+     * @throws Base64DecoderException
+     */
+    public static byte[] decode(ByteBuffer source) throws Base64DecoderException {
+        if (source.hasArray()) {
+            return decode(source.array(), source.arrayOffset() + source.position(),
+                    source.remaining());
+        }
+        byte[] copy = new byte[source.remaining()];
+        source.duplicate().get(copy);
+        return decode(copy, 0, copy.length);
+    }
+
     /**
      * Decodes web safe Base64 content in byte array format and returns
      * the decoded data.
@@ -0,0 +1,465 @@
+package com.googlewalletlib.util;
+
+import java.util.Arrays;
+
+/**
+ * 压缩的非负整数集合 (Roaring bitmap 的简化版)。按高 16 位分块，每块最多 65536 个值:
+ * 值较少时是排好序的 char 数组，超过 ARRAY_MAX 个时是 65536 位的位图。
+ * 稀疏时每个值约 2 字节，稠密时每个值约 1 位；交、并、差按块进行，不需要逐个比较。
+ * 值的范围是 0 到 Integer.MAX_VALUE - 1，遍历时 next(v + 1) 不会溢出。
+ * 不是线程安全的
+ */
+public final class CompressedBitmap {
+    // 数组块最多的值，超过时换成位图 (8KB，与 4096 个 char 相同)
+    static final int ARRAY_MAX = 4096;
+    static final int BITMAP_WORDS = 1024;
+
+    private char[] mKeys;
+    private Container[] mContainers;
+    private int mSize;
+
+    public CompressedBitmap() {
+        mKeys = new char[4];
+        mContainers = new Container[4];
+    }
+
+    private CompressedBitmap(int capacity) {
+        mKeys = new char[Math.max(4, capacity)];
+        mContainers = new Container[Math.max(4, capacity)];
+    }
+
+    /**
+     * @return false 表示已经有了
+     * @throws IllegalArgumentException value 是负数或 Integer.MAX_VALUE
+     */
+    public boolean add(int value) {
+        checkValue(value);
+        char key = (char) (value >>> 16);
+        int i = find(key);
+        if (i < 0) {
+            i = -i - 1;
+            insertContainer(i, key, new Container());
+        }
+        Container c = mContainers[i];
+        int before = c.cardinality;
+        mContainers[i] = c.add((char) value);
+        return mContainers[i].cardinality != before;
+    }
+
+    /**
+     * @return false 表示本来就没有
+     */
+    public boolean remove(int value) {
+        checkValue(value);
+        int i = find((char) (value >>> 16));
+        if (i < 0)
+            return false;
+        Container c = mContainers[i];
+        int before = c.cardinality;
+        c = c.remove((char) value);
+        if (c.cardinality == 0)
+            removeContainer(i);
+        else
+            mContainers[i] = c;
+        return c.cardinality != before;
+    }
+
+    public boolean contains(int value) {
+        if (value < 0)
+            return false;
+        int i = find((char) (value >>> 16));
+        return i >= 0 && mContainers[i].contains((char) value);
+    }
+
+    public int getCardinality() {
+        int n = 0;
+        for (int i = 0; i < mSize; i++)
+            n += mContainers[i].cardinality;
+        return n;
+    }
+
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    /**
+     * 大于等于 from 的最小值，没有时返回 -1。遍历:
+     * for (int v = b.next(0); v >= 0; v = b.next(v + 1))
+     */
+    public int next(int from) {
+        if (from < 0)
+            from = 0;
+        int i = find((char) (from >>> 16));
+        if (i >= 0) {
+            int low = mContainers[i].next(from & 0xffff);
+            if (low >= 0)
+                return (mKeys[i] << 16) | low;
+            i++;
+        } else {
+            i = -i - 1;
+        }
+        return i < mSize ? (mKeys[i] << 16) | mContainers[i].next(0) : -1;
+    }
+
+    public int[] toArray() {
+        int[] values = new int[getCardinality()];
+        int n = 0;
+        for (int v = next(0); v >= 0; v = next(v + 1))
+            values[n++] = v;
+        return values;
+    }
+
+    /** 大约占用的内存 */
+    public long getSizeInBytes() {
+        long n = 16 + mKeys.length * 2L + mContainers.length * 4L;
+        for (int i = 0; i < mSize; i++)
+            n += mContainers[i].sizeInBytes();
+        return n;
+    }
+
+    public CompressedBitmap copy() {
+        CompressedBitmap b = new CompressedBitmap(mSize);
+        for (int i = 0; i < mSize; i++) {
+            b.mKeys[i] = mKeys[i];
+            b.mContainers[i] = mContainers[i].copy();
+        }
+        b.mSize = mSize;
+        return b;
+    }
+
+    /** 交集 */
+    public static CompressedBitmap and(CompressedBitmap a, CompressedBitmap b) {
+        CompressedBitmap r = new CompressedBitmap(Math.min(a.mSize, b.mSize));
+        int i = 0;
+        int j = 0;
+        while (i < a.mSize && j < b.mSize) {
+            if (a.mKeys[i] < b.mKeys[j]) {
+                i++;
+            } else if (a.mKeys[i] > b.mKeys[j]) {
+                j++;
+            } else {
+                Container c = a.mContainers[i].and(b.mContainers[j]);
+                if (c.cardinality > 0)
+                    r.appendContainer(a.mKeys[i], c);
+                i++;
+                j++;
+            }
+        }
+        return r;
+    }
+
+    /** 交集的大小，不创建结果 */
+    public static int andCardinality(CompressedBitmap a, CompressedBitmap b) {
+        int n = 0;
+        int i = 0;
+        int j = 0;
+        while (i < a.mSize && j < b.mSize) {
+            if (a.mKeys[i] < b.mKeys[j]) {
+                i++;
+            } else if (a.mKeys[i] > b.mKeys[j]) {
+                j++;
+            } else {
+                n += a.mContainers[i].andCardinality(b.mContainers[j]);
+                i++;
+                j++;
+            }
+        }
+        return n;
+    }
+
+    /** 并集 */
+    public static CompressedBitmap or(CompressedBitmap a, CompressedBitmap b) {
+        CompressedBitmap r = new CompressedBitmap(a.mSize + b.mSize);
+        int i = 0;
+        int j = 0;
+        while (i < a.mSize || j < b.mSize) {
+            if (j >= b.mSize || i < a.mSize && a.mKeys[i] < b.mKeys[j]) {
+                r.appendContainer(a.mKeys[i], a.mContainers[i].copy());
+                i++;
+            } else if (i >= a.mSize || a.mKeys[i] > b.mKeys[j]) {
+                r.appendContainer(b.mKeys[j], b.mContainers[j].copy());
+                j++;
+            } else {
+                r.appendContainer(a.mKeys[i], a.mContainers[i].or(b.mContainers[j]));
+                i++;
+                j++;
+            }
+        }
+        return r;
+    }
+
+    /** 差集: 在 a 中但不在 b 中 */
+    public static CompressedBitmap andNot(CompressedBitmap a, CompressedBitmap b) {
+        CompressedBitmap r = new CompressedBitmap(a.mSize);
+        int j = 0;
+        for (int i = 0; i < a.mSize; i++) {
+            while (j < b.mSize && b.mKeys[j] < a.mKeys[i])
+                j++;
+            Container c = j < b.mSize && b.mKeys[j] == a.mKeys[i]
+                    ? a.mContainers[i].andNot(b.mContainers[j]) : a.mContainers[i].copy();
+            if (c.cardinality > 0)
+                r.appendContainer(a.mKeys[i], c);
+        }
+        return r;
+    }
+
+    // Integer.MAX_VALUE 也不接受，否则遍历到它时 next(v + 1) 溢出成负数，又从 0 开始
+    private static void checkValue(int value) {
+        if (value < 0 || value == Integer.MAX_VALUE)
+            throw new IllegalArgumentException("value: " + value);
+    }
+
+    private int find(char key) {
+        return Arrays.binarySearch(mKeys, 0, mSize, key);
+    }
+
+    private void ensureCapacity(int size) {
+        if (size > mKeys.length) {
+            int capacity = Math.max(size, mKeys.length * 2);
+            mKeys = Arrays.copyOf(mKeys, capacity);
+            mContainers = Arrays.copyOf(mContainers, capacity);
+        }
+    }
+
+    private void insertContainer(int i, char key, Container c) {
+        ensureCapacity(mSize + 1);
+        System.arraycopy(mKeys, i, mKeys, i + 1, mSize - i);
+        System.arraycopy(mContainers, i, mContainers, i + 1, mSize - i);
+        mKeys[i] = key;
+        mContainers[i] = c;
+        mSize++;
+    }
+
+    private void appendContainer(char key, Container c) {
+        ensureCapacity(mSize + 1);
+        mKeys[mSize] = key;
+        mContainers[mSize] = c;
+        mSize++;
+    }
+
+    private void removeContainer(int i) {
+        System.arraycopy(mKeys, i + 1, mKeys, i, mSize - i - 1);
+        System.arraycopy(mContainers, i + 1, mContainers, i, mSize - i - 1);
+        mSize--;
+        mContainers[mSize] = null;
+    }
+
+    /**
+     * 一块: array 和 bits 只有一个不为 null
+     */
+    static final class Container {
+        char[] array;
+        long[] bits;
+        int cardinality;
+
+        Container() {
+            array = new char[4];
+        }
+
+        private Container(char[] array, int cardinality) {
+            this.array = array;
+            this.cardinality = cardinality;
+        }
+
+        private Container(long[] bits, int cardinality) {
+            this.bits = bits;
+            this.cardinality = cardinality;
+        }
+
+        boolean contains(char v) {
+            if (bits != null)
+                return (bits[v >>> 6] & (1L << v)) != 0;
+            return Arrays.binarySearch(array, 0, cardinality, v) >= 0;
+        }
+
+        Container add(char v) {
+            if (bits != null) {
+                long before = bits[v >>> 6];
+                bits[v >>> 6] = before | (1L << v);
+                if (before != bits[v >>> 6])
+                    cardinality++;
+                return this;
+            }
+            int i = Arrays.binarySearch(array, 0, cardinality, v);
+            if (i >= 0)
+                return this;
+            if (cardinality >= ARRAY_MAX)
+                return toBitmap().add(v);
+            i = -i - 1;
+            if (cardinality == array.length)
+                array = Arrays.copyOf(array, Math.min(ARRAY_MAX, array.length * 2));
+            System.arraycopy(array, i, array, i + 1, cardinality - i);
+            array[i] = v;
+            cardinality++;
+            return this;
+        }
+
+        Container remove(char v) {
+            if (bits != null) {
+                long before = bits[v >>> 6];
+                bits[v >>> 6] = before & ~(1L << v);
+                if (before != bits[v >>> 6])
+                    cardinality--;
+                return cardinality <= ARRAY_MAX ? toArrayContainer() : this;
+            }
+            int i = Arrays.binarySearch(array, 0, cardinality, v);
+            if (i >= 0) {
+                System.arraycopy(array, i + 1, array, i, cardinality - i - 1);
+                cardinality--;
+            }
+            return this;
+        }
+
+        int next(int from) {
+            if (bits != null) {
+                int w = from >>> 6;
+                if (w >= BITMAP_WORDS)
+                    return -1;
+                long word = bits[w] & (-1L << from);
+                while (true) {
+                    if (word != 0)
+                        return (w << 6) + Long.numberOfTrailingZeros(word);
+                    if (++w == BITMAP_WORDS)
+                        return -1;
+                    word = bits[w];
+                }
+            }
+            int i = Arrays.binarySearch(array, 0, cardinality, (char) Math.min(from, 0xffff));
+            if (i < 0)
+                i = -i - 1;
+            return i < cardinality && array[i] >= from ? array[i] : -1;
+        }
+
+        Container and(Container o) {
+            if (bits == null || o.bits == null) {
+                Container small = bits == null ? this : o;
+                Container other = small == this ? o : this;
+                char[] out = new char[small.cardinality];
+                int n = 0;
+                for (int i = 0; i < small.cardinality; i++) {
+                    if (other.contains(small.array[i]))
+                        out[n++] = small.array[i];
+                }
+                return new Container(out, n);
+            }
+            long[] out = new long[BITMAP_WORDS];
+            int n = 0;
+            for (int i = 0; i < BITMAP_WORDS; i++) {
+                out[i] = bits[i] & o.bits[i];
+                n += Long.bitCount(out[i]);
+            }
+            return new Container(out, n).shrink();
+        }
+
+        int andCardinality(Container o) {
+            if (bits == null || o.bits == null) {
+                Container small = bits == null ? this : o;
+                Container other = small == this ? o : this;
+                int n = 0;
+                for (int i = 0; i < small.cardinality; i++) {
+                    if (other.contains(small.array[i]))
+                        n++;
+                }
+                return n;
+            }
+            int n = 0;
+            for (int i = 0; i < BITMAP_WORDS; i++)
+                n += Long.bitCount(bits[i] & o.bits[i]);
+            return n;
+        }
+
+        Container or(Container o) {
+            if (bits == null && o.bits == null && cardinality + o.cardinality <= ARRAY_MAX) {
+                char[] out = new char[cardinality + o.cardinality];
+                int i = 0;
+                int j = 0;
+                int n = 0;
+                while (i < cardinality || j < o.cardinality) {
+                    if (j >= o.cardinality || i < cardinality && array[i] < o.array[j]) {
+                        out[n++] = array[i++];
+                    } else if (i >= cardinality || array[i] > o.array[j]) {
+                        out[n++] = o.array[j++];
+                    } else {
+                        out[n++] = array[i++];
+                        j++;
+                    }
+                }
+                return new Container(out, n);
+            }
+            long[] out = bits != null ? bits.clone() : toBits();
+            if (o.bits != null) {
+                for (int i = 0; i < BITMAP_WORDS; i++)
+                    out[i] |= o.bits[i];
+            } else {
+                for (int i = 0; i < o.cardinality; i++)
+                    out[o.array[i] >>> 6] |= 1L << o.array[i];
+            }
+            int n = 0;
+            for (long w : out)
+                n += Long.bitCount(w);
+            return new Container(out, n).shrink();
+        }
+
+        Container andNot(Container o) {
+            if (bits == null) {
+                char[] out = new char[cardinality];
+                int n = 0;
+                for (int i = 0; i < cardinality; i++) {
+                    if (!o.contains(array[i]))
+                        out[n++] = array[i];
+                }
+                return new Container(out, n);
+            }
+            long[] out = bits.clone();
+            if (o.bits != null) {
+                for (int i = 0; i < BITMAP_WORDS; i++)
+                    out[i] &= ~o.bits[i];
+            } else {
+                for (int i = 0; i < o.cardinality; i++)
+                    out[o.array[i] >>> 6] &= ~(1L << o.array[i]);
+            }
+            int n = 0;
+            for (long w : out)
+                n += Long.bitCount(w);
+            return new Container(out, n).shrink();
+        }
+
+        Container copy() {
+            return bits != null ? new Container(bits.clone(), cardinality)
+                    : new Container(Arrays.copyOf(array, Math.max(4, cardinality)), cardinality);
+        }
+
+        int sizeInBytes() {
+            return 24 + (bits != null ? BITMAP_WORDS * 8 : array.length * 2);
+        }
+
+        private long[] toBits() {
+            long[] out = new long[BITMAP_WORDS];
+            for (int i = 0; i < cardinality; i++)
+                out[array[i] >>> 6] |= 1L << array[i];
+            return out;
+        }
+
+        private Container toBitmap() {
+            return new Container(toBits(), cardinality);
+        }
+
+        private Container toArrayContainer() {
+            char[] out = new char[Math.max(4, cardinality)];
+            int n = 0;
+            for (int w = 0; w < BITMAP_WORDS; w++) {
+                long word = bits[w];
+                while (word != 0) {
+                    out[n++] = (char) ((w << 6) + Long.numberOfTrailingZeros(word));
+                    word &= word - 1;
+                }
+            }
+            return new Container(out, n);
+        }
+
+        // 位图中的值不多时换成数组
+        private Container shrink() {
+            return cardinality <= ARRAY_MAX ? toArrayContainer() : this;
+        }
+    }
+}
@@ -3,8 +3,6 @@ package com.googlewalletlib.util;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
-import android.util.Log;
-
 public class EncryptTools {
 	
 
@@ -20,11 +18,7 @@ public class EncryptTools {
 		} catch (NoSuchAlgorithmException e) {
 			return null;
 		}
-		if (strDes != null) {
-			Log.e("Encrypt", strDes);
-		} else {
-			Log.e("Encrypt", "NULL");
-		}
+		IabLog.d("Encrypt", "{}", strDes);
 		return strDes;
 	}
 
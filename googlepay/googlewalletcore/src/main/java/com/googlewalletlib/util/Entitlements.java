@@ -0,0 +1,271 @@
+package com.googlewalletlib.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * 大量用户的商品权益: 用户和 sku 都编成连续的 int 编号，每个 sku 一个 CompressedBitmap 保存拥有它的用户。
+ * 由购买流 (apply) 更新，查询某个用户是否拥有、某个 sku 的拥有人数、多个 sku 的交、并、差都只是位运算:
+ * <pre>
+ * Entitlements e = new Entitlements();
+ * e.apply(userId, purchase);              // purchaseState 0 授予，1、2 收回
+ * e.owns(userId, "vip");
+ * e.countOwnersOfAll("vip", "skin_gold"); // 同时拥有的人数
+ * CompressedBitmap b = e.ownersOfAny("vip", "vip_year");
+ * for (int u = b.next(0); u >= 0; u = b.next(u + 1))
+ *     e.getUser(u);
+ * </pre>
+ * Purchase 中没有用户，userId 由调用者给出 (例如下单时写入 developerPayload 的账号)。
+ * 编号只增加不回收，收回权益只清除位。读写锁保护，查询可以在多个线程上同时进行
+ */
+public class Entitlements {
+    private final ReentrantReadWriteLock mLock = new ReentrantReadWriteLock();
+    private final HashMap<String, Integer> mUserIds = new HashMap<String, Integer>();
+    private final ArrayList<String> mUsers = new ArrayList<String>();
+    private final HashMap<String, Integer> mSkuIds = new HashMap<String, Integer>();
+    private final ArrayList<String> mSkus = new ArrayList<String>();
+    // 下标是 sku 的编号
+    private final ArrayList<CompressedBitmap> mOwners = new ArrayList<CompressedBitmap>();
+
+    /**
+     * 按购买的状态更新: 0 (已购买) 授予 sku，1 (取消)、2 (退款) 收回
+     *
+     * @return false 表示权益没有变化
+     */
+    public boolean apply(String userId, Purchase p) {
+        if (p.getPurchaseState() == 0)
+            return grant(userId, p.getSku());
+        return revoke(userId, p.getSku());
+    }
+
+    /**
+     * @return false 表示已经拥有
+     */
+    public boolean grant(String userId, String sku) {
+        mLock.writeLock().lock();
+        try {
+            int user = id(mUserIds, mUsers, userId);
+            int skuId = id(mSkuIds, mSkus, sku);
+            if (skuId == mOwners.size())
+                mOwners.add(new CompressedBitmap());
+            return mOwners.get(skuId).add(user);
+        } finally {
+            mLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 不知道的用户或 sku 不会分配编号
+     *
+     * @return false 表示本来就没有
+     */
+    public boolean revoke(String userId, String sku) {
+        mLock.writeLock().lock();
+        try {
+            Integer user = mUserIds.get(userId);
+            CompressedBitmap owners = owners(sku);
+            return user != null && owners != null && owners.remove(user);
+        } finally {
+            mLock.writeLock().unlock();
+        }
+    }
+
+    public boolean owns(String userId, String sku) {
+        mLock.readLock().lock();
+        try {
+            Integer user = mUserIds.get(userId);
+            CompressedBitmap owners = owners(sku);
+            return user != null && owners != null && owners.contains(user);
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 用户拥有的所有 sku，按 sku 的编号排列
+     */
+    public List<String> getSkus(String userId) {
+        mLock.readLock().lock();
+        try {
+            Integer user = mUserIds.get(userId);
+            if (user == null)
+                return Collections.emptyList();
+            List<String> skus = new ArrayList<String>();
+            for (int i = 0; i < mOwners.size(); i++) {
+                if (mOwners.get(i).contains(user))
+                    skus.add(mSkus.get(i));
+            }
+            return skus;
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    public int countOwners(String sku) {
+        mLock.readLock().lock();
+        try {
+            CompressedBitmap owners = owners(sku);
+            return owners == null ? 0 : owners.getCardinality();
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 同时拥有两个 sku 的人数，不创建结果
+     */
+    public int countOwnersOfAll(String sku1, String sku2) {
+        mLock.readLock().lock();
+        try {
+            CompressedBitmap a = owners(sku1);
+            CompressedBitmap b = owners(sku2);
+            return a == null || b == null ? 0 : CompressedBitmap.andCardinality(a, b);
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 拥有 sku 的用户编号，是副本，用 getUser 转换成 userId
+     */
+    public CompressedBitmap ownersOf(String sku) {
+        mLock.readLock().lock();
+        try {
+            CompressedBitmap owners = owners(sku);
+            return owners == null ? new CompressedBitmap() : owners.copy();
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 拥有所有这些 sku 的用户编号
+     */
+    public CompressedBitmap ownersOfAll(String... skus) {
+        mLock.readLock().lock();
+        try {
+            CompressedBitmap result = null;
+            for (String sku : skus) {
+                CompressedBitmap owners = owners(sku);
+                if (owners == null)
+                    return new CompressedBitmap();
+                result = result == null ? owners.copy() : CompressedBitmap.and(result, owners);
+                if (result.isEmpty())
+                    break;
+            }
+            return result == null ? new CompressedBitmap() : result;
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 拥有这些 sku 中任意一个的用户编号
+     */
+    public CompressedBitmap ownersOfAny(String... skus) {
+        mLock.readLock().lock();
+        try {
+            CompressedBitmap result = null;
+            for (String sku : skus) {
+                CompressedBitmap owners = owners(sku);
+                if (owners != null)
+                    result = result == null ? owners.copy() : CompressedBitmap.or(result, owners);
+            }
+            return result == null ? new CompressedBitmap() : result;
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 拥有 sku 但没有 excluded 的用户编号，例如买了月卡但没有买年卡的用户
+     */
+    public CompressedBitmap ownersOfButNot(String sku, String excluded) {
+        mLock.readLock().lock();
+        try {
+            CompressedBitmap owners = owners(sku);
+            if (owners == null)
+                return new CompressedBitmap();
+            CompressedBitmap other = owners(excluded);
+            return other == null ? owners.copy() : CompressedBitmap.andNot(owners, other);
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return 没有时返回 -1
+     */
+    public int getUserId(String userId) {
+        mLock.readLock().lock();
+        try {
+            Integer user = mUserIds.get(userId);
+            return user == null ? -1 : user;
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 用户编号对应的 userId
+     */
+    public String getUser(int id) {
+        mLock.readLock().lock();
+        try {
+            return mUsers.get(id);
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    public int getUserCount() {
+        mLock.readLock().lock();
+        try {
+            return mUsers.size();
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    public int getSkuCount() {
+        mLock.readLock().lock();
+        try {
+            return mSkus.size();
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    /** 所有位图大约占用的内存，不包括编号表 */
+    public long getBitmapBytes() {
+        mLock.readLock().lock();
+        try {
+            long n = 0;
+            for (CompressedBitmap b : mOwners)
+                n += b.getSizeInBytes();
+            return n;
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    private CompressedBitmap owners(String sku) {
+        Integer id = mSkuIds.get(sku);
+        return id == null ? null : mOwners.get(id);
+    }
+
+    private static int id(HashMap<String, Integer> ids, ArrayList<String> names, String name) {
+        if (name == null)
+            throw new IllegalArgumentException("null");
+        Integer id = ids.get(name);
+        if (id == null) {
+            id = names.size();
+            ids.put(name, id);
+            names.add(name);
+        }
+        return id;
+    }
+}
@@ -0,0 +1,41 @@
+package com.googlewalletlib.util;
+
+/**
+ * billing 的结果码和商品类型，IabHelper 实现了这个接口，
+ * 原来的 IabHelper.BILLING_RESPONSE_RESULT_OK 等写法不变
+ */
+public interface IabConstants {
+
+    // Billing 结果码
+    int BILLING_RESPONSE_RESULT_OK = 0;
+    int BILLING_RESPONSE_RESULT_USER_CANCELED = 1;
+    int BILLING_RESPONSE_RESULT_SERVICE_UNAVAILABLE = 2;
+    int BILLING_RESPONSE_RESULT_BILLING_UNAVAILABLE = 3;
+    int BILLING_RESPONSE_RESULT_ITEM_UNAVAILABLE = 4;
+    int BILLING_RESPONSE_RESULT_DEVELOPER_ERROR = 5;
+    int BILLING_RESPONSE_RESULT_ERROR = 6;
+    int BILLING_RESPONSE_RESULT_ITEM_ALREADY_OWNED = 7;
+    int BILLING_RESPONSE_RESULT_ITEM_NOT_OWNED = 8;
+
+    // IAB Helper error codes
+    int IABHELPER_ERROR_BASE = -1000;
+    int IABHELPER_REMOTE_EXCEPTION = -1001;// 说明设备不支持billing支付
+    int IABHELPER_BAD_RESPONSE = -1002;// 不是错误，也不是正确的响应码
+    int IABHELPER_VERIFICATION_FAILED = -1003;// 验证失败
+    int IABHELPER_SEND_INTENT_FAILED = -1004;// 发送intent失败
+    int IABHELPER_USER_CANCELLED = -1005;// 用户取消
+    int IABHELPER_UNKNOWN_PURCHASE_RESPONSE = -1006;// 未知的购买
+    int IABHELPER_MISSING_TOKEN = -1007;//没有 token
+    int IABHELPER_UNKNOWN_ERROR = -1008;// 购买后没有信息返回
+    int IABHELPER_SUBSCRIPTIONS_NOT_AVAILABLE = -1009;// 订阅无法使用
+    int IABHELPER_INVALID_CONSUMPTION = -1010;//无效的消费
+    int IABHELPER_TIMEOUT = -1011;// service 调用超时
+    int IABHELPER_SERVICE_UNAVAILABLE = -1012;// service 连续失败，已熔断
+    int IABHELPER_DUPLICATE_CONSUMPTION = -1013;// 同一个 token 正在消耗
+    int IABHELPER_CANCELLED = -1014;// 等待 service 调用时被取消 (线程被中断)
+    int IABHELPER_JOURNAL_FAILED = -1015;// 消耗前记录购买失败
+
+    // Item types
+    String ITEM_TYPE_INAPP = "inapp";
+    String ITEM_TYPE_SUBS = "subs";
+}
@@ -0,0 +1,185 @@
+package com.googlewalletlib.util;
+
+/**
+ * 库内部使用的日志。先检查级别再格式化，消息用 {} 作为参数占位符:
+ * <pre>
+ * IabLog.d(TAG, "getPurchases 返回 {}, {} 个商品", response, count);
+ * </pre>
+ * 没有达到级别时只做一次比较，不拼接字符串；参数是固定个数的重载，不分配可变参数数组。
+ * 默认只输出 WARN 及以上，调试时用 setLevel(DEBUG)。
+ * 另外可以打开一个二进制的环形缓冲区 (见 IabLogRing)，只记录事件编号和数字参数，不分配内存
+ */
+public final class IabLog {
+
+    // 与 android.util.Log 的级别一致
+    public static final int VERBOSE = 2;
+    public static final int DEBUG = 3;
+    public static final int INFO = 4;
+    public static final int WARN = 5;
+    public static final int ERROR = 6;
+    public static final int NONE = Integer.MAX_VALUE;
+
+    /**
+     * 日志的输出目标
+     */
+    public interface Sink {
+        /**
+         * @param error 可能为 null
+         */
+        void log(int level, String tag, String message, Throwable error);
+    }
+
+    private static volatile int sLevel = WARN;
+    // 不依赖 Android 的默认输出，googlewalletlib 加载 IabHelper 时换成 logcat
+    static final Sink STDERR = new Sink() {
+        public void log(int level, String tag, String message, Throwable error) {
+            System.err.println(tag + ": " + message);
+            if (error != null)
+                error.printStackTrace();
+        }
+    };
+
+    private static volatile Sink sSink = STDERR;
+    private static volatile IabLogRing sRing;
+
+    private IabLog() {
+    }
+
+    /**
+     * 输出 level 及以上的日志，NONE 表示全部关闭
+     */
+    public static void setLevel(int level) {
+        sLevel = level;
+    }
+
+    public static int getLevel() {
+        return sLevel;
+    }
+
+    /**
+     * 设置输出目标，默认是 System.err，Android 上使用 IabHelper 后是 logcat；null 表示丢弃
+     */
+    public static void setSink(Sink sink) {
+        sSink = sink;
+    }
+
+    public static Sink getSink() {
+        return sSink;
+    }
+
+    /**
+     * 设置记录事件的环形缓冲区，null 表示不记录
+     */
+    public static void setRing(IabLogRing ring) {
+        sRing = ring;
+    }
+
+    public static IabLogRing getRing() {
+        return sRing;
+    }
+
+    public static boolean isLoggable(int level) {
+        return level >= sLevel;
+    }
+
+    public static void d(String tag, String msg) {
+        if (DEBUG >= sLevel)
+            write(DEBUG, tag, msg, 0, null, null, null, null);
+    }
+
+    public static void d(String tag, String format, Object a) {
+        if (DEBUG >= sLevel)
+            write(DEBUG, tag, format, 1, a, null, null, null);
+    }
+
+    public static void d(String tag, String format, Object a, Object b) {
+        if (DEBUG >= sLevel)
+            write(DEBUG, tag, format, 2, a, b, null, null);
+    }
+
+    public static void d(String tag, String format, Object a, Object b, Object c) {
+        if (DEBUG >= sLevel)
+            write(DEBUG, tag, format, 3, a, b, c, null);
+    }
+
+    public static void w(String tag, String msg) {
+        if (WARN >= sLevel)
+            write(WARN, tag, msg, 0, null, null, null, null);
+    }
+
+    public static void w(String tag, String msg, Throwable error) {
+        if (WARN >= sLevel)
+            write(WARN, tag, msg, 0, null, null, null, error);
+    }
+
+    public static void w(String tag, String format, Object a) {
+        if (WARN >= sLevel)
+            write(WARN, tag, format, 1, a, null, null, null);
+    }
+
+    public static void w(String tag, String format, Object a, Object b) {
+        if (WARN >= sLevel)
+            write(WARN, tag, format, 2, a, b, null, null);
+    }
+
+    public static void e(String tag, String msg) {
+        if (ERROR >= sLevel)
+            write(ERROR, tag, msg, 0, null, null, null, null);
+    }
+
+    public static void e(String tag, String msg, Throwable error) {
+        if (ERROR >= sLevel)
+            write(ERROR, tag, msg, 0, null, null, null, error);
+    }
+
+    public static void e(String tag, String format, Object a) {
+        if (ERROR >= sLevel)
+            write(ERROR, tag, format, 1, a, null, null, null);
+    }
+
+    public static void e(String tag, String format, Object a, Object b) {
+        if (ERROR >= sLevel)
+            write(ERROR, tag, format, 2, a, b, null, null);
+    }
+
+    /**
+     * 记录一个事件到环形缓冲区，没有设置缓冲区时什么都不做。和日志级别无关
+     *
+     * @param event IabLogRing.EVENT_*
+     */
+    public static void event(int event, long a, long b) {
+        IabLogRing ring = sRing;
+        if (ring != null)
+            ring.record(event, a, b);
+    }
+
+    /**
+     * 不检查级别直接输出，调用方已经检查过 (例如 IabHelper 的 enableDebugLogging)
+     */
+    static void write(int level, String tag, String format, int argc, Object a, Object b,
+                      Object c, Throwable error) {
+        Sink sink = sSink;
+        if (sink == null)
+            return;
+        String msg = argc == 0 ? format : format(format, argc, a, b, c);
+        sink.log(level, tag, msg, error);
+    }
+
+    /**
+     * 依次用参数替换 format 中的 {}，多余的 {} 原样保留
+     */
+    static String format(String format, int argc, Object a, Object b, Object c) {
+        StringBuilder sb = new StringBuilder(format.length() + 16 * argc);
+        int from = 0;
+        for (int i = 0; i < argc; i++) {
+            int at = format.indexOf("{}", from);
+            if (at < 0)
+                break;
+            sb.append(format, from, at);
+            sb.append(i == 0 ? a : i == 1 ? b : c);
+            from = at + 2;
+        }
+        sb.append(format, from, format.length());
+        return sb.toString();
+    }
+}
@@ -0,0 +1,88 @@
+package com.googlewalletlib.util;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 固定大小的二进制事件缓冲区，满了以后覆盖最旧的。
+ * 每个事件只记录时间、事件编号和两个 long 参数，写入时不加锁也不分配内存，
+ * 发布版本也可以一直打开，出问题时用 dump 导出最近的事件。
+ * 多个线程同时覆盖同一个位置时，个别事件可能不完整
+ */
+public class IabLogRing {
+
+    // 事件编号，参数的含义见 EVENT_FORMATS
+    public static final int EVENT_GET_PURCHASES = 0;
+    public static final int EVENT_GET_SKU_DETAILS = 1;
+    public static final int EVENT_PURCHASE_RESULT = 2;
+    public static final int EVENT_VERIFY = 3;
+    public static final int EVENT_CONSUME = 4;
+
+    static final String[] EVENT_FORMATS = {
+            "getPurchases response={} items={}",
+            "getSkuDetails response={} items={}",
+            "purchase result resultCode={} response={}",
+            "verifyPurchase response={} signatureValid={}",
+            "consume response={} tokenHash={}"
+    };
+
+    // 每个事件占用的 long: 时间、事件编号、参数 a、参数 b
+    private static final int SLOT = 4;
+
+    private final long[] mData;
+    private final int mMask;
+    private final AtomicLong mNext = new AtomicLong();
+
+    /**
+     * @param capacity 最多保存的事件数，向上取整到 2 的幂
+     */
+    public IabLogRing(int capacity) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("capacity: " + capacity);
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity)
+            size <<= 1;
+        mMask = size - 1;
+        mData = new long[size * SLOT];
+    }
+
+    public int capacity() {
+        return mMask + 1;
+    }
+
+    void record(int event, long a, long b) {
+        long seq = mNext.getAndIncrement();
+        int base = (int) (seq & mMask) * SLOT;
+        mData[base] = System.currentTimeMillis();
+        mData[base + 1] = event;
+        mData[base + 2] = a;
+        mData[base + 3] = b;
+    }
+
+    /**
+     * 一共记录过的事件数，包括已经被覆盖的
+     */
+    public long count() {
+        return mNext.get();
+    }
+
+    /**
+     * 按时间顺序导出缓冲区里的事件，每行一个
+     */
+    public void dump(Writer out) throws IOException {
+        long end = mNext.get();
+        long start = Math.max(0, end - capacity());
+        for (long seq = start; seq < end; seq++) {
+            int base = (int) (seq & mMask) * SLOT;
+            int event = (int) mData[base + 1];
+            String format = event >= 0 && event < EVENT_FORMATS.length
+                    ? EVENT_FORMATS[event] : "event " + event + " {} {}";
+            out.write(Long.toString(mData[base]));
+            out.write(' ');
+            out.write(IabLog.format(format, 2, mData[base + 2], mData[base + 3], null));
+            out.write('\n');
+        }
+        out.flush();
+    }
+}
@@ -0,0 +1,67 @@
+/* Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlewalletlib.util;
+
+/**
+ * 处理一个在应用程序的计费操作的结果。
+ */
+public class IabResult {
+    int mResponse;
+    String mMessage;
+
+    public IabResult(int response, String message) {
+        mResponse = response;
+        if (message == null || message.trim().length() == 0) {
+            mMessage = getResponseDesc(response);
+        }
+        else {
+            mMessage = message + " (" + getResponseDesc(response) + ")";
+        }
+    }
+    public int getResponse() { return mResponse; }
+    public String getMessage() { return mMessage; }
+    public boolean isSuccess() { return mResponse == IabConstants.BILLING_RESPONSE_RESULT_OK; }
+    public boolean isFailure() { return !isSuccess(); }
+    public String toString() { return "原因: " + getMessage(); }
+
+    /**
+     * 返回结果码的描述
+     */
+    public static String getResponseDesc(int code) {
+        String[] iab_msgs = ("0:OK/1:用戶取消操作/2:服務不可用/"
+                + "3:计费API版本不支持请求的类型/4:获取不到产品/"
+                + "5:没有权限/6:操作错误/7:不购买，因为项目已经拥有/"
+                + "8:丐商品不属于消费").split("/");
+        String[] iabhelper_msgs = ("OK/設備不支持billing支付/"
+                + "無效的響應碼/" + "驗證失敗/" + "發送intent失敗/"
+                + "用戶取消操作/" + "未知的購買/" + "没有 token/"
+                + "購買後沒有信息返回/" + "訂閱無法使用/"
+                + "無效的消費/" + "調用超時/" + "服務暫不可用/"
+                + "重複消費/" + "操作被取消/" + "記錄購買失敗").split("/");
+
+        if (code <= IabConstants.IABHELPER_ERROR_BASE) {
+            int index = IabConstants.IABHELPER_ERROR_BASE - code;
+            if (index >= 0 && index < iabhelper_msgs.length)
+                return iabhelper_msgs[index];
+            else
+                return String.valueOf(code) + ":未知的 IAB Helper 错误";
+        } else if (code < 0 || code >= iab_msgs.length)
+            return String.valueOf(code) + ":未知的";
+        else
+            return iab_msgs[code];
+    }
+}
+
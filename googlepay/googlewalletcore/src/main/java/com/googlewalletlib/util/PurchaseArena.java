@@ -0,0 +1,387 @@
+package com.googlewalletlib.util;
+
+import org.json.JSONException;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 在堆外保存大量购买，代替 Purchase 对象，减少对账时的 GC 停顿。
+ * 记录放在固定大小的直接 ByteBuffer (slab) 中，每条记录是固定的头加上变长的尾:
+ * <pre>
+ * long purchaseTime | int purchaseState | int itemType | int packageName | int sku |
+ * int orderId 长度 | int developerPayload 长度 | int token 长度 | int originalJson 长度 |
+ * int signature 长度 | 以上 5 个字符串的 UTF-8
+ * </pre>
+ * itemType、packageName 和 sku 只有很少几种，保存为字符串表中的编号，取出时不创建对象。
+ * 用 Record 读取，一个 Record 可以指向任意一条记录，getter 与 Purchase 相同:
+ * <pre>
+ * PurchaseArena arena = new PurchaseArena();
+ * long ref = arena.add(purchase);
+ * PurchaseArena.Record r = arena.newRecord();
+ * for (long ref = arena.first(); ref != -1; ref = arena.next(ref)) {
+ *     r.moveTo(ref);
+ *     total += r.getPurchaseTime();
+ * }
+ * </pre>
+ * 返回 String 的 getter 会创建字符串；不想创建对象时用 equals、compare 和 appendTo。
+ * 只有一个线程 add；读取不加锁，可以在多个线程上进行，每个线程使用自己的 Record
+ */
+public class PurchaseArena {
+    public static final int DEFAULT_SLAB_SIZE = 16 * 1024 * 1024;
+
+    // 变长字段，Record.equals 等方法的参数
+    public static final int ORDER_ID = 0;
+    public static final int DEVELOPER_PAYLOAD = 1;
+    public static final int TOKEN = 2;
+    public static final int ORIGINAL_JSON = 3;
+    public static final int SIGNATURE = 4;
+    static final int STRING_FIELDS = 5;
+
+    static final int PURCHASE_TIME = 0;
+    static final int PURCHASE_STATE = 8;
+    static final int ITEM_TYPE = 12;
+    static final int PACKAGE_NAME = 16;
+    static final int SKU = 20;
+    static final int LENGTHS = 24;
+    static final int HEADER = LENGTHS + 4 * STRING_FIELDS;
+    // 每条记录按 8 字节对齐，purchaseTime 不会跨越对齐边界
+    static final int ALIGN = 8;
+
+    private final int mSlabSize;
+    // 只增加，add 时复制后替换
+    private volatile ByteBuffer[] mSlabs = new ByteBuffer[0];
+    // 每个 slab 已经使用的长度，与 mSlabs 一起替换
+    private volatile int[] mUsed = new int[0];
+    private volatile String[] mStrings = new String[0];
+    private final ConcurrentHashMap<String, Integer> mStringIds = new ConcurrentHashMap<String, Integer>();
+    private volatile long mCount;
+
+    public PurchaseArena() {
+        this(DEFAULT_SLAB_SIZE);
+    }
+
+    /**
+     * @param slabSize 每个直接 ByteBuffer 的大小，也是一条记录的最大长度
+     */
+    public PurchaseArena(int slabSize) {
+        if (slabSize < HEADER)
+            throw new IllegalArgumentException("slabSize: " + slabSize);
+        mSlabSize = slabSize;
+    }
+
+    /**
+     * 保存一个购买
+     *
+     * @return 这条记录的位置，用于 Record.moveTo
+     */
+    public synchronized long add(Purchase p) {
+        String[] strings = {p.getOrderId(), p.getDeveloperPayload(), p.getToken(),
+                p.getOriginalJson(), p.getSignature()};
+        int length = HEADER;
+        int[] lengths = new int[STRING_FIELDS];
+        for (int i = 0; i < STRING_FIELDS; i++) {
+            lengths[i] = utf8Length(strings[i]);
+            length += lengths[i];
+        }
+        if (length > mSlabSize)
+            throw new IllegalArgumentException("购买记录 " + length + " 字节, 超过 slab 大小 " + mSlabSize);
+        int itemType = intern(p.getItemType());
+        int packageName = intern(p.getPackageName());
+        int sku = intern(p.getSku());
+
+        ByteBuffer[] slabs = mSlabs;
+        int[] used = mUsed;
+        int slab = slabs.length - 1;
+        if (slab < 0 || used[slab] + length > mSlabSize) {
+            slab = slabs.length;
+            ByteBuffer[] grown = new ByteBuffer[slab + 1];
+            System.arraycopy(slabs, 0, grown, 0, slabs.length);
+            grown[slab] = ByteBuffer.allocateDirect(mSlabSize);
+            int[] grownUsed = new int[slab + 1];
+            System.arraycopy(used, 0, grownUsed, 0, used.length);
+            slabs = grown;
+            used = grownUsed;
+        } else {
+            used = used.clone();
+        }
+        ByteBuffer b = slabs[slab];
+        int at = used[slab];
+        b.putLong(at + PURCHASE_TIME, p.getPurchaseTime());
+        b.putInt(at + PURCHASE_STATE, p.getPurchaseState());
+        b.putInt(at + ITEM_TYPE, itemType);
+        b.putInt(at + PACKAGE_NAME, packageName);
+        b.putInt(at + SKU, sku);
+        int pos = at + HEADER;
+        for (int i = 0; i < STRING_FIELDS; i++) {
+            b.putInt(at + LENGTHS + 4 * i, lengths[i]);
+            pos = putUtf8(b, pos, strings[i]);
+        }
+        used[slab] = Math.min(mSlabSize, align(at + length));
+        // 先写记录再发布新的长度，读取的线程看到长度时记录已经完整
+        mSlabs = slabs;
+        mUsed = used;
+        mCount++;
+        return ((long) slab << 32) | at;
+    }
+
+    private int intern(String s) {
+        if (s == null)
+            s = "";
+        Integer id = mStringIds.get(s);
+        if (id != null)
+            return id;
+        String[] strings = mStrings;
+        String[] grown = new String[strings.length + 1];
+        System.arraycopy(strings, 0, grown, 0, strings.length);
+        grown[strings.length] = s;
+        mStrings = grown;
+        mStringIds.put(s, strings.length);
+        return strings.length;
+    }
+
+    /**
+     * 字符串表中的编号，没有这个字符串时返回 -1。用于与 Record.getSkuId 比较
+     */
+    public int getStringId(String s) {
+        Integer id = mStringIds.get(s);
+        return id == null ? -1 : id;
+    }
+
+    public String getString(int id) {
+        return mStrings[id];
+    }
+
+    public long size() {
+        return mCount;
+    }
+
+    /** 已经分配的堆外内存 */
+    public long getOffHeapBytes() {
+        return (long) mSlabs.length * mSlabSize;
+    }
+
+    /** 记录实际占用的长度 */
+    public long getUsedBytes() {
+        long n = 0;
+        for (int u : mUsed)
+            n += u;
+        return n;
+    }
+
+    /**
+     * 第一条记录，没有记录时返回 -1
+     */
+    public long first() {
+        int[] used = mUsed;
+        return used.length > 0 && used[0] > 0 ? 0 : -1;
+    }
+
+    /**
+     * ref 之后的一条记录，没有时返回 -1
+     */
+    public long next(long ref) {
+        int slab = (int) (ref >>> 32);
+        int at = (int) ref;
+        int[] used = mUsed;
+        int end = align(at + recordLength(mSlabs[slab], at));
+        if (end < used[slab])
+            return ((long) slab << 32) | end;
+        if (slab + 1 < used.length)
+            return (long) (slab + 1) << 32;
+        return -1;
+    }
+
+    public Record newRecord() {
+        return new Record();
+    }
+
+    private static int recordLength(ByteBuffer b, int at) {
+        int length = HEADER;
+        for (int i = 0; i < STRING_FIELDS; i++)
+            length += b.getInt(at + LENGTHS + 4 * i);
+        return length;
+    }
+
+    private static int align(int n) {
+        return (n + ALIGN - 1) & -ALIGN;
+    }
+
+    static int utf8Length(String s) {
+        if (s == null)
+            return 0;
+        int n = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                n++;
+            } else if (c < 0x800) {
+                n += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length()
+                    && Character.isLowSurrogate(s.charAt(i + 1))) {
+                n += 4;
+                i++;
+            } else {
+                n += 3;
+            }
+        }
+        return n;
+    }
+
+    // 不成对的代理字符按 3 字节写入，与 utf8Length 一致
+    static int putUtf8(ByteBuffer b, int pos, String s) {
+        if (s == null)
+            return pos;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                b.put(pos++, (byte) c);
+            } else if (c < 0x800) {
+                b.put(pos++, (byte) (0xc0 | c >> 6));
+                b.put(pos++, (byte) (0x80 | c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length()
+                    && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                b.put(pos++, (byte) (0xf0 | cp >> 18));
+                b.put(pos++, (byte) (0x80 | cp >> 12 & 0x3f));
+                b.put(pos++, (byte) (0x80 | cp >> 6 & 0x3f));
+                b.put(pos++, (byte) (0x80 | cp & 0x3f));
+            } else {
+                b.put(pos++, (byte) (0xe0 | c >> 12));
+                b.put(pos++, (byte) (0x80 | c >> 6 & 0x3f));
+                b.put(pos++, (byte) (0x80 | c & 0x3f));
+            }
+        }
+        return pos;
+    }
+
+    /**
+     * 指向一条记录的 flyweight，moveTo 之后读取，不创建对象。不是线程安全的
+     */
+    public final class Record {
+        private ByteBuffer mSlab;
+        private int mAt;
+        private long mRef = -1;
+
+        private Record() {
+        }
+
+        public Record moveTo(long ref) {
+            mSlab = mSlabs[(int) (ref >>> 32)];
+            mAt = (int) ref;
+            mRef = ref;
+            return this;
+        }
+
+        public long getRef() {
+            return mRef;
+        }
+
+        public String getItemType() { return mStrings[mSlab.getInt(mAt + ITEM_TYPE)]; }
+        public String getOrderId() { return getString(ORDER_ID); }
+        public String getPackageName() { return mStrings[mSlab.getInt(mAt + PACKAGE_NAME)]; }
+        public String getSku() { return mStrings[mSlab.getInt(mAt + SKU)]; }
+        public long getPurchaseTime() { return mSlab.getLong(mAt + PURCHASE_TIME); }
+        public int getPurchaseState() { return mSlab.getInt(mAt + PURCHASE_STATE); }
+        public String getDeveloperPayload() { return getString(DEVELOPER_PAYLOAD); }
+        public String getToken() { return getString(TOKEN); }
+        public String getOriginalJson() { return getString(ORIGINAL_JSON); }
+        public String getSignature() { return getString(SIGNATURE); }
+
+        /** sku 在字符串表中的编号，见 PurchaseArena.getStringId */
+        public int getSkuId() { return mSlab.getInt(mAt + SKU); }
+        public int getItemTypeId() { return mSlab.getInt(mAt + ITEM_TYPE); }
+
+        /**
+         * 变长字段的 UTF-8 长度
+         *
+         * @param field ORDER_ID 等
+         */
+        public int length(int field) {
+            return mSlab.getInt(mAt + LENGTHS + 4 * field);
+        }
+
+        private int start(int field) {
+            int pos = mAt + HEADER;
+            for (int i = 0; i < field; i++)
+                pos += mSlab.getInt(mAt + LENGTHS + 4 * i);
+            return pos;
+        }
+
+        /**
+         * 字段与 s 相同，不创建对象。add 时 null 按空字符串保存，s 为 null 时与空字段相同
+         */
+        public boolean equals(int field, String s) {
+            int length = length(field);
+            if (s == null)
+                return length == 0;
+            if (utf8Length(s) != length)
+                return false;
+            int pos = start(field);
+            int end = pos + length;
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                if (c < 0x80) {
+                    if (mSlab.get(pos++) != (byte) c)
+                        return false;
+                } else {
+                    // 非 ASCII 少见，逐个字符比较解码的结果
+                    return getString(field).equals(s);
+                }
+            }
+            return pos == end;
+        }
+
+        /**
+         * 按 UTF-8 字节 (即码点) 的顺序比较两条记录的同一个字段
+         */
+        public int compare(int field, Record other) {
+            int a = start(field);
+            int b = other.start(field);
+            int aEnd = a + length(field);
+            int bEnd = b + other.length(field);
+            while (a < aEnd && b < bEnd) {
+                int x = mSlab.get(a++) & 0xff;
+                int y = other.mSlab.get(b++) & 0xff;
+                if (x != y)
+                    return x - y;
+            }
+            return (aEnd - a) - (bEnd - b);
+        }
+
+        /**
+         * 把字段解码后追加到 out，可以复用同一个 StringBuilder
+         */
+        public StringBuilder appendTo(int field, StringBuilder out) {
+            int pos = start(field);
+            int end = pos + length(field);
+            while (pos < end) {
+                int c = mSlab.get(pos++) & 0xff;
+                if (c < 0x80) {
+                    out.append((char) c);
+                } else if (c < 0xe0) {
+                    out.append((char) ((c & 0x1f) << 6 | mSlab.get(pos++) & 0x3f));
+                } else if (c < 0xf0) {
+                    out.append((char) ((c & 0x0f) << 12 | (mSlab.get(pos++) & 0x3f) << 6
+                            | mSlab.get(pos++) & 0x3f));
+                } else {
+                    int cp = (c & 0x07) << 18 | (mSlab.get(pos++) & 0x3f) << 12
+                            | (mSlab.get(pos++) & 0x3f) << 6 | mSlab.get(pos++) & 0x3f;
+                    out.append(Character.highSurrogate(cp)).append(Character.lowSurrogate(cp));
+                }
+            }
+            return out;
+        }
+
+        public String getString(int field) {
+            return appendTo(field, new StringBuilder(length(field))).toString();
+        }
+
+        /**
+         * 创建对应的 Purchase，会重新解析 originalJson
+         */
+        public Purchase toPurchase() throws JSONException {
+            return new Purchase(getItemType(), getOriginalJson(), getSignature());
+        }
+    }
+}
@@ -0,0 +1,338 @@
+package com.googlewalletlib.util;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * PurchaseJournal 的磁盘索引: orderId 和 purchaseToken 的 64 位哈希 -> 购买记录在 journal 中的位置。
+ * 开放寻址 (线性探测) 的哈希表放在内存映射的文件中，不占用堆，表的大小只受磁盘限制。
+ * <p>
+ * 由 PurchaseJournal.attachIndex 维护: 购买写入磁盘后加入索引。
+ * 只有一个线程写入，查询不加锁；写入一批后更新 volatile 的 indexedEnd，
+ * 查询先读 indexedEnd，之前写入的槽位都可见。
+ * 哈希相同的不同购买都会返回，由 PurchaseJournal 读出记录后比较。
+ * <p>
+ * 索引可以随时从 journal 重建: 没有正常 close 时 (进程被杀) 重新扫描整个 journal，
+ * 重复加入的位置会被忽略；journal 被压缩重写后清空重建
+ */
+public class PurchaseIndex implements Closeable {
+    private static final String TAG = "PurchaseIndex";
+
+    static final int MAGIC = 0x49414958; // "IAIX"
+    static final int VERSION = 1;
+    // 文件头，之后是槽位
+    static final int HEADER = 4096;
+    static final int H_CAPACITY = 8;
+    static final int H_COUNT = 16;
+    static final int H_INDEXED_END = 24;
+    static final int H_LAST_OFFSET = 32;
+    static final int H_LAST_CRC = 40;
+    static final int H_CLEAN = 44;
+    // 每个槽位: long 哈希 (0 表示空) | long 位置 + 1
+    static final int SLOT = 16;
+    // 每段映射 2^26 个槽位 (1GB)，MappedByteBuffer 最大 2GB
+    static final int SEGMENT_SHIFT = 26;
+    static final long SEGMENT_MASK = (1L << SEGMENT_SHIFT) - 1;
+    static final long MIN_CAPACITY = 1024;
+
+    private final File mFile;
+    // grow 时换成新的表，正在查询的线程继续使用旧的映射
+    private volatile Table mTable;
+    private volatile long mIndexedEnd;
+    private long mLastOffset;
+    private int mLastCrc;
+
+    private PurchaseIndex(File file, Table table) {
+        mFile = file;
+        mTable = table;
+        MappedByteBuffer h = table.mHeader;
+        mIndexedEnd = h.getLong(H_INDEXED_END);
+        mLastOffset = h.getLong(H_LAST_OFFSET);
+        mLastCrc = h.getInt(H_LAST_CRC);
+    }
+
+    /**
+     * 打开或创建索引
+     *
+     * @param expectedEntries 预计的键数 (每个购买最多两个)，新建时按它分配，之后装载率超过一半时翻倍
+     */
+    public static PurchaseIndex open(File file, long expectedEntries) throws IOException {
+        Table table = null;
+        if (file.exists() && file.length() >= HEADER) {
+            table = Table.map(file);
+            if (table == null)
+                IabLog.w(TAG, "{} 不是有效的索引, 重建", file);
+        }
+        if (table == null) {
+            long capacity = MIN_CAPACITY;
+            while (capacity < expectedEntries * 2)
+                capacity <<= 1;
+            table = Table.create(file, capacity);
+        }
+        PurchaseIndex index = new PurchaseIndex(file, table);
+        if (table.mHeader.getInt(H_CLEAN) == 0 && index.mIndexedEnd > 0) {
+            // 槽位可能没有全部写入磁盘，重新扫描 journal
+            IabLog.w(TAG, "{} 上次没有正常关闭, 重新扫描 journal", file);
+            index.mIndexedEnd = 0;
+        }
+        table.mHeader.putInt(H_CLEAN, 0);
+        table.mHeader.force();
+        return index;
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    /** 索引中的键数 */
+    public long getCount() {
+        return mTable.mHeader.getLong(H_COUNT);
+    }
+
+    public long getCapacity() {
+        return mTable.mCapacity;
+    }
+
+    /**
+     * 返回 key 可能对应的记录位置，没有时返回空数组。不加锁
+     */
+    long[] find(String key) {
+        long h = hash(key);
+        // 读 volatile 的 mIndexedEnd 之后，之前发布的槽位都可见
+        if (mIndexedEnd == 0)
+            return new long[0];
+        Table t = mTable;
+        long[] found = new long[0];
+        long i = h & t.mMask;
+        for (long probes = 0; probes < t.mCapacity; probes++) {
+            long slotHash = t.hashAt(i);
+            if (slotHash == 0)
+                break;
+            if (slotHash == h) {
+                long value = t.valueAt(i);
+                if (value != 0) {
+                    long[] grown = new long[found.length + 1];
+                    System.arraycopy(found, 0, grown, 0, found.length);
+                    grown[found.length] = value - 1;
+                    found = grown;
+                }
+            }
+            i = (i + 1) & t.mMask;
+        }
+        return found;
+    }
+
+    /**
+     * 加入一个键，同一个键和位置已经存在时忽略。只由一个线程调用，setIndexedEnd 之后才对查询可见
+     */
+    synchronized void put(String key, long offset) throws IOException {
+        Table t = mTable;
+        if ((getCount() + 1) * 2 > t.mCapacity)
+            t = grow(t);
+        if (insert(t, hash(key), offset + 1))
+            t.mHeader.putLong(H_COUNT, t.mHeader.getLong(H_COUNT) + 1);
+    }
+
+    private static boolean insert(Table t, long h, long value) {
+        long i = h & t.mMask;
+        while (true) {
+            long slotHash = t.hashAt(i);
+            if (slotHash == 0) {
+                // 先写位置再写哈希，查询看到哈希时位置已经写入
+                t.putSlot(i, h, value);
+                return true;
+            }
+            if (slotHash == h && t.valueAt(i) == value)
+                return false;
+            i = (i + 1) & t.mMask;
+        }
+    }
+
+    /**
+     * 容量翻倍: 在临时文件中重新插入所有的键，然后替换原来的文件
+     */
+    private Table grow(Table old) throws IOException {
+        long start = System.nanoTime();
+        File tmp = new File(mFile.getPath() + ".tmp");
+        Table t = Table.create(tmp, old.mCapacity * 2);
+        long count = 0;
+        for (long i = 0; i < old.mCapacity; i++) {
+            long h = old.hashAt(i);
+            if (h != 0 && insert(t, h, old.valueAt(i)))
+                count++;
+        }
+        t.mHeader.putLong(H_COUNT, count);
+        writeProgress(t, mIndexedEnd, mLastOffset, mLastCrc);
+        t.force();
+        if (!tmp.renameTo(mFile))
+            throw new IOException("无法替换 " + mFile);
+        mTable = t;
+        old.close();
+        IabLog.d(TAG, "索引扩容到 {} 个槽位, {} 毫秒", t.mCapacity,
+                (System.nanoTime() - start) / 1000000);
+        return t;
+    }
+
+    /**
+     * 之前 put 的键对查询可见，记下已经索引到 journal 的哪个位置
+     *
+     * @param end 已经索引的 journal 长度
+     * @param lastOffset 最后一个索引的记录的位置，用来检查 journal 是否被重写；没有时为 -1
+     * @param lastCrc 这条记录的 CRC32
+     */
+    synchronized void setIndexedEnd(long end, long lastOffset, int lastCrc) {
+        if (lastOffset >= 0) {
+            mLastOffset = lastOffset;
+            mLastCrc = lastCrc;
+        }
+        writeProgress(mTable, end, mLastOffset, mLastCrc);
+        mIndexedEnd = end;
+    }
+
+    private static void writeProgress(Table t, long end, long lastOffset, int lastCrc) {
+        t.mHeader.putLong(H_INDEXED_END, end);
+        t.mHeader.putLong(H_LAST_OFFSET, lastOffset);
+        t.mHeader.putInt(H_LAST_CRC, lastCrc);
+    }
+
+    long getIndexedEnd() {
+        return mIndexedEnd;
+    }
+
+    synchronized long getLastOffset() {
+        return mLastOffset;
+    }
+
+    synchronized int getLastCrc() {
+        return mLastCrc;
+    }
+
+    /**
+     * 清空索引，容量不变
+     */
+    synchronized void reset() throws IOException {
+        Table old = mTable;
+        old.close();
+        if (!mFile.delete())
+            throw new IOException("无法删除 " + mFile);
+        mTable = Table.create(mFile, old.mCapacity);
+        mLastOffset = -1;
+        mLastCrc = 0;
+        mIndexedEnd = 0;
+    }
+
+    /**
+     * 把槽位写入磁盘并标记为正常关闭，下次打开时不用重新扫描
+     */
+    public synchronized void close() throws IOException {
+        Table t = mTable;
+        t.force();
+        t.mHeader.putInt(H_CLEAN, 1);
+        t.mHeader.force();
+        t.close();
+    }
+
+    // FNV-1a 后用 splitmix64 混合，0 留给空槽位
+    static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            h ^= key.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h = (h ^ (h >>> 30)) * 0xbf58476d1ce4e5b9L;
+        h = (h ^ (h >>> 27)) * 0x94d049bb133111ebL;
+        h ^= h >>> 31;
+        return h == 0 ? 1 : h;
+    }
+
+    /**
+     * 一个索引文件的映射
+     */
+    static final class Table {
+        final RandomAccessFile mRaf;
+        final MappedByteBuffer mHeader;
+        final MappedByteBuffer[] mSegments;
+        final long mCapacity;
+        final long mMask;
+
+        private Table(RandomAccessFile raf, long capacity) throws IOException {
+            mRaf = raf;
+            mCapacity = capacity;
+            mMask = capacity - 1;
+            FileChannel channel = raf.getChannel();
+            mHeader = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER);
+            int segments = (int) ((capacity + SEGMENT_MASK) >>> SEGMENT_SHIFT);
+            mSegments = new MappedByteBuffer[segments];
+            for (int s = 0; s < segments; s++) {
+                long slots = Math.min(capacity - ((long) s << SEGMENT_SHIFT), 1L << SEGMENT_SHIFT);
+                mSegments[s] = channel.map(FileChannel.MapMode.READ_WRITE,
+                        HEADER + ((long) s << SEGMENT_SHIFT) * SLOT, slots * SLOT);
+            }
+        }
+
+        static Table create(File file, long capacity) throws IOException {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            // 新增的部分是 0，即空槽位
+            raf.setLength(0);
+            raf.setLength(HEADER + capacity * SLOT);
+            Table t = new Table(raf, capacity);
+            t.mHeader.putInt(0, MAGIC);
+            t.mHeader.putInt(4, VERSION);
+            t.mHeader.putLong(H_CAPACITY, capacity);
+            t.mHeader.putLong(H_LAST_OFFSET, -1);
+            return t;
+        }
+
+        /**
+         * 映射已有的索引，文件头无效时返回 null
+         */
+        static Table map(File file) throws IOException {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            boolean ok = false;
+            try {
+                if (raf.readInt() != MAGIC || raf.readInt() != VERSION)
+                    return null;
+                long capacity = raf.readLong();
+                if (capacity < MIN_CAPACITY || Long.bitCount(capacity) != 1
+                        || raf.length() != HEADER + capacity * SLOT)
+                    return null;
+                Table t = new Table(raf, capacity);
+                ok = true;
+                return t;
+            } finally {
+                if (!ok)
+                    raf.close();
+            }
+        }
+
+        long hashAt(long i) {
+            return mSegments[(int) (i >>> SEGMENT_SHIFT)].getLong((int) ((i & SEGMENT_MASK) * SLOT));
+        }
+
+        long valueAt(long i) {
+            return mSegments[(int) (i >>> SEGMENT_SHIFT)].getLong((int) ((i & SEGMENT_MASK) * SLOT) + 8);
+        }
+
+        void putSlot(long i, long h, long value) {
+            MappedByteBuffer s = mSegments[(int) (i >>> SEGMENT_SHIFT)];
+            int at = (int) ((i & SEGMENT_MASK) * SLOT);
+            s.putLong(at + 8, value);
+            s.putLong(at, h);
+        }
+
+        void force() {
+            for (MappedByteBuffer s : mSegments)
+                s.force();
+            mHeader.force();
+        }
+
+        // 映射在缓冲区被回收前仍然有效，正在查询的线程不受影响
+        void close() throws IOException {
+            mRaf.close();
+        }
+    }
+}
@@ -0,0 +1,726 @@
+package com.googlewalletlib.util;
+
+import org.json.JSONException;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * 只追加的购买记录，在消耗之前记下购买，服务器确认之后标记完成，
+ * 下次启动时 getPending 返回还没有完成的购买，重新提交。
+ * <p>
+ * 每条记录带 CRC32 校验，打开时丢弃文件末尾写了一半的记录。
+ * append 和 markDone 返回时记录已经 fsync；同时写入的多个线程合并成一次 fsync
+ * (group commit)：一个线程在 fsync 时，其它线程的记录先放在内存中，等它完成后一起写入。
+ * 会阻塞，不要在主线程上调用。调用的线程被中断 (例如 IabFuture.cancel(true)) 时仍然写完，
+ * 返回时保留中断状态。
+ * <p>
+ * attachIndex 之后，购买写入磁盘时同时加入 PurchaseIndex，findByOrderId 和 findByToken
+ * 不加锁，按索引直接读出记录，不需要把所有的购买放在内存中
+ */
+public class PurchaseJournal implements Closeable {
+    private static final String TAG = "PurchaseJournal";
+
+    static final int MAGIC = 0x49414a4c; // "IAJL"
+    static final int VERSION = 1;
+    static final byte TYPE_PURCHASE = 1;
+    static final byte TYPE_DONE = 2;
+    // 单条记录的最大长度，超过的认为是损坏的数据
+    static final int MAX_RECORD = 1024 * 1024;
+    // 打开时已完成的记录超过这个数并且多于未完成的购买时，只保留未完成的重写文件
+    static final int COMPACT_THRESHOLD = 1024;
+
+    private final File mFile;
+    // 线程在读写时被中断会关闭 FileChannel，之后由 reopen 换成新打开的
+    private volatile FileChannel mChannel;
+    private final ReentrantLock mLock = new ReentrantLock();
+    private final Condition mSynced = mLock.newCondition();
+    // 以下由 mLock 保护
+    private final LinkedHashMap<String, Purchase> mPending;
+    private final ByteArrayOutputStream mBuffer = new ByteArrayOutputStream();
+    // 文件末尾的位置，包括还在 mBuffer 中的记录
+    private long mEnd;
+    // 已经写入磁盘、还没有加入索引的购买，按位置排列
+    private final ArrayDeque<Indexed> mUnindexed = new ArrayDeque<Indexed>();
+    private volatile PurchaseIndex mIndex;
+    private long mAppended;
+    private long mDurable;
+    private long mSyncCount;
+    private boolean mFlushing;
+    private boolean mClosed;
+    private IOException mFailure;
+
+    private PurchaseJournal(File file, FileChannel channel, LinkedHashMap<String, Purchase> pending)
+            throws IOException {
+        mFile = file;
+        mChannel = channel;
+        mPending = pending;
+        mEnd = channel.size();
+    }
+
+    /**
+     * 打开或创建 journal，读取其中未完成的购买
+     */
+    public static PurchaseJournal open(File file) throws IOException {
+        LinkedHashMap<String, Purchase> pending = new LinkedHashMap<String, Purchase>();
+        int[] counts = new int[2];
+        long end = file.exists() ? replay(file, pending, counts) : -1;
+        if (end < 0 || counts[1] >= COMPACT_THRESHOLD && counts[1] > pending.size()) {
+            rewrite(file, pending);
+        } else if (end < file.length()) {
+            IabLog.w(TAG, "丢弃 journal 末尾 {} 字节不完整的记录", file.length() - end);
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.setLength(end);
+                raf.getFD().sync();
+            } finally {
+                raf.close();
+            }
+        }
+        FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+        IabLog.d(TAG, "打开 {}, {} 个未完成的购买", file, pending.size());
+        return new PurchaseJournal(file, channel, pending);
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    /**
+     * 记录一个购买，返回时已经写入磁盘。已经记录过 (同一个 token) 的不会重复记录
+     */
+    public void append(Purchase purchase) throws IOException {
+        appendAll(Collections.singletonList(purchase));
+    }
+
+    /**
+     * 记录多个购买，只 fsync 一次
+     */
+    public void appendAll(List<Purchase> purchases) throws IOException {
+        mLock.lock();
+        try {
+            checkOpen();
+            for (Purchase p : purchases) {
+                String key = key(p);
+                if (key == null || mPending.containsKey(key))
+                    continue;
+                byte[] payload = encodePurchase(p);
+                long offset = mEnd;
+                int crc = writeRecord(payload);
+                if (mIndex != null)
+                    mUnindexed.add(new Indexed(offset, crc, p));
+                mPending.put(key, p);
+            }
+            // 之前由其它线程写入、还在等待 fsync 的记录也要等
+            awaitDurable(mAppended);
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * 服务器已经确认，以后不再返回这个购买
+     */
+    public void markDone(Purchase purchase) throws IOException {
+        markAllDone(Collections.singletonList(purchase));
+    }
+
+    /**
+     * 标记多个购买完成，只 fsync 一次
+     */
+    public void markAllDone(List<Purchase> purchases) throws IOException {
+        mLock.lock();
+        try {
+            checkOpen();
+            boolean wrote = false;
+            for (Purchase p : purchases) {
+                String key = key(p);
+                if (key == null || mPending.remove(key) == null)
+                    continue;
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                DataOutputStream out = new DataOutputStream(bytes);
+                out.writeByte(TYPE_DONE);
+                out.writeUTF(key);
+                writeRecord(bytes.toByteArray());
+                wrote = true;
+            }
+            if (wrote)
+                awaitDurable(mAppended);
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * 已经记录但还没有 markDone 的购买，按记录的顺序
+     */
+    public List<Purchase> getPending() {
+        mLock.lock();
+        try {
+            return new ArrayList<Purchase>(mPending.values());
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * fsync 的次数，与写入的记录数比较可以看出合并的效果
+     */
+    public long getSyncCount() {
+        mLock.lock();
+        try {
+            return mSyncCount;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    public long getRecordCount() {
+        mLock.lock();
+        try {
+            return mAppended;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * 使用 index 索引这个 journal 中的购买。先补上 index 中还没有的记录:
+     * 上次没有正常关闭时重新扫描整个 journal，journal 被压缩重写过时清空 index 后重建。
+     * 扫描期间不能写入
+     */
+    public void attachIndex(PurchaseIndex index) throws IOException {
+        mLock.lock();
+        try {
+            checkOpen();
+            awaitDurable(mAppended);
+            long start = System.nanoTime();
+            if (!matches(index)) {
+                IabLog.w(TAG, "{} 与 journal 不一致, 重建", index.getFile());
+                index.reset();
+            }
+            long from = Math.max(8, index.getIndexedEnd());
+            long lastOffset = -1;
+            int lastCrc = 0;
+            int count = 0;
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile), 64 * 1024));
+            try {
+                skipFully(in, from);
+                byte[] payload = new byte[256];
+                for (long position = from; position < mEnd; ) {
+                    int length = in.readInt();
+                    int crc = in.readInt();
+                    if (payload.length < length)
+                        payload = new byte[length];
+                    in.readFully(payload, 0, length);
+                    if (payload[0] == TYPE_PURCHASE) {
+                        Purchase p = decodePurchase(payload, length);
+                        if (p != null) {
+                            indexPurchase(index, p, position);
+                            lastOffset = position;
+                            lastCrc = crc;
+                            count++;
+                        }
+                    }
+                    position += 8 + length;
+                }
+            } finally {
+                in.close();
+            }
+            index.setIndexedEnd(mEnd, lastOffset, lastCrc);
+            mIndex = index;
+            IabLog.d(TAG, "索引 {} 个购买, {} 毫秒", count, (System.nanoTime() - start) / 1000000);
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * 按 orderId 查找记录过的购买，包括已经 markDone 但还没有被压缩掉的；需要先 attachIndex。
+     * 不加锁，可以在多个线程上同时调用
+     *
+     * @return 同一个 orderId 记录过多次时返回最后一次，没有时返回 null
+     */
+    public Purchase findByOrderId(String orderId) throws IOException {
+        return find("o:" + orderId, orderId, null);
+    }
+
+    /**
+     * 按 purchaseToken 查找记录过的购买，见 findByOrderId
+     */
+    public Purchase findByToken(String token) throws IOException {
+        return find("t:" + token, null, token);
+    }
+
+    // 哈希可能相同，读出记录后比较 orderId 或 token
+    private Purchase find(String key, String orderId, String token) throws IOException {
+        PurchaseIndex index = mIndex;
+        if (index == null)
+            throw new IllegalStateException("没有 attachIndex");
+        long[] offsets = index.find(key);
+        // 后写入的在后面
+        for (int i = offsets.length - 1; i >= 0; i--) {
+            Purchase p = readPurchase(offsets[i]);
+            if (p != null && (orderId != null ? orderId.equals(p.getOrderId()) : token.equals(p.getToken())))
+                return p;
+        }
+        return null;
+    }
+
+    /**
+     * 读取 offset 处的购买记录，不是有效的购买记录时返回 null。
+     * 使用 FileChannel 的定位读，不影响写入，也不需要 mLock
+     */
+    Purchase readPurchase(long offset) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(8);
+        readFully(header, offset);
+        int length = header.getInt(0);
+        if (length <= 0 || length > MAX_RECORD)
+            return null;
+        ByteBuffer payload = ByteBuffer.allocate(length);
+        readFully(payload, offset + 8);
+        CRC32 crc = new CRC32();
+        crc.update(payload.array(), 0, length);
+        if ((int) crc.getValue() != header.getInt(4) || payload.get(0) != TYPE_PURCHASE)
+            return null;
+        return decodePurchase(payload.array(), length);
+    }
+
+    private void readFully(ByteBuffer b, long position) throws IOException {
+        while (b.hasRemaining()) {
+            FileChannel channel = mChannel;
+            int n;
+            try {
+                n = channel.read(b, position + b.position());
+            } catch (ClosedByInterruptException e) {
+                // 当前线程被中断，channel 重新打开给其它线程用
+                reopen(channel);
+                throw e;
+            } catch (ClosedChannelException e) {
+                // 其它线程被中断时关闭了 channel
+                reopen(channel);
+                continue;
+            }
+            if (n < 0)
+                throw new EOFException("journal 在 " + position + " 处结束");
+        }
+    }
+
+    private static void skipFully(DataInputStream in, long n) throws IOException {
+        while (n > 0) {
+            long skipped = in.skip(n);
+            if (skipped <= 0)
+                throw new EOFException();
+            n -= skipped;
+        }
+    }
+
+    /**
+     * index 记录的最后一条购买还在原来的位置，否则 journal 被重写过
+     */
+    private boolean matches(PurchaseIndex index) throws IOException {
+        if (index.getIndexedEnd() > mEnd)
+            return false;
+        long lastOffset = index.getLastOffset();
+        if (lastOffset < 0)
+            return true;
+        if (lastOffset + 8 > mEnd)
+            return false;
+        ByteBuffer header = ByteBuffer.allocate(8);
+        readFully(header, lastOffset);
+        return header.getInt(4) == index.getLastCrc();
+    }
+
+    private static void indexPurchase(PurchaseIndex index, Purchase p, long offset) throws IOException {
+        String orderId = p.getOrderId();
+        if (orderId != null && orderId.length() > 0)
+            index.put("o:" + orderId, offset);
+        String token = p.getToken();
+        if (token != null && token.length() > 0)
+            index.put("t:" + token, offset);
+    }
+
+    /**
+     * 把已经写入磁盘的购买加入索引，在 mLock 中按写入的顺序进行
+     */
+    private void indexDurable(long end) {
+        PurchaseIndex index = mIndex;
+        if (index == null) {
+            mUnindexed.clear();
+            return;
+        }
+        long lastOffset = -1;
+        int lastCrc = 0;
+        try {
+            Indexed next;
+            while ((next = mUnindexed.peek()) != null && next.offset < end) {
+                mUnindexed.poll();
+                indexPurchase(index, next.purchase, next.offset);
+                lastOffset = next.offset;
+                lastCrc = next.crc;
+            }
+            index.setIndexedEnd(end, lastOffset, lastCrc);
+        } catch (IOException e) {
+            // 索引是可以重建的，不影响 journal
+            IabLog.e(TAG, "更新索引失败, 不再使用 " + index.getFile(), e);
+            mIndex = null;
+            mUnindexed.clear();
+        }
+    }
+
+    public void close() throws IOException {
+        mLock.lock();
+        try {
+            if (mClosed)
+                return;
+            try {
+                awaitDurable(mAppended);
+            } finally {
+                mClosed = true;
+                mChannel.close();
+            }
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    private void checkOpen() throws IOException {
+        if (mClosed)
+            throw new IOException("journal 已关闭");
+        if (mFailure != null)
+            throw new IOException("journal 写入失败", mFailure);
+    }
+
+    // 购买的标识，没有 token 时用 orderId
+    static String key(Purchase p) {
+        String token = p.getToken();
+        if (token != null && token.length() > 0)
+            return token;
+        String orderId = p.getOrderId();
+        return orderId != null && orderId.length() > 0 ? "o:" + orderId : null;
+    }
+
+    private int writeRecord(byte[] payload) {
+        int crc = writeFrame(mBuffer, payload);
+        mAppended++;
+        mEnd += 8 + payload.length;
+        return crc;
+    }
+
+    // 长度、CRC32、内容，返回 CRC32
+    private static int writeFrame(ByteArrayOutputStream out, byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        writeInt(out, payload.length);
+        writeInt(out, (int) crc.getValue());
+        out.write(payload, 0, payload.length);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * 等待第 seq 条记录写入磁盘。没有线程在 fsync 时由当前线程写入缓冲区中所有的记录，
+     * 写入期间释放锁，其它线程的记录进入下一批
+     */
+    private void awaitDurable(long seq) throws IOException {
+        while (mDurable < seq) {
+            if (mFailure != null)
+                throw new IOException("journal 写入失败", mFailure);
+            if (mFlushing) {
+                mSynced.awaitUninterruptibly();
+                continue;
+            }
+            mFlushing = true;
+            byte[] batch = mBuffer.toByteArray();
+            mBuffer.reset();
+            long upTo = mAppended;
+            long end = mEnd;
+            IOException error = null;
+            mLock.unlock();
+            try {
+                write(batch, end - batch.length);
+            } catch (IOException e) {
+                error = e;
+            } finally {
+                mLock.lock();
+            }
+            mFlushing = false;
+            if (error != null) {
+                // 磁盘错误之后文件末尾的状态不确定，不再写入
+                IabLog.e(TAG, "写入 journal 失败", error);
+                mFailure = error;
+            } else {
+                mDurable = upTo;
+                mSyncCount++;
+                indexDurable(end);
+            }
+            mSynced.signalAll();
+        }
+    }
+
+    /**
+     * 把一批记录写到 position 处并 fsync。中断会关闭 FileChannel (ClosedByInterruptException)，
+     * 写入期间清除当前线程的中断状态，返回前恢复；被中断关闭时重新打开，从头再写这一批
+     */
+    private void write(byte[] batch, long position) throws IOException {
+        boolean interrupted = Thread.interrupted();
+        try {
+            while (true) {
+                FileChannel channel = mChannel;
+                try {
+                    ByteBuffer b = ByteBuffer.wrap(batch);
+                    while (b.hasRemaining())
+                        channel.write(b, position + b.position());
+                    channel.force(false);
+                    return;
+                } catch (ClosedChannelException e) {
+                    // 当前线程在写入期间被中断，或者其它线程的读被中断
+                    if (Thread.interrupted())
+                        interrupted = true;
+                    reopen(channel);
+                }
+            }
+        } finally {
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 被中断关闭的 channel 换成新打开的，多个线程同时发现时只打开一次
+     */
+    private void reopen(FileChannel closed) throws IOException {
+        mLock.lock();
+        try {
+            if (mClosed)
+                throw new IOException("journal 已关闭");
+            if (mChannel == closed) {
+                IabLog.w(TAG, "journal 被中断关闭, 重新打开");
+                mChannel = new RandomAccessFile(mFile, "rw").getChannel();
+            }
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    static byte[] encodePurchase(Purchase p) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(TYPE_PURCHASE);
+        out.writeUTF(p.getItemType());
+        byte[] json = p.getOriginalJson().getBytes("UTF-8");
+        out.writeInt(json.length);
+        out.write(json);
+        out.writeUTF(p.getSignature() == null ? "" : p.getSignature());
+        return bytes.toByteArray();
+    }
+
+    /**
+     * 解析 TYPE_PURCHASE 记录的内容，无法解析时返回 null
+     */
+    static Purchase decodePurchase(byte[] payload, int length) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload, 1, length - 1));
+        String itemType = in.readUTF();
+        byte[] json = new byte[in.readInt()];
+        in.readFully(json);
+        String signature = in.readUTF();
+        try {
+            return new Purchase(itemType, new String(json, "UTF-8"), signature);
+        } catch (JSONException e) {
+            IabLog.w(TAG, "无法解析 journal 中的购买", e);
+            return null;
+        }
+    }
+
+    /**
+     * 读取文件中的记录，遇到不完整或校验失败的记录时停止
+     *
+     * @param counts 返回记录数和完成记录数
+     * @return 最后一条完整记录的结束位置，文件头无效时返回 -1
+     */
+    static long replay(File file, LinkedHashMap<String, Purchase> pending, int[] counts)
+            throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            long position;
+            try {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION)
+                    throw new IOException("不是 purchase journal: " + file);
+                position = 8;
+            } catch (EOFException e) {
+                // 创建文件时中断
+                return -1;
+            }
+            byte[] payload = new byte[256];
+            while (true) {
+                int length;
+                int crc;
+                try {
+                    length = in.readInt();
+                    crc = in.readInt();
+                    if (length <= 0 || length > MAX_RECORD)
+                        return position;
+                    if (payload.length < length)
+                        payload = new byte[length];
+                    in.readFully(payload, 0, length);
+                } catch (EOFException e) {
+                    return position;
+                }
+                CRC32 check = new CRC32();
+                check.update(payload, 0, length);
+                if ((int) check.getValue() != crc)
+                    return position;
+                apply(payload, length, pending, counts);
+                position += 8 + length;
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void apply(byte[] payload, int length, LinkedHashMap<String, Purchase> pending,
+                              int[] counts) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload, 0, length));
+        counts[0]++;
+        byte type = in.readByte();
+        if (type == TYPE_PURCHASE) {
+            Purchase p = decodePurchase(payload, length);
+            String key = p == null ? null : key(p);
+            if (key != null)
+                pending.put(key, p);
+        } else if (type == TYPE_DONE) {
+            counts[1]++;
+            pending.remove(in.readUTF());
+        }
+    }
+
+    /**
+     * 只写入未完成的购买，写完后替换原来的文件
+     */
+    private static void rewrite(File file, LinkedHashMap<String, Purchase> pending)
+            throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream fos = new FileOutputStream(tmp);
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            writeInt(bytes, MAGIC);
+            writeInt(bytes, VERSION);
+            for (Purchase p : pending.values())
+                writeFrame(bytes, encodePurchase(p));
+            bytes.writeTo(fos);
+            fos.getFD().sync();
+        } finally {
+            fos.close();
+        }
+        if (!tmp.renameTo(file))
+            throw new IOException("无法替换 " + file);
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int v) {
+        out.write(v >>> 24);
+        out.write(v >>> 16);
+        out.write(v >>> 8);
+        out.write(v);
+    }
+
+    /**
+     * 按顺序读出文件中所有的购买记录 (包括已经完成的)，不把它们放在内存中，
+     * 用于对账等需要遍历整个 journal 的场合。可以在 journal 打开时读取，只读到已经写入的部分
+     */
+    public static Reader openReader(File file) throws IOException {
+        return new Reader(file);
+    }
+
+    public static final class Reader implements Closeable {
+        private final DataInputStream mIn;
+        private byte[] mPayload = new byte[256];
+        private boolean mEnd;
+
+        private Reader(File file) throws IOException {
+            mIn = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+            try {
+                if (mIn.readInt() != MAGIC || mIn.readInt() != VERSION)
+                    throw new IOException("不是 purchase journal: " + file);
+            } catch (IOException e) {
+                mIn.close();
+                throw e;
+            }
+        }
+
+        /**
+         * 下一个购买，没有更多时返回 null。无法解析的购买和不完整的末尾会被跳过
+         */
+        public Purchase next() throws IOException {
+            while (!mEnd) {
+                int length;
+                int crc;
+                try {
+                    length = mIn.readInt();
+                    crc = mIn.readInt();
+                    if (length <= 0 || length > MAX_RECORD) {
+                        mEnd = true;
+                        break;
+                    }
+                    if (mPayload.length < length)
+                        mPayload = new byte[length];
+                    mIn.readFully(mPayload, 0, length);
+                } catch (EOFException e) {
+                    mEnd = true;
+                    break;
+                }
+                CRC32 check = new CRC32();
+                check.update(mPayload, 0, length);
+                if ((int) check.getValue() != crc) {
+                    mEnd = true;
+                    break;
+                }
+                if (mPayload[0] == TYPE_PURCHASE) {
+                    Purchase p = decodePurchase(mPayload, length);
+                    if (p != null)
+                        return p;
+                }
+            }
+            return null;
+        }
+
+        public void close() throws IOException {
+            mIn.close();
+        }
+    }
+
+    /**
+     * 等待加入索引的购买记录
+     */
+    private static final class Indexed {
+        final long offset;
+        final int crc;
+        final Purchase purchase;
+
+        Indexed(long offset, int crc, Purchase purchase) {
+            this.offset = offset;
+            this.crc = crc;
+            this.purchase = purchase;
+        }
+    }
+}
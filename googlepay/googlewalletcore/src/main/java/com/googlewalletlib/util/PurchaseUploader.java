@@ -0,0 +1,398 @@
+package com.googlewalletlib.util;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * 把购买批量提交到服务器 (ReceiptServer 的 /verify/batch)，代替每个购买单独请求一次:
+ * <pre>
+ * PurchaseUploader uploader = new PurchaseUploader(new URL("https://.../verify/batch"), journal);
+ * uploader.start();           // 重新提交上次没有完成的
+ * uploader.enqueue(purchase);
+ * </pre>
+ * 攒够 maxBatch 个或 maxBytes 字节，或者第一个购买等待了 maxDelayMillis 后发送，请求体用 gzip 压缩。
+ * 同时最多 maxInFlight 个请求。失败时整批放回队列，按指数退避重试；服务器按 orderId 和
+ * purchaseToken 去重，并记住第一次通过的收据，重新提交同一张收据 (例如响应丢失后重试)
+ * 仍然得到 valid，所以重试是幂等的；只有别的收据用了同一个 orderId 或 token 时才是 duplicate。
+ * 服务器返回结果 (包括 duplicate) 后在 journal 中标记完成，没有完成的购买在下次 start 时重新提交
+ */
+public class PurchaseUploader implements Closeable {
+    private static final String TAG = "PurchaseUploader";
+
+    /**
+     * 服务器的验证结果
+     */
+    public interface Listener {
+        /**
+         * 在上传线程上调用
+         *
+         * @param status valid、duplicate、invalid_signature 或 malformed
+         */
+        void onUploaded(Purchase purchase, String status);
+    }
+
+    public static final int DEFAULT_MAX_BATCH = 50;
+    public static final int DEFAULT_MAX_BYTES = 64 * 1024;
+    public static final long DEFAULT_MAX_DELAY_MILLIS = 30 * 1000;
+    public static final int DEFAULT_MAX_IN_FLIGHT = 2;
+    // 重试的等待时间，从 MIN 开始每次翻倍
+    static final long MIN_BACKOFF_MILLIS = 1000;
+    static final long MAX_BACKOFF_MILLIS = 5 * 60 * 1000;
+    static final int TIMEOUT_MILLIS = 30 * 1000;
+
+    private final URL mEndpoint;
+    private final PurchaseJournal mJournal;
+    private volatile Listener mListener;
+    private int mMaxBatch = DEFAULT_MAX_BATCH;
+    private int mMaxBytes = DEFAULT_MAX_BYTES;
+    private long mMaxDelayMillis = DEFAULT_MAX_DELAY_MILLIS;
+    private int mMaxInFlight = DEFAULT_MAX_IN_FLIGHT;
+    private final Random mRandom = new Random();
+    private final AtomicLong mRequests = new AtomicLong();
+    private final AtomicLong mRawBytes = new AtomicLong();
+    private final AtomicLong mSentBytes = new AtomicLong();
+
+    // 以下由 this 保护
+    private final LinkedHashMap<String, Purchase> mQueue = new LinkedHashMap<String, Purchase>();
+    private final Set<String> mSending = new HashSet<String>();
+    private int mQueuedBytes;
+    private int mInFlight;
+    // 队列中有应该发送、但因为请求数达到上限还没有发送的购买
+    private boolean mDue;
+    private long mBackoffMillis;
+    private long mRetryAtNanos;
+    private ScheduledFuture<?> mTimer;
+    private long mTimerAtNanos;
+    private ScheduledThreadPoolExecutor mExecutor;
+    private boolean mClosed;
+
+    /**
+     * @param endpoint 接受批量收据的地址
+     * @param journal 保存还没有提交成功的购买，null 表示不保存 (进程退出时队列中的购买会丢失)
+     */
+    public PurchaseUploader(URL endpoint, PurchaseJournal journal) {
+        mEndpoint = endpoint;
+        mJournal = journal;
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /** 一个请求最多的购买数，不要超过服务器的 MAX_BATCH */
+    public void setMaxBatch(int maxBatch) { mMaxBatch = maxBatch; }
+    /** 一个请求压缩前的最大长度 */
+    public void setMaxBytes(int maxBytes) { mMaxBytes = maxBytes; }
+    /** 购买最多等待多久就发送 */
+    public void setMaxDelayMillis(long maxDelayMillis) { mMaxDelayMillis = maxDelayMillis; }
+    /** 同时进行的请求数，在 start 之前设置 */
+    public void setMaxInFlight(int maxInFlight) { mMaxInFlight = maxInFlight; }
+
+    /**
+     * 开始上传，journal 中没有完成的购买立即重新提交
+     */
+    public synchronized void start() {
+        if (mExecutor != null)
+            return;
+        mExecutor = new ScheduledThreadPoolExecutor(mMaxInFlight, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "purchase-uploader");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        if (mJournal != null) {
+            for (Purchase p : mJournal.getPending())
+                queueLocked(p);
+        }
+        if (!mQueue.isEmpty())
+            drainLocked();
+    }
+
+    /**
+     * 提交一个购买，不阻塞: 在上传线程上写入 journal 后进入队列。同一个购买只提交一次
+     */
+    public synchronized void enqueue(final Purchase purchase) {
+        if (mExecutor == null)
+            throw new IllegalStateException("PurchaseUploader 没有 start");
+        if (mClosed)
+            return;
+        mExecutor.execute(new Runnable() {
+            public void run() {
+                if (mJournal != null) {
+                    try {
+                        mJournal.append(purchase);
+                    } catch (IOException e) {
+                        // 仍然尝试上传，只是进程退出后不会重新提交
+                        IabLog.e(TAG, "记录购买失败", e);
+                    }
+                }
+                synchronized (PurchaseUploader.this) {
+                    if (!queueLocked(purchase))
+                        return;
+                    if (mQueue.size() >= mMaxBatch || mQueuedBytes >= mMaxBytes)
+                        drainLocked();
+                    else
+                        scheduleLocked(mMaxDelayMillis);
+                }
+            }
+        });
+    }
+
+    /**
+     * 不再等待，立即发送队列中的购买，例如应用进入后台时
+     */
+    public synchronized void flush() {
+        if (mExecutor != null && !mClosed)
+            drainLocked();
+    }
+
+    /**
+     * 停止上传，不等待进行中的请求，队列中的购买留在 journal 中
+     */
+    public synchronized void close() {
+        mClosed = true;
+        if (mExecutor != null)
+            mExecutor.shutdown();
+    }
+
+    /** 发送的请求数 */
+    public long getRequestCount() { return mRequests.get(); }
+    /** 压缩前的字节数 */
+    public long getRawBytes() { return mRawBytes.get(); }
+    /** 实际发送的字节数 */
+    public long getSentBytes() { return mSentBytes.get(); }
+
+    public synchronized int getQueuedCount() {
+        return mQueue.size() + mSending.size();
+    }
+
+    private boolean queueLocked(Purchase p) {
+        String key = PurchaseJournal.key(p);
+        if (key == null || mQueue.containsKey(key) || mSending.contains(key))
+            return false;
+        mQueue.put(key, p);
+        mQueuedBytes += sizeOf(p);
+        return true;
+    }
+
+    /**
+     * 在请求数的上限内发送队列中所有的购买，正在退避时等到退避结束
+     */
+    private void drainLocked() {
+        if (mClosed)
+            return;
+        mDue = true;
+        long wait = mRetryAtNanos - System.nanoTime();
+        if (mRetryAtNanos != 0 && wait > 0) {
+            scheduleLocked(TimeUnit.NANOSECONDS.toMillis(wait) + 1);
+            return;
+        }
+        while (!mQueue.isEmpty() && mInFlight < mMaxInFlight) {
+            final List<Purchase> batch = takeBatchLocked();
+            mInFlight++;
+            mExecutor.execute(new Runnable() {
+                public void run() {
+                    send(batch);
+                }
+            });
+        }
+        mDue = !mQueue.isEmpty();
+    }
+
+    private List<Purchase> takeBatchLocked() {
+        List<Purchase> batch = new ArrayList<Purchase>();
+        int bytes = 0;
+        Iterator<Map.Entry<String, Purchase>> it = mQueue.entrySet().iterator();
+        while (it.hasNext() && batch.size() < mMaxBatch) {
+            Map.Entry<String, Purchase> e = it.next();
+            int size = sizeOf(e.getValue());
+            if (!batch.isEmpty() && bytes + size > mMaxBytes)
+                break;
+            it.remove();
+            mSending.add(e.getKey());
+            batch.add(e.getValue());
+            bytes += size;
+        }
+        mQueuedBytes -= bytes;
+        return batch;
+    }
+
+    /**
+     * delayMillis 后 drain，已经有更早的定时时不变
+     */
+    private void scheduleLocked(long delayMillis) {
+        long at = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis);
+        if (mTimer != null && !mTimer.isDone()) {
+            if (mTimerAtNanos - at <= 0)
+                return;
+            mTimer.cancel(false);
+        }
+        mTimerAtNanos = at;
+        mTimer = mExecutor.schedule(new Runnable() {
+            public void run() {
+                synchronized (PurchaseUploader.this) {
+                    mTimer = null;
+                    drainLocked();
+                }
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void send(List<Purchase> batch) {
+        boolean ok = false;
+        try {
+            JSONArray verdicts = null;
+            try {
+                verdicts = post(batch);
+            } catch (IOException e) {
+                IabLog.w(TAG, "上传 {} 个购买失败: {}", batch.size(), e);
+            } catch (JSONException e) {
+                IabLog.w(TAG, "服务器返回的结果无法解析", e);
+            }
+            ok = verdicts != null && verdicts.length() == batch.size();
+            if (ok) {
+                if (mJournal != null) {
+                    try {
+                        mJournal.markAllDone(batch);
+                    } catch (IOException e) {
+                        // 下次启动时会重新提交，服务器仍然返回 valid
+                        IabLog.e(TAG, "标记购买完成失败", e);
+                    }
+                }
+                Listener listener = mListener;
+                if (listener != null) {
+                    for (int i = 0; i < batch.size(); i++) {
+                        JSONObject v = verdicts.optJSONObject(i);
+                        listener.onUploaded(batch.get(i), v == null ? "" : v.optString("status"));
+                    }
+                }
+            }
+        } finally {
+            // listener 抛出异常时也要释放名额，失败的批次放回队列
+            finishSend(batch, ok);
+        }
+    }
+
+    private synchronized void finishSend(List<Purchase> batch, boolean ok) {
+        mInFlight--;
+        for (Purchase p : batch)
+            mSending.remove(PurchaseJournal.key(p));
+        if (ok) {
+            mBackoffMillis = 0;
+            mRetryAtNanos = 0;
+        } else {
+            requeueLocked(batch);
+            mBackoffMillis = mBackoffMillis == 0 ? MIN_BACKOFF_MILLIS
+                    : Math.min(MAX_BACKOFF_MILLIS, mBackoffMillis * 2);
+            // 加上随机的一半，很多设备同时失败时不会同时重试
+            long delay = mBackoffMillis / 2 + (long) (mRandom.nextDouble() * mBackoffMillis / 2);
+            mRetryAtNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay);
+            mDue = true;
+        }
+        if (mDue)
+            drainLocked();
+    }
+
+    // 放回队列的最前面
+    private void requeueLocked(List<Purchase> batch) {
+        LinkedHashMap<String, Purchase> rest = new LinkedHashMap<String, Purchase>(mQueue);
+        mQueue.clear();
+        mQueuedBytes = 0;
+        for (Purchase p : batch)
+            queueLocked(p);
+        for (Purchase p : rest.values())
+            queueLocked(p);
+    }
+
+    /**
+     * 发送一批购买，返回服务器的结果，HTTP 状态不是 200 时返回 null
+     */
+    JSONArray post(List<Purchase> batch) throws IOException, JSONException {
+        JSONArray receipts = new JSONArray();
+        for (Purchase p : batch) {
+            JSONObject r = new JSONObject();
+            r.put("itemType", p.getItemType());
+            r.put("purchaseData", p.getOriginalJson());
+            r.put("signature", p.getSignature());
+            receipts.put(r);
+        }
+        JSONObject request = new JSONObject();
+        request.put("receipts", receipts);
+        byte[] raw = request.toString().getBytes("UTF-8");
+        ByteArrayOutputStream body = new ByteArrayOutputStream(raw.length / 4 + 64);
+        GZIPOutputStream gzip = new GZIPOutputStream(body);
+        gzip.write(raw);
+        gzip.close();
+
+        HttpURLConnection conn = (HttpURLConnection) mEndpoint.openConnection();
+        conn.setConnectTimeout(TIMEOUT_MILLIS);
+        conn.setReadTimeout(TIMEOUT_MILLIS);
+        conn.setRequestMethod("POST");
+        conn.setDoOutput(true);
+        conn.setFixedLengthStreamingMode(body.size());
+        conn.setRequestProperty("Content-Type", "application/json; charset=utf-8");
+        conn.setRequestProperty("Content-Encoding", "gzip");
+        OutputStream out = conn.getOutputStream();
+        try {
+            body.writeTo(out);
+        } finally {
+            out.close();
+        }
+        mRequests.incrementAndGet();
+        mRawBytes.addAndGet(raw.length);
+        mSentBytes.addAndGet(body.size());
+
+        int code = conn.getResponseCode();
+        if (code != HttpURLConnection.HTTP_OK) {
+            IabLog.w(TAG, "上传失败, HTTP {}", code);
+            InputStream error = conn.getErrorStream();
+            if (error != null)
+                readFully(error);
+            return null;
+        }
+        return new JSONObject(readFully(conn.getInputStream())).optJSONArray("verdicts");
+    }
+
+    private static String readFully(InputStream in) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[4096];
+            int n;
+            while ((n = in.read(buf)) != -1)
+                out.write(buf, 0, n);
+            return out.toString("UTF-8");
+        } finally {
+            in.close();
+        }
+    }
+
+    // 请求中大约占用的字节数
+    private static int sizeOf(Purchase p) {
+        String signature = p.getSignature();
+        return p.getOriginalJson().length() + (signature == null ? 0 : signature.length()) + 64;
+    }
+}
@@ -15,8 +15,7 @@
 
 package com.googlewalletlib.util;
 
-import android.text.TextUtils;
-import android.util.Log;
+import java.nio.ByteBuffer;
 import java.security.KeyFactory;
 import java.security.PublicKey;
 import java.security.Signature;
@@ -41,22 +40,46 @@ public class Security {
      */
     public static boolean verifyPurchase(String base64PublicKey, String signedData, String signature) {
         if (signedData == null) {
-            Log.e(TAG, "google返回的json数据为空");
+            IabLog.e(TAG, "google返回的json数据为空");
             return false;
         }
 
         boolean verified = false;
-        if (!TextUtils.isEmpty(signature)) {
+        if (!isEmpty(signature)) {
             PublicKey key = Security.generatePublicKey(base64PublicKey);
             verified = Security.verify(key, signedData, signature);
             if (!verified) {
-                Log.w(TAG, "不相匹配的key");
+                IabLog.w(TAG, "不相匹配的key");
                 return false;
             }
         }
         return true;
     }
 
+    /**
+     * 同上，公钥已经解析好。同一个公钥验证多个购买时用这个，省掉每次的 Base64 解码和生成公钥。
+     * 与上面不同，没有签名时返回 false
+     * @param publicKey 由 {@link #generatePublicKey} 生成的公钥
+     * @param signedData the signed JSON string (signed, not encrypted)
+     * @param signature the signature for the data, signed with the private key
+     */
+    public static boolean verifyPurchase(PublicKey publicKey, String signedData, String signature) {
+        if (signedData == null) {
+            IabLog.e(TAG, "google返回的json数据为空");
+            return false;
+        }
+
+        if (isEmpty(signature)) {
+            IabLog.w(TAG, "没有签名");
+            return false;
+        }
+        if (!Security.verify(publicKey, signedData, signature)) {
+            IabLog.w(TAG, "不相匹配的key");
+            return false;
+        }
+        return true;
+    }
+
     /**
      *把一个字符串，生成公钥实例
      *
@@ -66,12 +89,10 @@ public class Security {
     public static PublicKey generatePublicKey(String encodedPublicKey) {
         try {
             byte[] decodedKey = Base64.decode(encodedPublicKey);
-            //************************
-            System.out.println("byte[] decodedKey : " +new String(decodedKey));
             KeyFactory keyFactory = KeyFactory.getInstance(KEY_FACTORY_ALGORITHM);
             return keyFactory.generatePublic(new X509EncodedKeySpec(decodedKey));
         } catch (Exception e) {
-            Log.e(TAG, "Base64 解码错误");
+            IabLog.e(TAG, "Base64 解码错误", e);
             throw new IllegalArgumentException(e);
         }
     }
@@ -89,17 +110,48 @@ public class Security {
         try {
             sig = Signature.getInstance(SIGNATURE_ALGORITHM);
             sig.initVerify(publicKey);
-            sig.update(signedData.getBytes());
+            // Play 用 UTF-8 字节签名，不能用平台的默认编码
+            sig.update(signedData.getBytes("UTF-8"));
+            if (!sig.verify(Base64.decode(signature))) {
+                IabLog.d(TAG, "签名验证失败");
+                return false;
+            }
+            return true;
+        } catch (Exception e) {
+            // 服务端会收到大量伪造的收据，只在调试时输出，不打印堆栈
+            IabLog.d(TAG, "签名无法验证: {}", e);
+        }
+        return false;
+    }
+
+    /**
+     * 同上，直接从缓冲区验证，不创建 String。
+     * signedData 剩余的字节直接交给 Signature.update，不做编码转换，验证后 position 移到末尾；
+     * signature 剩余的字节是 Base64 编码的签名，position 不变
+     *
+     * @param publicKey 由 {@link #generatePublicKey} 生成的公钥
+     * @param signedData 购买数据的 UTF-8 字节
+     * @param signature Base64 编码的签名
+     * @return true if the data and signature match
+     */
+    public static boolean verify(PublicKey publicKey, ByteBuffer signedData, ByteBuffer signature) {
+        Signature sig;
+        try {
+            sig = Signature.getInstance(SIGNATURE_ALGORITHM);
+            sig.initVerify(publicKey);
+            sig.update(signedData);
             if (!sig.verify(Base64.decode(signature))) {
-            	//********************
-            	System.out.println("Base64.decode(signature) :"+Base64.decode(signature)+"signedData.getBytes() :"+signedData.getBytes()+"publicKey :"+publicKey.toString());
-                Log.e(TAG, "签名验证失败");
+                IabLog.d(TAG, "签名验证失败");
                 return false;
             }
             return true;
         } catch (Exception e) {
-            Log.e(TAG, "Base64 解码错误.");
+            IabLog.d(TAG, "签名无法验证: {}", e);
         }
         return false;
     }
+
+    private static boolean isEmpty(String s) {
+        return s == null || s.length() == 0;
+    }
 }
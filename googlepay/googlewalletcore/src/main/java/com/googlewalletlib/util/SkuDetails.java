@@ -31,7 +31,7 @@ public class SkuDetails {
     String mJson;
 
     public SkuDetails(String jsonSkuDetails) throws JSONException {
-        this(IabHelper.ITEM_TYPE_INAPP, jsonSkuDetails);
+        this(IabConstants.ITEM_TYPE_INAPP, jsonSkuDetails);
     }
     
     public SkuDetails(String itemType, String jsonSkuDetails) throws JSONException {
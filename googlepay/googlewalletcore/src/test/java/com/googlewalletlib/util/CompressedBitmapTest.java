@@ -0,0 +1,181 @@
+package com.googlewalletlib.util;
+
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.TreeSet;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * CompressedBitmap 与 TreeSet 的结果比较，包括数组块和位图块之间的转换
+ */
+public class CompressedBitmapTest {
+
+    private static int[] toArray(TreeSet<Integer> set) {
+        int[] values = new int[set.size()];
+        int n = 0;
+        for (int v : set)
+            values[n++] = v;
+        return values;
+    }
+
+    /**
+     * 几个稀疏的块和一个稠密的块 (超过 ARRAY_MAX，是位图)
+     */
+    private static void fill(Random random, CompressedBitmap bitmap, TreeSet<Integer> set, int denseKey) {
+        for (int i = 0; i < 3000; i++) {
+            int v = random.nextInt(8) << 16 | random.nextInt(65536);
+            bitmap.add(v);
+            set.add(v);
+        }
+        for (int i = 0; i < 20000; i++) {
+            int v = denseKey << 16 | random.nextInt(65536);
+            bitmap.add(v);
+            set.add(v);
+        }
+    }
+
+    @Test
+    public void addRemoveContains() {
+        CompressedBitmap b = new CompressedBitmap();
+        assertTrue(b.isEmpty());
+        assertTrue(b.add(5));
+        assertFalse(b.add(5));
+        assertTrue(b.add(70000));
+        assertTrue(b.contains(5));
+        assertTrue(b.contains(70000));
+        assertFalse(b.contains(6));
+        assertFalse(b.contains(-1));
+        assertEquals(2, b.getCardinality());
+
+        assertTrue(b.remove(5));
+        assertFalse(b.remove(5));
+        assertFalse(b.remove(123456));
+        assertTrue(b.remove(70000));
+        assertTrue(b.isEmpty());
+        assertEquals(-1, b.next(0));
+    }
+
+    @Test
+    public void arrayBlockBecomesBitmapAndBack() {
+        CompressedBitmap b = new CompressedBitmap();
+        for (int i = 0; i < CompressedBitmap.ARRAY_MAX; i++)
+            b.add(i * 16);
+        // 第 ARRAY_MAX + 1 个值换成位图
+        b.add(1);
+        assertEquals(CompressedBitmap.ARRAY_MAX + 1, b.getCardinality());
+        assertTrue(b.contains(1));
+        assertTrue(b.contains(16 * 100));
+        assertFalse(b.contains(17));
+
+        // 删到 ARRAY_MAX 个时换回数组
+        b.remove(1);
+        assertFalse(b.contains(1));
+        assertEquals(CompressedBitmap.ARRAY_MAX, b.getCardinality());
+        assertTrue(b.contains(16 * 100));
+        assertEquals(16, b.next(1));
+    }
+
+    @Test
+    public void iterationMatchesTreeSet() {
+        Random random = new Random(1);
+        CompressedBitmap b = new CompressedBitmap();
+        TreeSet<Integer> set = new TreeSet<Integer>();
+        fill(random, b, set, 3);
+        for (int i = 0; i < 5000; i++) {
+            int v = random.nextInt(8) << 16 | random.nextInt(65536);
+            assertEquals(set.remove(v), b.remove(v));
+        }
+        assertEquals(set.size(), b.getCardinality());
+        assertArrayEquals(toArray(set), b.toArray());
+        for (int i = 0; i < 1000; i++) {
+            int from = random.nextInt(9 << 16);
+            Integer expected = set.ceiling(from);
+            assertEquals(expected == null ? -1 : expected, b.next(from));
+        }
+    }
+
+    @Test
+    public void setOperationsMatchTreeSet() {
+        Random random = new Random(2);
+        CompressedBitmap a = new CompressedBitmap();
+        CompressedBitmap b = new CompressedBitmap();
+        TreeSet<Integer> sa = new TreeSet<Integer>();
+        TreeSet<Integer> sb = new TreeSet<Integer>();
+        // 两边都有位图块 (3)，也有一边是数组一边是位图的块 (4)
+        fill(random, a, sa, 3);
+        fill(random, b, sb, 4);
+        for (int i = 0; i < 20000; i++) {
+            int v = 3 << 16 | random.nextInt(65536);
+            b.add(v);
+            sb.add(v);
+        }
+
+        TreeSet<Integer> and = new TreeSet<Integer>(sa);
+        and.retainAll(sb);
+        assertArrayEquals(toArray(and), CompressedBitmap.and(a, b).toArray());
+        assertEquals(and.size(), CompressedBitmap.andCardinality(a, b));
+
+        TreeSet<Integer> or = new TreeSet<Integer>(sa);
+        or.addAll(sb);
+        CompressedBitmap union = CompressedBitmap.or(a, b);
+        assertArrayEquals(toArray(or), union.toArray());
+        assertEquals(or.size(), union.getCardinality());
+
+        TreeSet<Integer> andNot = new TreeSet<Integer>(sa);
+        andNot.removeAll(sb);
+        assertArrayEquals(toArray(andNot), CompressedBitmap.andNot(a, b).toArray());
+
+        // 参数不变
+        assertArrayEquals(toArray(sa), a.toArray());
+        assertArrayEquals(toArray(sb), b.toArray());
+    }
+
+    @Test
+    public void copyIsIndependent() {
+        CompressedBitmap a = new CompressedBitmap();
+        for (int i = 0; i < 10000; i++)
+            a.add(i);
+        CompressedBitmap b = a.copy();
+        b.remove(5);
+        b.add(100000);
+        assertTrue(a.contains(5));
+        assertFalse(a.contains(100000));
+        assertEquals(10000, a.getCardinality());
+        assertEquals(10000, b.getCardinality());
+    }
+
+    @Test
+    public void largestValueCanBeIterated() {
+        CompressedBitmap b = new CompressedBitmap();
+        int max = Integer.MAX_VALUE - 1;
+        b.add(0);
+        b.add(max);
+        assertArrayEquals(new int[]{0, max}, b.toArray());
+        assertEquals(-1, b.next(Integer.MAX_VALUE));
+        assertEquals(0, b.next(-5));
+    }
+
+    @Test
+    public void rejectsNegativeAndMaxValue() {
+        CompressedBitmap b = new CompressedBitmap();
+        for (int value : new int[]{-1, Integer.MIN_VALUE, Integer.MAX_VALUE}) {
+            try {
+                b.add(value);
+                fail("add " + value);
+            } catch (IllegalArgumentException expected) {
+            }
+            try {
+                b.remove(value);
+                fail("remove " + value);
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+        assertTrue(b.isEmpty());
+    }
+}
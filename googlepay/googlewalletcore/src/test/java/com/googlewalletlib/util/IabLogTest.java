@@ -0,0 +1,140 @@
+package com.googlewalletlib.util;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * IabLog 的级别检查、参数格式化和 IabLogRing 的覆盖与导出
+ */
+public class IabLogTest {
+
+    private final List<String> mLines = new ArrayList<String>();
+    private final List<Throwable> mErrors = new ArrayList<Throwable>();
+    private int mSavedLevel;
+    private IabLog.Sink mSavedSink;
+    private IabLogRing mSavedRing;
+
+    /**
+     * toString 被调用时计数，用来确认没有达到级别时不格式化参数
+     */
+    static class Counted {
+        int formatted;
+
+        @Override
+        public String toString() {
+            formatted++;
+            return "counted";
+        }
+    }
+
+    @Before
+    public void setUp() {
+        mSavedLevel = IabLog.getLevel();
+        mSavedSink = IabLog.getSink();
+        mSavedRing = IabLog.getRing();
+        IabLog.setSink(new IabLog.Sink() {
+            public void log(int level, String tag, String message, Throwable error) {
+                mLines.add(level + " " + tag + ": " + message);
+                if (error != null)
+                    mErrors.add(error);
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        IabLog.setLevel(mSavedLevel);
+        IabLog.setSink(mSavedSink);
+        IabLog.setRing(mSavedRing);
+    }
+
+    @Test
+    public void messagesBelowTheLevelAreNotFormatted() {
+        IabLog.setLevel(IabLog.WARN);
+        Counted arg = new Counted();
+        IabLog.d("t", "debug {}", arg);
+        IabLog.d("t", "debug {} {} {}", arg, arg, arg);
+        assertEquals(0, arg.formatted);
+        assertTrue(mLines.isEmpty());
+        assertFalse(IabLog.isLoggable(IabLog.DEBUG));
+        assertTrue(IabLog.isLoggable(IabLog.ERROR));
+
+        IabLog.w("t", "warn {}", arg);
+        assertEquals(1, arg.formatted);
+        assertEquals("5 t: warn counted", mLines.get(0));
+
+        IabLog.setLevel(IabLog.NONE);
+        IabLog.e("t", "error {}", arg);
+        assertEquals(1, mLines.size());
+    }
+
+    @Test
+    public void placeholdersAreReplacedInOrder() {
+        IabLog.setLevel(IabLog.DEBUG);
+        IabLog.d("t", "{} + {} = {}", 1, 2, 3);
+        IabLog.d("t", "only {} of {} {}", "one");
+        IabLog.d("t", "no placeholder", "extra");
+        IabLog.d("t", "{} literal {} kept");
+        assertEquals("3 t: 1 + 2 = 3", mLines.get(0));
+        assertEquals("3 t: only one of {} {}", mLines.get(1));
+        assertEquals("3 t: no placeholder", mLines.get(2));
+        assertEquals("3 t: {} literal {} kept", mLines.get(3));
+    }
+
+    @Test
+    public void errorsAreHandedToTheSink() {
+        IllegalStateException error = new IllegalStateException();
+        IabLog.e("t", "failed", error);
+        IabLog.w("t", "retrying", error);
+        assertEquals("6 t: failed", mLines.get(0));
+        assertEquals(2, mErrors.size());
+        assertSame(error, mErrors.get(0));
+
+        // 没有输出目标时丢弃
+        IabLog.setSink(null);
+        IabLog.e("t", "dropped");
+        assertEquals(2, mLines.size());
+    }
+
+    @Test
+    public void ringRoundsUpAndKeepsTheNewestEvents() throws Exception {
+        IabLogRing ring = new IabLogRing(3);
+        assertEquals(4, ring.capacity());
+        IabLog.setRing(ring);
+        // 环形缓冲区和日志级别无关
+        IabLog.setLevel(IabLog.NONE);
+        for (int i = 0; i < 6; i++)
+            IabLog.event(IabLogRing.EVENT_CONSUME, i, 100 + i);
+        IabLog.event(42, 7, 8);
+        assertEquals(7, ring.count());
+
+        StringWriter out = new StringWriter();
+        ring.dump(out);
+        String[] lines = out.toString().split("\n");
+        assertEquals(4, lines.length);
+        assertTrue(lines[0], lines[0].endsWith(" consume response=3 tokenHash=103"));
+        assertTrue(lines[2], lines[2].endsWith(" consume response=5 tokenHash=105"));
+        assertTrue(lines[3], lines[3].endsWith(" event 42 7 8"));
+
+        IabLog.setRing(null);
+        IabLog.event(IabLogRing.EVENT_CONSUME, 0, 0);
+        assertEquals(7, ring.count());
+    }
+
+    @Test
+    public void emptyRingDumpsNothing() throws Exception {
+        StringWriter out = new StringWriter();
+        new IabLogRing(16).dump(out);
+        assertEquals("", out.toString());
+    }
+}
@@ -0,0 +1,140 @@
+package com.googlewalletlib.util;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * PurchaseArena 的读写、跨 slab 的遍历和 UTF-8 字段
+ */
+public class PurchaseArenaTest {
+
+    static Purchase purchase(String orderId, String sku, String payload, String signature) throws Exception {
+        JSONObject o = new JSONObject();
+        o.put("orderId", orderId);
+        o.put("packageName", "com.example");
+        o.put("productId", sku);
+        o.put("purchaseTime", 1500000000000L);
+        o.put("purchaseState", 2);
+        o.put("developerPayload", payload);
+        o.put("purchaseToken", "token-" + orderId);
+        return new Purchase("inapp", o.toString(), signature);
+    }
+
+    @Test
+    public void recordHasSameFieldsAsPurchase() throws Exception {
+        PurchaseArena arena = new PurchaseArena(4096);
+        Purchase p = purchase("GPA.1", "gas", "payload", "sig");
+        PurchaseArena.Record r = arena.newRecord().moveTo(arena.add(p));
+
+        assertEquals("inapp", r.getItemType());
+        assertEquals("GPA.1", r.getOrderId());
+        assertEquals("com.example", r.getPackageName());
+        assertEquals("gas", r.getSku());
+        assertEquals(1500000000000L, r.getPurchaseTime());
+        assertEquals(2, r.getPurchaseState());
+        assertEquals("payload", r.getDeveloperPayload());
+        assertEquals("token-GPA.1", r.getToken());
+        assertEquals(p.getOriginalJson(), r.getOriginalJson());
+        assertEquals("sig", r.getSignature());
+        assertEquals(arena.getStringId("gas"), r.getSkuId());
+        assertEquals(-1, arena.getStringId("coin"));
+
+        Purchase back = r.toPurchase();
+        assertEquals(p.getToken(), back.getToken());
+        assertEquals(p.getSignature(), back.getSignature());
+    }
+
+    @Test
+    public void iteratesAcrossSlabsInOrder() throws Exception {
+        PurchaseArena arena = new PurchaseArena(1024);
+        List<Long> refs = new ArrayList<Long>();
+        for (int i = 0; i < 200; i++)
+            refs.add(arena.add(purchase("GPA." + i, i % 2 == 0 ? "gas" : "coin", "", "sig-" + i)));
+        assertEquals(200, arena.size());
+        assertTrue(arena.getOffHeapBytes() > 1024);
+        assertTrue(arena.getUsedBytes() <= arena.getOffHeapBytes());
+
+        PurchaseArena.Record r = arena.newRecord();
+        int i = 0;
+        for (long ref = arena.first(); ref != -1; ref = arena.next(ref)) {
+            assertEquals(refs.get(i).longValue(), ref);
+            r.moveTo(ref);
+            assertTrue(r.equals(PurchaseArena.ORDER_ID, "GPA." + i));
+            assertEquals("sig-" + i, r.getSignature());
+            i++;
+        }
+        assertEquals(200, i);
+        // sku 只保存一次
+        assertEquals("coin", arena.getString(r.getSkuId()));
+    }
+
+    @Test
+    public void emptyArena() {
+        PurchaseArena arena = new PurchaseArena();
+        assertEquals(-1, arena.first());
+        assertEquals(0, arena.size());
+    }
+
+    @Test
+    public void nonAsciiFieldsRoundTrip() throws Exception {
+        // 两字节、三字节、四字节 (emoji) 的 UTF-8
+        String payload = "é 订单 😀";
+        PurchaseArena arena = new PurchaseArena(4096);
+        PurchaseArena.Record r = arena.newRecord().moveTo(arena.add(purchase("GPA.1", "gas", payload, "sig")));
+
+        assertEquals(payload, r.getDeveloperPayload());
+        assertEquals(payload.getBytes("UTF-8").length, r.length(PurchaseArena.DEVELOPER_PAYLOAD));
+        assertTrue(r.equals(PurchaseArena.DEVELOPER_PAYLOAD, payload));
+        assertFalse(r.equals(PurchaseArena.DEVELOPER_PAYLOAD, "é 订单"));
+        StringBuilder out = new StringBuilder("x");
+        assertEquals("x" + payload, r.appendTo(PurchaseArena.DEVELOPER_PAYLOAD, out).toString());
+    }
+
+    @Test
+    public void nullMatchesAnEmptyField() throws Exception {
+        PurchaseArena arena = new PurchaseArena(4096);
+        PurchaseArena.Record empty = arena.newRecord().moveTo(arena.add(purchase("GPA.1", "gas", "", "sig")));
+        PurchaseArena.Record full = arena.newRecord().moveTo(arena.add(purchase("GPA.2", "gas", "x", "sig")));
+
+        assertTrue(empty.equals(PurchaseArena.DEVELOPER_PAYLOAD, null));
+        assertTrue(empty.equals(PurchaseArena.DEVELOPER_PAYLOAD, ""));
+        assertFalse(full.equals(PurchaseArena.DEVELOPER_PAYLOAD, null));
+        assertFalse(full.equals(PurchaseArena.ORDER_ID, null));
+    }
+
+    @Test
+    public void compareUsesByteOrder() throws Exception {
+        PurchaseArena arena = new PurchaseArena(4096);
+        PurchaseArena.Record a = arena.newRecord().moveTo(arena.add(purchase("GPA.10", "gas", "", "s")));
+        PurchaseArena.Record b = arena.newRecord().moveTo(arena.add(purchase("GPA.9", "gas", "", "s")));
+        PurchaseArena.Record c = arena.newRecord().moveTo(arena.add(purchase("GPA.1", "gas", "", "s")));
+
+        assertTrue(a.compare(PurchaseArena.ORDER_ID, b) < 0);
+        assertTrue(b.compare(PurchaseArena.ORDER_ID, a) > 0);
+        // 前缀较短的在前
+        assertTrue(c.compare(PurchaseArena.ORDER_ID, a) < 0);
+        assertEquals(0, a.compare(PurchaseArena.ORDER_ID, a));
+    }
+
+    @Test
+    public void recordLargerThanSlabIsRejected() throws Exception {
+        PurchaseArena arena = new PurchaseArena(256);
+        StringBuilder payload = new StringBuilder();
+        for (int i = 0; i < 300; i++)
+            payload.append('x');
+        try {
+            arena.add(purchase("GPA.1", "gas", payload.toString(), "sig"));
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+        assertEquals(0, arena.size());
+    }
+}
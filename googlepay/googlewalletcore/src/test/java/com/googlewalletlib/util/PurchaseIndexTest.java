@@ -0,0 +1,160 @@
+package com.googlewalletlib.util;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * PurchaseIndex 的查找、扩容，以及没有正常关闭或 journal 被重写之后的重建
+ */
+public class PurchaseIndexTest {
+
+    private File mJournalFile;
+    private File mIndexFile;
+    private PurchaseJournal mJournal;
+    private PurchaseIndex mIndex;
+
+    @Before
+    public void setUp() throws IOException {
+        mJournalFile = File.createTempFile("purchases", ".journal");
+        mJournalFile.delete();
+        mIndexFile = File.createTempFile("purchases", ".index");
+        mIndexFile.delete();
+        mJournal = PurchaseJournal.open(mJournalFile);
+        mIndex = PurchaseIndex.open(mIndexFile, 16);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mJournal.close();
+        mIndex.close();
+        mJournalFile.delete();
+        mIndexFile.delete();
+        new File(mJournalFile.getPath() + ".tmp").delete();
+        new File(mIndexFile.getPath() + ".tmp").delete();
+    }
+
+    private static List<Purchase> purchases(int from, int to) throws Exception {
+        List<Purchase> purchases = new ArrayList<Purchase>();
+        for (int i = from; i < to; i++)
+            purchases.add(PurchaseJournalTest.purchase(i));
+        return purchases;
+    }
+
+    private void reopen() throws IOException {
+        mJournal.close();
+        mIndex.close();
+        mJournal = PurchaseJournal.open(mJournalFile);
+        mIndex = PurchaseIndex.open(mIndexFile, 16);
+        mJournal.attachIndex(mIndex);
+    }
+
+    @Test
+    public void findsExistingAndNewPurchases() throws Exception {
+        mJournal.appendAll(purchases(0, 3));
+        mJournal.attachIndex(mIndex);
+        mJournal.append(PurchaseJournalTest.purchase(3));
+
+        assertEquals("token-1", mJournal.findByOrderId("GPA.0000-1").getToken());
+        assertEquals("GPA.0000-3", mJournal.findByToken("token-3").getOrderId());
+        assertNull(mJournal.findByOrderId("GPA.0000-9"));
+        assertNull(mJournal.findByToken("token-9"));
+        assertEquals(8, mIndex.getCount());
+    }
+
+    @Test
+    public void donePurchasesAreStillFound() throws Exception {
+        mJournal.attachIndex(mIndex);
+        mJournal.append(PurchaseJournalTest.purchase(1));
+        mJournal.markDone(PurchaseJournalTest.purchase(1));
+        assertEquals("token-1", mJournal.findByOrderId("GPA.0000-1").getToken());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void findWithoutIndexFails() throws Exception {
+        mJournal.findByOrderId("GPA.0000-1");
+    }
+
+    @Test
+    public void cleanCloseIsNotRescanned() throws Exception {
+        mJournal.attachIndex(mIndex);
+        mJournal.appendAll(purchases(0, 10));
+        long end = mIndex.getIndexedEnd();
+
+        reopen();
+        assertEquals(end, mIndex.getIndexedEnd());
+        assertEquals(20, mIndex.getCount());
+        assertEquals("token-7", mJournal.findByOrderId("GPA.0000-7").getToken());
+    }
+
+    @Test
+    public void uncleanCloseRescansWithoutDuplicates() throws Exception {
+        mJournal.attachIndex(mIndex);
+        mJournal.appendAll(purchases(0, 10));
+        mJournal.close();
+
+        // 进程被杀: 索引没有 close，下次打开时重新扫描 journal
+        PurchaseIndex killed = mIndex;
+        mIndex = PurchaseIndex.open(mIndexFile, 16);
+        assertEquals(0, mIndex.getIndexedEnd());
+        mJournal = PurchaseJournal.open(mJournalFile);
+        mJournal.attachIndex(mIndex);
+
+        assertEquals(20, mIndex.getCount());
+        assertEquals(1, mIndex.find("o:GPA.0000-4").length);
+        assertEquals("token-4", mJournal.findByOrderId("GPA.0000-4").getToken());
+        killed.close();
+    }
+
+    @Test
+    public void rewrittenJournalRebuildsIndex() throws Exception {
+        mJournal.attachIndex(mIndex);
+        List<Purchase> batch = purchases(0, PurchaseJournal.COMPACT_THRESHOLD + 10);
+        mJournal.appendAll(batch);
+        mJournal.markAllDone(batch.subList(1, batch.size()));
+
+        // 打开 journal 时压缩，只留下 purchase 0，之前索引的位置都失效
+        reopen();
+        assertEquals(2, mIndex.getCount());
+        assertEquals("token-0", mJournal.findByOrderId("GPA.0000-0").getToken());
+        assertNull(mJournal.findByOrderId("GPA.0000-5"));
+    }
+
+    @Test
+    public void growsWhenHalfFull() throws Exception {
+        long capacity = mIndex.getCapacity();
+        assertEquals(PurchaseIndex.MIN_CAPACITY, capacity);
+        mJournal.attachIndex(mIndex);
+        mJournal.appendAll(purchases(0, 1000));
+
+        assertTrue(mIndex.getCapacity() >= 4 * capacity);
+        assertEquals(2000, mIndex.getCount());
+        for (int i = 0; i < 1000; i += 37)
+            assertEquals("token-" + i, mJournal.findByOrderId("GPA.0000-" + i).getToken());
+
+        reopen();
+        assertEquals(2000, mIndex.getCount());
+        assertEquals("GPA.0000-999", mJournal.findByToken("token-999").getOrderId());
+    }
+
+    @Test
+    public void sameKeyKeepsAllOffsetsInOrder() throws IOException {
+        mIndex.put("o:a", 100);
+        mIndex.put("o:a", 200);
+        mIndex.put("o:a", 100);
+        mIndex.setIndexedEnd(300, 200, 0);
+        assertArrayEquals(new long[]{100, 200}, mIndex.find("o:a"));
+        assertEquals(0, mIndex.find("o:b").length);
+        assertEquals(2, mIndex.getCount());
+    }
+}
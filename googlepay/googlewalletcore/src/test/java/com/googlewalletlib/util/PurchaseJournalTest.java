@@ -0,0 +1,284 @@
+package com.googlewalletlib.util;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.ClosedByInterruptException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * PurchaseJournal 的重新打开、不完整末尾的截断和 fsync 合并
+ */
+public class PurchaseJournalTest {
+
+    private File mFile;
+    private PurchaseJournal mJournal;
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("purchases", ".journal");
+        // 从不存在的文件开始，由 open 写入文件头
+        mFile.delete();
+        mJournal = PurchaseJournal.open(mFile);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (mJournal != null)
+            mJournal.close();
+        mFile.delete();
+        new File(mFile.getPath() + ".tmp").delete();
+    }
+
+    static Purchase purchase(int i) throws Exception {
+        String json = "{\"orderId\":\"GPA.0000-" + i + "\",\"packageName\":\"com.example\","
+                + "\"productId\":\"gas\",\"purchaseTime\":" + (1000L + i)
+                + ",\"purchaseState\":0,\"purchaseToken\":\"token-" + i + "\"}";
+        return new Purchase("inapp", json, "sig-" + i);
+    }
+
+    private PurchaseJournal reopen() throws IOException {
+        mJournal.close();
+        mJournal = PurchaseJournal.open(mFile);
+        return mJournal;
+    }
+
+    private static List<String> tokens(List<Purchase> purchases) {
+        List<String> tokens = new ArrayList<String>();
+        for (Purchase p : purchases)
+            tokens.add(p.getToken());
+        return tokens;
+    }
+
+    @Test
+    public void pendingSurvivesReopen() throws Exception {
+        mJournal.append(purchase(1));
+        mJournal.append(purchase(2));
+        mJournal.append(purchase(3));
+        mJournal.markDone(purchase(2));
+
+        List<Purchase> pending = reopen().getPending();
+        assertEquals(2, pending.size());
+        assertEquals("token-1", pending.get(0).getToken());
+        assertEquals("token-3", pending.get(1).getToken());
+        assertEquals("GPA.0000-3", pending.get(1).getOrderId());
+        assertEquals("sig-3", pending.get(1).getSignature());
+    }
+
+    @Test
+    public void sameTokenIsRecordedOnce() throws Exception {
+        mJournal.append(purchase(1));
+        mJournal.append(purchase(1));
+        assertEquals(1, mJournal.getRecordCount());
+        assertEquals(1, reopen().getPending().size());
+    }
+
+    @Test
+    public void tornTailIsTruncatedOnReopen() throws Exception {
+        mJournal.append(purchase(1));
+        mJournal.append(purchase(2));
+        mJournal.close();
+        long good = mFile.length();
+
+        // 写到一半被杀掉: 长度说 100 字节，只写了 10 个
+        FileOutputStream out = new FileOutputStream(mFile, true);
+        try {
+            out.write(new byte[]{0, 0, 0, 100, 1, 2, 3, 4});
+            out.write(new byte[10]);
+        } finally {
+            out.close();
+        }
+
+        mJournal = PurchaseJournal.open(mFile);
+        assertEquals(good, mFile.length());
+        assertEquals(2, mJournal.getPending().size());
+
+        // 截断之后可以继续写入
+        mJournal.append(purchase(3));
+        assertEquals("[token-1, token-2, token-3]", tokens(reopen().getPending()).toString());
+    }
+
+    @Test
+    public void recordWithBadCrcEndsReplay() throws Exception {
+        mJournal.append(purchase(1));
+        long first = mFile.length();
+        mJournal.append(purchase(2));
+        mJournal.close();
+
+        RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+        try {
+            long last = mFile.length() - 1;
+            raf.seek(last);
+            int b = raf.read();
+            raf.seek(last);
+            raf.write(b ^ 0xff);
+        } finally {
+            raf.close();
+        }
+
+        mJournal = PurchaseJournal.open(mFile);
+        assertEquals(first, mFile.length());
+        assertEquals("[token-1]", tokens(mJournal.getPending()).toString());
+    }
+
+    @Test
+    public void appendAllSyncsOnce() throws Exception {
+        List<Purchase> batch = new ArrayList<Purchase>();
+        for (int i = 0; i < 100; i++)
+            batch.add(purchase(i));
+        long syncs = mJournal.getSyncCount();
+        mJournal.appendAll(batch);
+        assertEquals(100, mJournal.getRecordCount());
+        assertEquals(syncs + 1, mJournal.getSyncCount());
+    }
+
+    @Test
+    public void concurrentAppendsShareFsync() throws Exception {
+        final int threads = 8;
+        final int perThread = 50;
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int base = t * perThread;
+            workers[t] = new Thread() {
+                public void run() {
+                    try {
+                        start.await();
+                        for (int i = 0; i < perThread; i++)
+                            mJournal.append(purchase(base + i));
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            };
+            workers[t].start();
+        }
+        start.countDown();
+        for (Thread worker : workers)
+            worker.join();
+
+        assertNull(failure.get());
+        assertEquals(threads * perThread, mJournal.getRecordCount());
+        assertTrue("syncs " + mJournal.getSyncCount(), mJournal.getSyncCount() < threads * perThread);
+        assertEquals(threads * perThread, reopen().getPending().size());
+    }
+
+    @Test
+    public void reopenCompactsDoneRecords() throws Exception {
+        List<Purchase> batch = new ArrayList<Purchase>();
+        for (int i = 0; i < PurchaseJournal.COMPACT_THRESHOLD + 10; i++)
+            batch.add(purchase(i));
+        mJournal.appendAll(batch);
+        mJournal.markAllDone(batch.subList(1, batch.size()));
+        long before = mFile.length();
+
+        List<Purchase> pending = reopen().getPending();
+        assertTrue(mFile.length() < before / 10);
+        assertEquals("[token-0]", tokens(pending).toString());
+    }
+
+    @Test
+    public void readerReturnsDonePurchasesToo() throws Exception {
+        mJournal.append(purchase(1));
+        mJournal.append(purchase(2));
+        mJournal.markDone(purchase(1));
+
+        PurchaseJournal.Reader reader = PurchaseJournal.openReader(mFile);
+        try {
+            assertEquals("token-1", reader.next().getToken());
+            assertEquals("token-2", reader.next().getToken());
+            assertNull(reader.next());
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void interruptedAppendStillWrites() throws Exception {
+        Thread.currentThread().interrupt();
+        try {
+            mJournal.append(purchase(1));
+        } finally {
+            // 中断状态保留给调用方
+            assertTrue(Thread.interrupted());
+        }
+        // 中断没有让 journal 失效
+        mJournal.append(purchase(2));
+        assertEquals("[token-1, token-2]", tokens(reopen().getPending()).toString());
+    }
+
+    @Test
+    public void writerInterruptedDuringAppend() throws Exception {
+        final int count = 200;
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final CountDownLatch started = new CountDownLatch(1);
+        Thread writer = new Thread() {
+            public void run() {
+                try {
+                    for (int i = 0; i < count; i++) {
+                        mJournal.append(purchase(i));
+                        started.countDown();
+                    }
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+            }
+        };
+        writer.start();
+        started.await();
+        while (writer.isAlive()) {
+            writer.interrupt();
+            Thread.sleep(1);
+        }
+
+        assertNull(failure.get());
+        mJournal.append(purchase(count));
+        assertEquals(count + 1, reopen().getPending().size());
+    }
+
+    @Test
+    public void interruptedReaderDoesNotCloseTheJournal() throws Exception {
+        File indexFile = File.createTempFile("purchases", ".index");
+        indexFile.delete();
+        PurchaseIndex index = PurchaseIndex.open(indexFile, 0);
+        try {
+            mJournal.append(purchase(1));
+            mJournal.attachIndex(index);
+            Thread.currentThread().interrupt();
+            try {
+                mJournal.findByToken("token-1");
+                fail();
+            } catch (ClosedByInterruptException expected) {
+            } finally {
+                Thread.interrupted();
+            }
+            assertEquals("GPA.0000-1", mJournal.findByToken("token-1").getOrderId());
+            mJournal.append(purchase(2));
+            assertEquals("token-2", mJournal.findByOrderId("GPA.0000-2").getToken());
+        } finally {
+            mJournal.close();
+            index.close();
+            indexFile.delete();
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void appendAfterCloseFails() throws Exception {
+        mJournal.close();
+        mJournal.append(purchase(1));
+    }
+}
@@ -0,0 +1,103 @@
+package com.googlewalletlib.util;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 投递 IabHelper 回调的 Executor。
+ * 同一时间完成的多个回调合并成一次投递：目标线程只被唤醒一次，依次执行排队的回调，
+ * 不用每个回调 post 一个 Runnable
+ */
+public class IabCallbackExecutor implements Executor {
+
+    private static final Executor DIRECT = new Executor() {
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private static final String TAG = "IabCallbackExecutor";
+
+    // 只缓存主线程的实例。其它 looper 的线程可能退出，缓存会让它们一直不能回收
+    private static IabCallbackExecutor sMainExecutor;
+
+    private final Executor mTarget;
+    private final ConcurrentLinkedQueue<Runnable> mPending = new ConcurrentLinkedQueue<Runnable>();
+    private final AtomicBoolean mScheduled = new AtomicBoolean();
+
+    // 一个回调抛出异常不影响排在后面的回调，全部执行完之后再抛出第一个异常
+    private final Runnable mDrain = new Runnable() {
+        public void run() {
+            mScheduled.set(false);
+            RuntimeException failure = null;
+            Runnable r;
+            while ((r = mPending.poll()) != null) {
+                try {
+                    r.run();
+                } catch (RuntimeException e) {
+                    if (failure == null)
+                        failure = e;
+                    else
+                        IabLog.e(TAG, "回调出错", e);
+                }
+            }
+            if (failure != null)
+                throw failure;
+        }
+    };
+
+    /**
+     * 把回调合并后交给 target 执行
+     */
+    public IabCallbackExecutor(Executor target) {
+        mTarget = target;
+    }
+
+    /**
+     * 在主线程上回调
+     */
+    public static IabCallbackExecutor main() {
+        synchronized (IabCallbackExecutor.class) {
+            if (sMainExecutor == null)
+                sMainExecutor = create(Looper.getMainLooper());
+            return sMainExecutor;
+        }
+    }
+
+    /**
+     * 在完成操作的线程上直接回调，不切换线程。回调里不能做耗时的事情
+     */
+    public static Executor direct() {
+        return DIRECT;
+    }
+
+    /**
+     * 在 looper 所在的线程上回调。主线程共用一个实例；其它 looper 每次返回新的实例，
+     * 需要合并回调时由调用者保存
+     */
+    public static IabCallbackExecutor forLooper(Looper looper) {
+        if (looper == Looper.getMainLooper())
+            return main();
+        return create(looper);
+    }
+
+    private static IabCallbackExecutor create(Looper looper) {
+        final Handler handler = new Handler(looper);
+        return new IabCallbackExecutor(new Executor() {
+            public void execute(Runnable command) {
+                handler.post(command);
+            }
+        });
+    }
+
+    public void execute(Runnable command) {
+        mPending.add(command);
+        if (mScheduled.compareAndSet(false, true)) {
+            mTarget.execute(mDrain);
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.googlewalletlib.util;
+
+import android.os.SystemClock;
+
+/**
+ * billing service 熔断器。
+ * 连续 failureThreshold 次暂时性失败后打开，打开期间的调用直接以
+ * IABHELPER_SERVICE_UNAVAILABLE 失败；过了 openMillis 放一个试探请求，
+ * 成功就关闭，失败继续打开
+ */
+public class IabCircuitBreaker {
+    static final int STATE_CLOSED = 0;
+    static final int STATE_OPEN = 1;
+    static final int STATE_HALF_OPEN = 2;
+
+    private final int mFailureThreshold;
+    private final long mOpenMillis;
+
+    private int mState = STATE_CLOSED;
+    private int mFailures = 0;
+    private long mOpenedAt;
+
+    /**
+     * 默认: 连续失败 5 次后熔断 30 秒
+     */
+    public IabCircuitBreaker() {
+        this(5, 30000);
+    }
+
+    public IabCircuitBreaker(int failureThreshold, long openMillis) {
+        mFailureThreshold = Math.max(1, failureThreshold);
+        mOpenMillis = openMillis;
+    }
+
+    /**
+     * 是否允许这次调用。半开状态下只放行一个试探请求
+     */
+    synchronized boolean allowRequest() {
+        switch (mState) {
+            case STATE_OPEN:
+                if (SystemClock.elapsedRealtime() - mOpenedAt < mOpenMillis)
+                    return false;
+                mState = STATE_HALF_OPEN;
+                return true;
+            case STATE_HALF_OPEN:
+                return false;
+            default:
+                return true;
+        }
+    }
+
+    synchronized void onSuccess() {
+        mState = STATE_CLOSED;
+        mFailures = 0;
+    }
+
+    /**
+     * 调用被取消 (线程被中断)，不能说明 service 的好坏。
+     * 如果是半开时的试探请求，回到打开状态，下一个调用马上重新试探
+     */
+    synchronized void onCancel() {
+        if (mState == STATE_HALF_OPEN)
+            mState = STATE_OPEN;
+    }
+
+    synchronized void onFailure() {
+        mFailures++;
+        if (mState == STATE_HALF_OPEN || mFailures >= mFailureThreshold) {
+            mState = STATE_OPEN;
+            mOpenedAt = SystemClock.elapsedRealtime();
+        }
+    }
+
+    /**
+     * 熔断器现在是否打开 (包括等待试探结果)
+     */
+    public synchronized boolean isOpen() {
+        return mState != STATE_CLOSED;
+    }
+
+    /**
+     * 手动关闭熔断器，例如重新 bind service 之后
+     */
+    public synchronized void reset() {
+        onSuccess();
+    }
+}
@@ -0,0 +1,82 @@
+package com.googlewalletlib.util;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * IabHelper 共用的线程池
+ */
+final class IabExecutors {
+
+    // 同时挂在 billing service 上的 IPC 线程上限。
+    // 超时的调用会被放弃，但 binder 调用不能中断，线程要等 service 返回才会回收，
+    // 所以这里必须有上限，service 卡死时新的调用直接失败而不是无限开线程
+    static final int MAX_IPC_THREADS = 4;
+
+    private static ThreadPoolExecutor sIpcExecutor;
+    private static ThreadPoolExecutor sBackgroundExecutor;
+    private static ThreadPoolExecutor sOperationExecutor;
+
+    // 同时执行的阻塞操作 (查询、消耗) 个数
+    static final int OPERATION_THREADS = 4;
+
+    private IabExecutors() {
+    }
+
+    /**
+     * 执行 IInAppBillingService 调用的线程池，没有排队，线程用完时抛 RejectedExecutionException
+     */
+    static synchronized ThreadPoolExecutor ipc() {
+        if (sIpcExecutor == null) {
+            sIpcExecutor = new ThreadPoolExecutor(0, MAX_IPC_THREADS, 30, TimeUnit.SECONDS,
+                    new SynchronousQueue<Runnable>(), new NamedThreadFactory("IabHelper-ipc-"));
+        }
+        return sIpcExecutor;
+    }
+
+    /**
+     * 解析、验签这类 CPU 工作用的线程池，线程数跟 CPU 核数走，任务排队执行
+     */
+    static synchronized ThreadPoolExecutor background() {
+        if (sBackgroundExecutor == null) {
+            int threads = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+            sBackgroundExecutor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory("IabHelper-bg-"));
+            sBackgroundExecutor.allowCoreThreadTimeOut(true);
+        }
+        return sBackgroundExecutor;
+    }
+
+    /**
+     * 执行阻塞的 billing 操作 (queryInventory、consume 等)，代替每次调用新开一个线程。
+     * 这些操作大部分时间在等 IPC 线程，所以和 background() 分开
+     */
+    static synchronized ThreadPoolExecutor operations() {
+        if (sOperationExecutor == null) {
+            sOperationExecutor = new ThreadPoolExecutor(OPERATION_THREADS, OPERATION_THREADS,
+                    30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                    new NamedThreadFactory("IabHelper-op-"));
+            sOperationExecutor.allowCoreThreadTimeOut(true);
+        }
+        return sOperationExecutor;
+    }
+
+    static class NamedThreadFactory implements ThreadFactory {
+        private final String mPrefix;
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        NamedThreadFactory(String prefix) {
+            mPrefix = prefix;
+        }
+
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, mPrefix + mCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
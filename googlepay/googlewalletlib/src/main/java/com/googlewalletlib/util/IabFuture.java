@@ -0,0 +1,362 @@
+package com.googlewalletlib.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 异步 billing 操作的结果，可以添加回调、组合和取消。
+ * minSdkVersion 19 没有 CompletableFuture (API 24)，这里只实现 IabHelper 需要的部分：
+ * thenApply / thenCompose / exceptionally / allOf，命名和 CompletableFuture 保持一致。
+ * 失败的原因一般是 IabException
+ */
+public class IabFuture<T> implements Future<T> {
+
+    /**
+     * 完成时的回调
+     */
+    public interface Callback<T> {
+        void onSuccess(T value);
+
+        void onFailure(Throwable error);
+    }
+
+    /**
+     * 同步转换，抛出的异常会让结果失败
+     */
+    public interface Transform<T, R> {
+        R apply(T value) throws Exception;
+    }
+
+    /**
+     * 异步转换，返回下一步操作的 IabFuture
+     */
+    public interface AsyncTransform<T, R> {
+        IabFuture<R> apply(T value) throws Exception;
+    }
+
+    private static final Executor DIRECT = IabCallbackExecutor.direct();
+
+    private static final int PENDING = 0;
+    private static final int SUCCESS = 1;
+    private static final int FAILURE = 2;
+    private static final int CANCELLED = 3;
+
+    private int mState = PENDING;
+    private T mValue;
+    private Throwable mError;
+    private List<Runnable> mListeners = new ArrayList<Runnable>(2);
+    // 取消时一起取消的上游操作
+    private List<Future<?>> mUpstream = new ArrayList<Future<?>>(1);
+
+    public IabFuture() {
+    }
+
+    public static <T> IabFuture<T> completed(T value) {
+        IabFuture<T> future = new IabFuture<T>();
+        future.complete(value);
+        return future;
+    }
+
+    public static <T> IabFuture<T> failed(Throwable error) {
+        IabFuture<T> future = new IabFuture<T>();
+        future.fail(error);
+        return future;
+    }
+
+    /**
+     * 在 executor 上执行 task。取消返回的 IabFuture 会中断正在执行的 task
+     */
+    public static <T> IabFuture<T> submit(ExecutorService executor,
+                                          final Callable<T> task) {
+        final IabFuture<T> future = new IabFuture<T>();
+        Future<?> running = executor.submit(new Runnable() {
+            public void run() {
+                if (future.isDone())
+                    return;
+                try {
+                    future.complete(task.call());
+                } catch (Throwable t) {
+                    future.fail(t);
+                }
+            }
+        });
+        future.cancelWith(running);
+        return future;
+    }
+
+    /**
+     * 全部成功时按顺序返回所有结果；任何一个失败或取消，结果就失败
+     */
+    public static <T> IabFuture<List<T>> allOf(final List<? extends IabFuture<? extends T>> futures) {
+        final IabFuture<List<T>> all = new IabFuture<List<T>>();
+        final int n = futures.size();
+        if (n == 0) {
+            all.complete(new ArrayList<T>());
+            return all;
+        }
+        @SuppressWarnings("unchecked")
+        final T[] values = (T[]) new Object[n];
+        final AtomicInteger remaining = new AtomicInteger(n);
+        for (int i = 0; i < n; i++) {
+            final int index = i;
+            IabFuture<? extends T> f = futures.get(i);
+            all.cancelWith(f);
+            f.addCallback(new Callback<T>() {
+                public void onSuccess(T value) {
+                    values[index] = value;
+                    if (remaining.decrementAndGet() == 0)
+                        all.complete(new ArrayList<T>(Arrays.asList(values)));
+                }
+
+                public void onFailure(Throwable error) {
+                    all.fail(error);
+                }
+            });
+        }
+        return all;
+    }
+
+    /**
+     * 设置结果。已经完成的话忽略，返回 false
+     */
+    public boolean complete(T value) {
+        List<Runnable> listeners;
+        synchronized (this) {
+            if (mState != PENDING)
+                return false;
+            mValue = value;
+            mState = SUCCESS;
+            listeners = finish();
+        }
+        runAll(listeners);
+        return true;
+    }
+
+    /**
+     * 以 error 失败。已经完成的话忽略，返回 false
+     *
+     * @throws NullPointerException error 为 null
+     */
+    public boolean fail(Throwable error) {
+        if (error == null)
+            throw new NullPointerException("error == null");
+        List<Runnable> listeners;
+        synchronized (this) {
+            if (mState != PENDING)
+                return false;
+            mError = error;
+            mState = FAILURE;
+            listeners = finish();
+        }
+        runAll(listeners);
+        return true;
+    }
+
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        List<Runnable> listeners;
+        List<Future<?>> upstream;
+        synchronized (this) {
+            if (mState != PENDING)
+                return false;
+            mError = new CancellationException();
+            mState = CANCELLED;
+            upstream = mUpstream;
+            listeners = finish();
+        }
+        for (Future<?> f : upstream)
+            f.cancel(mayInterruptIfRunning);
+        runAll(listeners);
+        return true;
+    }
+
+    /**
+     * 这个结果被取消时，同时取消 upstream
+     */
+    void cancelWith(Future<?> upstream) {
+        synchronized (this) {
+            if (mState == PENDING) {
+                mUpstream.add(upstream);
+                return;
+            }
+            if (mState != CANCELLED)
+                return;
+        }
+        upstream.cancel(true);
+    }
+
+    public synchronized boolean isCancelled() {
+        return mState == CANCELLED;
+    }
+
+    public synchronized boolean isDone() {
+        return mState != PENDING;
+    }
+
+    public synchronized T get() throws InterruptedException, ExecutionException {
+        while (mState == PENDING)
+            wait();
+        return report();
+    }
+
+    public synchronized T get(long timeout, TimeUnit unit) throws InterruptedException,
+            ExecutionException, TimeoutException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (mState == PENDING) {
+            long left = deadline - System.nanoTime();
+            if (left <= 0)
+                throw new TimeoutException();
+            TimeUnit.NANOSECONDS.timedWait(this, left);
+        }
+        return report();
+    }
+
+    /**
+     * 完成时在 executor 上回调；已经完成的话马上投递
+     */
+    public IabFuture<T> addCallback(final Callback<? super T> callback, final Executor executor) {
+        Runnable listener = new Runnable() {
+            public void run() {
+                executor.execute(new Runnable() {
+                    public void run() {
+                        boolean success;
+                        T value;
+                        Throwable error;
+                        synchronized (IabFuture.this) {
+                            success = mState == SUCCESS;
+                            value = mValue;
+                            error = mError;
+                        }
+                        if (success)
+                            callback.onSuccess(value);
+                        else
+                            callback.onFailure(error);
+                    }
+                });
+            }
+        };
+        synchronized (this) {
+            if (mState == PENDING) {
+                mListeners.add(listener);
+                return this;
+            }
+        }
+        listener.run();
+        return this;
+    }
+
+    /**
+     * 完成时在完成的线程上直接回调
+     */
+    public IabFuture<T> addCallback(Callback<? super T> callback) {
+        return addCallback(callback, DIRECT);
+    }
+
+    /**
+     * 成功后用 transform 转换结果。取消返回的结果会连同取消这个操作，下同
+     */
+    public <R> IabFuture<R> thenApply(final Transform<? super T, ? extends R> transform) {
+        final IabFuture<R> next = new IabFuture<R>();
+        next.cancelWith(this);
+        addCallback(new Callback<T>() {
+            public void onSuccess(T value) {
+                try {
+                    next.complete(transform.apply(value));
+                } catch (Throwable t) {
+                    next.fail(t);
+                }
+            }
+
+            public void onFailure(Throwable error) {
+                next.fail(error);
+            }
+        });
+        return next;
+    }
+
+    /**
+     * 成功后接着执行下一个异步操作
+     */
+    public <R> IabFuture<R> thenCompose(final AsyncTransform<? super T, R> transform) {
+        final IabFuture<R> next = new IabFuture<R>();
+        next.cancelWith(this);
+        addCallback(new Callback<T>() {
+            public void onSuccess(T value) {
+                IabFuture<R> inner;
+                try {
+                    inner = transform.apply(value);
+                } catch (Throwable t) {
+                    next.fail(t);
+                    return;
+                }
+                next.cancelWith(inner);
+                inner.addCallback(new Callback<R>() {
+                    public void onSuccess(R value) {
+                        next.complete(value);
+                    }
+
+                    public void onFailure(Throwable error) {
+                        next.fail(error);
+                    }
+                });
+            }
+
+            public void onFailure(Throwable error) {
+                next.fail(error);
+            }
+        });
+        return next;
+    }
+
+    /**
+     * 失败时用 recover 给出替代结果
+     */
+    public IabFuture<T> exceptionally(final Transform<Throwable, ? extends T> recover) {
+        final IabFuture<T> next = new IabFuture<T>();
+        next.cancelWith(this);
+        addCallback(new Callback<T>() {
+            public void onSuccess(T value) {
+                next.complete(value);
+            }
+
+            public void onFailure(Throwable error) {
+                try {
+                    next.complete(recover.apply(error));
+                } catch (Throwable t) {
+                    next.fail(t);
+                }
+            }
+        });
+        return next;
+    }
+
+    private List<Runnable> finish() {
+        List<Runnable> listeners = mListeners;
+        mListeners = null;
+        mUpstream = null;
+        notifyAll();
+        return listeners;
+    }
+
+    private static void runAll(List<Runnable> listeners) {
+        for (Runnable r : listeners)
+            r.run();
+    }
+
+    private T report() throws ExecutionException {
+        if (mState == CANCELLED)
+            throw (CancellationException) mError;
+        if (mState == FAILURE)
+            throw new ExecutionException(mError);
+        return mValue;
+    }
+}
@@ -0,0 +1,139 @@
+package com.googlewalletlib.util;
+
+import android.app.Activity;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+/**
+ * IabHelper 的 IabFuture 版本。阻塞的操作在共用的线程池上执行，不会每次新开线程，
+ * 也不占用 IabHelper 的 "一次只能有一个异步操作" 限制，可以同时查询、同时消耗。
+ *
+ * <pre>
+ * IabFutureHelper billing = new IabFutureHelper(helper);
+ * billing.startSetup()
+ *         .thenCompose(...queryInventory...)
+ *         .thenCompose(...consume...)
+ *         .addCallback(callback, IabCallbackExecutor.main());
+ * </pre>
+ *
+ * 取消返回的 IabFuture 会中断还在等待的 service 调用，这个调用以 IABHELPER_CANCELLED 结束，
+ * 不会重试，也不算熔断器的失败
+ */
+public class IabFutureHelper {
+    final IabHelper mHelper;
+
+    public IabFutureHelper(IabHelper helper) {
+        mHelper = helper;
+    }
+
+    public IabHelper getHelper() {
+        return mHelper;
+    }
+
+    /**
+     * 连接 billing service，设备不支持时以 IabException 失败
+     */
+    public IabFuture<IabResult> startSetup() {
+        final IabFuture<IabResult> future = new IabFuture<IabResult>();
+        mHelper.startSetup(new IabHelper.OnIabSetupFinishedListener() {
+            public void onIabSetupFinished(IabResult result) {
+                if (result.isSuccess())
+                    future.complete(result);
+                else
+                    future.fail(new IabException(result));
+            }
+        });
+        return future;
+    }
+
+    /**
+     * 查询用户拥有的商品，参数同 {@link IabHelper#queryInventory(boolean, List, List)}
+     */
+    public IabFuture<Inventory> queryInventory(final boolean querySkuDetails,
+                                               final List<String> moreItemSkus,
+                                               final List<String> moreSubsSkus) {
+        return IabFuture.submit(IabExecutors.operations(), new Callable<Inventory>() {
+            public Inventory call() throws Exception {
+                return mHelper.queryInventory(querySkuDetails, moreItemSkus, moreSubsSkus);
+            }
+        });
+    }
+
+    /**
+     * 只查询商品信息 (价格、标题等)，不查询购买记录
+     *
+     * @param itemType ITEM_TYPE_INAPP 或 ITEM_TYPE_SUBS
+     * @param skus 要查询的商品
+     * @return 只包含 SkuDetails 的 Inventory
+     */
+    public IabFuture<Inventory> querySkuDetails(final String itemType, final List<String> skus) {
+        return IabFuture.submit(IabExecutors.operations(), new Callable<Inventory>() {
+            public Inventory call() throws Exception {
+                mHelper.checkSetupDone("querySkuDetails");
+                Inventory inv = new Inventory();
+                int r = mHelper.querySkuDetails(itemType, inv, skus);
+                if (r != IabHelper.BILLING_RESPONSE_RESULT_OK)
+                    throw new IabException(r, "查询商品信息失败");
+                return inv;
+            }
+        });
+    }
+
+    /**
+     * 消耗一个商品，成功时返回这个商品
+     */
+    public IabFuture<Purchase> consume(final Purchase purchase) {
+        return IabFuture.submit(IabExecutors.operations(), new Callable<Purchase>() {
+            public Purchase call() throws Exception {
+                mHelper.consume(purchase);
+                return purchase;
+            }
+        });
+    }
+
+    /**
+     * 同时消耗多个商品，全部成功时返回这些商品；任何一个失败结果就失败
+     */
+    public IabFuture<List<Purchase>> consumeAll(List<Purchase> purchases) {
+        List<IabFuture<Purchase>> futures = new ArrayList<IabFuture<Purchase>>(purchases.size());
+        for (Purchase p : purchases)
+            futures.add(consume(p));
+        return IabFuture.allOf(futures);
+    }
+
+    /**
+     * 启动购买界面，参数同 {@link IabHelper#launchPurchaseFlow(Activity, String, String,
+     * IabHelper.OnIabPurchaseFinishedListener, String)}，请求码自动分配。必须在主线程调用，
+     * 结果在 Activity.onActivityResult 交给 IabHelper.handleActivityResult 之后完成。
+     * 取消只会忽略之后的结果，已经打开的购买界面不会关闭
+     */
+    public IabFuture<Purchase> launchPurchaseFlow(Activity act, String sku, String itemType,
+                                                  String extraData) {
+        return launchPurchaseFlow(act, sku, itemType, mHelper.mPurchaseFlows.nextRequestCode(),
+                extraData);
+    }
+
+    /**
+     * 同上，使用指定的请求码
+     */
+    public IabFuture<Purchase> launchPurchaseFlow(Activity act, String sku, String itemType,
+                                                  int requestCode, String extraData) {
+        final IabFuture<Purchase> future = new IabFuture<Purchase>();
+        try {
+            mHelper.launchPurchaseFlow(act, sku, itemType, requestCode,
+                    new IabHelper.OnIabPurchaseFinishedListener() {
+                        public void onIabPurchaseFinished(IabResult result, Purchase info) {
+                            if (result.isSuccess())
+                                future.complete(info);
+                            else
+                                future.fail(new IabException(result));
+                        }
+                    }, extraData);
+        } catch (IllegalStateException e) {
+            future.fail(e);
+        }
+        return future;
+    }
+}
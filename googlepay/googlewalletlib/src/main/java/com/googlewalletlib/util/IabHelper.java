@@ -23,18 +23,35 @@ import android.content.Intent;
 import android.content.IntentSender.SendIntentException;
 import android.content.ServiceConnection;
 import android.os.Bundle;
-import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.text.TextUtils;
-import android.util.Log;
 
 import com.android.vending.billing.IInAppBillingService;
 
 import org.json.JSONException;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.PublicKey;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Provides convenience methods for in-app billing. You can create one instance
@@ -64,11 +81,19 @@ import java.util.List;
  * notice that you can only call one asynchronous operation at a time;
  * attempting to start a second asynchronous operation while the first one has
  * not yet completed will result in an exception being thrown.
+ * Use {@link #setStrictMode} in test builds to catch blocking calls made from
+ * the UI thread.
  * 
  * @author Bruno Oliveira (Google)
  * 
  */
-public class IabHelper {
+public class IabHelper implements IabConstants {
+	static {
+		// 没有调用过 IabLog.setSink 时输出到 logcat
+		if (IabLog.getSink() == IabLog.STDERR)
+			IabLog.setSink(new IabLogcatSink());
+	}
+
 	// 需要显示log吗
 	boolean mDebugLog = false;
 	String mDebugTag = "IabHelper";
@@ -93,37 +118,60 @@ public class IabHelper {
 	IInAppBillingService mService;
 	ServiceConnection mServiceConn;
 
-	// 请求码
-	int mRequestCode;
+	// 投递回调的 Executor，null 表示回到发起操作的线程
+	Executor mCallbackExecutor;
 
-	// 购买类型
-	String mPurchasingItemType;
+	// 正在进行的购买流程，按请求码索引
+	final IabPurchaseFlowRegistry mPurchaseFlows = new IabPurchaseFlowRegistry();
 
 	// 开发人员的密钥
 	String mSignatureBase64 = null;
 
-	// Billing 结果码
-	public static final int BILLING_RESPONSE_RESULT_OK = 0;
-	public static final int BILLING_RESPONSE_RESULT_USER_CANCELED = 1;
-	public static final int BILLING_RESPONSE_RESULT_BILLING_UNAVAILABLE = 3;
-	public static final int BILLING_RESPONSE_RESULT_ITEM_UNAVAILABLE = 4;
-	public static final int BILLING_RESPONSE_RESULT_DEVELOPER_ERROR = 5;
-	public static final int BILLING_RESPONSE_RESULT_ERROR = 6;
-	public static final int BILLING_RESPONSE_RESULT_ITEM_ALREADY_OWNED = 7;
-	public static final int BILLING_RESPONSE_RESULT_ITEM_NOT_OWNED = 8;
-
-	// IAB Helper error codes
-	public static final int IABHELPER_ERROR_BASE = -1000;
-	public static final int IABHELPER_REMOTE_EXCEPTION = -1001;// 说明设备不支持billing支付
-	public static final int IABHELPER_BAD_RESPONSE = -1002;// 不是错误，也不是正确的响应码
-	public static final int IABHELPER_VERIFICATION_FAILED = -1003;// 验证失败
-	public static final int IABHELPER_SEND_INTENT_FAILED = -1004;// 发送intent失败
-	public static final int IABHELPER_USER_CANCELLED = -1005;// 用户取消
-	public static final int IABHELPER_UNKNOWN_PURCHASE_RESPONSE = -1006;// 未知的购买
-	public static final int IABHELPER_MISSING_TOKEN = -1007;//没有 token
-	public static final int IABHELPER_UNKNOWN_ERROR = -1008;// 购买后没有信息返回
-	public static final int IABHELPER_SUBSCRIPTIONS_NOT_AVAILABLE = -1009;// 订阅无法使用
-	public static final int IABHELPER_INVALID_CONSUMPTION = -1010;//无效的消费
+	// 由 mSignatureBase64 生成的公钥，第一次验证时生成
+	PublicKey mSignatureKey = null;
+
+	// 是否在后台线程解析和验证购买结果
+	boolean mAsyncVerification = false;
+
+	// 每次 service 调用的超时时间 (毫秒)，<= 0 表示不限制
+	long mTimeoutMillis = DEFAULT_TIMEOUT_MILLIS;
+
+	// 暂时性失败的重试策略，null 表示不重试
+	IabRetryPolicy mRetryPolicy = new IabRetryPolicy();
+
+	// service 持续失败时快速失败，null 表示不熔断
+	IabCircuitBreaker mCircuitBreaker = new IabCircuitBreaker();
+
+	// service 调用的计数和耗时，null 表示不统计
+	volatile IabMetrics mMetrics = null;
+
+	// 购买流程的追踪，null 表示不追踪
+	volatile IabTracer mTracer = null;
+
+	// 之后的 startSetup 所属的购买流程。每个 launchPurchaseFlow 的 flowId 记在它的 Flow 上
+	volatile long mTraceFlowId = 0;
+
+	// 录制 service 调用的输出，在连接上 service 时包装 mService
+	OutputStream mRecordingOut = null;
+	IabRecordingService mRecording = null;
+
+	// 检查阻塞操作是否在主线程上调用，null 表示不检查
+	volatile IabStrictMode mStrictMode = null;
+
+	// 消耗前记录购买，null 表示不记录
+	volatile PurchaseJournal mJournal = null;
+
+	// 正在消耗的 token，同一个购买不会同时被消耗两次
+	final Set<String> mConsumingTokens = Collections
+			.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+	// 结果码和商品类型见 IabConstants
+
+	// 批量消耗时最多同时进行几个，给其它调用留一个 IPC 线程
+	public static final int MAX_CONSUME_PARALLELISM = IabExecutors.MAX_IPC_THREADS - 1;
+
+	// 默认的 service 调用超时时间
+	public static final long DEFAULT_TIMEOUT_MILLIS = 20000;
 
 	// Keys for the responses from InAppBillingService
 	public static final String RESPONSE_CODE = "RESPONSE_CODE";
@@ -136,10 +184,6 @@ public class IabHelper {
 	public static final String RESPONSE_INAPP_SIGNATURE_LIST = "INAPP_DATA_SIGNATURE_LIST";
 	public static final String INAPP_CONTINUATION_TOKEN = "INAPP_CONTINUATION_TOKEN";
 
-	// Item types
-	public static final String ITEM_TYPE_INAPP = "inapp";
-	public static final String ITEM_TYPE_SUBS = "subs";
-
 	// some fields on the getSkuDetails response bundle
 	public static final String GET_SKU_DETAILS_ITEM_LIST = "ITEM_ID_LIST";
 	public static final String GET_SKU_DETAILS_ITEM_TYPE_LIST = "ITEM_TYPE_LIST";
@@ -165,6 +209,137 @@ public class IabHelper {
 		mDebugLog = enable;
 	}
 
+	/**
+	 * 启用后 handleActivityResult 把购买信息的解析和验签放到后台线程，
+	 * 完成后在调用 handleActivityResult 的线程上通知 OnIabPurchaseFinishedListener
+	 */
+	public void enableAsyncVerification(boolean enable) {
+		mAsyncVerification = enable;
+	}
+
+	/**
+	 * 设置异步操作回调所在的 Executor，例如 IabCallbackExecutor.main()、
+	 * IabCallbackExecutor.direct() 或自定义的线程池。
+	 * null (默认) 表示回到发起操作的线程。同时完成的多个回调会合并成一次投递
+	 */
+	public void setCallbackExecutor(Executor executor) {
+		mCallbackExecutor = executor;
+	}
+
+	/**
+	 * 设置每个操作的超时时间，超时后操作以 IABHELPER_TIMEOUT 结束
+	 * 
+	 * @param timeoutMillis 毫秒，<= 0 表示不限制
+	 */
+	public void setTimeout(long timeoutMillis) {
+		mTimeoutMillis = timeoutMillis;
+	}
+
+	/**
+	 * 设置 service 调用的重试策略，null 表示失败后不重试
+	 */
+	public void setRetryPolicy(IabRetryPolicy policy) {
+		mRetryPolicy = policy;
+	}
+
+	/**
+	 * 设置熔断器，null 表示不熔断
+	 */
+	public void setCircuitBreaker(IabCircuitBreaker breaker) {
+		mCircuitBreaker = breaker;
+	}
+
+	/**
+	 * 统计每次 service 调用的响应码和耗时，null 表示不统计
+	 */
+	public void setMetrics(IabMetrics metrics) {
+		mMetrics = metrics;
+	}
+
+	public IabMetrics getMetrics() {
+		return mMetrics;
+	}
+
+	/**
+	 * 把之后所有的 service 调用和返回的结果录制到 out，用 IabReplayService 回放。
+	 * 在 startSetup 之前调用，会录下整个过程
+	 */
+	public synchronized void startRecording(OutputStream out) throws IOException {
+		stopRecording();
+		mRecordingOut = out;
+		if (mService != null)
+			mService = recorded(mService);
+	}
+
+	/**
+	 * 停止录制并关闭录制文件
+	 */
+	public synchronized void stopRecording() throws IOException {
+		IabRecordingService recording = mRecording;
+		mRecordingOut = null;
+		mRecording = null;
+		if (recording != null) {
+			if (mService == recording)
+				mService = recording.getDelegate();
+			recording.close();
+		}
+	}
+
+	private synchronized IInAppBillingService recorded(
+			IInAppBillingService service) {
+		if (mRecordingOut == null || service == null)
+			return service;
+		try {
+			mRecording = new IabRecordingService(service, mRecordingOut);
+			mRecordingOut = null;
+			return mRecording;
+		} catch (IOException e) {
+			logError("开始录制失败", e);
+			return service;
+		}
+	}
+
+	/**
+	 * 消耗之前先把购买写入 journal，写入失败时不消耗 (IABHELPER_JOURNAL_FAILED)。
+	 * 服务器确认后由调用方 markDone，null 表示不记录
+	 */
+	public void setPurchaseJournal(PurchaseJournal journal) {
+		mJournal = journal;
+	}
+
+	public PurchaseJournal getPurchaseJournal() {
+		return mJournal;
+	}
+
+	/**
+	 * 检查阻塞的操作是否在主线程上调用，null 表示不检查
+	 */
+	public void setStrictMode(IabStrictMode strictMode) {
+		mStrictMode = strictMode;
+	}
+
+	/**
+	 * 记录购买流程各个阶段的耗时，null 表示不追踪
+	 */
+	public void setTracer(IabTracer tracer) {
+		mTracer = tracer;
+	}
+
+	public IabTracer getTracer() {
+		return mTracer;
+	}
+
+	/**
+	 * 之后的 startSetup 记在 flowId 下。购买流程用
+	 * {@link #launchPurchaseFlow(Activity, String, String, OnIabPurchaseFinishedListener, String, long)}
+	 * 指定自己的 flowId，同时进行的多个购买流程互不覆盖
+	 * 
+	 * @param flowId 由 IabTracer.newFlowId 分配
+	 */
+	public void setTraceFlowId(long flowId) {
+		mTraceFlowId = flowId;
+	}
+
 	/**
 	 * 安装过程中调用
 	 */
@@ -180,12 +355,13 @@ public class IabHelper {
 	 * 
 	 * @param listener 监听安装过程
 	 */
-	public void startSetup(final OnIabSetupFinishedListener listener) {
+	public void startSetup(final OnIabSetupFinishedListener setupListener) {
 		// 根据要求，是否可以继续购买
 		// if (mSetupDone) throw new
 		// IllegalStateException("IAB helper is already set up.");
 
 		logDebug("开始初始化service");
+		final OnIabSetupFinishedListener listener = tracedSetupListener(setupListener);
 		// 操作代码
 		mServiceConn = new ServiceConnection() {
 			public void onServiceDisconnected(ComponentName name) {
@@ -194,50 +370,8 @@ public class IabHelper {
 
 			// 连接服务器
 			public void onServiceConnected(ComponentName name, IBinder service) {
-				mService = IInAppBillingService.Stub.asInterface(service);
-				String packageName = mContext.getPackageName();
-				try {
-					logDebug("检测是否支持in-app billing 3");
-
-					// 是否支持3版本
-					int response = mService.isBillingSupported(3, packageName,
-							ITEM_TYPE_INAPP);
-					if (response != BILLING_RESPONSE_RESULT_OK) {
-						if (listener != null)
-							listener.onIabSetupFinished(new IabResult(response,
-									"检查billing v3错误"));
-						System.out.println("订阅无法使用  Response: " + response);
-
-						mSubscriptionsSupported = false;
-						return;
-					}
-					logDebug("In-app billing version 3 支持" + packageName);
-
-					// 检测设备是否支持订阅3版本
-					response = mService.isBillingSupported(3, packageName,
-							ITEM_TYPE_SUBS);
-					if (response == BILLING_RESPONSE_RESULT_OK) {
-						logDebug("有效的支持");
-						mSubscriptionsSupported = true;
-					} else {
-						logDebug("订阅无法使用  Response: " + response);
-					}
-
-					mSetupDone = true;
-				} catch (RemoteException e) {
-					if (listener != null) {
-						listener.onIabSetupFinished(new IabResult(
-								IABHELPER_REMOTE_EXCEPTION,
-								"RemoteException while setting up in-app billing."));
-					}
-					e.printStackTrace();
-					return;
-				}
-
-				if (listener != null) {
-					listener.onIabSetupFinished(new IabResult(
-							BILLING_RESPONSE_RESULT_OK, "设备可用"));
-				}
+				IabHelper.this.onServiceConnected(
+						IInAppBillingService.Stub.asInterface(service), listener);
 			}
 		};
 		// 开启服务
@@ -259,6 +393,81 @@ public class IabHelper {
 		}
 	}
 
+	/**
+	 * 直接使用给定的 service 完成初始化，不绑定 Play 商店的服务。
+	 * 用于测试、基准测试和回放，例如传入 IabReplayService
+	 */
+	public void startSetup(IInAppBillingService service,
+			OnIabSetupFinishedListener setupListener) {
+		onServiceConnected(service, tracedSetupListener(setupListener));
+	}
+
+	/**
+	 * 连接上 service 之后检查是否支持 billing v3 和订阅
+	 */
+	void onServiceConnected(IInAppBillingService service,
+			OnIabSetupFinishedListener listener) {
+		mService = recorded(service);
+		String packageName = mContext.getPackageName();
+		long deadline = deadlineAfter(mTimeoutMillis);
+		try {
+			logDebug("检测是否支持in-app billing 3");
+
+			// 是否支持3版本
+			int response = isBillingSupported(ITEM_TYPE_INAPP, deadline);
+			if (response != BILLING_RESPONSE_RESULT_OK) {
+				if (listener != null)
+					listener.onIabSetupFinished(new IabResult(response,
+							"检查billing v3错误"));
+
+				mSubscriptionsSupported = false;
+				return;
+			}
+			logDebug("In-app billing version 3 支持 {}", packageName);
+
+			// 检测设备是否支持订阅3版本
+			response = isBillingSupported(ITEM_TYPE_SUBS, deadline);
+			if (response == BILLING_RESPONSE_RESULT_OK) {
+				logDebug("有效的支持");
+				mSubscriptionsSupported = true;
+			} else {
+				logDebug("订阅无法使用  Response: {}", response);
+			}
+
+			mSetupDone = true;
+		} catch (RemoteException e) {
+			if (listener != null) {
+				listener.onIabSetupFinished(new IabResult(
+						IABHELPER_REMOTE_EXCEPTION,
+						"RemoteException while setting up in-app billing."));
+			}
+			logError("RemoteException while setting up in-app billing", e);
+			return;
+		} catch (IabException e) {
+			if (listener != null) {
+				listener.onIabSetupFinished(e.getResult());
+			}
+			return;
+		}
+
+		if (listener != null) {
+			listener.onIabSetupFinished(new IabResult(
+					BILLING_RESPONSE_RESULT_OK, "设备可用"));
+		}
+	}
+
+	private OnIabSetupFinishedListener tracedSetupListener(
+			final OnIabSetupFinishedListener setupListener) {
+		final IabSpan span = IabSpan.start(mTracer, mTraceFlowId, "startSetup");
+		return new OnIabSetupFinishedListener() {
+			public void onIabSetupFinished(IabResult result) {
+				span.end(result.getResponse());
+				if (setupListener != null)
+					setupListener.onIabSetupFinished(result);
+			}
+		};
+	}
+
 	/**
 	 * Dispose of object, releasing resources. It's very important to call this
 	 * method when you are done with this object. It will release any resources
@@ -273,9 +482,9 @@ public class IabHelper {
 			if (mContext != null)
 				mContext.unbindService(mServiceConn);
 			mServiceConn = null;
-			mService = null;
-			mPurchaseListener = null;
 		}
+		mService = null;
+		mPurchaseFlows.clear();
 	}
 
 	/**
@@ -300,11 +509,6 @@ public class IabHelper {
 		public void onIabPurchaseFinished(IabResult result, Purchase info);
 	}
 
-	// The listener registered on launchPurchaseFlow, which we have to call back
-	// when
-	// the purchase finishes
-	OnIabPurchaseFinishedListener mPurchaseListener;
-
 	/**
 	 * 购买时监听
 	 * 
@@ -366,28 +570,78 @@ public class IabHelper {
 	public void launchPurchaseFlow(Activity act, String sku, String itemType,
 			int requestCode, OnIabPurchaseFinishedListener listener,
 			String extraData) {
+		launchPurchaseFlow(act, sku, itemType, requestCode, listener,
+				extraData, mTimeoutMillis);
+	}
+
+	/**
+	 * 同上，由 IabHelper 分配一个没有被其它购买流程使用的请求码，
+	 * 可以同时进行多个购买流程
+	 * 
+	 * @return 分配的请求码，onActivityResult 时原样交给 handleActivityResult
+	 */
+	public int launchPurchaseFlow(Activity act, String sku, String itemType,
+			OnIabPurchaseFinishedListener listener, String extraData) {
+		int requestCode = mPurchaseFlows.nextRequestCode();
+		launchPurchaseFlow(act, sku, itemType, requestCode, listener,
+				extraData, mTimeoutMillis);
+		return requestCode;
+	}
+
+	/**
+	 * 同上，这个购买流程的各个阶段以及由此得到的 Purchase 的消耗都记在 traceFlowId 下
+	 * 
+	 * @param traceFlowId 由 IabTracer.newFlowId 分配
+	 * @return 分配的请求码
+	 */
+	public int launchPurchaseFlow(Activity act, String sku, String itemType,
+			OnIabPurchaseFinishedListener listener, String extraData,
+			long traceFlowId) {
+		int requestCode = mPurchaseFlows.nextRequestCode();
+		launchPurchaseFlow(act, sku, itemType, requestCode, listener,
+				extraData, mTimeoutMillis, traceFlowId);
+		return requestCode;
+	}
+
+	/**
+	 * 同上，获取购买 intent 的调用超过 timeoutMillis 时以 IABHELPER_TIMEOUT 结束
+	 * 
+	 * @param timeoutMillis 超时时间，<= 0 表示不限制
+	 */
+	public void launchPurchaseFlow(Activity act, String sku, String itemType,
+			int requestCode, OnIabPurchaseFinishedListener listener,
+			String extraData, long timeoutMillis) {
+		IabTracer tracer = mTracer;
+		launchPurchaseFlow(act, sku, itemType, requestCode, listener,
+				extraData, timeoutMillis, tracer != null ? tracer.newFlowId() : 0);
+	}
+
+	void launchPurchaseFlow(Activity act, String sku, String itemType,
+			int requestCode, OnIabPurchaseFinishedListener listener,
+			String extraData, long timeoutMillis, long flowId) {
 		checkSetupDone("launchPurchaseFlow");
-		flagStartAsync("launchPurchaseFlow");
 		IabResult result;
+		IabSpan span = IabSpan.start(mTracer, flowId, "launchPurchaseFlow");
+		int response = IABHELPER_UNKNOWN_ERROR;
 
 		if (itemType.equals(ITEM_TYPE_SUBS) && !mSubscriptionsSupported) {
 			IabResult r = new IabResult(IABHELPER_SUBSCRIPTIONS_NOT_AVAILABLE,
 					"订阅无法使用");
 			if (listener != null)
 				listener.onIabPurchaseFinished(r, null);
+			span.end(r.getResponse());
 			return;
 		}
 
 		try {
-			logDebug("Constructing buy intent for " + sku + ", item type: "
-					+ itemType);
+			logDebug("Constructing buy intent for {}, item type: {}", sku,
+					itemType);
 			// 核心操作
-			Bundle buyIntentBundle = mService.getBuyIntent(3,
-					mContext.getPackageName(), sku, itemType, extraData);
-			int response = getResponseCodeFromBundle(buyIntentBundle);
-			System.out.println("xxxxxxxx ： "+response);
+			Bundle buyIntentBundle = getBuyIntent(sku, itemType, extraData,
+					deadlineAfter(timeoutMillis));
+			response = getResponseCodeFromBundle(buyIntentBundle);
 			if (response != BILLING_RESPONSE_RESULT_OK) {
-				logError("购买请求失败: " + getResponseDesc(response));
+				logError("购买请求失败: {}", getResponseDesc(response));
 
 				result = new IabResult(response, "不能购买");
 				if (listener != null)
@@ -397,31 +651,52 @@ public class IabHelper {
 
 			PendingIntent pendingIntent = buyIntentBundle
 					.getParcelable(RESPONSE_BUY_INTENT);
-			logDebug("Launching buy intent for " + sku + ". Request code: "
-					+ requestCode);
-			mRequestCode = requestCode;
-			mPurchaseListener = listener;
-			mPurchasingItemType = itemType;
+			if (pendingIntent == null) {
+				// 例如回放的录制中没有 PendingIntent
+				logError("购买请求没有返回 intent: {}", sku);
+				response = IABHELPER_BAD_RESPONSE;
+				result = new IabResult(IABHELPER_BAD_RESPONSE, "没有购买 intent");
+				if (listener != null)
+					listener.onIabPurchaseFinished(result, null);
+				return;
+			}
+			logDebug("Launching buy intent for {}. Request code: {}", sku,
+					requestCode);
+			IabPurchaseFlowRegistry.Flow previous = mPurchaseFlows
+					.register(new IabPurchaseFlowRegistry.Flow(requestCode, sku,
+							itemType, listener, flowId, System.nanoTime()));
+			if (previous != null) {
+				logWarn("请求码 {} 已经被 {} 的购买流程使用, 之前的结果会交给新的流程",
+						requestCode, previous.sku);
+			}
 			act.startIntentSenderForResult(pendingIntent.getIntentSender(),
 					requestCode, new Intent(), Integer.valueOf(0),
 					Integer.valueOf(0), Integer.valueOf(0));
 		} catch (SendIntentException e) {
 			logError("SendIntentException while launching purchase flow for sku "
-					+ sku);
-			e.printStackTrace();
+					+ sku, e);
+			mPurchaseFlows.remove(requestCode);
+			response = IABHELPER_SEND_INTENT_FAILED;
 
 			result = new IabResult(IABHELPER_SEND_INTENT_FAILED, "发送intent失败");
 			if (listener != null)
 				listener.onIabPurchaseFinished(result, null);
 		} catch (RemoteException e) {
 			logError("RemoteException while launching purchase flow for sku "
-					+ sku);
-			e.printStackTrace();
+					+ sku, e);
+			response = IABHELPER_REMOTE_EXCEPTION;
 
 			result = new IabResult(IABHELPER_REMOTE_EXCEPTION,
 					"Remote exception while starting purchase flow");
 			if (listener != null)
 				listener.onIabPurchaseFinished(result, null);
+		} catch (IabException e) {
+			logError("获取购买 intent 失败: {}", sku);
+			response = e.getResult().getResponse();
+			if (listener != null)
+				listener.onIabPurchaseFinished(e.getResult(), null);
+		} finally {
+			span.end(response);
 		}
 	}
 
@@ -436,100 +711,192 @@ public class IabHelper {
 	public boolean handleActivityResult(int requestCode, int resultCode,
 			Intent data) {
 		IabResult result;
-		if (requestCode != mRequestCode)
+		if (!mPurchaseFlows.isPending(requestCode))
 			return false;
 
 		checkSetupDone("handleActivityResult");
 
 		// 购买结束后
-		flagEndAsync();
+		IabPurchaseFlowRegistry.Flow flow = mPurchaseFlows.remove(requestCode);
+		if (flow == null)
+			return true;
+		OnIabPurchaseFinishedListener listener = flow.listener;
 
 		if (data == null) {
 			logError("google返回来的是空值");
-			System.out.println("google界面切换回来后，数据为空");
+			tracePurchaseActivity(flow, IABHELPER_BAD_RESPONSE);
 			result = new IabResult(IABHELPER_BAD_RESPONSE,
 					"Null data in IAB result");
-			if (mPurchaseListener != null)
-				mPurchaseListener.onIabPurchaseFinished(result, null);
+			if (listener != null)
+				listener.onIabPurchaseFinished(result, null);
 			return true;
 		}
 
 		int responseCode = getResponseCodeFromIntent(data);
+		tracePurchaseActivity(flow,
+				resultCode == Activity.RESULT_CANCELED ? IABHELPER_USER_CANCELLED
+						: responseCode);
+		IabLog.event(IabLogRing.EVENT_PURCHASE_RESULT, resultCode, responseCode);
 		String purchaseData = data.getStringExtra(RESPONSE_INAPP_PURCHASE_DATA);// 返回订单的json信息
 		String dataSignature = data.getStringExtra(RESPONSE_INAPP_SIGNATURE);// 包含购买数据签署的私钥开发的的签名。
 //		Toast.makeText(mContext,purchaseData,Toast.LENGTH_SHORT).show();
 		if (resultCode == Activity.RESULT_OK&& responseCode == BILLING_RESPONSE_RESULT_OK) {
 			logDebug("成功从google界面返回");
-			logDebug("购买商品的信息: " + purchaseData);
-			logDebug("Data signature: " + dataSignature);
-			logDebug("Extras: " + data.getExtras());
-			logDebug("Expected item type: " + mPurchasingItemType);
+			logDebug("购买商品的信息: {}", purchaseData);
+			logDebug("Data signature: {}", dataSignature);
+			logDebug("Extras: {}", data.getExtras());
+			logDebug("Expected item type: {}", flow.itemType);
 
 			if (purchaseData == null || dataSignature == null) {
 				logError("BUG: 返回的购买信息错误");
-				logDebug("Extras: " + data.getExtras().toString());
+				logDebug("Extras: {}", data.getExtras());
 				result = new IabResult(IABHELPER_UNKNOWN_ERROR, "购买后没有信息返回");
-				if (mPurchaseListener != null)
-					mPurchaseListener.onIabPurchaseFinished(result, null);
+				if (listener != null)
+					listener.onIabPurchaseFinished(result, null);
 				return true;
 			}
 
-			Purchase purchase = null;
-			try {
-				// 初始化Purchase
-				purchase = new Purchase(mPurchasingItemType, purchaseData,
-						dataSignature);
-				String sku = purchase.getSku();
-
-				// 检查key
-				if (!Security.verifyPurchase(mSignatureBase64, purchaseData,
-						dataSignature)) {
-					logError("购买签名验证失败 ： " + sku);
-					result = new IabResult(IABHELPER_VERIFICATION_FAILED,
-							"验证失败 ：  " + sku);
-					if (mPurchaseListener != null)
-						mPurchaseListener.onIabPurchaseFinished(result,
-								purchase);
-					return true;
-				}
-				logDebug("消费验证成功");
-			} catch (JSONException e) {
-				logError("Failed to parse purchase data.");
-				e.printStackTrace();
-				result = new IabResult(IABHELPER_BAD_RESPONSE, "购买信息解析失败");
-				if (mPurchaseListener != null)
-					mPurchaseListener.onIabPurchaseFinished(result, null);
+			if (mAsyncVerification) {
+				verifyPurchaseAsync(flow.itemType, purchaseData,
+						dataSignature, flow.traceFlowId, listener);
 				return true;
 			}
 
-			if (mPurchaseListener != null) {
-				mPurchaseListener.onIabPurchaseFinished(new IabResult(
-						BILLING_RESPONSE_RESULT_OK, "Success"), purchase);
-			}
+			PurchaseVerification v = verifyPurchase(flow.itemType,
+					purchaseData, dataSignature, flow.traceFlowId);
+			if (listener != null)
+				listener.onIabPurchaseFinished(v.result, v.purchase);
 		} else if (resultCode == Activity.RESULT_OK) {
 			// 结果码ok, 但响应码不通过
-			logDebug("结果码ok, 但响应码不通过: " + getResponseDesc(responseCode));
-			if (mPurchaseListener != null) {
+			logDebug("结果码ok, 但响应码不通过: {}", getResponseDesc(responseCode));
+			if (listener != null) {
 				result = new IabResult(responseCode,
 						"Problem purchashing item.");
-				mPurchaseListener.onIabPurchaseFinished(result, null);
+				listener.onIabPurchaseFinished(result, null);
 			}
 		} else if (resultCode == Activity.RESULT_CANCELED) {
-			logDebug("购买取消 : " + getResponseDesc(responseCode));
+			logDebug("购买取消 : {}", getResponseDesc(responseCode));
 			result = new IabResult(IABHELPER_USER_CANCELLED, "用户取消");
-			if (mPurchaseListener != null)
-				mPurchaseListener.onIabPurchaseFinished(result, null);
+			if (listener != null)
+				listener.onIabPurchaseFinished(result, null);
 		} else {
-			logError("Purchase failed. Result code: "
-					+ Integer.toString(resultCode) + ". Response: "
-					+ getResponseDesc(responseCode));
+			logError("Purchase failed. Result code: {}. Response: {}",
+					resultCode, getResponseDesc(responseCode));
 			result = new IabResult(IABHELPER_UNKNOWN_PURCHASE_RESPONSE, "未知的购买");
-			if (mPurchaseListener != null)
-				mPurchaseListener.onIabPurchaseFinished(result, null);
+			if (listener != null)
+				listener.onIabPurchaseFinished(result, null);
 		}
 		return true;
 	}
 
+	/**
+	 * 记录从打开购买界面到返回的时间，主要是用户在 google 界面上的时间
+	 */
+	private void tracePurchaseActivity(IabPurchaseFlowRegistry.Flow flow,
+			int response) {
+		IabTracer tracer = mTracer;
+		if (tracer != null)
+			tracer.record(flow.traceFlowId, "purchaseActivity",
+					flow.launchNanos, response);
+	}
+
+	/**
+	 * 购买信息验证的结果，验签失败时 purchase 也不为空
+	 */
+	static class PurchaseVerification {
+		final IabResult result;
+		final Purchase purchase;
+
+		PurchaseVerification(IabResult result, Purchase purchase) {
+			this.result = result;
+			this.purchase = purchase;
+		}
+	}
+
+	/**
+	 * 解析购买信息并验证签名
+	 * 
+	 * @param flowId 所属的购买流程，之后消耗这个 Purchase 时也记在它下面
+	 */
+	PurchaseVerification verifyPurchase(String itemType, String purchaseData,
+			String dataSignature, long flowId) {
+		IabSpan span = IabSpan.start(mTracer, flowId, "verifyPurchase");
+		PurchaseVerification v = verifyPurchase(itemType, purchaseData,
+				dataSignature);
+		if (v.purchase != null && mTracer != null)
+			mPurchaseFlows.putTraceFlowId(v.purchase.getToken(), flowId);
+		span.end(v.result.getResponse());
+		IabLog.event(IabLogRing.EVENT_VERIFY, v.result.getResponse(),
+				v.result.getResponse() == IABHELPER_VERIFICATION_FAILED ? 0 : 1);
+		return v;
+	}
+
+	PurchaseVerification verifyPurchase(String itemType, String purchaseData,
+			String dataSignature) {
+		Purchase purchase;
+		try {
+			// 初始化Purchase
+			purchase = new Purchase(itemType, purchaseData, dataSignature);
+		} catch (JSONException e) {
+			logError("Failed to parse purchase data.", e);
+			return new PurchaseVerification(new IabResult(
+					IABHELPER_BAD_RESPONSE, "购买信息解析失败"), null);
+		}
+
+		String sku = purchase.getSku();
+		boolean verified;
+		try {
+			// 检查key
+			verified = Security.verifyPurchase(getSignatureKey(), purchaseData,
+					dataSignature);
+		} catch (IllegalArgumentException e) {
+			logError("公钥无效");
+			verified = false;
+		}
+		if (!verified) {
+			logError("购买签名验证失败 ： {}", sku);
+			return new PurchaseVerification(new IabResult(
+					IABHELPER_VERIFICATION_FAILED, "验证失败 ：  " + sku), purchase);
+		}
+		logDebug("消费验证成功");
+		return new PurchaseVerification(new IabResult(
+				BILLING_RESPONSE_RESULT_OK, "Success"), purchase);
+	}
+
+	/**
+	 * 在后台线程解析和验证购买信息，然后回到当前线程通知 listener
+	 */
+	void verifyPurchaseAsync(final String itemType, final String purchaseData,
+			final String dataSignature, final long flowId,
+			final OnIabPurchaseFinishedListener listener) {
+		final Executor callbacks = callbackExecutor();
+		IabExecutors.background().execute(new Runnable() {
+			public void run() {
+				final PurchaseVerification v = verifyPurchase(itemType,
+						purchaseData, dataSignature, flowId);
+				if (listener == null)
+					return;
+				callbacks.execute(new Runnable() {
+					public void run() {
+						listener.onIabPurchaseFinished(v.result, v.purchase);
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * 公钥只生成一次，之后的验签都用同一个实例
+	 * 
+	 * @throws IllegalArgumentException 公钥无效
+	 */
+	synchronized PublicKey getSignatureKey() {
+		if (mSignatureKey == null) {
+			mSignatureKey = Security.generatePublicKey(mSignatureBase64);
+		}
+		return mSignatureKey;
+	}
+
 	public Inventory queryInventory(boolean querySkuDetails,
 			List<String> moreSkus) throws IabException {
 		return queryInventory(querySkuDetails, moreSkus, null);
@@ -554,16 +921,31 @@ public class IabHelper {
 	public Inventory queryInventory(boolean querySkuDetails,
 			List<String> moreItemSkus, List<String> moreSubsSkus)
 			throws IabException {
+		return queryInventory(querySkuDetails, moreItemSkus, moreSubsSkus,
+				mTimeoutMillis);
+	}
+
+	/**
+	 * 同上，整个查询 (包括所有分页) 共用一个 deadline
+	 * 
+	 * @param timeoutMillis
+	 *            超时时间，<= 0 表示不限制。超时抛出 IABHELPER_TIMEOUT
+	 */
+	public Inventory queryInventory(boolean querySkuDetails,
+			List<String> moreItemSkus, List<String> moreSubsSkus,
+			long timeoutMillis) throws IabException {
 		checkSetupDone("queryInventory");
+		IabMainThreadViolation violation = checkBlockingCall("queryInventory");
+		long deadline = deadlineAfter(timeoutMillis);
 		try {
 			Inventory inv = new Inventory();
-			int r = queryPurchases(inv, ITEM_TYPE_INAPP);
+			int r = queryPurchases(inv, ITEM_TYPE_INAPP, deadline);
 			if (r != BILLING_RESPONSE_RESULT_OK) {
 				throw new IabException(r, "更新货存失败 (querying owned items).");
 			}
 
 			if (querySkuDetails) {
-				r = querySkuDetails(ITEM_TYPE_INAPP, inv, moreItemSkus);
+				r = querySkuDetails(ITEM_TYPE_INAPP, inv, moreItemSkus, deadline);
 				if (r != BILLING_RESPONSE_RESULT_OK) {
 					throw new IabException(r,
 							"刷新库存失败 (querying prices of items).");
@@ -572,14 +954,14 @@ public class IabHelper {
 
 			// 如果订阅的支持，那么还可以查询订阅
 			if (mSubscriptionsSupported) {
-				r = queryPurchases(inv, ITEM_TYPE_SUBS);
+				r = queryPurchases(inv, ITEM_TYPE_SUBS, deadline);
 				if (r != BILLING_RESPONSE_RESULT_OK) {
 					throw new IabException(r,
 							"刷新库存失败 (querying owned subscriptions).");
 				}
 
 				if (querySkuDetails) {
-					r = querySkuDetails(ITEM_TYPE_SUBS, inv, moreItemSkus);// 这次查询为null
+					r = querySkuDetails(ITEM_TYPE_SUBS, inv, moreItemSkus, deadline);// 这次查询为null
 					if (r != BILLING_RESPONSE_RESULT_OK) {
 						throw new IabException(r,
 								"刷新库存失败 (querying prices of subscriptions).");
@@ -595,6 +977,8 @@ public class IabHelper {
 			throw new IabException(IABHELPER_BAD_RESPONSE,
 					"Error parsing JSON response while refreshing inventory.",
 					e);
+		} finally {
+			finishBlockingCall(violation);
 		}
 	}
 
@@ -626,16 +1010,26 @@ public class IabHelper {
 	public void queryInventoryAsync(final boolean querySkuDetails,
 			final List<String> moreSkus,
 			final QueryInventoryFinishedListener listener) {
-		final Handler handler = new Handler();
+		queryInventoryAsync(querySkuDetails, moreSkus, mTimeoutMillis, listener);
+	}
+
+	/**
+	 * 同上，超过 timeoutMillis 时以 IABHELPER_TIMEOUT 通知 listener
+	 */
+	public void queryInventoryAsync(final boolean querySkuDetails,
+			final List<String> moreSkus, final long timeoutMillis,
+			final QueryInventoryFinishedListener listener) {
+		final Executor callbacks = callbackExecutor();
 		checkSetupDone("queryInventory");
 		flagStartAsync("refresh inventory");
-		(new Thread(new Runnable() {
+		IabExecutors.operations().execute(new Runnable() {
 			public void run() {
 				IabResult result = new IabResult(BILLING_RESPONSE_RESULT_OK,
 						"货存更新成功");
 				Inventory inv = null;
 				try {
-					inv = queryInventory(querySkuDetails, moreSkus);
+					inv = queryInventory(querySkuDetails, moreSkus, null,
+							timeoutMillis);
 				} catch (IabException ex) {
 					result = ex.getResult();
 				}
@@ -644,13 +1038,13 @@ public class IabHelper {
 
 				final IabResult result_f = result;
 				final Inventory inv_f = inv;
-				handler.post(new Runnable() {
+				callbacks.execute(new Runnable() {
 					public void run() {
 						listener.onQueryInventoryFinished(result_f, inv_f);
 					}
 				});
 			}
-		})).start();
+		});
 	}
 
 	public void queryInventoryAsync(QueryInventoryFinishedListener listener,
@@ -675,6 +1069,32 @@ public class IabHelper {
 	 *             if there is a problem during consumption.
 	 */
 	void consume(Purchase itemInfo) throws IabException {
+		IabMainThreadViolation violation = checkBlockingCall("consume");
+		try {
+			consume(itemInfo, deadlineAfter(mTimeoutMillis));
+		} finally {
+			finishBlockingCall(violation);
+		}
+	}
+
+	void consume(Purchase itemInfo, long deadline) throws IabException {
+		IabTracer tracer = mTracer;
+		IabSpan span = tracer == null ? IabSpan.NONE : tracer.start(
+				mPurchaseFlows.getTraceFlowId(itemInfo.getToken()), "consume");
+		int response = IABHELPER_UNKNOWN_ERROR;
+		try {
+			consumeOnce(itemInfo, deadline);
+			response = BILLING_RESPONSE_RESULT_OK;
+			mPurchaseFlows.removeTraceFlowId(itemInfo.getToken());
+		} catch (IabException e) {
+			response = e.getResult().getResponse();
+			throw e;
+		} finally {
+			span.end(response);
+		}
+	}
+
+	private void consumeOnce(Purchase itemInfo, long deadline) throws IabException {
 		checkSetupDone("consume");
 
 		if (!itemInfo.mItemType.equals(ITEM_TYPE_INAPP)) {
@@ -687,21 +1107,40 @@ public class IabHelper {
 			String token = itemInfo.getToken();
 			String sku = itemInfo.getSku();
 			if (token == null || token.equals("")) {
-				logError("不能消耗 " + sku + ". 没有 token.");
+				logError("不能消耗 {}. 没有 token.", sku);
 				throw new IabException(IABHELPER_MISSING_TOKEN,
 						"PurchaseInfo is missing token for sku: " + sku + " "
 								+ itemInfo);
 			}
 
-			logDebug("Consuming sku: " + sku + ", token: " + token);
-			int response = mService.consumePurchase(3,
-					mContext.getPackageName(), token);
-			if (response == BILLING_RESPONSE_RESULT_OK) {
-				Log.d(mDebugTag, "成功销毁sku: " + String.valueOf(response));
-				logDebug("成功销毁sku: " + sku);
-			} else {
-				logDebug("消耗 sku 出错" + sku + ". " + getResponseDesc(response));
-				throw new IabException(response, "消耗 sku 出错 " + sku);
+			if (!mConsumingTokens.add(token)) {
+				logWarn("sku {} 正在消耗, 不重复消耗", sku);
+				throw new IabException(IABHELPER_DUPLICATE_CONSUMPTION,
+						"重复消耗 sku " + sku);
+			}
+
+			try {
+				// 消耗之后 Google 不再返回这个购买，之前必须有持久的记录
+				PurchaseJournal journal = mJournal;
+				if (journal != null) {
+					try {
+						journal.append(itemInfo);
+					} catch (IOException e) {
+						throw new IabException(IABHELPER_JOURNAL_FAILED,
+								"记录购买失败, 不消耗 sku " + sku, e);
+					}
+				}
+				logDebug("Consuming sku: {}, token: {}", sku, token);
+				int response = consumePurchase(token, deadline);
+				IabLog.event(IabLogRing.EVENT_CONSUME, response, token.hashCode());
+				if (response == BILLING_RESPONSE_RESULT_OK) {
+					logDebug("成功销毁sku: {}", sku);
+				} else {
+					logDebug("消耗 sku 出错 {}. {}", sku, getResponseDesc(response));
+					throw new IabException(response, "消耗 sku 出错 " + sku);
+				}
+			} finally {
+				mConsumingTokens.remove(token);
 			}
 		} catch (RemoteException e) {
 			throw new IabException(IABHELPER_REMOTE_EXCEPTION,
@@ -772,30 +1211,29 @@ public class IabHelper {
 		consumeAsyncInternal(purchases, null, listener);
 	}
 
+	/**
+	 * 并发地消耗多个商品，每个完成后马上通知 itemListener，全部完成后通知 multiListener。
+	 * 同时进行的消耗不超过 parallelism 个，而且前面的结果通知完之前不会开始新的，
+	 * 列表很长时也不会堆积大量回调。列表里重复的 token 只消耗一次，
+	 * 其余的结果是 IABHELPER_DUPLICATE_CONSUMPTION
+	 * 
+	 * @param purchases 要消耗的商品
+	 * @param parallelism 同时消耗的个数，最多 MAX_CONSUME_PARALLELISM
+	 * @param itemListener 每个商品消耗完成时通知，可以为 null
+	 * @param multiListener 全部完成时通知，results 与 purchases 一一对应，可以为 null
+	 */
+	public void consumeAsync(List<Purchase> purchases, int parallelism,
+			OnConsumeFinishedListener itemListener,
+			OnConsumeMultiFinishedListener multiListener) {
+		checkSetupDone("consume");
+		consumePipelined(purchases, parallelism, itemListener, multiListener);
+	}
+
 	/**
 	 * 响应码处理
 	 */
 	public static String getResponseDesc(int code) {
-		String[] iab_msgs = ("0:OK/1:用戶取消操作/2:未知/"
-				+ "3:计费API版本不支持请求的类型/4:获取不到产品/"
-				+ "5:没有权限/6:操作错误/7:不购买，因为项目已经拥有/"
-				+ "8:丐商品不属于消费").split("/");
-		String[] iabhelper_msgs = ("OK/設備不支持billing支付/"
-				+ "無效的響應碼/" + "驗證失敗/" + "發送intent失敗/"
-				+ "用戶取消操作/" + "未知的購買/" + "没有 token/"
-				+ "購買後沒有信息返回/" + "訂閱無法使用/"
-				+ "無效的消費").split("/");
-
-		if (code <= IABHELPER_ERROR_BASE) {
-			int index = IABHELPER_ERROR_BASE - code;
-			if (index >= 0 && index < iabhelper_msgs.length)
-				return iabhelper_msgs[index];
-			else
-				return String.valueOf(code) + ":未知的 IAB Helper 错误";
-		} else if (code < 0 || code >= iab_msgs.length)
-			return String.valueOf(code) + ":未知的";
-		else
-			return iab_msgs[code];
+		return IabResult.getResponseDesc(code);
 	}
 
 	/**
@@ -814,8 +1252,7 @@ public class IabHelper {
 		else if (o instanceof Long)
 			return (int) ((Long) o).longValue();
 		else {
-			logError("错误的响应码");
-			logError(o.getClass().getName());
+			logError("错误的响应码: {}", o.getClass().getName());
 			throw new RuntimeException("错误的响应码: " + o.getClass().getName());
 		}
 	}
@@ -836,8 +1273,7 @@ public class IabHelper {
 		else if (o instanceof Long)
 			return (int) ((Long) o).longValue();
 		else {
-			logError("无效的响应码");
-			logError(o.getClass().getName());
+			logError("无效的响应码: {}", o.getClass().getName());
 			throw new RuntimeException(
 					"无效的响应码: "+ o.getClass().getName());
 		}
@@ -851,8 +1287,7 @@ public class IabHelper {
 	 */
 	void checkSetupDone(String operation) {
 		if (!mSetupDone) {
-			logError("非法的 (" + operation
-					+ "): IAB helper 不能初始化.");
+			logError("非法的 ({}): IAB helper 不能初始化.", operation);
 			throw new IllegalStateException(
 					"IAB helper没有创建. 不能执行: "
 							+ operation);
@@ -866,14 +1301,14 @@ public class IabHelper {
 					+ mAsyncOperation + ")在运行");
 		mAsyncOperation = operation;
 		mAsyncInProgress = true;
-		logDebug("开始异步的操作: " + operation);
+		logDebug("开始异步的操作: {}", operation);
 	}
 
 	/**
 	 * 标志当前的步骤
 	 */
 	void flagEndAsync() {
-		logDebug("Ending async operation: " + mAsyncOperation);
+		logDebug("Ending async operation: {}", mAsyncOperation);
 		mAsyncOperation = "";
 		mAsyncInProgress = false;
 	}
@@ -888,25 +1323,33 @@ public class IabHelper {
 	 * @throws RemoteException
 	 */
 	int queryPurchases(Inventory inv, String itemType) throws JSONException,
-			RemoteException {
+			RemoteException, IabException {
+		IabMainThreadViolation violation = checkBlockingCall("queryPurchases");
+		try {
+			return queryPurchases(inv, itemType, deadlineAfter(mTimeoutMillis));
+		} finally {
+			finishBlockingCall(violation);
+		}
+	}
+
+	int queryPurchases(Inventory inv, String itemType, long deadline)
+			throws JSONException, RemoteException, IabException {
 		// Query purchases
-		logDebug("查询产品, 产品类型: " + itemType);
-		logDebug("包名: " + mContext.getPackageName());
+		logDebug("查询产品, 产品类型: {}, 包名: {}", itemType,
+				mContext.getPackageName());
 		boolean verificationFailed = false;
 		String continueToken = null;
 
 		do {
-			logDebug("延续标记调用getPurchases: "
-					+ continueToken);
+			logDebug("延续标记调用getPurchases: {}", continueToken);
 			// 查询
-			Bundle ownedItems = mService.getPurchases(3,
-					mContext.getPackageName(), itemType, continueToken);
+			Bundle ownedItems = getPurchases(itemType, continueToken, deadline);
 
 			int response = getResponseCodeFromBundle(ownedItems);// 返回的响应码是0
-			System.out.println("getPurchases response my:" + response);
-			logDebug("Owned items response: " + String.valueOf(response));
+			logDebug("Owned items response: {}", response);
 			if (response != BILLING_RESPONSE_RESULT_OK) {
-				logDebug("getPurchases() 出错: " + getResponseDesc(response));
+				IabLog.event(IabLogRing.EVENT_GET_PURCHASES, response, 0);
+				logDebug("getPurchases() 出错: {}", getResponseDesc(response));
 				return response;
 			}
 			if (!ownedItems.containsKey(RESPONSE_INAPP_ITEM_LIST)||
@@ -922,31 +1365,40 @@ public class IabHelper {
 					.getStringArrayList(RESPONSE_INAPP_PURCHASE_DATA_LIST);
 			ArrayList<String> signatureList = ownedItems
 					.getStringArrayList(RESPONSE_INAPP_SIGNATURE_LIST);
+			IabLog.event(IabLogRing.EVENT_GET_PURCHASES, response,
+					purchaseDataList.size());
+			PublicKey key;
+			try {
+				key = getSignatureKey();
+			} catch (IllegalArgumentException e) {
+				logError("公钥无效");
+				return IABHELPER_VERIFICATION_FAILED;
+			}
 			for (int i = 0; i < purchaseDataList.size(); ++i) {
 				String purchaseData = purchaseDataList.get(i);
 				String signature = signatureList.get(i);
 				String sku = ownedSkus.get(i);
-				if (Security.verifyPurchase(mSignatureBase64, purchaseData,signature)) {
-					logDebug("Sku可用: " + sku);
+				if (Security.verifyPurchase(key, purchaseData,signature)) {
+					logDebug("Sku可用: {}", sku);
 					Purchase purchase = new Purchase(itemType, purchaseData,signature);
 
 					if (TextUtils.isEmpty(purchase.getToken())) {
 						logWarn("BUG:  token为空");
-						logDebug("Purchase 数据: " + purchaseData);
+						logDebug("Purchase 数据: {}", purchaseData);
 					}
 
 					// 记录的所有权和令牌
 					inv.addPurchase(purchase);
 				} else {
 					logWarn("Purchase signature verification **FAILED**. Not adding item.");
-					logDebug("   Purchase data: " + purchaseData);
-					logDebug("   Signature: " + signature);
+					logDebug("   Purchase data: {}", purchaseData);
+					logDebug("   Signature: {}", signature);
 					verificationFailed = true;
 				}
 			}
 
 			continueToken = ownedItems.getString(INAPP_CONTINUATION_TOKEN);
-			logDebug("Continuation token: " + continueToken);
+			logDebug("Continuation token: {}", continueToken);
 		} while (!TextUtils.isEmpty(continueToken));
 
 		return verificationFailed ? IABHELPER_VERIFICATION_FAILED
@@ -964,7 +1416,18 @@ public class IabHelper {
 	 * @throws JSONException
 	 */
 	int querySkuDetails(String itemType, Inventory inv, List<String> moreSkus)
-			throws RemoteException, JSONException {
+			throws RemoteException, JSONException, IabException {
+		IabMainThreadViolation violation = checkBlockingCall("querySkuDetails");
+		try {
+			return querySkuDetails(itemType, inv, moreSkus,
+					deadlineAfter(mTimeoutMillis));
+		} finally {
+			finishBlockingCall(violation);
+		}
+	}
+
+	int querySkuDetails(String itemType, Inventory inv, List<String> moreSkus,
+			long deadline) throws RemoteException, JSONException, IabException {
 		logDebug("查询 SKU信息.");
 		ArrayList<String> skuList = new ArrayList<String>();
 		skuList.addAll(inv.getAllOwnedSkus(itemType));
@@ -978,13 +1441,13 @@ public class IabHelper {
 
 		Bundle querySkus = new Bundle();
 		querySkus.putStringArrayList(GET_SKU_DETAILS_ITEM_LIST, skuList);
-		Bundle skuDetails = mService.getSkuDetails(3,
-				mContext.getPackageName(), itemType, querySkus);
+		Bundle skuDetails = getSkuDetails(itemType, querySkus, deadline);
 
 		if (!skuDetails.containsKey(RESPONSE_GET_SKU_DETAILS_LIST)) {
 			int response = getResponseCodeFromBundle(skuDetails);
+			IabLog.event(IabLogRing.EVENT_GET_SKU_DETAILS, response, 0);
 			if (response != BILLING_RESPONSE_RESULT_OK) {
-				logDebug("getSkuDetails() 失败: " + getResponseDesc(response));
+				logDebug("getSkuDetails() 失败: {}", getResponseDesc(response));
 				return response;
 			} else {
 				logError("getSkuDetails() 返回的 bundle不是错误，也不是正确的响应码");
@@ -994,11 +1457,11 @@ public class IabHelper {
 
 		ArrayList<String> responseList = skuDetails
 				.getStringArrayList(RESPONSE_GET_SKU_DETAILS_LIST);
-		System.out.println("responseList list : " + responseList);
+		IabLog.event(IabLogRing.EVENT_GET_SKU_DETAILS, BILLING_RESPONSE_RESULT_OK,
+				responseList.size());
 		for (String thisResponse : responseList) {
 			SkuDetails d = new SkuDetails(itemType, thisResponse);
-			logDebug("Got sku details: " + d);
-			Log.d("Got sku details my: ", d.toString());
+			logDebug("Got sku details: {}", d);
 			inv.addSkuDetails(d);
 		}
 		return BILLING_RESPONSE_RESULT_OK;
@@ -1014,9 +1477,9 @@ public class IabHelper {
 	void consumeAsyncInternal(final List<Purchase> purchases,
 			final OnConsumeFinishedListener singleListener,
 			final OnConsumeMultiFinishedListener multiListener) {
-		final Handler handler = new Handler();
+		final Executor callbacks = callbackExecutor();
 		flagStartAsync("consume");
-		(new Thread(new Runnable() {
+		IabExecutors.operations().execute(new Runnable() {
 			public void run() {
 				final List<IabResult> results = new ArrayList<IabResult>();
 				for (Purchase purchase : purchases) {
@@ -1031,7 +1494,7 @@ public class IabHelper {
 
 				flagEndAsync();
 				if (singleListener != null) {
-					handler.post(new Runnable() {
+					callbacks.execute(new Runnable() {
 						public void run() {
 							singleListener.onConsumeFinished(purchases.get(0),
 									results.get(0));
@@ -1039,7 +1502,7 @@ public class IabHelper {
 					});
 				}
 				if (multiListener != null) {
-					handler.post(new Runnable() {
+					callbacks.execute(new Runnable() {
 						public void run() {
 							multiListener.onConsumeMultiFinished(purchases,
 									results);
@@ -1047,23 +1510,552 @@ public class IabHelper {
 					});
 				}
 			}
-		})).start();
+		});
+	}
+
+	/**
+	 * 阻塞操作开始前检查是否在主线程上，没有启用检查或者不在主线程上时返回 null
+	 */
+	IabMainThreadViolation checkBlockingCall(String operation) {
+		IabStrictMode strictMode = mStrictMode;
+		return strictMode != null ? strictMode.onBlockingCall(operation) : null;
+	}
+
+	/**
+	 * 同上，用于库自己在主线程上发起的调用 (isBillingSupported、getBuyIntent)。
+	 * 这些调用的调用方只处理 RemoteException 和 IabException，抛出违规会让 listener
+	 * 收不到结果，所以不抛出，只按日志和 listener 处理
+	 */
+	IabMainThreadViolation checkInternalBlockingCall(String operation) {
+		IabStrictMode strictMode = mStrictMode;
+		return strictMode != null ? strictMode.onBlockingCall(operation, false) : null;
+	}
+
+	void finishBlockingCall(IabMainThreadViolation violation) {
+		IabStrictMode strictMode = mStrictMode;
+		if (violation != null && strictMode != null)
+			strictMode.onBlockingCallFinished(violation);
+	}
+
+	/**
+	 * 异步操作完成后投递回调用的 Executor。没有设置时回到当前线程的 Looper，
+	 * 当前线程没有 Looper 时回到主线程
+	 */
+	Executor callbackExecutor() {
+		if (mCallbackExecutor != null)
+			return mCallbackExecutor;
+		Looper looper = Looper.myLooper();
+		return IabCallbackExecutor.forLooper(looper != null ? looper : Looper
+				.getMainLooper());
+	}
+
+	/**
+	 * 从现在开始 timeoutMillis 之后的时间点 (elapsedRealtime)
+	 */
+	static long deadlineAfter(long timeoutMillis) {
+		if (timeoutMillis <= 0)
+			return Long.MAX_VALUE;
+		return SystemClock.elapsedRealtime() + timeoutMillis;
+	}
+
+	int isBillingSupported(final String itemType, long deadline)
+			throws RemoteException, IabException {
+		final IInAppBillingService service = mService;
+		final String packageName = mContext.getPackageName();
+		// 通过 bindService 连接时在主线程的 onServiceConnected 中调用
+		IabMainThreadViolation violation = checkInternalBlockingCall("isBillingSupported");
+		try {
+			return callService("isBillingSupported", deadline, true,
+					new Callable<Integer>() {
+						public Integer call() throws RemoteException {
+							return service.isBillingSupported(3, packageName,
+									itemType);
+						}
+					});
+		} finally {
+			finishBlockingCall(violation);
+		}
+	}
+
+	Bundle getBuyIntent(final String sku, final String itemType,
+			final String extraData, long deadline) throws RemoteException,
+			IabException {
+		final IInAppBillingService service = mService;
+		final String packageName = mContext.getPackageName();
+		// launchPurchaseFlow 必须在主线程调用，这个 IPC 会阻塞界面
+		IabMainThreadViolation violation = checkInternalBlockingCall("getBuyIntent");
+		try {
+			return callService("getBuyIntent", deadline, false,
+					new Callable<Bundle>() {
+						public Bundle call() throws RemoteException {
+							return service.getBuyIntent(3, packageName, sku,
+									itemType, extraData);
+						}
+					});
+		} finally {
+			finishBlockingCall(violation);
+		}
+	}
+
+	Bundle getPurchases(final String itemType, final String continueToken,
+			long deadline) throws RemoteException, IabException {
+		final IInAppBillingService service = mService;
+		final String packageName = mContext.getPackageName();
+		return callService("getPurchases", deadline, true, new Callable<Bundle>() {
+			public Bundle call() throws RemoteException {
+				return service.getPurchases(3, packageName, itemType,
+						continueToken);
+			}
+		});
+	}
+
+	Bundle getSkuDetails(final String itemType, final Bundle querySkus,
+			long deadline) throws RemoteException, IabException {
+		final IInAppBillingService service = mService;
+		final String packageName = mContext.getPackageName();
+		return callService("getSkuDetails", deadline, true, new Callable<Bundle>() {
+			public Bundle call() throws RemoteException {
+				return service.getSkuDetails(3, packageName, itemType,
+						querySkus);
+			}
+		});
+	}
+
+	int consumePurchase(final String token, long deadline)
+			throws RemoteException, IabException {
+		final IInAppBillingService service = mService;
+		final String packageName = mContext.getPackageName();
+		return callService("consumePurchase", deadline, false, new Callable<Integer>() {
+			public Integer call() throws RemoteException {
+				return service.consumePurchase(3, packageName, token);
+			}
+		});
+	}
+
+	/**
+	 * 执行一次 service 调用，暂时性的失败 (见 IabRetryPolicy.isRetryable) 按重试策略
+	 * 退避后重试，直到成功、遇到不可重试的结果、预算用完、熔断器打开或者到达 deadline。
+	 * 主线程上不做退避重试，免得卡住界面。
+	 * 超时的调用可能已经在 service 中完成，所以 consumePurchase、getBuyIntent 这样
+	 * 有副作用的调用不重试: 重试一个已经成功的消耗会得到 ITEM_NOT_OWNED。
+	 * 被中断 (取消) 不算 service 的失败，不影响熔断器
+	 * 
+	 * @param idempotent 是否幂等的查询，只有幂等的调用才会重试和对冲
+	 */
+	<T> T callService(String operation, long deadline, boolean idempotent,
+			Callable<T> call) throws RemoteException, IabException {
+		IabRetryPolicy policy = mRetryPolicy;
+		IabCircuitBreaker breaker = mCircuitBreaker;
+		if (breaker != null && !breaker.allowRequest()) {
+			logWarn("{}: service 连续失败，已熔断", operation);
+			throw new IabException(IABHELPER_SERVICE_UNAVAILABLE, operation
+					+ ": billing service 暂不可用");
+		}
+		if (policy != null) {
+			policy.onRequest();
+		}
+		long hedgeDelay = policy != null && idempotent ? policy.getHedgeDelay() : 0;
+		boolean mainThread = Looper.myLooper() == Looper.getMainLooper();
+		IabMetrics metrics = mMetrics;
+		int method = metrics != null ? IabMetrics.methodOf(operation) : -1;
+
+		for (int attempts = 1;; attempts++) {
+			T result = null;
+			Exception failure = null;
+			int response;
+			long start = method >= 0 ? System.nanoTime() : 0;
+			// callServiceOnce 抛出 RuntimeException 时也要告诉熔断器，否则半开的试探永远不结束
+			boolean recorded = false;
+			try {
+				try {
+					result = callServiceOnce(operation, deadline, hedgeDelay, call);
+					response = responseCodeOf(result);
+				} catch (RemoteException e) {
+					failure = e;
+					response = IABHELPER_REMOTE_EXCEPTION;
+				} catch (IabException e) {
+					failure = e;
+					response = e.getResult().getResponse();
+				}
+				recorded = true;
+			} finally {
+				if (!recorded && breaker != null)
+					breaker.onFailure();
+			}
+			if (method >= 0) {
+				metrics.record(method, response, System.nanoTime() - start);
+			}
+
+			boolean retryable = IabRetryPolicy.isRetryable(response);
+			boolean interrupted = Thread.currentThread().isInterrupted();
+			if (breaker != null) {
+				if (interrupted)
+					breaker.onCancel();
+				else if (retryable)
+					breaker.onFailure();
+				else
+					breaker.onSuccess();
+			}
+
+			if (retryable && idempotent && policy != null && !mainThread
+					&& !interrupted) {
+				long delay = policy.backoffMillis(attempts);
+				// 先看 deadline，来不及重试时不扣预算
+				if (SystemClock.elapsedRealtime() + delay < deadline
+						&& policy.acquireRetry(attempts)) {
+					logDebug("{} 失败 ({}), {}ms 后重试", operation,
+							getResponseDesc(response), delay);
+					boolean cancelled = false;
+					try {
+						Thread.sleep(delay);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						cancelled = true;
+					}
+					// 每次重试前都要问熔断器: 退避期间它可能已经被这次或其它调用的失败打开
+					if (!cancelled) {
+						if (breaker == null || breaker.allowRequest())
+							continue;
+						logWarn("{}: service 连续失败，已熔断，不再重试", operation);
+					}
+				}
+			}
+
+			if (failure instanceof RemoteException)
+				throw (RemoteException) failure;
+			if (failure instanceof IabException)
+				throw (IabException) failure;
+			return result;
+		}
+	}
+
+	/**
+	 * 在 IPC 线程上执行一次 service 调用，当前线程最多等到 deadline。
+	 * 超时后放弃这次调用 (binder 调用本身不能中断，线程由 IabExecutors 回收)，
+	 * 抛出 IABHELPER_TIMEOUT。hedgeDelay > 0 时，超过这个时间还没返回就再发一次，
+	 * 取先成功的那个
+	 */
+	<T> T callServiceOnce(String operation, long deadline, long hedgeDelay,
+			Callable<T> call) throws RemoteException, IabException {
+		if (mService == null) {
+			throw new IabException(IABHELPER_REMOTE_EXCEPTION, operation
+					+ ": service 没有连接");
+		}
+		long remaining = deadline - SystemClock.elapsedRealtime();
+		if (remaining <= 0) {
+			throw new IabException(IABHELPER_TIMEOUT, operation + " 超时");
+		}
+
+		CompletionService<T> completion = new ExecutorCompletionService<T>(
+				IabExecutors.ipc());
+		List<Future<T>> issued = new ArrayList<Future<T>>(2);
+		try {
+			issued.add(completion.submit(call));
+		} catch (RejectedExecutionException e) {
+			logError("{}: 没有空闲的 IPC 线程, service 可能已经卡住", operation);
+			throw new IabException(IABHELPER_TIMEOUT, operation
+					+ ": 没有空闲的 IPC 线程", e);
+		}
+
+		try {
+			Future<T> done = null;
+			if (hedgeDelay > 0 && hedgeDelay < remaining) {
+				done = completion.poll(hedgeDelay, TimeUnit.MILLISECONDS);
+				if (done == null) {
+					try {
+						issued.add(completion.submit(call));
+						logDebug("{} {}ms 没有返回, 发出对冲请求", operation, hedgeDelay);
+					} catch (RejectedExecutionException e) {
+						// 没有空闲线程就不对冲，继续等第一个
+					}
+				}
+			}
+
+			int outstanding = issued.size();
+			while (true) {
+				if (done == null) {
+					long left = deadline - SystemClock.elapsedRealtime();
+					if (left > 0)
+						done = completion.poll(left, TimeUnit.MILLISECONDS);
+					if (done == null) {
+						logError("{} 超时 ({}ms)", operation, remaining);
+						throw new IabException(IABHELPER_TIMEOUT, operation + " 超时");
+					}
+				}
+				outstanding--;
+				try {
+					return done.get();
+				} catch (ExecutionException e) {
+					if (outstanding == 0)
+						throw rethrowServiceFailure(operation, e);
+					// 还有一个对冲请求没返回，等它
+					done = null;
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IabException(IABHELPER_CANCELLED, operation + " 被取消", e);
+		} finally {
+			for (Future<T> f : issued)
+				f.cancel(true);
+		}
+	}
+
+	IabException rethrowServiceFailure(String operation, ExecutionException e)
+			throws RemoteException {
+		Throwable cause = e.getCause();
+		if (cause instanceof RemoteException)
+			throw (RemoteException) cause;
+		if (cause instanceof RuntimeException)
+			throw (RuntimeException) cause;
+		if (cause instanceof Error)
+			throw (Error) cause;
+		return new IabException(IABHELPER_UNKNOWN_ERROR, operation + " 失败", e);
+	}
+
+	/**
+	 * service 返回值里的响应码，只用来判断要不要重试
+	 */
+	static int responseCodeOf(Object result) {
+		if (result instanceof Integer)
+			return ((Integer) result).intValue();
+		if (result instanceof Bundle) {
+			Object o = ((Bundle) result).get(RESPONSE_CODE);
+			if (o instanceof Integer)
+				return ((Integer) o).intValue();
+			if (o instanceof Long)
+				return (int) ((Long) o).longValue();
+		}
+		return BILLING_RESPONSE_RESULT_OK;
+	}
+
+	/**
+	 * 批量消耗的流水线: 最多 parallelism 条通道，每条通道在 operations() 上消耗一个商品，
+	 * 这个商品的结果通知完之后再取下一个。没有等待整批完成的协调线程
+	 */
+	void consumePipelined(List<Purchase> purchases, int parallelism,
+			OnConsumeFinishedListener itemListener,
+			OnConsumeMultiFinishedListener multiListener) {
+		int workers = Math.max(1, Math.min(parallelism, MAX_CONSUME_PARALLELISM));
+		flagStartAsync("consume");
+		ConsumeBatch batch = new ConsumeBatch(purchases, callbackExecutor(),
+				itemListener, multiListener);
+		if (purchases.isEmpty()) {
+			batch.finish();
+			return;
+		}
+		for (int i = 0; i < workers; i++) {
+			batch.startNext();
+		}
+	}
+
+	/**
+	 * 一次批量消耗的状态。结果数到 0 时结束，不占用线程等待
+	 */
+	final class ConsumeBatch {
+		final List<Purchase> mPurchases;
+		final IabResult[] mResults;
+		final Executor mCallbacks;
+		final OnConsumeFinishedListener mItemListener;
+		final OnConsumeMultiFinishedListener mMultiListener;
+		// 下一个要分发的下标，和 mSeen、mStarts、mDispatching 一起由 this 保护
+		int mNext;
+		final Set<String> mSeen = new HashSet<String>();
+		final AtomicInteger mRemaining;
+		// 还没处理的 startNext 请求数，和正在循环分发的线程是否存在
+		int mStarts;
+		boolean mDispatching;
+
+		ConsumeBatch(List<Purchase> purchases, Executor callbacks,
+				OnConsumeFinishedListener itemListener,
+				OnConsumeMultiFinishedListener multiListener) {
+			mPurchases = purchases;
+			mResults = new IabResult[purchases.size()];
+			mCallbacks = callbacks;
+			mItemListener = itemListener;
+			mMultiListener = multiListener;
+			mRemaining = new AtomicInteger(purchases.size());
+		}
+
+		/**
+		 * 让一条通道取下一个商品。
+		 * 重复的 token 不用消耗，结果在当前线程上就能通知完 (没有 item listener 或者
+		 * 回调直接执行时)，通知完又会调用 startNext。为了不因此递归下去，
+		 * 已经有线程在分发时只记一次请求，由那个线程在循环里处理
+		 */
+		void startNext() {
+			synchronized (this) {
+				mStarts++;
+				if (mDispatching)
+					return;
+				mDispatching = true;
+			}
+			boolean drained = false;
+			try {
+				while (true) {
+					synchronized (this) {
+						if (mStarts == 0) {
+							mDispatching = false;
+							drained = true;
+							return;
+						}
+						mStarts--;
+					}
+					dispatchNext();
+				}
+			} finally {
+				// 回调抛出异常时让出分发，剩下的请求由下一次 startNext 处理
+				if (!drained) {
+					synchronized (this) {
+						mDispatching = false;
+					}
+				}
+			}
+		}
+
+		/**
+		 * 按顺序分发下一个商品。重复的 token 在分发时判断，保证先出现的那个被消耗
+		 */
+		void dispatchNext() {
+			final int index;
+			final boolean duplicate;
+			synchronized (this) {
+				if (mNext >= mPurchases.size())
+					return;
+				index = mNext++;
+				String token = mPurchases.get(index).getToken();
+				duplicate = token != null && !token.equals("") && !mSeen.add(token);
+			}
+			final Purchase purchase = mPurchases.get(index);
+			if (duplicate) {
+				logDebug("跳过重复的 token, sku: {}", purchase.getSku());
+				onResult(index, new IabResult(IABHELPER_DUPLICATE_CONSUMPTION,
+						"重复消耗 sku " + purchase.getSku()));
+				return;
+			}
+			IabExecutors.operations().execute(new Runnable() {
+				public void run() {
+					IabResult result;
+					try {
+						consume(purchase);
+						result = new IabResult(BILLING_RESPONSE_RESULT_OK,
+								"成功消耗 sku " + purchase.getSku());
+					} catch (IabException ex) {
+						result = ex.getResult();
+					} catch (RuntimeException ex) {
+						result = new IabResult(IABHELPER_UNKNOWN_ERROR,
+								"消耗 sku 出错 " + purchase.getSku());
+					}
+					onResult(index, result);
+				}
+			});
+		}
+
+		/**
+		 * 通知一个商品的结果，通知完之后这条通道取下一个
+		 */
+		void onResult(int index, final IabResult result) {
+			mResults[index] = result;
+			final Purchase purchase = mPurchases.get(index);
+			if (mItemListener == null) {
+				onItemDone();
+				return;
+			}
+			mCallbacks.execute(new Runnable() {
+				public void run() {
+					try {
+						mItemListener.onConsumeFinished(purchase, result);
+					} finally {
+						onItemDone();
+					}
+				}
+			});
+		}
+
+		void onItemDone() {
+			if (mRemaining.decrementAndGet() == 0) {
+				finish();
+			} else {
+				startNext();
+			}
+		}
+
+		void finish() {
+			flagEndAsync();
+			if (mMultiListener != null) {
+				mCallbacks.execute(new Runnable() {
+					public void run() {
+						mMultiListener.onConsumeMultiFinished(mPurchases,
+								Arrays.asList(mResults));
+					}
+				});
+			}
+		}
+	}
+
+	/**
+	 * enableDebugLogging 打开或者 IabLog 的级别到了 DEBUG 时才输出。
+	 * 参数用 {} 占位，关闭时不会拼接字符串
+	 */
+	boolean isDebugLogging() {
+		return mDebugLog || IabLog.isLoggable(IabLog.DEBUG);
 	}
 
 	void logDebug(String msg) {
-		if (mDebugLog)
-			Log.d(mDebugTag, msg);
+		if (isDebugLogging())
+			IabLog.write(IabLog.DEBUG, mDebugTag, msg, 0, null, null, null, null);
+	}
+
+	void logDebug(String format, Object a) {
+		if (isDebugLogging())
+			IabLog.write(IabLog.DEBUG, mDebugTag, format, 1, a, null, null, null);
+	}
+
+	void logDebug(String format, Object a, Object b) {
+		if (isDebugLogging())
+			IabLog.write(IabLog.DEBUG, mDebugTag, format, 2, a, b, null, null);
+	}
+
+	void logDebug(String format, Object a, Object b, Object c) {
+		if (isDebugLogging())
+			IabLog.write(IabLog.DEBUG, mDebugTag, format, 3, a, b, c, null);
 	}
 
 	void logError(String msg) {
-		Log.e(mDebugTag, "In-app billing 错误: " + msg);
+		IabLog.e(mDebugTag, "In-app billing 错误: {}", msg);
 	}
 
-	void logWarn(String msg) {
-		Log.w(mDebugTag, "In-app billing 警告: " + msg);
+	void logError(String msg, Throwable error) {
+		if (IabLog.isLoggable(IabLog.ERROR))
+			IabLog.write(IabLog.ERROR, mDebugTag, "In-app billing 错误: " + msg,
+					0, null, null, null, error);
 	}
 
+	void logError(String format, Object a) {
+		if (IabLog.isLoggable(IabLog.ERROR))
+			IabLog.write(IabLog.ERROR, mDebugTag, "In-app billing 错误: " + format,
+					1, a, null, null, null);
+	}
 
+	void logError(String format, Object a, Object b) {
+		if (IabLog.isLoggable(IabLog.ERROR))
+			IabLog.write(IabLog.ERROR, mDebugTag, "In-app billing 错误: " + format,
+					2, a, b, null, null);
+	}
+
+	void logWarn(String msg) {
+		IabLog.w(mDebugTag, "In-app billing 警告: {}", msg);
+	}
 
+	void logWarn(String format, Object a) {
+		if (IabLog.isLoggable(IabLog.WARN))
+			IabLog.write(IabLog.WARN, mDebugTag, "In-app billing 警告: " + format,
+					1, a, null, null, null);
+	}
 
+	void logWarn(String format, Object a, Object b) {
+		if (IabLog.isLoggable(IabLog.WARN))
+			IabLog.write(IabLog.WARN, mDebugTag, "In-app billing 警告: " + format,
+					2, a, b, null, null);
+	}
 }
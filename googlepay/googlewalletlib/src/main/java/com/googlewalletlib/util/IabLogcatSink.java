@@ -0,0 +1,15 @@
+package com.googlewalletlib.util;
+
+import android.util.Log;
+
+/**
+ * 把 IabLog 输出到 logcat
+ */
+public class IabLogcatSink implements IabLog.Sink {
+
+    public void log(int level, String tag, String message, Throwable error) {
+        if (error != null)
+            message = message + '\n' + Log.getStackTraceString(error);
+        Log.println(level, tag, message);
+    }
+}
@@ -0,0 +1,44 @@
+package com.googlewalletlib.util;
+
+/**
+ * 在主线程上调用了阻塞的 IabHelper 操作。
+ * 堆栈就是调用的位置，IPC 结束后 getDurationMillis 是这次操作阻塞主线程的时间
+ */
+public class IabMainThreadViolation extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    private final String mOperation;
+    private final long mStartMillis;
+    private volatile long mDurationMillis = -1;
+
+    IabMainThreadViolation(String operation, long startMillis) {
+        super("在主线程上调用了阻塞的 " + operation);
+        mOperation = operation;
+        mStartMillis = startMillis;
+    }
+
+    /**
+     * 操作名称，例如 queryInventory、consume
+     */
+    public String getOperation() {
+        return mOperation;
+    }
+
+    /**
+     * 开始时的 SystemClock.uptimeMillis
+     */
+    public long getStartMillis() {
+        return mStartMillis;
+    }
+
+    /**
+     * 阻塞的时间，还没结束 (或者在开始时就抛出) 时是 -1
+     */
+    public long getDurationMillis() {
+        return mDurationMillis;
+    }
+
+    void setDurationMillis(long durationMillis) {
+        mDurationMillis = durationMillis;
+    }
+}
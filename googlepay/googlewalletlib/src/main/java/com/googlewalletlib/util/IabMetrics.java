@@ -0,0 +1,235 @@
+package com.googlewalletlib.util;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * billing service 调用的计数和耗时分布。
+ * 按调用方法和响应码分别计数，耗时记在固定的指数桶里 (250us, 500us, 1ms ... 约 33s)，
+ * 记录只是几次原子加法，不加锁也不分配内存。
+ * 通过 IabHelper.setMetrics 启用，没有设置时 IabHelper 不会计时
+ */
+public class IabMetrics {
+
+    // 被统计的 service 方法
+    public static final int IS_BILLING_SUPPORTED = 0;
+    public static final int GET_BUY_INTENT = 1;
+    public static final int GET_PURCHASES = 2;
+    public static final int GET_SKU_DETAILS = 3;
+    public static final int CONSUME_PURCHASE = 4;
+    public static final int METHOD_COUNT = 5;
+
+    static final String[] METHOD_NAMES = {
+            "isBillingSupported", "getBuyIntent", "getPurchases", "getSkuDetails", "consumePurchase"
+    };
+
+    // 响应码的槽位: 0..8 是 billing 响应码，之后是 -1001 开始的 IabHelper 错误码，最后一个是其它
+    static final int MAX_BILLING_CODE = 8;
+    static final int HELPER_CODES = 20;
+    static final int RESPONSE_SLOTS = MAX_BILLING_CODE + 1 + HELPER_CODES + 1;
+
+    // 第一个桶的上限 (微秒)，之后每个桶翻倍，最后一个桶放更慢的
+    static final long FIRST_BUCKET_MICROS = 250;
+    static final int BUCKETS = 19;
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(METHOD_COUNT * RESPONSE_SLOTS);
+    private final AtomicLongArray mBuckets =
+            new AtomicLongArray(METHOD_COUNT * RESPONSE_SLOTS * BUCKETS);
+    private final AtomicLongArray mTotalMicros = new AtomicLongArray(METHOD_COUNT);
+
+    /**
+     * 记录一次调用
+     *
+     * @param method IS_BILLING_SUPPORTED 等
+     * @param response 响应码
+     * @param elapsedNanos 耗时
+     */
+    public void record(int method, int response, long elapsedNanos) {
+        if (method < 0 || method >= METHOD_COUNT)
+            return;
+        long micros = Math.max(0, elapsedNanos / 1000);
+        int cell = method * RESPONSE_SLOTS + responseSlot(response);
+        mCounts.incrementAndGet(cell);
+        mBuckets.incrementAndGet(cell * BUCKETS + bucketOf(micros));
+        mTotalMicros.addAndGet(method, micros);
+    }
+
+    /**
+     * 当前数据的拷贝，拷贝期间的记录可能只有一部分被包含
+     */
+    public Snapshot snapshot() {
+        long[] counts = new long[mCounts.length()];
+        for (int i = 0; i < counts.length; i++)
+            counts[i] = mCounts.get(i);
+        long[] buckets = new long[mBuckets.length()];
+        for (int i = 0; i < buckets.length; i++)
+            buckets[i] = mBuckets.get(i);
+        long[] total = new long[METHOD_COUNT];
+        for (int i = 0; i < total.length; i++)
+            total[i] = mTotalMicros.get(i);
+        return new Snapshot(counts, buckets, total);
+    }
+
+    /**
+     * 清空所有数据
+     */
+    public void reset() {
+        for (int i = 0; i < mCounts.length(); i++)
+            mCounts.set(i, 0);
+        for (int i = 0; i < mBuckets.length(); i++)
+            mBuckets.set(i, 0);
+        for (int i = 0; i < METHOD_COUNT; i++)
+            mTotalMicros.set(i, 0);
+    }
+
+    /**
+     * IabHelper 内部的调用名对应的方法，不统计的返回 -1
+     */
+    static int methodOf(String operation) {
+        for (int i = 0; i < METHOD_COUNT; i++) {
+            if (METHOD_NAMES[i].equals(operation))
+                return i;
+        }
+        return -1;
+    }
+
+    static int responseSlot(int response) {
+        if (response >= 0 && response <= MAX_BILLING_CODE)
+            return response;
+        int helper = IabHelper.IABHELPER_ERROR_BASE - response;
+        if (helper >= 1 && helper <= HELPER_CODES)
+            return MAX_BILLING_CODE + helper;
+        return RESPONSE_SLOTS - 1;
+    }
+
+    static int responseOfSlot(int slot) {
+        if (slot <= MAX_BILLING_CODE)
+            return slot;
+        return IabHelper.IABHELPER_ERROR_BASE - (slot - MAX_BILLING_CODE);
+    }
+
+    static int bucketOf(long micros) {
+        long units = micros / FIRST_BUCKET_MICROS;
+        int bucket = 64 - Long.numberOfLeadingZeros(units);
+        return Math.min(bucket, BUCKETS - 1);
+    }
+
+    /**
+     * 桶的上限 (微秒)，最后一个桶没有上限
+     */
+    static long bucketUpperMicros(int bucket) {
+        if (bucket >= BUCKETS - 1)
+            return Long.MAX_VALUE;
+        return FIRST_BUCKET_MICROS << bucket;
+    }
+
+    /**
+     * 某一时刻的统计数据
+     */
+    public static class Snapshot {
+        private final long[] mCounts;
+        private final long[] mBuckets;
+        private final long[] mTotalMicros;
+
+        Snapshot(long[] counts, long[] buckets, long[] totalMicros) {
+            mCounts = counts;
+            mBuckets = buckets;
+            mTotalMicros = totalMicros;
+        }
+
+        /**
+         * 方法的调用次数
+         */
+        public long getCount(int method) {
+            long n = 0;
+            for (int slot = 0; slot < RESPONSE_SLOTS; slot++)
+                n += mCounts[method * RESPONSE_SLOTS + slot];
+            return n;
+        }
+
+        /**
+         * 方法返回某个响应码的次数
+         */
+        public long getCount(int method, int response) {
+            return mCounts[method * RESPONSE_SLOTS + responseSlot(response)];
+        }
+
+        /**
+         * 平均耗时 (微秒)
+         */
+        public long getMeanMicros(int method) {
+            long n = getCount(method);
+            return n == 0 ? 0 : mTotalMicros[method] / n;
+        }
+
+        /**
+         * 耗时的分位数 (微秒)，返回所在桶的上限，例如 getPercentileMicros(GET_PURCHASES, 0.99)。
+         * 落在最后一个桶时返回 Long.MAX_VALUE
+         */
+        public long getPercentileMicros(int method, double quantile) {
+            long[] merged = new long[BUCKETS];
+            long n = 0;
+            for (int slot = 0; slot < RESPONSE_SLOTS; slot++) {
+                int base = (method * RESPONSE_SLOTS + slot) * BUCKETS;
+                for (int b = 0; b < BUCKETS; b++) {
+                    merged[b] += mBuckets[base + b];
+                    n += mBuckets[base + b];
+                }
+            }
+            if (n == 0)
+                return 0;
+            long rank = (long) Math.ceil(quantile * n);
+            long seen = 0;
+            for (int b = 0; b < BUCKETS; b++) {
+                seen += merged[b];
+                if (seen >= rank)
+                    return bucketUpperMicros(b);
+            }
+            return bucketUpperMicros(BUCKETS - 1);
+        }
+
+        /**
+         * 某个方法和响应码的耗时分布，下标是桶，桶的上限见 bucketUpperMicros
+         */
+        public long[] getHistogram(int method, int response) {
+            long[] h = new long[BUCKETS];
+            System.arraycopy(mBuckets, (method * RESPONSE_SLOTS + responseSlot(response)) * BUCKETS,
+                    h, 0, BUCKETS);
+            return h;
+        }
+
+        /**
+         * 导出成文本，每个方法一行汇总，之后每个出现过的响应码一行
+         */
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            for (int m = 0; m < METHOD_COUNT; m++) {
+                long n = getCount(m);
+                if (n == 0)
+                    continue;
+                sb.append(String.format(Locale.US, "%s count=%d mean=%.2fms p50=%s p99=%s%n",
+                        METHOD_NAMES[m], n, getMeanMicros(m) / 1000.0,
+                        formatMicros(getPercentileMicros(m, 0.5)),
+                        formatMicros(getPercentileMicros(m, 0.99))));
+                for (int slot = 0; slot < RESPONSE_SLOTS; slot++) {
+                    long c = mCounts[m * RESPONSE_SLOTS + slot];
+                    if (c == 0)
+                        continue;
+                    if (slot == RESPONSE_SLOTS - 1)
+                        sb.append("  other");
+                    else
+                        sb.append("  ").append(responseOfSlot(slot));
+                    sb.append(" count=").append(c).append('\n');
+                }
+            }
+            return sb.toString();
+        }
+
+        private static String formatMicros(long micros) {
+            if (micros == Long.MAX_VALUE)
+                return ">" + (bucketUpperMicros(BUCKETS - 2) / 1000) + "ms";
+            return "<=" + String.format(Locale.US, "%.2f", micros / 1000.0) + "ms";
+        }
+    }
+}
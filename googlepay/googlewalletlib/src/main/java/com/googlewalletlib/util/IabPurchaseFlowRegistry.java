@@ -0,0 +1,119 @@
+package com.googlewalletlib.util;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 正在进行的购买流程，按 request code 索引。
+ * 每个购买流程有自己的 request code、listener 和商品类型，
+ * 多个商品连续购买时互相不会覆盖，handleActivityResult 按 request code 找到对应的流程
+ */
+class IabPurchaseFlowRegistry {
+
+    // 自动分配的 request code 范围。FragmentActivity 只允许低 16 位，
+    // 从 0x4000 开始避开应用自己常用的小数字
+    static final int FIRST_REQUEST_CODE = 0x4000;
+    static final int LAST_REQUEST_CODE = 0xFFFF;
+
+    // 记住购买流程的 token 数。订阅和不消耗的商品不会被取走，只保留最近的这些
+    static final int MAX_TRACED_TOKENS = 64;
+
+    /**
+     * 一个等待 onActivityResult 的购买流程
+     */
+    static class Flow {
+        final int requestCode;
+        final String sku;
+        final String itemType;
+        final IabHelper.OnIabPurchaseFinishedListener listener;
+        // 追踪用: 所属的购买流程和打开购买界面的时间 (System.nanoTime)
+        final long traceFlowId;
+        final long launchNanos;
+
+        Flow(int requestCode, String sku, String itemType,
+             IabHelper.OnIabPurchaseFinishedListener listener, long traceFlowId,
+             long launchNanos) {
+            this.requestCode = requestCode;
+            this.sku = sku;
+            this.itemType = itemType;
+            this.listener = listener;
+            this.traceFlowId = traceFlowId;
+            this.launchNanos = launchNanos;
+        }
+    }
+
+    private final Map<Integer, Flow> mFlows = new HashMap<Integer, Flow>();
+    private int mNextRequestCode = FIRST_REQUEST_CODE;
+    // 购买得到的 token -> 购买流程的 traceFlowId，消耗时把 consume 记在同一个流程下
+    private final Map<String, Long> mTracedTokens = new LinkedHashMap<String, Long>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            return size() > MAX_TRACED_TOKENS;
+        }
+    };
+
+    /**
+     * 分配一个当前没有被使用的 request code
+     */
+    synchronized int nextRequestCode() {
+        for (int i = FIRST_REQUEST_CODE; i <= LAST_REQUEST_CODE; i++) {
+            int code = mNextRequestCode;
+            mNextRequestCode = code == LAST_REQUEST_CODE ? FIRST_REQUEST_CODE : code + 1;
+            if (!mFlows.containsKey(code))
+                return code;
+        }
+        throw new IllegalStateException("没有可用的 request code");
+    }
+
+    /**
+     * 登记一个购买流程，返回之前用同一个 request code 登记、还没有结束的流程
+     */
+    synchronized Flow register(Flow flow) {
+        return mFlows.put(flow.requestCode, flow);
+    }
+
+    synchronized boolean isPending(int requestCode) {
+        return mFlows.containsKey(requestCode);
+    }
+
+    /**
+     * 取出并移除 request code 对应的流程，没有的话返回 null
+     */
+    synchronized Flow remove(int requestCode) {
+        return mFlows.remove(requestCode);
+    }
+
+    synchronized int size() {
+        return mFlows.size();
+    }
+
+    /**
+     * 记下购买流程得到的 token，flowId 为 0 或者没有 token 时忽略
+     */
+    synchronized void putTraceFlowId(String token, long flowId) {
+        if (flowId != 0 && token != null && token.length() > 0)
+            mTracedTokens.put(token, flowId);
+    }
+
+    /**
+     * token 所属的购买流程，不知道的话返回 0
+     */
+    synchronized long getTraceFlowId(String token) {
+        Long flowId = token == null ? null : mTracedTokens.get(token);
+        return flowId == null ? 0 : flowId;
+    }
+
+    /**
+     * token 已经被消耗，不会再用到
+     */
+    synchronized void removeTraceFlowId(String token) {
+        if (token != null)
+            mTracedTokens.remove(token);
+    }
+
+    synchronized void clear() {
+        mFlows.clear();
+        mTracedTokens.clear();
+    }
+}
@@ -0,0 +1,273 @@
+package com.googlewalletlib.util;
+
+import android.os.Bundle;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * IabRecordingService 写、IabReplayService 读的文件格式。
+ * <pre>
+ * 文件头: int MAGIC, int VERSION
+ * 每次调用: byte 方法, long 开始时间 (相对录制开始, 纳秒), long 耗时 (纳秒),
+ *          参数 (按方法不同), byte 结果类型, 结果
+ * </pre>
+ * 字符串是 int 长度 + UTF-8，-1 表示 null。Bundle 只保存 int、long、String 和
+ * String 列表，PendingIntent 之类无法保存的值只记录键名
+ */
+final class IabRecording {
+
+    static final int MAGIC = 0x49414252; // "IABR"
+    static final int VERSION = 1;
+
+    static final byte IS_BILLING_SUPPORTED = 0;
+    static final byte GET_SKU_DETAILS = 1;
+    static final byte GET_BUY_INTENT = 2;
+    static final byte GET_PURCHASES = 3;
+    static final byte CONSUME_PURCHASE = 4;
+
+    // 结果类型
+    static final byte RESULT_INT = 0;
+    static final byte RESULT_BUNDLE = 1;
+    static final byte RESULT_REMOTE_EXCEPTION = 2;
+
+    // Bundle 中值的类型
+    static final byte VALUE_INT = 0;
+    static final byte VALUE_LONG = 1;
+    static final byte VALUE_STRING = 2;
+    static final byte VALUE_STRING_LIST = 3;
+    static final byte VALUE_OMITTED = 4;
+
+    /**
+     * 录下的一次调用
+     */
+    static class Call {
+        byte method;
+        long startNanos;
+        long durationNanos;
+        // 参数，没有的为 null
+        String type;
+        String sku;
+        String developerPayload;
+        String continuationToken;
+        String purchaseToken;
+        List<String> skus;
+        byte resultType;
+        int intResult;
+        Bundle bundleResult;
+
+        /**
+         * 回放时用来匹配请求的键
+         */
+        String key() {
+            return IabRecording.key(method, type, sku, continuationToken, purchaseToken, skus);
+        }
+    }
+
+    static String key(byte method, String type, String sku, String continuationToken,
+                      String purchaseToken, List<String> skus) {
+        StringBuilder sb = new StringBuilder().append(method).append('|').append(type);
+        switch (method) {
+            case GET_SKU_DETAILS:
+                sb.append('|').append(skus);
+                break;
+            case GET_BUY_INTENT:
+                sb.append('|').append(sku);
+                break;
+            case GET_PURCHASES:
+                sb.append('|').append(continuationToken);
+                break;
+            case CONSUME_PURCHASE:
+                sb.append('|').append(purchaseToken);
+                break;
+        }
+        return sb.toString();
+    }
+
+    private IabRecording() {
+    }
+
+    static void writeHeader(DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+    }
+
+    static void readHeader(DataInputStream in) throws IOException {
+        if (in.readInt() != MAGIC)
+            throw new IOException("不是 billing 录制文件");
+        int version = in.readInt();
+        if (version != VERSION)
+            throw new IOException("不支持的录制文件版本: " + version);
+    }
+
+    static void writeCall(DataOutputStream out, Call c) throws IOException {
+        out.writeByte(c.method);
+        out.writeLong(c.startNanos);
+        out.writeLong(c.durationNanos);
+        writeString(out, c.type);
+        switch (c.method) {
+            case GET_SKU_DETAILS:
+                writeStringList(out, c.skus);
+                break;
+            case GET_BUY_INTENT:
+                writeString(out, c.sku);
+                writeString(out, c.developerPayload);
+                break;
+            case GET_PURCHASES:
+                writeString(out, c.continuationToken);
+                break;
+            case CONSUME_PURCHASE:
+                writeString(out, c.purchaseToken);
+                break;
+        }
+        out.writeByte(c.resultType);
+        if (c.resultType == RESULT_INT)
+            out.writeInt(c.intResult);
+        else if (c.resultType == RESULT_BUNDLE)
+            writeBundle(out, c.bundleResult);
+    }
+
+    /**
+     * 读下一次调用，文件结束时返回 null
+     */
+    static Call readCall(DataInputStream in) throws IOException {
+        int method = in.read();
+        if (method < 0)
+            return null;
+        Call c = new Call();
+        c.method = (byte) method;
+        c.startNanos = in.readLong();
+        c.durationNanos = in.readLong();
+        c.type = readString(in);
+        switch (c.method) {
+            case GET_SKU_DETAILS:
+                c.skus = readStringList(in);
+                break;
+            case GET_BUY_INTENT:
+                c.sku = readString(in);
+                c.developerPayload = readString(in);
+                break;
+            case GET_PURCHASES:
+                c.continuationToken = readString(in);
+                break;
+            case CONSUME_PURCHASE:
+                c.purchaseToken = readString(in);
+                break;
+        }
+        c.resultType = in.readByte();
+        if (c.resultType == RESULT_INT)
+            c.intResult = in.readInt();
+        else if (c.resultType == RESULT_BUNDLE)
+            c.bundleResult = readBundle(in);
+        return c;
+    }
+
+    static void writeBundle(DataOutputStream out, Bundle b) throws IOException {
+        if (b == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(b.size());
+        for (String key : b.keySet()) {
+            writeString(out, key);
+            Object v = b.get(key);
+            if (v instanceof Integer) {
+                out.writeByte(VALUE_INT);
+                out.writeInt((Integer) v);
+            } else if (v instanceof Long) {
+                out.writeByte(VALUE_LONG);
+                out.writeLong((Long) v);
+            } else if (v instanceof String) {
+                out.writeByte(VALUE_STRING);
+                writeString(out, (String) v);
+            } else if (v instanceof List && isStringList((List<?>) v)) {
+                out.writeByte(VALUE_STRING_LIST);
+                @SuppressWarnings("unchecked")
+                List<String> list = (List<String>) v;
+                writeStringList(out, list);
+            } else {
+                out.writeByte(VALUE_OMITTED);
+            }
+        }
+    }
+
+    static Bundle readBundle(DataInputStream in) throws IOException {
+        int size = in.readInt();
+        if (size < 0)
+            return null;
+        Bundle b = new Bundle();
+        for (int i = 0; i < size; i++) {
+            String key = readString(in);
+            byte type = in.readByte();
+            switch (type) {
+                case VALUE_INT:
+                    b.putInt(key, in.readInt());
+                    break;
+                case VALUE_LONG:
+                    b.putLong(key, in.readLong());
+                    break;
+                case VALUE_STRING:
+                    b.putString(key, readString(in));
+                    break;
+                case VALUE_STRING_LIST:
+                    b.putStringArrayList(key, readStringList(in));
+                    break;
+                case VALUE_OMITTED:
+                    break;
+                default:
+                    throw new IOException("未知的值类型: " + type);
+            }
+        }
+        return b;
+    }
+
+    private static boolean isStringList(List<?> list) {
+        for (Object o : list) {
+            if (o != null && !(o instanceof String))
+                return false;
+        }
+        return true;
+    }
+
+    static void writeString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = s.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0)
+            return null;
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    static void writeStringList(DataOutputStream out, List<String> list) throws IOException {
+        if (list == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(list.size());
+        for (String s : list)
+            writeString(out, s);
+    }
+
+    static ArrayList<String> readStringList(DataInputStream in) throws IOException {
+        int size = in.readInt();
+        if (size < 0)
+            return null;
+        ArrayList<String> list = new ArrayList<String>(size);
+        for (int i = 0; i < size; i++)
+            list.add(readString(in));
+        return list;
+    }
+}
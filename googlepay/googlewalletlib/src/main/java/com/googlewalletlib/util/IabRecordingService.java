@@ -0,0 +1,149 @@
+package com.googlewalletlib.util;
+
+import android.os.Bundle;
+import android.os.RemoteException;
+
+import com.android.vending.billing.IInAppBillingService;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+
+/**
+ * 包装真正的 billing service，把每次调用的参数、返回的 Bundle 和耗时写入录制文件，
+ * 之后用 IabReplayService 回放。通过 IabHelper.startRecording 使用。
+ * 录制文件里有购买信息和 token，不要在用户不知情的情况下上传
+ */
+public class IabRecordingService extends IInAppBillingService.Stub {
+    private static final String TAG = "IabRecordingService";
+
+    private final IInAppBillingService mDelegate;
+    private final DataOutputStream mOut;
+    private final long mOriginNanos = System.nanoTime();
+    private boolean mFailed;
+
+    /**
+     * @param out 录制文件，close 时关闭
+     */
+    public IabRecordingService(IInAppBillingService delegate, OutputStream out) throws IOException {
+        mDelegate = delegate;
+        mOut = new DataOutputStream(new BufferedOutputStream(out));
+        IabRecording.writeHeader(mOut);
+    }
+
+    public IInAppBillingService getDelegate() {
+        return mDelegate;
+    }
+
+    public int isBillingSupported(int apiVersion, String packageName, String type)
+            throws RemoteException {
+        IabRecording.Call c = begin(IabRecording.IS_BILLING_SUPPORTED, type);
+        try {
+            return endInt(c, mDelegate.isBillingSupported(apiVersion, packageName, type));
+        } catch (RemoteException e) {
+            throw endRemoteException(c, e);
+        }
+    }
+
+    public Bundle getSkuDetails(int apiVersion, String packageName, String type,
+                                Bundle skusBundle) throws RemoteException {
+        IabRecording.Call c = begin(IabRecording.GET_SKU_DETAILS, type);
+        c.skus = skusBundle.getStringArrayList(IabHelper.GET_SKU_DETAILS_ITEM_LIST);
+        try {
+            return endBundle(c, mDelegate.getSkuDetails(apiVersion, packageName, type, skusBundle));
+        } catch (RemoteException e) {
+            throw endRemoteException(c, e);
+        }
+    }
+
+    public Bundle getBuyIntent(int apiVersion, String packageName, String sku, String type,
+                               String developerPayload) throws RemoteException {
+        IabRecording.Call c = begin(IabRecording.GET_BUY_INTENT, type);
+        c.sku = sku;
+        c.developerPayload = developerPayload;
+        try {
+            return endBundle(c, mDelegate.getBuyIntent(apiVersion, packageName, sku, type,
+                    developerPayload));
+        } catch (RemoteException e) {
+            throw endRemoteException(c, e);
+        }
+    }
+
+    public Bundle getPurchases(int apiVersion, String packageName, String type,
+                               String continuationToken) throws RemoteException {
+        IabRecording.Call c = begin(IabRecording.GET_PURCHASES, type);
+        c.continuationToken = continuationToken;
+        try {
+            return endBundle(c, mDelegate.getPurchases(apiVersion, packageName, type,
+                    continuationToken));
+        } catch (RemoteException e) {
+            throw endRemoteException(c, e);
+        }
+    }
+
+    public int consumePurchase(int apiVersion, String packageName, String purchaseToken)
+            throws RemoteException {
+        IabRecording.Call c = begin(IabRecording.CONSUME_PURCHASE, null);
+        c.purchaseToken = purchaseToken;
+        try {
+            return endInt(c, mDelegate.consumePurchase(apiVersion, packageName, purchaseToken));
+        } catch (RemoteException e) {
+            throw endRemoteException(c, e);
+        }
+    }
+
+    /**
+     * 写完缓冲的数据并关闭录制文件
+     */
+    public synchronized void close() throws IOException {
+        mOut.close();
+    }
+
+    private IabRecording.Call begin(byte method, String type) {
+        IabRecording.Call c = new IabRecording.Call();
+        c.method = method;
+        c.type = type;
+        c.startNanos = System.nanoTime();
+        return c;
+    }
+
+    private int endInt(IabRecording.Call c, int result) {
+        c.durationNanos = System.nanoTime() - c.startNanos;
+        c.resultType = IabRecording.RESULT_INT;
+        c.intResult = result;
+        write(c);
+        return result;
+    }
+
+    private Bundle endBundle(IabRecording.Call c, Bundle result) {
+        c.durationNanos = System.nanoTime() - c.startNanos;
+        c.resultType = IabRecording.RESULT_BUNDLE;
+        c.bundleResult = result;
+        write(c);
+        return result;
+    }
+
+    private RemoteException endRemoteException(IabRecording.Call c, RemoteException e) {
+        c.durationNanos = System.nanoTime() - c.startNanos;
+        c.resultType = IabRecording.RESULT_REMOTE_EXCEPTION;
+        write(c);
+        return e;
+    }
+
+    /**
+     * 写入失败时停止录制，不影响正常的调用
+     */
+    private synchronized void write(IabRecording.Call c) {
+        if (mFailed)
+            return;
+        c.startNanos -= mOriginNanos;
+        try {
+            IabRecording.writeCall(mOut, c);
+        } catch (IOException e) {
+            mFailed = true;
+            IabLog.e(TAG, "写入录制文件失败, 停止录制", e);
+        }
+    }
+}
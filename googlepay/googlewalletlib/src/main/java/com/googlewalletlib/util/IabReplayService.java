@@ -0,0 +1,183 @@
+package com.googlewalletlib.util;
+
+import android.os.Bundle;
+import android.os.RemoteException;
+
+import com.android.vending.billing.IInAppBillingService;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 回放 IabRecordingService 录下的调用，让 IabHelper 走和录制时相同的代码路径:
+ * <pre>
+ * IabReplayService replay = IabReplayService.load(new FileInputStream(file));
+ * replay.setSpeed(10);
+ * helper.startSetup(replay, listener);
+ * </pre>
+ * 请求按方法和关键参数 (商品类型、continuation token、购买 token 等) 匹配录下的调用，
+ * 同样的请求按录制的顺序依次返回。调用之间保持录制时的间隔，每次调用等待录制时的耗时，
+ * 都除以 speed。getBuyIntent 录不下 PendingIntent，回放时只有响应码，
+ * launchPurchaseFlow 以 IABHELPER_BAD_RESPONSE 结束
+ */
+public class IabReplayService extends IInAppBillingService.Stub {
+    private static final String TAG = "IabReplayService";
+
+    private final Map<String, Deque<IabRecording.Call>> mCalls =
+            new HashMap<String, Deque<IabRecording.Call>>();
+    private final int mCallCount;
+    private volatile double mSpeed = 1;
+    private volatile boolean mLoop;
+    // 回放的时间轴，由 mCalls 的锁保护: 录制时 startNanos 为 mAnchorRecorded 的调用
+    // 在 mAnchorNanos (System.nanoTime) 开始，之后的调用按录制时的间隔开始
+    private long mAnchorNanos = -1;
+    private long mAnchorRecorded;
+    private long mLastRecorded;
+
+    IabReplayService(List<IabRecording.Call> calls) {
+        for (IabRecording.Call c : calls) {
+            Deque<IabRecording.Call> queue = mCalls.get(c.key());
+            if (queue == null)
+                mCalls.put(c.key(), queue = new ArrayDeque<IabRecording.Call>());
+            queue.add(c);
+        }
+        mCallCount = calls.size();
+    }
+
+    /**
+     * 读取整个录制文件，读完后关闭 in
+     */
+    public static IabReplayService load(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(new BufferedInputStream(in));
+        try {
+            IabRecording.readHeader(data);
+            List<IabRecording.Call> calls = new ArrayList<IabRecording.Call>();
+            IabRecording.Call c;
+            while ((c = IabRecording.readCall(data)) != null)
+                calls.add(c);
+            return new IabReplayService(calls);
+        } finally {
+            data.close();
+        }
+    }
+
+    /**
+     * 回放速度，1 是录制时的速度，2 是两倍速；0 表示不等待
+     */
+    public void setSpeed(double speed) {
+        mSpeed = speed;
+    }
+
+    /**
+     * 同样的请求用完录下的结果后从头再来，用于反复执行的基准测试
+     */
+    public void setLoop(boolean loop) {
+        mLoop = loop;
+    }
+
+    /**
+     * 录制文件中的调用数
+     */
+    public int getCallCount() {
+        return mCallCount;
+    }
+
+    public int isBillingSupported(int apiVersion, String packageName, String type)
+            throws RemoteException {
+        return intResult(next(IabRecording.key(IabRecording.IS_BILLING_SUPPORTED, type,
+                null, null, null, null)));
+    }
+
+    public Bundle getSkuDetails(int apiVersion, String packageName, String type,
+                                Bundle skusBundle) throws RemoteException {
+        return bundleResult(next(IabRecording.key(IabRecording.GET_SKU_DETAILS, type, null,
+                null, null, skusBundle.getStringArrayList(IabHelper.GET_SKU_DETAILS_ITEM_LIST))));
+    }
+
+    public Bundle getBuyIntent(int apiVersion, String packageName, String sku, String type,
+                               String developerPayload) throws RemoteException {
+        return bundleResult(next(IabRecording.key(IabRecording.GET_BUY_INTENT, type, sku,
+                null, null, null)));
+    }
+
+    public Bundle getPurchases(int apiVersion, String packageName, String type,
+                               String continuationToken) throws RemoteException {
+        return bundleResult(next(IabRecording.key(IabRecording.GET_PURCHASES, type, null,
+                continuationToken, null, null)));
+    }
+
+    public int consumePurchase(int apiVersion, String packageName, String purchaseToken)
+            throws RemoteException {
+        return intResult(next(IabRecording.key(IabRecording.CONSUME_PURCHASE, null, null,
+                null, purchaseToken, null)));
+    }
+
+    /**
+     * 取出匹配的调用，等到录制时这个调用开始的时间，再等待录制时的耗时。
+     * 没有匹配的调用时返回 null
+     */
+    private IabRecording.Call next(String key) throws RemoteException {
+        IabRecording.Call c;
+        double speed = mSpeed;
+        long startAt = 0;
+        synchronized (mCalls) {
+            Deque<IabRecording.Call> queue = mCalls.get(key);
+            c = queue == null ? null : queue.poll();
+            if (c != null && mLoop)
+                queue.add(c);
+            if (c != null && speed > 0) {
+                long now = System.nanoTime();
+                // 第一个调用，或者录制时间倒退 (循环回放从头开始) 时重新对齐
+                if (mAnchorNanos < 0 || c.startNanos < mLastRecorded) {
+                    mAnchorNanos = now;
+                    mAnchorRecorded = c.startNanos;
+                }
+                mLastRecorded = c.startNanos;
+                startAt = mAnchorNanos + (long) ((c.startNanos - mAnchorRecorded) / speed);
+            }
+        }
+        if (c == null) {
+            IabLog.w(TAG, "录制文件中没有这个请求: {}", key);
+            return null;
+        }
+        if (speed > 0) {
+            long gap = Math.max(0, startAt - System.nanoTime());
+            sleepNanos(gap + (long) (c.durationNanos / speed));
+        }
+        if (c.resultType == IabRecording.RESULT_REMOTE_EXCEPTION)
+            throw new RemoteException();
+        return c;
+    }
+
+    private static void sleepNanos(long nanos) {
+        if (nanos <= 0)
+            return;
+        try {
+            Thread.sleep(nanos / 1000000, (int) (nanos % 1000000));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static int intResult(IabRecording.Call c) {
+        return c == null ? IabHelper.BILLING_RESPONSE_RESULT_ERROR : c.intResult;
+    }
+
+    private static Bundle bundleResult(IabRecording.Call c) {
+        if (c == null || c.bundleResult == null) {
+            Bundle b = new Bundle();
+            b.putInt(IabHelper.RESPONSE_CODE, IabHelper.BILLING_RESPONSE_RESULT_ERROR);
+            return b;
+        }
+        // 调用方可能修改返回的 Bundle，循环回放时不能共用
+        return new Bundle(c.bundleResult);
+    }
+}
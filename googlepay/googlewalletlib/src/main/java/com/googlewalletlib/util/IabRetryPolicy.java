@@ -0,0 +1,116 @@
+package com.googlewalletlib.util;
+
+import java.util.Random;
+
+/**
+ * service 调用失败后的重试策略：
+ * 指数退避 + 随机抖动，重试次数受重试预算限制。
+ * 只重试幂等的查询 (isBillingSupported, getSkuDetails, getPurchases)，
+ * 它们还可以在超过对冲延迟后再发一次；consumePurchase 和 getBuyIntent 不重试
+ */
+public class IabRetryPolicy {
+
+    // 预算以 1/10 个令牌为单位：每个请求存 1 (0.1 个令牌)，每次重试取 10 (1 个令牌)
+    private static final int TOKEN_UNIT = 10;
+
+    private final int mMaxAttempts;
+    private final long mBaseDelayMillis;
+    private final long mMaxDelayMillis;
+    private volatile long mHedgeDelayMillis = 0;
+
+    // 预算由 this 保护，setRetryBudget 和各个调用线程上的 onRequest/acquireRetry 可能同时发生
+    private int mMaxTokens = 10 * TOKEN_UNIT;
+    private int mTokens = mMaxTokens;
+    private final Random mRandom = new Random();
+
+    /**
+     * 默认: 最多 3 次，退避 200ms 起，最长 5s，不对冲
+     */
+    public IabRetryPolicy() {
+        this(3, 200, 5000);
+    }
+
+    /**
+     * @param maxAttempts 包括第一次在内的最大尝试次数
+     * @param baseDelayMillis 第一次重试前的退避上限
+     * @param maxDelayMillis 退避上限
+     */
+    public IabRetryPolicy(int maxAttempts, long baseDelayMillis, long maxDelayMillis) {
+        mMaxAttempts = Math.max(1, maxAttempts);
+        mBaseDelayMillis = Math.max(1, baseDelayMillis);
+        mMaxDelayMillis = Math.max(mBaseDelayMillis, maxDelayMillis);
+    }
+
+    /**
+     * 幂等查询超过 hedgeDelayMillis 还没返回时再发一次，取先返回的结果
+     *
+     * @param hedgeDelayMillis <= 0 表示不对冲
+     */
+    public void setHedgeDelay(long hedgeDelayMillis) {
+        mHedgeDelayMillis = hedgeDelayMillis;
+    }
+
+    public long getHedgeDelay() {
+        return mHedgeDelayMillis;
+    }
+
+    /**
+     * 重试预算: 最多攒 maxTokens 次重试，每 10 个请求补充一次
+     */
+    public synchronized void setRetryBudget(int maxTokens) {
+        mMaxTokens = Math.max(0, maxTokens) * TOKEN_UNIT;
+        mTokens = mMaxTokens;
+    }
+
+    /**
+     * 现在还可以重试的次数
+     */
+    public synchronized int getRetryTokens() {
+        return mTokens / TOKEN_UNIT;
+    }
+
+    /**
+     * 这个结果码是否值得重试。service 断开、超时、服务暂不可用和一般错误是暂时的，
+     * 其它 (用户取消、商品不存在、已经拥有、开发错误等) 重试也没有用
+     */
+    public static boolean isRetryable(int response) {
+        switch (response) {
+            case IabHelper.BILLING_RESPONSE_RESULT_SERVICE_UNAVAILABLE:
+            case IabHelper.BILLING_RESPONSE_RESULT_ERROR:
+            case IabHelper.IABHELPER_REMOTE_EXCEPTION:
+            case IabHelper.IABHELPER_TIMEOUT:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * 每发起一个新请求 (不包括重试) 调用一次，补充重试预算
+     */
+    synchronized void onRequest() {
+        if (mTokens < mMaxTokens)
+            mTokens++;
+    }
+
+    /**
+     * 已经尝试了 attempts 次，是否还可以重试。可以的话会扣掉一次预算
+     */
+    synchronized boolean acquireRetry(int attempts) {
+        if (attempts >= mMaxAttempts || mTokens < TOKEN_UNIT)
+            return false;
+        mTokens -= TOKEN_UNIT;
+        return true;
+    }
+
+    /**
+     * 第 attempts 次失败后的退避时间: [0, min(max, base * 2^(attempts-1))] 之间均匀随机
+     */
+    long backoffMillis(int attempts) {
+        int shift = Math.min(attempts - 1, 30);
+        long ceiling = Math.min(mMaxDelayMillis, mBaseDelayMillis << shift);
+        synchronized (mRandom) {
+            return (long) (mRandom.nextDouble() * ceiling);
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package com.googlewalletlib.util;
+
+/**
+ * 购买流程中一个阶段的耗时。
+ * 同一次购买的各个阶段 (startSetup、launchPurchaseFlow、purchaseActivity、verifyPurchase、
+ * consume) 带有相同的 flowId。时间是 System.nanoTime，只能用来计算间隔
+ */
+public final class IabSpan {
+
+    /**
+     * 没有启用追踪时使用，end 什么都不做
+     */
+    static final IabSpan NONE = new IabSpan(null, 0, "none", 0);
+
+    private final IabTracer mTracer;
+    private final long mFlowId;
+    private final String mName;
+    private final long mStartNanos;
+    private long mEndNanos;
+    private int mResponse;
+    private String mThreadName;
+
+    IabSpan(IabTracer tracer, long flowId, String name, long startNanos) {
+        mTracer = tracer;
+        mFlowId = flowId;
+        mName = name;
+        mStartNanos = startNanos;
+    }
+
+    /**
+     * 开始一个阶段，tracer 为 null 时返回 NONE
+     */
+    static IabSpan start(IabTracer tracer, long flowId, String name) {
+        return tracer == null ? NONE : tracer.start(flowId, name);
+    }
+
+    /**
+     * 结束这个阶段并交给 sink，只有第一次调用有效
+     *
+     * @param response 这个阶段的结果码，见 IabResult.getResponse
+     */
+    public void end(int response) {
+        if (mTracer == null)
+            return;
+        synchronized (this) {
+            if (mEndNanos != 0)
+                return;
+            mEndNanos = System.nanoTime();
+            mResponse = response;
+            mThreadName = Thread.currentThread().getName();
+        }
+        mTracer.report(this);
+    }
+
+    void finish(long endNanos, int response) {
+        mEndNanos = endNanos;
+        mResponse = response;
+        mThreadName = Thread.currentThread().getName();
+    }
+
+    public long getFlowId() {
+        return mFlowId;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public long getStartNanos() {
+        return mStartNanos;
+    }
+
+    public synchronized long getEndNanos() {
+        return mEndNanos;
+    }
+
+    public synchronized long getDurationNanos() {
+        return mEndNanos == 0 ? 0 : mEndNanos - mStartNanos;
+    }
+
+    public synchronized int getResponse() {
+        return mResponse;
+    }
+
+    /**
+     * 结束这个阶段的线程
+     */
+    public synchronized String getThreadName() {
+        return mThreadName;
+    }
+
+    @Override
+    public String toString() {
+        return "IabSpan{flow=" + mFlowId + ", " + mName + ", "
+                + (getDurationNanos() / 1000) + "us, response=" + getResponse() + "}";
+    }
+}
@@ -0,0 +1,101 @@
+package com.googlewalletlib.util;
+
+import android.os.Looper;
+import android.os.SystemClock;
+
+/**
+ * 检查阻塞的 IabHelper 操作 (queryInventory、consume、queryPurchases、querySkuDetails，
+ * 以及 launchPurchaseFlow 中的 getBuyIntent 和连接 service 后的 isBillingSupported)
+ * 是否在主线程上调用。通过 IabHelper.setStrictMode 启用，建议只在测试版本中打开:
+ * <pre>
+ * IabStrictMode strictMode = new IabStrictMode(IabStrictMode.PENALTY_LOG);
+ * helper.setStrictMode(strictMode);
+ * </pre>
+ * 检查到违规时按 penalty 处理: 输出日志 (带调用位置和阻塞时间)、直接抛出
+ * IabMainThreadViolation，或者交给 ViolationListener 上报。
+ * getBuyIntent 和 isBillingSupported 是库自己在主线程上发起的 (应用没有别的选择)，
+ * 抛出会打断购买流程和初始化而且不通知 listener，所以它们只记录日志和上报，不抛出
+ */
+public class IabStrictMode {
+
+    public static final int PENALTY_LOG = 1;
+    public static final int PENALTY_THROW = 1 << 1;
+    public static final int PENALTY_LISTENER = 1 << 2;
+
+    private static final String TAG = "IabStrictMode";
+
+    /**
+     * 违规的上报，在调用阻塞操作的线程 (也就是主线程) 上回调
+     */
+    public interface ViolationListener {
+        void onViolation(IabMainThreadViolation violation);
+    }
+
+    private final int mPenalty;
+    private volatile ViolationListener mListener;
+    private volatile long mThresholdMillis;
+
+    /**
+     * @param penalty PENALTY_LOG、PENALTY_THROW、PENALTY_LISTENER 的组合
+     */
+    public IabStrictMode(int penalty) {
+        mPenalty = penalty;
+    }
+
+    public int getPenalty() {
+        return mPenalty;
+    }
+
+    /**
+     * PENALTY_LISTENER 时的上报对象
+     */
+    public void setListener(ViolationListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * 阻塞少于 thresholdMillis 的调用不记录日志也不上报，默认 0 表示全部处理。
+     * 不影响 PENALTY_THROW
+     */
+    public void setThresholdMillis(long thresholdMillis) {
+        mThresholdMillis = thresholdMillis;
+    }
+
+    /**
+     * 应用调用的阻塞操作开始时调用。不在主线程上时返回 null；
+     * 在主线程上时记录调用位置，PENALTY_THROW 时直接抛出
+     */
+    IabMainThreadViolation onBlockingCall(String operation) {
+        return onBlockingCall(operation, true);
+    }
+
+    /**
+     * 同上，mayThrow 为 false 时 (库内部的调用) 忽略 PENALTY_THROW
+     */
+    IabMainThreadViolation onBlockingCall(String operation, boolean mayThrow) {
+        if (Looper.myLooper() != Looper.getMainLooper())
+            return null;
+        IabMainThreadViolation violation = new IabMainThreadViolation(operation,
+                SystemClock.uptimeMillis());
+        if (mayThrow && (mPenalty & PENALTY_THROW) != 0)
+            throw violation;
+        return violation;
+    }
+
+    /**
+     * 阻塞操作结束时调用，记录阻塞的时间并按 penalty 处理
+     */
+    void onBlockingCallFinished(IabMainThreadViolation violation) {
+        long duration = SystemClock.uptimeMillis() - violation.getStartMillis();
+        violation.setDurationMillis(duration);
+        if (duration < mThresholdMillis)
+            return;
+        if ((mPenalty & PENALTY_LOG) != 0 && IabLog.isLoggable(IabLog.WARN)) {
+            IabLog.w(TAG, violation.getOperation() + " 在主线程上阻塞了 " + duration + "ms",
+                    violation);
+        }
+        ViolationListener listener = mListener;
+        if ((mPenalty & PENALTY_LISTENER) != 0 && listener != null)
+            listener.onViolation(violation);
+    }
+}
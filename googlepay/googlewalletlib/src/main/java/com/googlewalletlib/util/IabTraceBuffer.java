@@ -0,0 +1,90 @@
+package com.googlewalletlib.util;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 保存最近 capacity 个 span 的环形缓冲区，满了以后覆盖最旧的。
+ * 可以导出成 Chrome trace 格式 (chrome://tracing、Perfetto 可以直接打开) 做离线分析
+ */
+public class IabTraceBuffer implements IabTraceSink {
+
+    static final int DEFAULT_CAPACITY = 512;
+
+    private final IabSpan[] mSpans;
+    private int mNext;
+    private int mSize;
+
+    public IabTraceBuffer(int capacity) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("capacity: " + capacity);
+        mSpans = new IabSpan[capacity];
+    }
+
+    public synchronized void onSpan(IabSpan span) {
+        mSpans[mNext] = span;
+        mNext = (mNext + 1) % mSpans.length;
+        if (mSize < mSpans.length)
+            mSize++;
+    }
+
+    /**
+     * 缓冲区里的 span，按结束的先后排列
+     */
+    public synchronized List<IabSpan> getSpans() {
+        List<IabSpan> spans = new ArrayList<IabSpan>(mSize);
+        int first = (mNext - mSize + mSpans.length) % mSpans.length;
+        for (int i = 0; i < mSize; i++)
+            spans.add(mSpans[(first + i) % mSpans.length]);
+        return spans;
+    }
+
+    /**
+     * 某次购买的所有 span
+     */
+    public List<IabSpan> getSpans(long flowId) {
+        List<IabSpan> spans = new ArrayList<IabSpan>();
+        for (IabSpan span : getSpans()) {
+            if (span.getFlowId() == flowId)
+                spans.add(span);
+        }
+        return spans;
+    }
+
+    public synchronized void clear() {
+        for (int i = 0; i < mSpans.length; i++)
+            mSpans[i] = null;
+        mNext = 0;
+        mSize = 0;
+    }
+
+    /**
+     * 以 Chrome trace event 格式导出，每个购买流程显示为一行 (tid = flowId)
+     */
+    public void writeChromeTrace(Writer out) throws IOException {
+        List<IabSpan> spans = getSpans();
+        out.write("{\"traceEvents\":[");
+        for (int i = 0; i < spans.size(); i++) {
+            IabSpan span = spans.get(i);
+            if (i > 0)
+                out.write(",\n");
+            out.write("{\"name\":\"");
+            out.write(span.getName());
+            out.write("\",\"ph\":\"X\",\"pid\":1,\"tid\":");
+            out.write(Long.toString(span.getFlowId()));
+            out.write(",\"ts\":");
+            out.write(Long.toString(span.getStartNanos() / 1000));
+            out.write(",\"dur\":");
+            out.write(Long.toString(span.getDurationNanos() / 1000));
+            out.write(",\"args\":{\"response\":");
+            out.write(Integer.toString(span.getResponse()));
+            out.write(",\"thread\":\"");
+            out.write(String.valueOf(span.getThreadName()).replace("\\", "\\\\").replace("\"", "\\\""));
+            out.write("\"}}");
+        }
+        out.write("]}");
+        out.flush();
+    }
+}
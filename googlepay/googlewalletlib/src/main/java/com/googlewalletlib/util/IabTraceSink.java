@@ -0,0 +1,9 @@
+package com.googlewalletlib.util;
+
+/**
+ * 接收结束的 IabSpan，例如写入内存、文件或者上报到服务器。
+ * 可能在任意线程上被调用，实现需要线程安全，而且不能做耗时的事情
+ */
+public interface IabTraceSink {
+    void onSpan(IabSpan span);
+}
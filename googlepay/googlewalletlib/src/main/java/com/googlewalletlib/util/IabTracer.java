@@ -0,0 +1,63 @@
+package com.googlewalletlib.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 购买流程的追踪。为每次购买分配 flowId，记录各个阶段的 IabSpan 并交给 IabTraceSink。
+ * 通过 IabHelper.setTracer / PayTools.setTracer 启用，没有设置时不会计时也不会分配对象
+ */
+public class IabTracer {
+
+    private final AtomicLong mNextFlowId = new AtomicLong(1);
+    private volatile IabTraceSink mSink;
+
+    /**
+     * 结束的 span 保存在默认大小的内存环形缓冲区里
+     */
+    public IabTracer() {
+        this(new IabTraceBuffer(IabTraceBuffer.DEFAULT_CAPACITY));
+    }
+
+    public IabTracer(IabTraceSink sink) {
+        mSink = sink;
+    }
+
+    public IabTraceSink getSink() {
+        return mSink;
+    }
+
+    public void setSink(IabTraceSink sink) {
+        mSink = sink;
+    }
+
+    /**
+     * 为一次新的购买分配 flowId，从 1 开始；0 表示不属于任何购买流程
+     */
+    public long newFlowId() {
+        return mNextFlowId.getAndIncrement();
+    }
+
+    /**
+     * 开始一个阶段，结束时调用 IabSpan.end
+     */
+    public IabSpan start(long flowId, String name) {
+        return new IabSpan(this, flowId, name, System.nanoTime());
+    }
+
+    /**
+     * 记录一个已经结束的阶段，用于开始和结束不在同一处代码的情况
+     *
+     * @param startNanos 开始时的 System.nanoTime
+     */
+    public void record(long flowId, String name, long startNanos, int response) {
+        IabSpan span = new IabSpan(this, flowId, name, startNanos);
+        span.finish(System.nanoTime(), response);
+        report(span);
+    }
+
+    void report(IabSpan span) {
+        IabTraceSink sink = mSink;
+        if (sink != null)
+            sink.onSpan(span);
+    }
+}
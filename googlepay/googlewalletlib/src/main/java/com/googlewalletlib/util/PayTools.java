@@ -5,18 +5,24 @@ import android.app.Activity;
 import android.content.Intent;
 import android.os.Handler;
 import android.os.Message;
-import android.util.Log;
+
+import java.io.IOException;
 
 public class PayTools {
 
     private Activity activity;
     public String SKU_GAS = "";//商品id
-    static final int RC_REQUEST = 10001;
     SkuDetails skuDetails;
     IabHelper mHelper;
     private Handler handlerResult;
     private String payload;//关联的订单id
     private String TAG = "PayTools";
+    private IabTracer tracer;//购买流程的追踪，null 表示不追踪
+    private long buyFlowId;
+    private long buyStartNanos;
+    private PurchaseJournal journal;//消耗前记录购买，null 表示不记录
+    private boolean resubmitted;//journal 中上次没有确认的购买已经重新提交
+    private PurchaseUploader uploader;//批量提交购买，null 表示每个购买发送一次 Message
 
 
     public PayTools(Activity _activity, Handler _reslutHandler, String _SKU_GAS, String _payload) {
@@ -26,6 +32,70 @@ public class PayTools {
         this.payload = _payload;
     }
 
+    /**
+     * 记录每次购买各个阶段的耗时，默认保存在 tracer 的内存缓冲区里
+     * @param tracer null 表示不追踪
+     */
+    public void setTracer(IabTracer tracer) {
+        this.tracer = tracer;
+    }
+
+    /**
+     * 消耗之前先记录购买，服务器确认前应用被杀掉也不会丢单。
+     * journal 会读写文件，在后台线程打开:
+     * PurchaseJournal.open(new File(context.getFilesDir(), "purchases.journal"))
+     * 第一次连接 Google Play 成功后，journal 中上次没有得到确认的购买会自动重新提交
+     * @param journal null 表示不记录
+     */
+    public void setJournal(PurchaseJournal journal) {
+        if (journal != this.journal) {
+            this.journal = journal;
+            resubmitted = false;
+        }
+    }
+
+    /**
+     * 由 uploader 批量提交购买，代替每个购买发送一次 Message。
+     * 设置之后 handler 不再收到 what 为 1 的 Message，应用改为在
+     * PurchaseUploader.setListener 的 onUploaded 中按服务器的结果发放商品。
+     * uploader 应该使用 setJournal 的同一个 journal，start 时会重新提交没有完成的购买
+     * @param uploader null 表示发送 Message
+     */
+    public void setUploader(PurchaseUploader uploader) {
+        this.uploader = uploader;
+    }
+
+    /**
+     * 重新提交上次没有得到服务器确认的购买，每个购买发送一次 setMessage。
+     * 连接成功后会自动调用一次，使用 uploader 时不需要调用
+     */
+    public void resubmitPending() {
+        if (journal == null)
+            return;
+        for (Purchase purchase : journal.getPending()) {
+            setMessage(purchase);
+        }
+    }
+
+    /**
+     * 连接成功后调用，每个 journal 只重新提交一次。使用 uploader 时由 uploader.start 重新提交
+     */
+    void resubmitPendingOnce() {
+        if (resubmitted || journal == null || uploader != null)
+            return;
+        resubmitted = true;
+        resubmitPending();
+    }
+
+    /**
+     * 服务器已经确认这个购买，以后不再重新提交。会写文件，在后台线程调用
+     */
+    public void acknowledge(Purchase purchase) throws IOException {
+        if (journal != null) {
+            journal.markDone(purchase);
+        }
+    }
+
     /**
      * 查询用户购买的商品
      * @param orderid 商品订单id
@@ -49,6 +119,7 @@ public class PayTools {
                     return;
                 }
                 // 连接成功
+                resubmitPendingOnce();
                 try {
                     Inventory inventory = new Inventory();
                     int success = mHelper.queryPurchases(inventory, "inapp");
@@ -62,7 +133,7 @@ public class PayTools {
                         mHelper.dispose();
                     }
                 } catch (Exception e) {
-                    e.printStackTrace();
+                    IabLog.e(TAG, "查询购买失败", e);
                 }
             }
         });
@@ -90,23 +161,36 @@ public class PayTools {
         mHelper = new IabHelper(activity, base64EncodedPublicKey);
         // 是否需要输出调试内容
         mHelper.enableDebugLogging(false);
+        // 从google界面返回后在后台验签，不卡界面
+        mHelper.enableAsyncVerification(true);
+        mHelper.setPurchaseJournal(journal);
+        if (tracer != null) {
+            buyFlowId = tracer.newFlowId();
+            buyStartNanos = System.nanoTime();
+            mHelper.setTracer(tracer);
+            mHelper.setTraceFlowId(buyFlowId);
+        }
         mHelper.startSetup(new IabHelper.OnIabSetupFinishedListener() {
             public void onIabSetupFinished(IabResult result) {
                 if (!result.isSuccess()) {
                     handlerResult.sendEmptyMessage(0);
+                    endBuyTrace(result.getResponse());
                     // 失败
                     // complain("設備不支持billing支付: " + result);
                     return;
                 }
+                resubmitPendingOnce();
                 try {
                     if (mHelper != null) {
                         if (!mHelper.subscriptionsSupported()) {
                             handlerResult.sendEmptyMessage(0);
+                            endBuyTrace(IabHelper.IABHELPER_SUBSCRIPTIONS_NOT_AVAILABLE);
                             return;
                         }
                         handlerResult.sendEmptyMessage(4);
-                        mHelper.launchPurchaseFlow(activity, SKU_GAS, "inapp", RC_REQUEST,
-                                mPurchaseFinishedListener, payload);
+                        // 请求码由 IabHelper 分配，连续购买时各自的结果不会混在一起
+                        mHelper.launchPurchaseFlow(activity, SKU_GAS, "inapp",
+                                mPurchaseFinishedListener, payload, buyFlowId);
                     }
                 } catch (Exception e) {
 
@@ -123,16 +207,19 @@ public class PayTools {
 
                 if (result.getResponse() == -1005) {//用户取消
                     handlerResult.sendEmptyMessage(3);
+                    endBuyTrace(result.getResponse());
                     return;
                 }
                 if (purchase != null) {
                     commitBuy(purchase);
                 }
+                endBuyTrace(result.getResponse());
                 return;
             }
             if (!verifyDeveloperPayload(purchase)) {
-                Log.e(TAG, "payload验证出错");
+                IabLog.e(TAG, "payload验证出错");
                 handlerResult.sendEmptyMessage(0);
+                endBuyTrace(IabHelper.IABHELPER_VERIFICATION_FAILED);
                 return;
             }
 
@@ -140,6 +227,7 @@ public class PayTools {
                 mHelper.consumeAsync(purchase, mConsumeFinishedListener);
             }
             commitBuy(purchase);
+            endBuyTrace(result.getResponse());
 
         }
     };
@@ -149,16 +237,27 @@ public class PayTools {
     }
 
     /**
-     * 往服务器提交数据
+     * 记录从 buy 到购买结果处理完的总时间，消耗在后台继续进行，单独记录
+     */
+    private void endBuyTrace(int response) {
+        if (tracer != null && buyStartNanos != 0) {
+            tracer.record(buyFlowId, "buy", buyStartNanos, response);
+            buyStartNanos = 0;
+        }
+    }
+
+    /**
+     * 往服务器提交数据：没有 uploader 时给 handler 发送 what 为 1、obj 为 purchase 的 Message，
+     * 由应用提交；有 uploader 时只交给 uploader，结果通过它的 Listener 返回
      *
      * @param purchase
      */
     public void setMessage(Purchase purchase) {
-        Message msg = new Message();
-        msg.obj = purchase;
-        msg.what = 1;
-        handlerResult.sendMessage(msg);
-
+        if (uploader != null) {
+            uploader.enqueue(purchase);
+            return;
+        }
+        Message.obtain(handlerResult, 1, purchase).sendToTarget();
     }
 
     /**
@@ -169,10 +268,9 @@ public class PayTools {
      */
     boolean verifyDeveloperPayload(Purchase p) {
         String payload = p.getDeveloperPayload();
-        System.out.println("payload :" + payload);
+        IabLog.d(TAG, "payload: {}", payload);
         // 获取随机字符串，做处理
         if (payload.equals(p.getDeveloperPayload())) {
-            System.out.println("payload if:" + payload);
             return true;
         }
         return false;
@@ -190,7 +288,7 @@ public class PayTools {
             }
             Purchase gasPurchase = inventory.getPurchase(SKU_GAS);
             skuDetails = inventory.getSkuDetails(SKU_GAS);
-            System.out.println("skuDetails my:" + skuDetails);
+            IabLog.d(TAG, "skuDetails: {}", skuDetails);
             if (gasPurchase != null) {
                 // 根据SKU_GAS 来消耗
                 mHelper.consumeAsync(inventory.getPurchase(SKU_GAS),
@@ -203,12 +301,12 @@ public class PayTools {
     // 消耗商品
     IabHelper.OnConsumeFinishedListener mConsumeFinishedListener = new IabHelper.OnConsumeFinishedListener() {
         public void onConsumeFinished(Purchase purchase, IabResult result) {
-            Log.d(TAG, "消耗商品: " + purchase + ", result: " + result);
+            IabLog.d(TAG, "消耗商品: {}, result: {}", purchase, result);
             if (result.isSuccess()) {
-                Log.d(TAG, "消耗成功");
+                IabLog.d(TAG, "消耗成功");
             } else {
             }
-            Log.d(TAG, "消耗结束");
+            IabLog.d(TAG, "消耗结束");
         }
     };
 
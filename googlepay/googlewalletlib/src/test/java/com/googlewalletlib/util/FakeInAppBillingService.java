@@ -0,0 +1,407 @@
+package com.googlewalletlib.util;
+
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Bundle;
+import android.os.RemoteException;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.UnsupportedEncodingException;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 进程内的假 billing service，用于在 JVM 上 (Robolectric) 测试和压测 IabHelper，
+ * 不需要设备和网络:
+ * <pre>
+ * FakeInAppBillingService fake = new FakeInAppBillingService(context);
+ * fake.addProducts(IabHelper.ITEM_TYPE_INAPP, "gas_", 500);
+ * fake.addPurchases(IabHelper.ITEM_TYPE_INAPP, "gas_", 5000);
+ * fake.setLatency("getPurchases", 30);
+ * IabHelper helper = new IabHelper(context, fake.getBase64PublicKey());
+ * helper.startSetup(fake, listener);
+ * </pre>
+ * 购买信息用测试 RSA 密钥签名，IabHelper 的验签可以通过。
+ * 可以为每个方法注入延迟、响应码和 RemoteException
+ */
+public class FakeInAppBillingService extends com.android.vending.billing.IInAppBillingService.Stub {
+
+    public static final String IS_BILLING_SUPPORTED = "isBillingSupported";
+    public static final String GET_SKU_DETAILS = "getSkuDetails";
+    public static final String GET_BUY_INTENT = "getBuyIntent";
+    public static final String GET_PURCHASES = "getPurchases";
+    public static final String CONSUME_PURCHASE = "consumePurchase";
+
+    // getSkuDetails 一次最多查询的商品数，和 Play 商店一致
+    static final int MAX_SKUS_PER_REQUEST = 20;
+
+    // 注入 RemoteException 时放进队列的值
+    private static final int REMOTE_EXCEPTION = Integer.MIN_VALUE;
+
+    private static KeyPair sKeyPair;
+
+    private final Context mContext;
+    private final KeyPair mKeyPair;
+    private final Map<String, JSONObject> mProducts = new LinkedHashMap<String, JSONObject>();
+    // token -> 购买，保持购买的先后顺序
+    private final Map<String, OwnedPurchase> mPurchases = new LinkedHashMap<String, OwnedPurchase>();
+    private final Map<String, Long> mLatency = new HashMap<String, Long>();
+    private final Map<String, Deque<Integer>> mInjected = new HashMap<String, Deque<Integer>>();
+    private final Map<String, AtomicInteger> mCalls = new HashMap<String, AtomicInteger>();
+    private int mPageSize = 100;
+    private boolean mSubscriptionsSupported = true;
+    private long mNextOrder = 1;
+
+    static class OwnedPurchase {
+        final String itemType;
+        final String sku;
+        final String json;
+        final String signature;
+
+        OwnedPurchase(String itemType, String sku, String json, String signature) {
+            this.itemType = itemType;
+            this.sku = sku;
+            this.json = json;
+            this.signature = signature;
+        }
+    }
+
+    /**
+     * @param context 用来生成购买界面的 PendingIntent，只测试查询和消耗时可以为 null
+     */
+    public FakeInAppBillingService(Context context) {
+        mContext = context;
+        mKeyPair = testKeyPair();
+    }
+
+    /**
+     * 测试密钥只生成一次，所有实例共用
+     */
+    static synchronized KeyPair testKeyPair() {
+        if (sKeyPair == null) {
+            try {
+                KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+                generator.initialize(2048);
+                sKeyPair = generator.generateKeyPair();
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        return sKeyPair;
+    }
+
+    /**
+     * 传给 IabHelper 构造函数的公钥
+     */
+    public String getBase64PublicKey() {
+        return Base64.encode(mKeyPair.getPublic().getEncoded());
+    }
+
+    // ---- 配置 ----
+
+    /**
+     * 添加一个商品
+     */
+    public synchronized void addProduct(String itemType, String sku, String price, String title) {
+        try {
+            JSONObject o = new JSONObject();
+            o.put("productId", sku);
+            o.put("type", itemType);
+            o.put("price", price);
+            o.put("title", title);
+            o.put("description", title);
+            mProducts.put(sku, o);
+        } catch (JSONException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    /**
+     * 添加 count 个商品，sku 为 prefix + 序号
+     */
+    public synchronized void addProducts(String itemType, String prefix, int count) {
+        for (int i = 0; i < count; i++)
+            addProduct(itemType, prefix + i, "$" + (i % 100) + ".99", "Product " + i);
+    }
+
+    /**
+     * 添加一个已经购买的商品，返回它的 token
+     */
+    public synchronized String addPurchase(String itemType, String sku, String developerPayload) {
+        long order = mNextOrder++;
+        String token = "token." + sku + "." + order;
+        try {
+            JSONObject o = new JSONObject();
+            o.put("orderId", "GPA.0000-" + order);
+            o.put("packageName", mContext != null ? mContext.getPackageName() : "test");
+            o.put("productId", sku);
+            o.put("purchaseTime", 1400000000000L + order);
+            o.put("purchaseState", 0);
+            o.put("developerPayload", developerPayload);
+            o.put("purchaseToken", token);
+            String json = o.toString();
+            mPurchases.put(token, new OwnedPurchase(itemType, sku, json, sign(json)));
+        } catch (JSONException e) {
+            throw new IllegalArgumentException(e);
+        }
+        return token;
+    }
+
+    /**
+     * 添加 count 个已经购买的商品，sku 为 prefix + 序号。用来模拟很长的购买历史
+     */
+    public synchronized void addPurchases(String itemType, String prefix, int count) {
+        for (int i = 0; i < count; i++)
+            addPurchase(itemType, prefix + i, "");
+    }
+
+    /**
+     * getPurchases 每页返回的购买数
+     */
+    public synchronized void setPageSize(int pageSize) {
+        mPageSize = pageSize;
+    }
+
+    public synchronized void setSubscriptionsSupported(boolean supported) {
+        mSubscriptionsSupported = supported;
+    }
+
+    /**
+     * method 的每次调用都先等待 millis
+     *
+     * @param method IS_BILLING_SUPPORTED 等
+     */
+    public synchronized void setLatency(String method, long millis) {
+        mLatency.put(method, millis);
+    }
+
+    /**
+     * 所有方法的每次调用都先等待 millis
+     */
+    public synchronized void setLatency(long millis) {
+        for (String method : new String[]{IS_BILLING_SUPPORTED, GET_SKU_DETAILS, GET_BUY_INTENT,
+                GET_PURCHASES, CONSUME_PURCHASE})
+            mLatency.put(method, millis);
+    }
+
+    /**
+     * method 之后的 times 次调用返回 responseCode
+     */
+    public synchronized void injectResponse(String method, int responseCode, int times) {
+        Deque<Integer> queue = injected(method);
+        for (int i = 0; i < times; i++)
+            queue.add(responseCode);
+    }
+
+    /**
+     * method 之后的 times 次调用抛出 RemoteException
+     */
+    public synchronized void injectRemoteException(String method, int times) {
+        injectResponse(method, REMOTE_EXCEPTION, times);
+    }
+
+    /**
+     * method 被调用的次数，包括失败的
+     */
+    public synchronized int getCallCount(String method) {
+        AtomicInteger n = mCalls.get(method);
+        return n == null ? 0 : n.get();
+    }
+
+    public synchronized int getPurchaseCount() {
+        return mPurchases.size();
+    }
+
+    /**
+     * 模拟用户在购买界面上完成购买，返回交给 IabHelper.handleActivityResult 的 Intent
+     */
+    public Intent completePurchase(String itemType, String sku, String developerPayload) {
+        String token = addPurchase(itemType, sku, developerPayload);
+        OwnedPurchase p;
+        synchronized (this) {
+            p = mPurchases.get(token);
+        }
+        Intent data = new Intent();
+        data.putExtra(IabHelper.RESPONSE_CODE, IabHelper.BILLING_RESPONSE_RESULT_OK);
+        data.putExtra(IabHelper.RESPONSE_INAPP_PURCHASE_DATA, p.json);
+        data.putExtra(IabHelper.RESPONSE_INAPP_SIGNATURE, p.signature);
+        return data;
+    }
+
+    // ---- IInAppBillingService ----
+
+    public int isBillingSupported(int apiVersion, String packageName, String type)
+            throws RemoteException {
+        Integer injected = enter(IS_BILLING_SUPPORTED);
+        if (injected != null)
+            return injected;
+        if (apiVersion < 3)
+            return IabHelper.BILLING_RESPONSE_RESULT_BILLING_UNAVAILABLE;
+        synchronized (this) {
+            if (IabHelper.ITEM_TYPE_SUBS.equals(type) && !mSubscriptionsSupported)
+                return IabHelper.BILLING_RESPONSE_RESULT_BILLING_UNAVAILABLE;
+        }
+        return IabHelper.BILLING_RESPONSE_RESULT_OK;
+    }
+
+    public Bundle getSkuDetails(int apiVersion, String packageName, String type,
+                                Bundle skusBundle) throws RemoteException {
+        Integer injected = enter(GET_SKU_DETAILS);
+        if (injected != null)
+            return response(injected);
+        ArrayList<String> skus = skusBundle.getStringArrayList(IabHelper.GET_SKU_DETAILS_ITEM_LIST);
+        if (skus == null || skus.size() > MAX_SKUS_PER_REQUEST)
+            return response(IabHelper.BILLING_RESPONSE_RESULT_DEVELOPER_ERROR);
+        ArrayList<String> details = new ArrayList<String>();
+        synchronized (this) {
+            for (String sku : skus) {
+                JSONObject o = mProducts.get(sku);
+                if (o != null && type.equals(o.optString("type")))
+                    details.add(o.toString());
+            }
+        }
+        Bundle b = response(IabHelper.BILLING_RESPONSE_RESULT_OK);
+        b.putStringArrayList(IabHelper.RESPONSE_GET_SKU_DETAILS_LIST, details);
+        return b;
+    }
+
+    public Bundle getBuyIntent(int apiVersion, String packageName, String sku, String type,
+                               String developerPayload) throws RemoteException {
+        Integer injected = enter(GET_BUY_INTENT);
+        if (injected != null)
+            return response(injected);
+        synchronized (this) {
+            if (!mProducts.containsKey(sku))
+                return response(IabHelper.BILLING_RESPONSE_RESULT_ITEM_UNAVAILABLE);
+            if (IabHelper.ITEM_TYPE_INAPP.equals(type)) {
+                for (OwnedPurchase p : mPurchases.values()) {
+                    if (p.sku.equals(sku))
+                        return response(IabHelper.BILLING_RESPONSE_RESULT_ITEM_ALREADY_OWNED);
+                }
+            }
+        }
+        Bundle b = response(IabHelper.BILLING_RESPONSE_RESULT_OK);
+        if (mContext != null)
+            b.putParcelable(IabHelper.RESPONSE_BUY_INTENT,
+                    PendingIntent.getActivity(mContext, 0, new Intent(), 0));
+        return b;
+    }
+
+    public Bundle getPurchases(int apiVersion, String packageName, String type,
+                               String continuationToken) throws RemoteException {
+        Integer injected = enter(GET_PURCHASES);
+        if (injected != null)
+            return response(injected);
+        int from = continuationToken == null ? 0 : Integer.parseInt(continuationToken);
+        ArrayList<String> skus = new ArrayList<String>();
+        ArrayList<String> data = new ArrayList<String>();
+        ArrayList<String> signatures = new ArrayList<String>();
+        boolean more = false;
+        synchronized (this) {
+            int index = 0;
+            for (OwnedPurchase p : mPurchases.values()) {
+                if (!p.itemType.equals(type))
+                    continue;
+                if (index++ < from)
+                    continue;
+                if (skus.size() == mPageSize) {
+                    more = true;
+                    break;
+                }
+                skus.add(p.sku);
+                data.add(p.json);
+                signatures.add(p.signature);
+            }
+        }
+        Bundle b = response(IabHelper.BILLING_RESPONSE_RESULT_OK);
+        b.putStringArrayList(IabHelper.RESPONSE_INAPP_ITEM_LIST, skus);
+        b.putStringArrayList(IabHelper.RESPONSE_INAPP_PURCHASE_DATA_LIST, data);
+        b.putStringArrayList(IabHelper.RESPONSE_INAPP_SIGNATURE_LIST, signatures);
+        if (more)
+            b.putString(IabHelper.INAPP_CONTINUATION_TOKEN, Integer.toString(from + skus.size()));
+        return b;
+    }
+
+    public int consumePurchase(int apiVersion, String packageName, String purchaseToken)
+            throws RemoteException {
+        Integer injected = enter(CONSUME_PURCHASE);
+        if (injected != null)
+            return injected;
+        synchronized (this) {
+            OwnedPurchase p = mPurchases.get(purchaseToken);
+            if (p == null || !IabHelper.ITEM_TYPE_INAPP.equals(p.itemType))
+                return IabHelper.BILLING_RESPONSE_RESULT_ITEM_NOT_OWNED;
+            mPurchases.remove(purchaseToken);
+        }
+        return IabHelper.BILLING_RESPONSE_RESULT_OK;
+    }
+
+    // ---- 内部 ----
+
+    /**
+     * 记录调用、等待延迟，有注入的结果时返回它
+     */
+    private Integer enter(String method) throws RemoteException {
+        long latency;
+        Integer injected;
+        synchronized (this) {
+            AtomicInteger n = mCalls.get(method);
+            if (n == null)
+                mCalls.put(method, n = new AtomicInteger());
+            n.incrementAndGet();
+            Long l = mLatency.get(method);
+            latency = l == null ? 0 : l;
+            Deque<Integer> queue = mInjected.get(method);
+            injected = queue == null ? null : queue.poll();
+        }
+        if (latency > 0) {
+            try {
+                Thread.sleep(latency);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (injected != null && injected == REMOTE_EXCEPTION)
+            throw new RemoteException();
+        return injected;
+    }
+
+    private Deque<Integer> injected(String method) {
+        Deque<Integer> queue = mInjected.get(method);
+        if (queue == null)
+            mInjected.put(method, queue = new ArrayDeque<Integer>());
+        return queue;
+    }
+
+    private static Bundle response(int code) {
+        Bundle b = new Bundle();
+        b.putInt(IabHelper.RESPONSE_CODE, code);
+        return b;
+    }
+
+    private String sign(String data) {
+        try {
+            Signature sig = Signature.getInstance("SHA1withRSA");
+            sig.initSign(mKeyPair.getPrivate());
+            // 和 Security.verifyPurchase 一样按 UTF-8 签名，不依赖平台默认编码
+            sig.update(data.getBytes("UTF-8"));
+            return Base64.encode(sig.sign());
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
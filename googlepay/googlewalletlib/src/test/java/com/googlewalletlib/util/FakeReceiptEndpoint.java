@@ -0,0 +1,206 @@
+package com.googlewalletlib.util;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * 本地的假收据服务器，接受和 ReceiptServer 的 /verify/batch 相同的请求，
+ * 用于在 JVM 上测试 PurchaseUploader，不需要真的服务器:
+ * <pre>
+ * FakeReceiptEndpoint endpoint = new FakeReceiptEndpoint();
+ * endpoint.start();
+ * endpoint.failNext(503, 2);
+ * endpoint.setLatency(200);
+ * PurchaseUploader uploader = new PurchaseUploader(endpoint.getUrl(), journal);
+ * </pre>
+ * 不验证签名，和 ReceiptServer 一样按 orderId 去重: 第一次收到返回 valid；
+ * 之后同一张收据 (签名相同) 返回 valid 并带上 resubmitted，别的收据返回 duplicate。
+ * 记录收到的请求数、购买数和最多同时进行的请求数
+ */
+public class FakeReceiptEndpoint {
+
+    private final HttpServer mServer;
+    // 收到过的 orderId 和第一次收到的签名，保持先后顺序
+    private final Map<String, String> mOrderIds = new LinkedHashMap<String, String>();
+    // 接下来的请求依次返回的 HTTP 状态
+    private final Deque<Integer> mFailures = new ArrayDeque<Integer>();
+    private final List<Integer> mBatchSizes = new ArrayList<Integer>();
+    private int mResubmitted;
+    private final AtomicInteger mInFlight = new AtomicInteger();
+    private final AtomicInteger mMaxInFlight = new AtomicInteger();
+    private volatile long mLatency;
+
+    public FakeReceiptEndpoint() throws IOException {
+        mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        mServer.createContext("/verify/batch", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                int inFlight = mInFlight.incrementAndGet();
+                try {
+                    updateMax(inFlight);
+                    serve(exchange);
+                } finally {
+                    mInFlight.decrementAndGet();
+                    exchange.close();
+                }
+            }
+        });
+        mServer.setExecutor(Executors.newCachedThreadPool());
+    }
+
+    public void start() {
+        mServer.start();
+    }
+
+    public void stop() {
+        mServer.stop(0);
+    }
+
+    public URL getUrl() {
+        try {
+            return new URL("http://127.0.0.1:" + mServer.getAddress().getPort() + "/verify/batch");
+        } catch (MalformedURLException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * 接下来的 count 个请求返回 status，不处理其中的购买
+     */
+    public synchronized void failNext(int status, int count) {
+        for (int i = 0; i < count; i++)
+            mFailures.add(status);
+    }
+
+    /**
+     * 每个请求在返回之前等待的时间
+     */
+    public void setLatency(long millis) {
+        mLatency = millis;
+    }
+
+    /** 收到过的不同 orderId 数 */
+    public synchronized int getReceivedCount() {
+        return mOrderIds.size();
+    }
+
+    public synchronized List<String> getOrderIds() {
+        return new ArrayList<String>(mOrderIds.keySet());
+    }
+
+    /** 重新提交同一张收据的次数 */
+    public synchronized int getResubmittedCount() {
+        return mResubmitted;
+    }
+
+    /** 每个成功请求中的购买数 */
+    public synchronized List<Integer> getBatchSizes() {
+        return new ArrayList<Integer>(mBatchSizes);
+    }
+
+    public int getMaxInFlight() {
+        return mMaxInFlight.get();
+    }
+
+    private void updateMax(int inFlight) {
+        int max;
+        while ((max = mMaxInFlight.get()) < inFlight && !mMaxInFlight.compareAndSet(max, inFlight)) {
+        }
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        InputStream in = exchange.getRequestBody();
+        if ("gzip".equalsIgnoreCase(exchange.getRequestHeaders().getFirst("Content-Encoding")))
+            in = new GZIPInputStream(in);
+        String body = read(in);
+        sleep(mLatency);
+        Integer failure;
+        synchronized (this) {
+            failure = mFailures.poll();
+        }
+        if (failure != null) {
+            reply(exchange, failure, "{\"error\":\"injected\"}");
+            return;
+        }
+        try {
+            JSONArray receipts = new JSONObject(body).getJSONArray("receipts");
+            JSONArray verdicts = new JSONArray();
+            synchronized (this) {
+                for (int i = 0; i < receipts.length(); i++) {
+                    JSONObject receipt = receipts.getJSONObject(i);
+                    String signature = receipt.optString("signature");
+                    String orderId = new JSONObject(receipt.getString("purchaseData")).optString("orderId");
+                    JSONObject v = new JSONObject();
+                    v.put("orderId", orderId);
+                    String seen = mOrderIds.get(orderId);
+                    if (seen == null) {
+                        mOrderIds.put(orderId, signature);
+                        v.put("status", "valid");
+                    } else if (seen.equals(signature)) {
+                        mResubmitted++;
+                        v.put("status", "valid");
+                        v.put("resubmitted", true);
+                    } else {
+                        v.put("status", "duplicate");
+                    }
+                    verdicts.put(v);
+                }
+                mBatchSizes.add(receipts.length());
+            }
+            JSONObject response = new JSONObject();
+            response.put("verdicts", verdicts);
+            reply(exchange, 200, response.toString());
+        } catch (JSONException e) {
+            reply(exchange, 400, "{\"error\":\"请求不是 json 对象\"}");
+        }
+    }
+
+    private static void reply(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes("UTF-8");
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(bytes);
+        out.close();
+    }
+
+    private static String read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        int n;
+        while ((n = in.read(buf)) != -1)
+            out.write(buf, 0, n);
+        return out.toString("UTF-8");
+    }
+
+    private static void sleep(long millis) {
+        if (millis <= 0)
+            return;
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
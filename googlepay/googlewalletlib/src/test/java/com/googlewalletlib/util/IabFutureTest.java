@@ -0,0 +1,198 @@
+package com.googlewalletlib.util;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * IabFuture 的完成、回调、组合和取消
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23)
+public class IabFutureTest {
+
+    /**
+     * 记录回调的结果
+     */
+    static class Recorder<T> implements IabFuture.Callback<T> {
+        final List<Object> events = new ArrayList<Object>();
+
+        public void onSuccess(T value) {
+            events.add("success:" + value);
+        }
+
+        public void onFailure(Throwable error) {
+            events.add(error);
+        }
+    }
+
+    @Test
+    public void callbackAddedBeforeAndAfterCompletionRunsOnce() {
+        IabFuture<String> future = new IabFuture<String>();
+        Recorder<String> before = new Recorder<String>();
+        future.addCallback(before);
+        assertTrue(before.events.isEmpty());
+
+        assertTrue(future.complete("a"));
+        assertFalse(future.complete("b"));
+        assertFalse(future.fail(new IllegalStateException()));
+        assertEquals(Arrays.<Object>asList("success:a"), before.events);
+
+        Recorder<String> after = new Recorder<String>();
+        future.addCallback(after);
+        assertEquals(Arrays.<Object>asList("success:a"), after.events);
+    }
+
+    @Test
+    public void nullValueIsASuccess() throws Exception {
+        IabFuture<String> future = IabFuture.completed(null);
+        Recorder<String> recorder = new Recorder<String>();
+        future.addCallback(recorder);
+        assertEquals(Arrays.<Object>asList("success:null"), recorder.events);
+        assertNull(future.get());
+    }
+
+    @Test
+    public void nullFailureIsRejected() {
+        IabFuture<String> future = new IabFuture<String>();
+        try {
+            future.fail(null);
+            fail();
+        } catch (NullPointerException expected) {
+        }
+        assertFalse(future.isDone());
+    }
+
+    @Test
+    public void failureIsReportedToCallbacksAndGet() throws Exception {
+        IabException error = new IabException(IabHelper.IABHELPER_UNKNOWN_ERROR, "失败");
+        IabFuture<String> future = IabFuture.failed(error);
+        Recorder<String> recorder = new Recorder<String>();
+        future.addCallback(recorder);
+        assertEquals(Arrays.<Object>asList(error), recorder.events);
+        try {
+            future.get();
+            fail();
+        } catch (ExecutionException e) {
+            assertSame(error, e.getCause());
+        }
+    }
+
+    @Test
+    public void cancelNotifiesCallbacksAndUpstream() throws Exception {
+        IabFuture<String> upstream = new IabFuture<String>();
+        IabFuture<Integer> next = upstream.thenApply(new IabFuture.Transform<String, Integer>() {
+            public Integer apply(String value) {
+                return value.length();
+            }
+        });
+        Recorder<Integer> recorder = new Recorder<Integer>();
+        next.addCallback(recorder);
+
+        assertTrue(next.cancel(true));
+        assertFalse(next.cancel(true));
+        assertTrue(next.isCancelled());
+        assertTrue(upstream.isCancelled());
+        assertEquals(1, recorder.events.size());
+        assertTrue(recorder.events.get(0) instanceof CancellationException);
+        try {
+            next.get();
+            fail();
+        } catch (CancellationException expected) {
+        }
+    }
+
+    @Test
+    public void cancelInterruptsTheRunningTask() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final CountDownLatch started = new CountDownLatch(1);
+            final CountDownLatch interrupted = new CountDownLatch(1);
+            IabFuture<String> future = IabFuture.submit(executor, new Callable<String>() {
+                public String call() throws Exception {
+                    started.countDown();
+                    try {
+                        Thread.sleep(10000);
+                    } catch (InterruptedException e) {
+                        interrupted.countDown();
+                        throw e;
+                    }
+                    return "done";
+                }
+            });
+            assertTrue(started.await(10, TimeUnit.SECONDS));
+            future.cancel(true);
+            assertTrue(interrupted.await(10, TimeUnit.SECONDS));
+            // task 抛出的中断异常不会覆盖取消
+            assertTrue(future.isCancelled());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void thenComposeAndExceptionally() throws Exception {
+        IabFuture<String> first = new IabFuture<String>();
+        final IabFuture<Integer> inner = new IabFuture<Integer>();
+        IabFuture<Integer> composed = first.thenCompose(new IabFuture.AsyncTransform<String, Integer>() {
+            public IabFuture<Integer> apply(String value) {
+                return inner;
+            }
+        }).exceptionally(new IabFuture.Transform<Throwable, Integer>() {
+            public Integer apply(Throwable error) {
+                return -1;
+            }
+        });
+
+        first.complete("a");
+        assertFalse(composed.isDone());
+        inner.fail(new IllegalStateException());
+        assertEquals(-1, composed.get(1, TimeUnit.SECONDS).intValue());
+    }
+
+    @Test
+    public void allOfKeepsOrderAndFailsOnFirstFailure() throws Exception {
+        IabFuture<Integer> a = new IabFuture<Integer>();
+        IabFuture<Integer> b = new IabFuture<Integer>();
+        IabFuture<List<Integer>> all = IabFuture.allOf(Arrays.asList(a, b));
+        b.complete(2);
+        a.complete(1);
+        assertEquals(Arrays.asList(1, 2), all.get());
+
+        IabFuture<Integer> c = new IabFuture<Integer>();
+        IabFuture<Integer> d = new IabFuture<Integer>();
+        IabFuture<List<Integer>> failed = IabFuture.allOf(Arrays.asList(c, d));
+        IllegalStateException error = new IllegalStateException();
+        d.fail(error);
+        assertTrue(failed.isDone());
+        try {
+            failed.get();
+            fail();
+        } catch (ExecutionException e) {
+            assertSame(error, e.getCause());
+        }
+        // 取消组合的结果会取消还没完成的部分
+        IabFuture<Integer> pending = new IabFuture<Integer>();
+        IabFuture.allOf(Arrays.asList(pending)).cancel(true);
+        assertTrue(pending.isCancelled());
+    }
+}
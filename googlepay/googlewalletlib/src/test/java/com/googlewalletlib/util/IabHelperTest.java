@@ -0,0 +1,387 @@
+package com.googlewalletlib.util;
+
+import android.app.Activity;
+import android.content.Intent;
+import android.content.IntentSender;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 用 FakeInAppBillingService 在 JVM 上测试 IabHelper 的初始化、查询、购买和消耗
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23)
+public class IabHelperTest {
+
+    private FakeInAppBillingService mFake;
+    private IabHelper mHelper;
+
+    @Before
+    public void setUp() {
+        mFake = new FakeInAppBillingService(RuntimeEnvironment.application);
+        mHelper = new IabHelper(RuntimeEnvironment.application, mFake.getBase64PublicKey());
+        // 回调直接在完成操作的线程上执行，不需要驱动主线程的 looper
+        mHelper.setCallbackExecutor(IabCallbackExecutor.direct());
+    }
+
+    @Test
+    public void startSetupChecksInAppAndSubscriptions() {
+        IabResult result = setUp(mHelper, mFake);
+        assertTrue(result.isSuccess());
+        assertTrue(mHelper.subscriptionsSupported());
+        assertEquals(2, mFake.getCallCount(FakeInAppBillingService.IS_BILLING_SUPPORTED));
+    }
+
+    @Test
+    public void startSetupReportsBillingUnavailable() {
+        mFake.injectResponse(FakeInAppBillingService.IS_BILLING_SUPPORTED,
+                IabHelper.BILLING_RESPONSE_RESULT_BILLING_UNAVAILABLE, 1);
+        IabResult result = setUp(mHelper, mFake);
+        assertFalse(result.isSuccess());
+        assertEquals(IabHelper.BILLING_RESPONSE_RESULT_BILLING_UNAVAILABLE, result.getResponse());
+    }
+
+    @Test
+    public void startSetupWithoutSubscriptions() {
+        mFake.setSubscriptionsSupported(false);
+        assertTrue(setUp(mHelper, mFake).isSuccess());
+        assertFalse(mHelper.subscriptionsSupported());
+    }
+
+    @Test
+    public void queryInventoryFollowsContinuationTokens() throws Exception {
+        mFake.setPageSize(100);
+        mFake.addPurchases(IabHelper.ITEM_TYPE_INAPP, "gas_", 250);
+        setUp(mHelper, mFake);
+
+        Inventory inventory = mHelper.queryInventory(false, null);
+        assertEquals(250, inventory.getAllPurchases().size());
+        assertTrue(inventory.hasPurchase("gas_249"));
+        // 250 个购买分三页，另外查一次订阅
+        assertEquals(4, mFake.getCallCount(FakeInAppBillingService.GET_PURCHASES));
+    }
+
+    @Test
+    public void queryInventoryRetriesRemoteExceptionOffTheMainThread() throws Exception {
+        mFake.addPurchases(IabHelper.ITEM_TYPE_INAPP, "gas_", 3);
+        setUp(mHelper, mFake);
+        mHelper.setRetryPolicy(new IabRetryPolicy(3, 1, 10));
+        mFake.injectRemoteException(FakeInAppBillingService.GET_PURCHASES, 1);
+
+        // 主线程上不重试，查询放到后台线程
+        Inventory inventory = inBackground(new Callable<Inventory>() {
+            public Inventory call() throws Exception {
+                return mHelper.queryInventory(false, null);
+            }
+        });
+        assertEquals(3, inventory.getAllPurchases().size());
+    }
+
+    @Test
+    public void queryInventoryWithoutRetryPolicyFails() throws Exception {
+        setUp(mHelper, mFake);
+        mHelper.setRetryPolicy(null);
+        mFake.injectRemoteException(FakeInAppBillingService.GET_PURCHASES, 1);
+        try {
+            mHelper.queryInventory(false, null);
+            throw new AssertionError("没有抛出 IabException");
+        } catch (IabException e) {
+            assertEquals(IabHelper.IABHELPER_REMOTE_EXCEPTION, e.getResult().getResponse());
+        }
+    }
+
+    @Test
+    public void queryInventoryTimesOutAtTheDeadline() throws Exception {
+        setUp(mHelper, mFake);
+        mHelper.setRetryPolicy(null);
+        mHelper.setTimeout(50);
+        mFake.setLatency(FakeInAppBillingService.GET_PURCHASES, 300);
+        try {
+            mHelper.queryInventory(false, null);
+            throw new AssertionError("没有抛出 IabException");
+        } catch (IabException e) {
+            assertEquals(IabHelper.IABHELPER_TIMEOUT, e.getResult().getResponse());
+        } finally {
+            awaitIpcIdle();
+        }
+    }
+
+    @Test
+    public void fullIpcPoolFailsWithoutCallingTheService() throws Exception {
+        setUp(mHelper, mFake);
+        mHelper.setRetryPolicy(null);
+        mHelper.setCircuitBreaker(null);
+        mHelper.setTimeout(20);
+        mFake.setLatency(FakeInAppBillingService.GET_PURCHASES, 500);
+        try {
+            // 每个超时的调用都留下一个卡在 service 里的 IPC 线程
+            for (int i = 0; i <= IabExecutors.MAX_IPC_THREADS; i++) {
+                try {
+                    mHelper.queryInventory(false, null);
+                    throw new AssertionError("没有抛出 IabException");
+                } catch (IabException e) {
+                    assertEquals(IabHelper.IABHELPER_TIMEOUT, e.getResult().getResponse());
+                }
+            }
+            assertEquals(IabExecutors.MAX_IPC_THREADS,
+                    mFake.getCallCount(FakeInAppBillingService.GET_PURCHASES));
+        } finally {
+            awaitIpcIdle();
+        }
+    }
+
+    @Test
+    public void queryInventoryWithSkuDetails() throws Exception {
+        mFake.addProducts(IabHelper.ITEM_TYPE_INAPP, "gas_", 15);
+        mFake.addPurchase(IabHelper.ITEM_TYPE_INAPP, "gas_3", "");
+        setUp(mHelper, mFake);
+
+        List<String> more = new ArrayList<String>();
+        for (int i = 0; i < 15; i++)
+            more.add("gas_" + i);
+        Inventory inventory = mHelper.queryInventory(true, more);
+        assertTrue(inventory.hasPurchase("gas_3"));
+        for (int i = 0; i < 15; i++)
+            assertTrue("gas_" + i, inventory.hasDetails("gas_" + i));
+    }
+
+    @Test
+    public void consumeManyPurchasesInParallel() throws Exception {
+        mFake.addPurchases(IabHelper.ITEM_TYPE_INAPP, "gas_", 30);
+        mFake.setLatency(FakeInAppBillingService.CONSUME_PURCHASE, 5);
+        setUp(mHelper, mFake);
+        List<Purchase> purchases = mHelper.queryInventory(false, null).getAllPurchases();
+        // 同一个 token 出现两次，只消耗一次
+        purchases.add(purchases.get(0));
+
+        final CountDownLatch done = new CountDownLatch(1);
+        final List<IabResult> results = new ArrayList<IabResult>();
+        mHelper.consumeAsync(purchases, IabHelper.MAX_CONSUME_PARALLELISM, null,
+                new IabHelper.OnConsumeMultiFinishedListener() {
+                    public void onConsumeMultiFinished(List<Purchase> p, List<IabResult> r) {
+                        results.addAll(r);
+                        done.countDown();
+                    }
+                });
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+
+        assertEquals(31, results.size());
+        int duplicates = 0;
+        for (IabResult r : results) {
+            if (r.getResponse() == IabHelper.IABHELPER_DUPLICATE_CONSUMPTION)
+                duplicates++;
+            else
+                assertTrue(r.toString(), r.isSuccess());
+        }
+        assertEquals(1, duplicates);
+        assertEquals(0, mFake.getPurchaseCount());
+        assertEquals(30, mFake.getCallCount(FakeInAppBillingService.CONSUME_PURCHASE));
+    }
+
+    @Test
+    public void manyDuplicateTokensDoNotOverflowTheStack() throws Exception {
+        mFake.addPurchase(IabHelper.ITEM_TYPE_INAPP, "gas", "");
+        setUp(mHelper, mFake);
+        Purchase purchase = mHelper.queryInventory(false, null).getPurchase("gas");
+        // 重复的 token 在分发线程上直接得到结果，没有 item listener 时马上取下一个
+        List<Purchase> purchases = new ArrayList<Purchase>();
+        for (int i = 0; i < 100000; i++)
+            purchases.add(purchase);
+
+        final CountDownLatch done = new CountDownLatch(1);
+        final List<IabResult> results = new ArrayList<IabResult>();
+        mHelper.consumeAsync(purchases, IabHelper.MAX_CONSUME_PARALLELISM, null,
+                new IabHelper.OnConsumeMultiFinishedListener() {
+                    public void onConsumeMultiFinished(List<Purchase> p, List<IabResult> r) {
+                        results.addAll(r);
+                        done.countDown();
+                    }
+                });
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+
+        assertEquals(100000, results.size());
+        assertTrue(results.get(0).isSuccess());
+        assertEquals(IabHelper.IABHELPER_DUPLICATE_CONSUMPTION, results.get(99999).getResponse());
+        assertEquals(1, mFake.getCallCount(FakeInAppBillingService.CONSUME_PURCHASE));
+    }
+
+    @Test
+    public void purchaseFlowVerifiesTheReturnedPurchase() {
+        mFake.addProduct(IabHelper.ITEM_TYPE_INAPP, "gas", "$0.99", "Gas");
+        setUp(mHelper, mFake);
+        RecordingActivity activity = Robolectric.buildActivity(RecordingActivity.class).create().get();
+        PurchaseResult listener = new PurchaseResult();
+
+        int requestCode = mHelper.launchPurchaseFlow(activity, "gas", IabHelper.ITEM_TYPE_INAPP,
+                listener, "payload");
+        assertEquals(requestCode, activity.mRequestCode);
+        assertNull(listener.mResult);
+
+        Intent data = mFake.completePurchase(IabHelper.ITEM_TYPE_INAPP, "gas", "payload");
+        assertTrue(mHelper.handleActivityResult(requestCode, Activity.RESULT_OK, data));
+        assertTrue(listener.mResult.toString(), listener.mResult.isSuccess());
+        assertEquals("gas", listener.mPurchase.getSku());
+        assertEquals("payload", listener.mPurchase.getDeveloperPayload());
+        // 同一个请求码只处理一次
+        assertFalse(mHelper.handleActivityResult(requestCode, Activity.RESULT_OK, data));
+    }
+
+    @Test
+    public void consumeIsTracedUnderThePurchaseFlow() throws Exception {
+        mFake.addProduct(IabHelper.ITEM_TYPE_INAPP, "gas", "$0.99", "Gas");
+        setUp(mHelper, mFake);
+        IabTraceBuffer buffer = new IabTraceBuffer(32);
+        IabTracer tracer = new IabTracer(buffer);
+        mHelper.setTracer(tracer);
+        RecordingActivity activity = Robolectric.buildActivity(RecordingActivity.class).create().get();
+        PurchaseResult listener = new PurchaseResult();
+
+        long flowId = tracer.newFlowId();
+        int requestCode = mHelper.launchPurchaseFlow(activity, "gas", IabHelper.ITEM_TYPE_INAPP,
+                listener, "payload", flowId);
+        Intent data = mFake.completePurchase(IabHelper.ITEM_TYPE_INAPP, "gas", "payload");
+        mHelper.handleActivityResult(requestCode, Activity.RESULT_OK, data);
+        // 消耗的是重新解析的 Purchase，流程按 token 找回
+        Purchase purchase = new Purchase(IabHelper.ITEM_TYPE_INAPP,
+                listener.mPurchase.getOriginalJson(), listener.mPurchase.getSignature());
+        mHelper.consume(purchase);
+
+        List<String> stages = new ArrayList<String>();
+        for (IabSpan span : buffer.getSpans(flowId))
+            stages.add(span.getName());
+        assertTrue(stages.toString(), stages.contains("purchaseActivity"));
+        assertTrue(stages.toString(), stages.contains("verifyPurchase"));
+        assertTrue(stages.toString(), stages.contains("consume"));
+    }
+
+    @Test
+    public void purchaseFlowRejectsATamperedSignature() {
+        mFake.addProduct(IabHelper.ITEM_TYPE_INAPP, "gas", "$0.99", "Gas");
+        setUp(mHelper, mFake);
+        RecordingActivity activity = Robolectric.buildActivity(RecordingActivity.class).create().get();
+        PurchaseResult listener = new PurchaseResult();
+        int requestCode = mHelper.launchPurchaseFlow(activity, "gas", IabHelper.ITEM_TYPE_INAPP,
+                listener, "payload");
+
+        Intent data = mFake.completePurchase(IabHelper.ITEM_TYPE_INAPP, "gas", "payload");
+        String json = data.getStringExtra(IabHelper.RESPONSE_INAPP_PURCHASE_DATA);
+        data.putExtra(IabHelper.RESPONSE_INAPP_PURCHASE_DATA, json.replace("gas", "gold"));
+        mHelper.handleActivityResult(requestCode, Activity.RESULT_OK, data);
+        assertEquals(IabHelper.IABHELPER_VERIFICATION_FAILED, listener.mResult.getResponse());
+    }
+
+    @Test
+    public void purchaseFlowReportsUserCancel() {
+        mFake.addProduct(IabHelper.ITEM_TYPE_INAPP, "gas", "$0.99", "Gas");
+        setUp(mHelper, mFake);
+        RecordingActivity activity = Robolectric.buildActivity(RecordingActivity.class).create().get();
+        PurchaseResult listener = new PurchaseResult();
+        int requestCode = mHelper.launchPurchaseFlow(activity, "gas", IabHelper.ITEM_TYPE_INAPP,
+                listener, "payload");
+
+        mHelper.handleActivityResult(requestCode, Activity.RESULT_CANCELED, new Intent());
+        assertEquals(IabHelper.IABHELPER_USER_CANCELLED, listener.mResult.getResponse());
+    }
+
+    @Test
+    public void purchaseFlowWithoutPendingIntentFails() {
+        // 没有 context 的假服务不返回 PendingIntent
+        FakeInAppBillingService fake = new FakeInAppBillingService(null);
+        fake.addProduct(IabHelper.ITEM_TYPE_INAPP, "gas", "$0.99", "Gas");
+        setUp(mHelper, fake);
+        RecordingActivity activity = Robolectric.buildActivity(RecordingActivity.class).create().get();
+        PurchaseResult listener = new PurchaseResult();
+
+        mHelper.launchPurchaseFlow(activity, "gas", IabHelper.ITEM_TYPE_INAPP, listener, "payload");
+        assertNotNull(listener.mResult);
+        assertEquals(IabHelper.IABHELPER_BAD_RESPONSE, listener.mResult.getResponse());
+        assertEquals(-1, activity.mRequestCode);
+    }
+
+    @Test
+    public void purchaseFlowReportsAlreadyOwned() {
+        mFake.addProduct(IabHelper.ITEM_TYPE_INAPP, "gas", "$0.99", "Gas");
+        mFake.addPurchase(IabHelper.ITEM_TYPE_INAPP, "gas", "");
+        setUp(mHelper, mFake);
+        RecordingActivity activity = Robolectric.buildActivity(RecordingActivity.class).create().get();
+        PurchaseResult listener = new PurchaseResult();
+
+        mHelper.launchPurchaseFlow(activity, "gas", IabHelper.ITEM_TYPE_INAPP, listener, "payload");
+        assertEquals(IabHelper.BILLING_RESPONSE_RESULT_ITEM_ALREADY_OWNED,
+                listener.mResult.getResponse());
+    }
+
+    static IabResult setUp(IabHelper helper, FakeInAppBillingService fake) {
+        final IabResult[] result = new IabResult[1];
+        helper.startSetup(fake, new IabHelper.OnIabSetupFinishedListener() {
+            public void onIabSetupFinished(IabResult r) {
+                result[0] = r;
+            }
+        });
+        // 传入 service 时同步完成初始化
+        assertNotNull(result[0]);
+        return result[0];
+    }
+
+    /**
+     * 等超时后被放弃的 IPC 线程回来，免得影响后面的测试
+     */
+    static void awaitIpcIdle() throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (IabExecutors.ipc().getActiveCount() > 0 && System.nanoTime() < deadline)
+            Thread.sleep(10);
+    }
+
+    static <T> T inBackground(Callable<T> task) throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            return executor.submit(task).get(10, TimeUnit.SECONDS);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    static class PurchaseResult implements IabHelper.OnIabPurchaseFinishedListener {
+        IabResult mResult;
+        Purchase mPurchase;
+
+        public void onIabPurchaseFinished(IabResult result, Purchase info) {
+            mResult = result;
+            mPurchase = info;
+        }
+    }
+
+    /**
+     * 记录打开购买界面的请求码，不真的启动
+     */
+    public static class RecordingActivity extends Activity {
+        int mRequestCode = -1;
+
+        @Override
+        public void startIntentSenderForResult(IntentSender intent, int requestCode,
+                                               Intent fillInIntent, int flagsMask,
+                                               int flagsValues, int extraFlags) {
+            mRequestCode = requestCode;
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package com.googlewalletlib.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * IabMetrics 的响应码槽位、耗时桶和分位数
+ */
+public class IabMetricsTest {
+
+    private static final long MS = 1000 * 1000;
+
+    @Test
+    public void bucketsDoubleFromTheFirstUpperBound() {
+        assertEquals(0, IabMetrics.bucketOf(0));
+        assertEquals(0, IabMetrics.bucketOf(249));
+        assertEquals(1, IabMetrics.bucketOf(250));
+        assertEquals(1, IabMetrics.bucketOf(499));
+        assertEquals(2, IabMetrics.bucketOf(500));
+        assertEquals(IabMetrics.BUCKETS - 1, IabMetrics.bucketOf(Long.MAX_VALUE / 2));
+
+        assertEquals(250, IabMetrics.bucketUpperMicros(0));
+        assertEquals(500, IabMetrics.bucketUpperMicros(1));
+        assertEquals(Long.MAX_VALUE, IabMetrics.bucketUpperMicros(IabMetrics.BUCKETS - 1));
+        // 每个桶的上限是下一个桶的起点
+        for (int b = 0; b < IabMetrics.BUCKETS - 1; b++) {
+            long upper = IabMetrics.bucketUpperMicros(b);
+            assertEquals(b, IabMetrics.bucketOf(upper - 1));
+            assertEquals(b + 1, IabMetrics.bucketOf(upper));
+        }
+    }
+
+    @Test
+    public void responseSlotsRoundTrip() {
+        for (int code = 0; code <= IabMetrics.MAX_BILLING_CODE; code++)
+            assertEquals(code, IabMetrics.responseOfSlot(IabMetrics.responseSlot(code)));
+        assertEquals(IabHelper.IABHELPER_REMOTE_EXCEPTION,
+                IabMetrics.responseOfSlot(IabMetrics.responseSlot(IabHelper.IABHELPER_REMOTE_EXCEPTION)));
+        // 不认识的响应码都在最后一个槽位
+        assertEquals(IabMetrics.RESPONSE_SLOTS - 1, IabMetrics.responseSlot(99));
+        assertEquals(IabMetrics.RESPONSE_SLOTS - 1, IabMetrics.responseSlot(-1));
+        assertEquals(IabMetrics.RESPONSE_SLOTS - 1, IabMetrics.responseSlot(-5000));
+    }
+
+    @Test
+    public void countsAndPercentilesPerMethod() {
+        IabMetrics metrics = new IabMetrics();
+        for (int i = 0; i < 99; i++)
+            metrics.record(IabMetrics.GET_PURCHASES, IabHelper.BILLING_RESPONSE_RESULT_OK, MS / 10);
+        metrics.record(IabMetrics.GET_PURCHASES, IabHelper.IABHELPER_TIMEOUT, 10 * MS);
+        metrics.record(IabMetrics.CONSUME_PURCHASE, IabHelper.BILLING_RESPONSE_RESULT_OK, MS);
+        // 不统计的方法忽略
+        metrics.record(-1, 0, MS);
+
+        IabMetrics.Snapshot s = metrics.snapshot();
+        assertEquals(100, s.getCount(IabMetrics.GET_PURCHASES));
+        assertEquals(99, s.getCount(IabMetrics.GET_PURCHASES, IabHelper.BILLING_RESPONSE_RESULT_OK));
+        assertEquals(1, s.getCount(IabMetrics.GET_PURCHASES, IabHelper.IABHELPER_TIMEOUT));
+        assertEquals(1, s.getCount(IabMetrics.CONSUME_PURCHASE));
+        assertEquals(0, s.getCount(IabMetrics.GET_SKU_DETAILS));
+        assertEquals((99 * 100 + 10000) / 100, s.getMeanMicros(IabMetrics.GET_PURCHASES));
+
+        assertEquals(250, s.getPercentileMicros(IabMetrics.GET_PURCHASES, 0.5));
+        assertEquals(250, s.getPercentileMicros(IabMetrics.GET_PURCHASES, 0.99));
+        assertEquals(16000, s.getPercentileMicros(IabMetrics.GET_PURCHASES, 1.0));
+        assertEquals(0, s.getPercentileMicros(IabMetrics.GET_SKU_DETAILS, 0.5));
+
+        long[] h = s.getHistogram(IabMetrics.GET_PURCHASES, IabHelper.IABHELPER_TIMEOUT);
+        assertEquals(1, h[IabMetrics.bucketOf(10000)]);
+        String text = s.toString();
+        assertTrue(text, text.contains("getPurchases count=100"));
+        assertTrue(text, text.contains("  " + IabHelper.IABHELPER_TIMEOUT + " count=1"));
+        assertTrue(text, text.contains("consumePurchase count=1"));
+    }
+
+    @Test
+    public void snapshotIsACopy() {
+        IabMetrics metrics = new IabMetrics();
+        metrics.record(IabMetrics.GET_PURCHASES, 0, MS);
+        IabMetrics.Snapshot s = metrics.snapshot();
+        metrics.record(IabMetrics.GET_PURCHASES, 0, MS);
+        assertEquals(1, s.getCount(IabMetrics.GET_PURCHASES));
+        metrics.reset();
+        assertEquals(0, metrics.snapshot().getCount(IabMetrics.GET_PURCHASES));
+    }
+}
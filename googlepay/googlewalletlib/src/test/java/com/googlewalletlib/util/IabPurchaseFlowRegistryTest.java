@@ -0,0 +1,106 @@
+package com.googlewalletlib.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * IabPurchaseFlowRegistry 的 request code 分配和回收
+ */
+public class IabPurchaseFlowRegistryTest {
+
+    private static IabPurchaseFlowRegistry.Flow flow(int requestCode, String sku) {
+        return new IabPurchaseFlowRegistry.Flow(requestCode, sku, IabHelper.ITEM_TYPE_INAPP,
+                null, 0, 0);
+    }
+
+    @Test
+    public void requestCodesAreAllocatedInOrder() {
+        IabPurchaseFlowRegistry registry = new IabPurchaseFlowRegistry();
+        int first = registry.nextRequestCode();
+        assertEquals(IabPurchaseFlowRegistry.FIRST_REQUEST_CODE, first);
+        registry.register(flow(first, "gas"));
+        int second = registry.nextRequestCode();
+        assertEquals(first + 1, second);
+        registry.register(flow(second, "coin"));
+
+        assertEquals(2, registry.size());
+        assertTrue(registry.isPending(first));
+        assertEquals("gas", registry.remove(first).sku);
+        assertNull(registry.remove(first));
+        assertFalse(registry.isPending(first));
+        assertEquals("coin", registry.remove(second).sku);
+    }
+
+    @Test
+    public void pendingCodesAreSkippedAfterWrapAround() {
+        IabPurchaseFlowRegistry registry = new IabPurchaseFlowRegistry();
+        int first = registry.nextRequestCode();
+        registry.register(flow(first, "gas"));
+        // 用完一圈，回到开头时跳过还在等待结果的 first
+        int code = first;
+        for (int i = IabPurchaseFlowRegistry.FIRST_REQUEST_CODE;
+             i < IabPurchaseFlowRegistry.LAST_REQUEST_CODE; i++)
+            code = registry.nextRequestCode();
+        assertEquals(IabPurchaseFlowRegistry.LAST_REQUEST_CODE, code);
+        assertEquals(first + 1, registry.nextRequestCode());
+
+        // 结束之后可以再次使用
+        registry.remove(first);
+        int next = first + 2;
+        for (int i = next; i <= IabPurchaseFlowRegistry.LAST_REQUEST_CODE; i++)
+            assertTrue(registry.nextRequestCode() != first);
+        assertEquals(first, registry.nextRequestCode());
+    }
+
+    @Test
+    public void registeringAnExplicitCodeReturnsThePreviousFlow() {
+        IabPurchaseFlowRegistry registry = new IabPurchaseFlowRegistry();
+        IabPurchaseFlowRegistry.Flow old = flow(10001, "gas");
+        assertNull(registry.register(old));
+        assertSame(old, registry.register(flow(10001, "coin")));
+        assertEquals(1, registry.size());
+        registry.clear();
+        assertEquals(0, registry.size());
+    }
+
+    @Test
+    public void traceFlowIdsAreKeptForTheMostRecentTokens() {
+        IabPurchaseFlowRegistry registry = new IabPurchaseFlowRegistry();
+        registry.putTraceFlowId("token-0", 5);
+        registry.putTraceFlowId("token-none", 0);
+        registry.putTraceFlowId(null, 6);
+        assertEquals(5, registry.getTraceFlowId("token-0"));
+        assertEquals(0, registry.getTraceFlowId("token-none"));
+        assertEquals(0, registry.getTraceFlowId(null));
+
+        registry.removeTraceFlowId("token-0");
+        assertEquals(0, registry.getTraceFlowId("token-0"));
+
+        // 没有被消耗的 token 只保留最近的 MAX_TRACED_TOKENS 个
+        for (int i = 1; i <= IabPurchaseFlowRegistry.MAX_TRACED_TOKENS + 1; i++)
+            registry.putTraceFlowId("token-" + i, i);
+        assertEquals(0, registry.getTraceFlowId("token-1"));
+        assertEquals(2, registry.getTraceFlowId("token-2"));
+        registry.clear();
+        assertEquals(0, registry.getTraceFlowId("token-2"));
+    }
+
+    @Test
+    public void exhaustedCodesFail() {
+        IabPurchaseFlowRegistry registry = new IabPurchaseFlowRegistry();
+        for (int code = IabPurchaseFlowRegistry.FIRST_REQUEST_CODE;
+             code <= IabPurchaseFlowRegistry.LAST_REQUEST_CODE; code++)
+            registry.register(flow(code, "gas"));
+        try {
+            registry.nextRequestCode();
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+    }
+}
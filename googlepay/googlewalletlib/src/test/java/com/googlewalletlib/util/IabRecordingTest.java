@@ -0,0 +1,157 @@
+package com.googlewalletlib.util;
+
+import android.os.Bundle;
+
+import com.android.vending.billing.IInAppBillingService;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * 录下 FakeInAppBillingService 的流量，再用 IabReplayService 回放给另一个 IabHelper
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23)
+public class IabRecordingTest {
+
+    private FakeInAppBillingService mFake;
+
+    @Before
+    public void setUp() {
+        mFake = new FakeInAppBillingService(RuntimeEnvironment.application);
+        mFake.addProducts(IabHelper.ITEM_TYPE_INAPP, "gas_", 5);
+        mFake.addPurchases(IabHelper.ITEM_TYPE_INAPP, "gas_", 3);
+    }
+
+    private IabHelper newHelper() {
+        IabHelper helper = new IabHelper(RuntimeEnvironment.application, mFake.getBase64PublicKey());
+        helper.setCallbackExecutor(IabCallbackExecutor.direct());
+        helper.setRetryPolicy(null);
+        return helper;
+    }
+
+    /**
+     * 初始化、一次失败的查询、带商品信息的查询和一次消耗
+     */
+    private static Inventory exercise(IabHelper helper, IInAppBillingService service)
+            throws Exception {
+        final IabResult[] setup = new IabResult[1];
+        helper.startSetup(service, new IabHelper.OnIabSetupFinishedListener() {
+            public void onIabSetupFinished(IabResult result) {
+                setup[0] = result;
+            }
+        });
+        assertTrue(String.valueOf(setup[0]), setup[0] != null && setup[0].isSuccess());
+        try {
+            helper.queryInventory(false, null);
+            fail("没有抛出 IabException");
+        } catch (IabException e) {
+            assertEquals(IabHelper.IABHELPER_REMOTE_EXCEPTION, e.getResult().getResponse());
+        }
+        Inventory inventory = helper.queryInventory(true, Arrays.asList("gas_3", "gas_4"));
+        helper.consume(inventory.getPurchase("gas_0"));
+        return inventory;
+    }
+
+    @Test
+    public void replayedSessionMatchesTheRecording() throws Exception {
+        mFake.injectRemoteException(FakeInAppBillingService.GET_PURCHASES, 1);
+        IabHelper recorder = newHelper();
+        ByteArrayOutputStream recording = new ByteArrayOutputStream();
+        recorder.startRecording(recording);
+        Inventory recorded = exercise(recorder, mFake);
+        recorder.stopRecording();
+
+        IabReplayService replay = IabReplayService.load(new ByteArrayInputStream(recording.toByteArray()));
+        replay.setSpeed(0);
+        // 每次 service 调用都录下了，包括抛出 RemoteException 的那次
+        int calls = 0;
+        for (String method : new String[]{FakeInAppBillingService.IS_BILLING_SUPPORTED,
+                FakeInAppBillingService.GET_SKU_DETAILS, FakeInAppBillingService.GET_PURCHASES,
+                FakeInAppBillingService.CONSUME_PURCHASE})
+            calls += mFake.getCallCount(method);
+        assertEquals(calls, replay.getCallCount());
+
+        IabHelper player = newHelper();
+        Inventory replayed = exercise(player, replay);
+        assertEquals(recorded.getAllPurchases().size(), replayed.getAllPurchases().size());
+        assertEquals(recorded.getPurchase("gas_2").getToken(), replayed.getPurchase("gas_2").getToken());
+        assertEquals(recorded.getSkuDetails("gas_4").getPrice(), replayed.getSkuDetails("gas_4").getPrice());
+        assertTrue(player.subscriptionsSupported());
+    }
+
+    @Test
+    public void unknownRequestsFailInReplay() throws Exception {
+        IabReplayService replay = new IabReplayService(new ArrayList<IabRecording.Call>());
+        assertEquals(IabHelper.BILLING_RESPONSE_RESULT_ERROR,
+                replay.isBillingSupported(3, "test", IabHelper.ITEM_TYPE_INAPP));
+        assertEquals(IabHelper.BILLING_RESPONSE_RESULT_ERROR,
+                replay.getPurchases(3, "test", IabHelper.ITEM_TYPE_INAPP, null)
+                        .getInt(IabHelper.RESPONSE_CODE));
+    }
+
+    @Test
+    public void loopReplaysTheSameAnswerAgain() throws Exception {
+        IabRecording.Call call = new IabRecording.Call();
+        call.method = IabRecording.CONSUME_PURCHASE;
+        call.purchaseToken = "token";
+        call.resultType = IabRecording.RESULT_INT;
+        call.intResult = IabHelper.BILLING_RESPONSE_RESULT_OK;
+        IabReplayService replay = new IabReplayService(Arrays.asList(call));
+        replay.setSpeed(0);
+
+        assertEquals(IabHelper.BILLING_RESPONSE_RESULT_OK, replay.consumePurchase(3, "test", "token"));
+        assertEquals(IabHelper.BILLING_RESPONSE_RESULT_ERROR, replay.consumePurchase(3, "test", "token"));
+
+        replay = new IabReplayService(Arrays.asList(call));
+        replay.setSpeed(0);
+        replay.setLoop(true);
+        for (int i = 0; i < 3; i++)
+            assertEquals(IabHelper.BILLING_RESPONSE_RESULT_OK, replay.consumePurchase(3, "test", "token"));
+    }
+
+    @Test
+    public void bundleValuesRoundTrip() throws Exception {
+        Bundle b = new Bundle();
+        b.putInt(IabHelper.RESPONSE_CODE, 0);
+        b.putLong("time", 1234567890123L);
+        b.putString(IabHelper.INAPP_CONTINUATION_TOKEN, "订单 2");
+        b.putString("none", null);
+        ArrayList<String> list = new ArrayList<String>(Arrays.asList("a", null, "c"));
+        b.putStringArrayList(IabHelper.RESPONSE_INAPP_ITEM_LIST, list);
+        b.putDouble("omitted", 1.5);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        IabRecording.writeBundle(new DataOutputStream(bytes), b);
+        Bundle back = IabRecording.readBundle(new DataInputStream(
+                new ByteArrayInputStream(bytes.toByteArray())));
+
+        assertEquals(0, back.getInt(IabHelper.RESPONSE_CODE, -1));
+        assertEquals(1234567890123L, back.getLong("time"));
+        assertEquals("订单 2", back.getString(IabHelper.INAPP_CONTINUATION_TOKEN));
+        assertNull(back.getString("none"));
+        List<String> backList = back.getStringArrayList(IabHelper.RESPONSE_INAPP_ITEM_LIST);
+        assertEquals(list, backList);
+        // 无法保存的值 (包括 null) 回放时没有
+        assertFalse(back.containsKey("omitted"));
+        assertFalse(back.containsKey("none"));
+    }
+}
@@ -0,0 +1,169 @@
+package com.googlewalletlib.util;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * IabHelper 的重试预算、熔断器和对冲请求
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23)
+public class IabRetryPolicyTest {
+
+    private FakeInAppBillingService mFake;
+    private IabHelper mHelper;
+
+    @Before
+    public void setUp() {
+        mFake = new FakeInAppBillingService(RuntimeEnvironment.application);
+        mFake.addPurchases(IabHelper.ITEM_TYPE_INAPP, "gas_", 3);
+        mHelper = new IabHelper(RuntimeEnvironment.application, mFake.getBase64PublicKey());
+        mHelper.setCallbackExecutor(IabCallbackExecutor.direct());
+        IabHelperTest.setUp(mHelper, mFake);
+    }
+
+    /**
+     * 在后台线程上查询 (主线程上不重试)，返回失败的结果码
+     */
+    private int queryFails() throws Exception {
+        try {
+            IabHelperTest.inBackground(new Callable<Inventory>() {
+                public Inventory call() throws Exception {
+                    return mHelper.queryInventory(false, null);
+                }
+            });
+        } catch (ExecutionException e) {
+            return ((IabException) e.getCause()).getResult().getResponse();
+        }
+        throw new AssertionError("没有抛出 IabException");
+    }
+
+    private Inventory query() throws Exception {
+        return IabHelperTest.inBackground(new Callable<Inventory>() {
+            public Inventory call() throws Exception {
+                return mHelper.queryInventory(false, null);
+            }
+        });
+    }
+
+    @Test
+    public void retryBudgetLimitsRetries() throws Exception {
+        IabRetryPolicy policy = new IabRetryPolicy(5, 1, 1);
+        policy.setRetryBudget(1);
+        mHelper.setRetryPolicy(policy);
+        mHelper.setCircuitBreaker(null);
+        mFake.injectRemoteException(FakeInAppBillingService.GET_PURCHASES, 10);
+
+        assertEquals(IabHelper.IABHELPER_REMOTE_EXCEPTION, queryFails());
+        // 第一次加上预算允许的一次重试
+        assertEquals(2, mFake.getCallCount(FakeInAppBillingService.GET_PURCHASES));
+        assertEquals(0, policy.getRetryTokens());
+    }
+
+    @Test
+    public void retryBudgetIsRefilledByRequests() {
+        IabRetryPolicy policy = new IabRetryPolicy(5, 1, 1);
+        policy.setRetryBudget(1);
+        assertTrue(policy.acquireRetry(1));
+        assertFalse(policy.acquireRetry(1));
+        // 每 10 个请求补充一次重试
+        for (int i = 0; i < 9; i++)
+            policy.onRequest();
+        assertFalse(policy.acquireRetry(1));
+        policy.onRequest();
+        assertTrue(policy.acquireRetry(1));
+        // 超过最大尝试次数时不扣预算
+        policy.setRetryBudget(3);
+        assertFalse(policy.acquireRetry(5));
+        assertEquals(3, policy.getRetryTokens());
+    }
+
+    @Test
+    public void openBreakerStopsRetriesMidway() throws Exception {
+        IabCircuitBreaker breaker = new IabCircuitBreaker(2, 60 * 1000);
+        mHelper.setCircuitBreaker(breaker);
+        mHelper.setRetryPolicy(new IabRetryPolicy(5, 1, 1));
+        mFake.injectRemoteException(FakeInAppBillingService.GET_PURCHASES, 10);
+
+        assertEquals(IabHelper.IABHELPER_REMOTE_EXCEPTION, queryFails());
+        // 第二次失败后熔断器打开，不再做第三次尝试
+        assertEquals(2, mFake.getCallCount(FakeInAppBillingService.GET_PURCHASES));
+        assertTrue(breaker.isOpen());
+
+        // 熔断期间的调用不到 service
+        assertEquals(IabHelper.IABHELPER_SERVICE_UNAVAILABLE, queryFails());
+        assertEquals(2, mFake.getCallCount(FakeInAppBillingService.GET_PURCHASES));
+    }
+
+    @Test
+    public void halfOpenBreakerClosesAfterSuccessfulProbe() throws Exception {
+        // openMillis 为 0: 打开之后的下一个调用就是试探
+        IabCircuitBreaker breaker = new IabCircuitBreaker(1, 0);
+        mHelper.setCircuitBreaker(breaker);
+        mHelper.setRetryPolicy(null);
+        mFake.injectRemoteException(FakeInAppBillingService.GET_PURCHASES, 2);
+
+        assertEquals(IabHelper.IABHELPER_REMOTE_EXCEPTION, queryFails());
+        assertTrue(breaker.isOpen());
+        // 试探失败，继续打开
+        assertEquals(IabHelper.IABHELPER_REMOTE_EXCEPTION, queryFails());
+        assertTrue(breaker.isOpen());
+
+        assertEquals(3, query().getAllPurchases().size());
+        assertFalse(breaker.isOpen());
+    }
+
+    @Test
+    public void halfOpenBreakerAllowsOneProbe() {
+        IabCircuitBreaker breaker = new IabCircuitBreaker(1, 0);
+        breaker.onFailure();
+        assertTrue(breaker.allowRequest());
+        assertFalse(breaker.allowRequest());
+        // 试探被取消时回到打开状态，下一个调用重新试探
+        breaker.onCancel();
+        assertTrue(breaker.allowRequest());
+        breaker.onSuccess();
+        assertFalse(breaker.isOpen());
+        assertTrue(breaker.allowRequest());
+    }
+
+    @Test
+    public void slowQueryIsHedged() throws Exception {
+        IabRetryPolicy policy = new IabRetryPolicy();
+        policy.setHedgeDelay(20);
+        mHelper.setRetryPolicy(policy);
+        mFake.setLatency(FakeInAppBillingService.GET_PURCHASES, 200);
+
+        assertEquals(3, query().getAllPurchases().size());
+        // 商品和订阅各查一次，每次都发出了对冲请求
+        assertEquals(4, mFake.getCallCount(FakeInAppBillingService.GET_PURCHASES));
+    }
+
+    @Test
+    public void consumeIsNotHedged() throws Exception {
+        IabRetryPolicy policy = new IabRetryPolicy();
+        policy.setHedgeDelay(20);
+        mHelper.setRetryPolicy(policy);
+        mFake.setLatency(FakeInAppBillingService.CONSUME_PURCHASE, 100);
+        final Purchase purchase = query().getAllPurchases().get(0);
+
+        IabHelperTest.inBackground(new Callable<Void>() {
+            public Void call() throws Exception {
+                mHelper.consume(purchase);
+                return null;
+            }
+        });
+        assertEquals(1, mFake.getCallCount(FakeInAppBillingService.CONSUME_PURCHASE));
+    }
+}
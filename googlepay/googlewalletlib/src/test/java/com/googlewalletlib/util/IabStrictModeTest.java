@@ -0,0 +1,111 @@
+package com.googlewalletlib.util;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * IabStrictMode 对主线程上阻塞调用的检查。Robolectric 的测试线程就是主线程
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23)
+public class IabStrictModeTest {
+
+    private FakeInAppBillingService mFake;
+    private IabHelper mHelper;
+    private final List<String> mViolations = new ArrayList<String>();
+
+    @Before
+    public void setUp() {
+        mFake = new FakeInAppBillingService(RuntimeEnvironment.application);
+        mHelper = new IabHelper(RuntimeEnvironment.application, mFake.getBase64PublicKey());
+        mHelper.setCallbackExecutor(IabCallbackExecutor.direct());
+    }
+
+    private IabStrictMode strictMode(int penalty) {
+        IabStrictMode strictMode = new IabStrictMode(penalty);
+        strictMode.setListener(new IabStrictMode.ViolationListener() {
+            public void onViolation(IabMainThreadViolation violation) {
+                mViolations.add(violation.getOperation());
+            }
+        });
+        mHelper.setStrictMode(strictMode);
+        return strictMode;
+    }
+
+    @Test
+    public void startSetupWithPenaltyThrowStillReportsTheResult() {
+        strictMode(IabStrictMode.PENALTY_THROW | IabStrictMode.PENALTY_LISTENER);
+        IabResult result = IabHelperTest.setUp(mHelper, mFake);
+        assertTrue(result.toString(), result.isSuccess());
+        // 库内部的调用只上报，不抛出
+        assertEquals(2, mViolations.size());
+        assertEquals("isBillingSupported", mViolations.get(0));
+    }
+
+    @Test
+    public void purchaseFlowWithPenaltyThrowIsLaunched() {
+        mFake.addProduct(IabHelper.ITEM_TYPE_INAPP, "gas", "$0.99", "Gas");
+        IabHelperTest.setUp(mHelper, mFake);
+        strictMode(IabStrictMode.PENALTY_THROW | IabStrictMode.PENALTY_LISTENER);
+        IabHelperTest.RecordingActivity activity =
+                Robolectric.buildActivity(IabHelperTest.RecordingActivity.class).create().get();
+        IabHelperTest.PurchaseResult listener = new IabHelperTest.PurchaseResult();
+
+        int requestCode = mHelper.launchPurchaseFlow(activity, "gas", IabHelper.ITEM_TYPE_INAPP,
+                listener, "payload");
+        assertEquals(requestCode, activity.mRequestCode);
+        assertNull(listener.mResult);
+        assertEquals("[getBuyIntent]", mViolations.toString());
+    }
+
+    @Test
+    public void applicationCallOnTheMainThreadThrows() throws Exception {
+        IabHelperTest.setUp(mHelper, mFake);
+        strictMode(IabStrictMode.PENALTY_THROW);
+        try {
+            mHelper.queryInventory(false, null);
+            fail();
+        } catch (IabMainThreadViolation expected) {
+            assertEquals("queryInventory", expected.getOperation());
+        }
+        // 被拦下的调用没有到 service
+        assertEquals(0, mFake.getCallCount(FakeInAppBillingService.GET_PURCHASES));
+    }
+
+    @Test
+    public void listenerGetsMainThreadCallsOnly() throws Exception {
+        IabHelperTest.setUp(mHelper, mFake);
+        strictMode(IabStrictMode.PENALTY_LISTENER);
+        mHelper.queryInventory(false, null);
+        assertEquals("[queryInventory]", mViolations.toString());
+
+        IabHelperTest.inBackground(new Callable<Inventory>() {
+            public Inventory call() throws Exception {
+                return mHelper.queryInventory(false, null);
+            }
+        });
+        assertEquals(1, mViolations.size());
+    }
+
+    @Test
+    public void shortCallsAreBelowTheThreshold() throws Exception {
+        IabHelperTest.setUp(mHelper, mFake);
+        strictMode(IabStrictMode.PENALTY_LISTENER).setThresholdMillis(60 * 1000);
+        mHelper.queryInventory(false, null);
+        assertTrue(mViolations.isEmpty());
+    }
+}
@@ -0,0 +1,95 @@
+package com.googlewalletlib.util;
+
+import org.junit.Test;
+
+import java.io.StringWriter;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * IabTraceBuffer 的覆盖顺序和 Chrome trace 导出
+ */
+public class IabTraceBufferTest {
+
+    @Test
+    public void oldestSpansAreOverwritten() {
+        IabTraceBuffer buffer = new IabTraceBuffer(3);
+        IabTracer tracer = new IabTracer(buffer);
+        for (int i = 1; i <= 5; i++)
+            tracer.start(i, "stage" + i).end(0);
+
+        List<IabSpan> spans = buffer.getSpans();
+        assertEquals(3, spans.size());
+        assertEquals("stage3", spans.get(0).getName());
+        assertEquals("stage5", spans.get(2).getName());
+        assertEquals(1, buffer.getSpans(4).size());
+        assertEquals(0, buffer.getSpans(1).size());
+
+        buffer.clear();
+        assertTrue(buffer.getSpans().isEmpty());
+    }
+
+    @Test
+    public void spanIsReportedOnce() {
+        IabTraceBuffer buffer = new IabTraceBuffer(8);
+        IabTracer tracer = new IabTracer(buffer);
+        IabSpan span = tracer.start(tracer.newFlowId(), "consume");
+        span.end(IabHelper.BILLING_RESPONSE_RESULT_OK);
+        span.end(IabHelper.IABHELPER_UNKNOWN_ERROR);
+
+        assertEquals(1, buffer.getSpans().size());
+        assertEquals(IabHelper.BILLING_RESPONSE_RESULT_OK, span.getResponse());
+        assertEquals(1, span.getFlowId());
+        assertEquals(2, tracer.newFlowId());
+        // 没有启用追踪时什么都不记
+        IabSpan.start(null, 1, "consume").end(0);
+        assertEquals(1, buffer.getSpans().size());
+    }
+
+    @Test
+    public void recordedSpanUsesTheGivenStart() {
+        IabTraceBuffer buffer = new IabTraceBuffer(8);
+        IabTracer tracer = new IabTracer(buffer);
+        long start = System.nanoTime() - 5 * 1000 * 1000;
+        tracer.record(7, "purchaseActivity", start, IabHelper.IABHELPER_USER_CANCELLED);
+
+        IabSpan span = buffer.getSpans(7).get(0);
+        assertEquals(start, span.getStartNanos());
+        assertTrue(span.getDurationNanos() >= 5 * 1000 * 1000);
+        assertEquals(IabHelper.IABHELPER_USER_CANCELLED, span.getResponse());
+    }
+
+    @Test
+    public void chromeTraceHasOneEventPerSpan() throws Exception {
+        IabTraceBuffer buffer = new IabTraceBuffer(8);
+        IabTracer tracer = new IabTracer(buffer);
+        tracer.record(3, "verifyPurchase", 2000 * 1000, 0);
+        tracer.record(3, "consume", 5000 * 1000, -1001);
+
+        StringWriter out = new StringWriter();
+        buffer.writeChromeTrace(out);
+        String json = out.toString();
+        assertTrue(json, json.startsWith("{\"traceEvents\":[{\"name\":\"verifyPurchase\",\"ph\":\"X\","
+                + "\"pid\":1,\"tid\":3,\"ts\":2000,"));
+        assertTrue(json, json.contains("{\"name\":\"consume\",\"ph\":\"X\",\"pid\":1,\"tid\":3,\"ts\":5000,"));
+        assertTrue(json, json.contains("\"args\":{\"response\":-1001,\"thread\":\""
+                + Thread.currentThread().getName() + "\"}}"));
+        assertTrue(json, json.endsWith("}]}"));
+
+        StringWriter empty = new StringWriter();
+        new IabTraceBuffer(1).writeChromeTrace(empty);
+        assertEquals("{\"traceEvents\":[]}", empty.toString());
+    }
+
+    @Test
+    public void capacityMustBePositive() {
+        try {
+            new IabTraceBuffer(0);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+}
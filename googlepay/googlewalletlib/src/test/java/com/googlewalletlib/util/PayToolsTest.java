@@ -0,0 +1,96 @@
+package com.googlewalletlib.util;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * PayTools 在连接成功后重新提交 journal 中没有确认的购买
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23)
+public class PayToolsTest {
+
+    private File mFile;
+    private PurchaseJournal mJournal;
+    private PayTools mTools;
+    private final List<Object> mSubmitted = new ArrayList<Object>();
+
+    @Before
+    public void setUp() throws Exception {
+        mFile = File.createTempFile("purchases", ".journal");
+        mFile.delete();
+        mJournal = PurchaseJournal.open(mFile);
+        mJournal.append(PurchaseUploaderTest.purchase(1));
+        mJournal.append(PurchaseUploaderTest.purchase(2));
+        // 记下提交的购买，不经过 Looper
+        Handler handler = new Handler(Looper.getMainLooper()) {
+            @Override
+            public boolean sendMessageAtTime(Message msg, long uptimeMillis) {
+                if (msg.what == 1)
+                    mSubmitted.add(msg.obj);
+                return true;
+            }
+        };
+        mTools = new PayTools(null, handler, "gas", "payload");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mJournal.close();
+        mFile.delete();
+    }
+
+    private List<String> submittedTokens() {
+        List<String> tokens = new ArrayList<String>();
+        for (Object o : mSubmitted)
+            tokens.add(((Purchase) o).getToken());
+        return tokens;
+    }
+
+    @Test
+    public void pendingPurchasesAreResubmittedOncePerJournal() throws Exception {
+        mTools.resubmitPendingOnce();
+        assertTrue(mSubmitted.isEmpty());
+
+        mTools.setJournal(mJournal);
+        mTools.resubmitPendingOnce();
+        mTools.resubmitPendingOnce();
+        assertEquals("[token-1, token-2]", submittedTokens().toString());
+
+        // 同一个 journal 再设置一次不重新提交
+        mTools.setJournal(mJournal);
+        mTools.resubmitPendingOnce();
+        assertEquals(2, mSubmitted.size());
+
+        mJournal.markDone(PurchaseUploaderTest.purchase(1));
+        mTools.setJournal(null);
+        mTools.setJournal(mJournal);
+        mTools.resubmitPendingOnce();
+        assertEquals("[token-1, token-2, token-2]", submittedTokens().toString());
+    }
+
+    @Test
+    public void uploaderResubmitsByItself() throws Exception {
+        mTools.setJournal(mJournal);
+        mTools.setUploader(new PurchaseUploader(new URL("http://127.0.0.1:1/verify/batch"), mJournal));
+        mTools.resubmitPendingOnce();
+        assertTrue(mSubmitted.isEmpty());
+    }
+}
@@ -0,0 +1,206 @@
+package com.googlewalletlib.util;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 用 FakeReceiptEndpoint 测试 PurchaseUploader 的分批、重试和重新提交
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23)
+public class PurchaseUploaderTest {
+
+    private FakeReceiptEndpoint mEndpoint;
+    private File mFile;
+    private PurchaseJournal mJournal;
+    private PurchaseUploader mUploader;
+
+    @Before
+    public void setUp() throws IOException {
+        mEndpoint = new FakeReceiptEndpoint();
+        mEndpoint.start();
+        mFile = File.createTempFile("purchases", ".journal");
+        mFile.delete();
+        mJournal = PurchaseJournal.open(mFile);
+        mUploader = newUploader(mJournal);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mUploader.close();
+        mJournal.close();
+        mEndpoint.stop();
+        mFile.delete();
+    }
+
+    private PurchaseUploader newUploader(PurchaseJournal journal) {
+        PurchaseUploader uploader = new PurchaseUploader(mEndpoint.getUrl(), journal);
+        // 只在 flush 或攒够一批时发送
+        uploader.setMaxDelayMillis(60 * 1000);
+        return uploader;
+    }
+
+    static Purchase purchase(int i, String token, String signature) throws Exception {
+        String json = "{\"orderId\":\"GPA.0000-" + i + "\",\"packageName\":\"com.example\","
+                + "\"productId\":\"gas\",\"purchaseTime\":" + (1000L + i)
+                + ",\"purchaseState\":0,\"purchaseToken\":\"" + token + "\"}";
+        return new Purchase(IabHelper.ITEM_TYPE_INAPP, json, signature);
+    }
+
+    static Purchase purchase(int i) throws Exception {
+        return purchase(i, "token-" + i, "sig-" + i);
+    }
+
+    /**
+     * 记录服务器的结果，等待收到指定数量的结果
+     */
+    static class Recorder implements PurchaseUploader.Listener {
+        final List<String> statuses = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch done;
+
+        Recorder(int expected) {
+            done = new CountDownLatch(expected);
+        }
+
+        public void onUploaded(Purchase purchase, String status) {
+            statuses.add(purchase.getOrderId() + "=" + status);
+            done.countDown();
+        }
+
+        void await() throws InterruptedException {
+            assertTrue("收到 " + statuses, done.await(10, TimeUnit.SECONDS));
+        }
+    }
+
+    /**
+     * 等待上传线程处理完之前的任务: enqueue 在上传线程上写 journal 后才进入队列
+     */
+    private static void flushWhenQueued(PurchaseUploader uploader, int count) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (uploader.getQueuedCount() < count && System.nanoTime() < deadline)
+            Thread.sleep(5);
+        uploader.flush();
+    }
+
+    @Test
+    public void purchasesAreSentInBatches() throws Exception {
+        Recorder recorder = new Recorder(25);
+        mUploader.setListener(recorder);
+        mUploader.setMaxBatch(10);
+        mUploader.start();
+        for (int i = 0; i < 25; i++)
+            mUploader.enqueue(purchase(i));
+        flushWhenQueued(mUploader, 25);
+        recorder.await();
+
+        int total = 0;
+        for (int size : mEndpoint.getBatchSizes()) {
+            assertTrue("batch " + size, size <= 10);
+            total += size;
+        }
+        assertEquals(25, total);
+        assertEquals(25, mEndpoint.getReceivedCount());
+        assertTrue(mEndpoint.getMaxInFlight() <= PurchaseUploader.DEFAULT_MAX_IN_FLIGHT);
+        for (String status : recorder.statuses)
+            assertTrue(status, status.endsWith("=valid"));
+        assertTrue(mJournal.getPending().isEmpty());
+    }
+
+    @Test
+    public void failedBatchIsRetried() throws Exception {
+        mEndpoint.failNext(503, 1);
+        Recorder recorder = new Recorder(3);
+        mUploader.setListener(recorder);
+        mUploader.start();
+        for (int i = 0; i < 3; i++)
+            mUploader.enqueue(purchase(i));
+        flushWhenQueued(mUploader, 3);
+        recorder.await();
+
+        // 失败的请求和退避之后的重试
+        assertTrue(mUploader.getRequestCount() >= 2);
+        assertEquals(3, mEndpoint.getReceivedCount());
+        assertTrue(mJournal.getPending().isEmpty());
+    }
+
+    @Test
+    public void throwingListenerDoesNotStallUploader() throws Exception {
+        final CountDownLatch second = new CountDownLatch(1);
+        mUploader.setMaxInFlight(1);
+        mUploader.setListener(new PurchaseUploader.Listener() {
+            public void onUploaded(Purchase purchase, String status) {
+                if (purchase.getOrderId().endsWith("-1"))
+                    throw new IllegalStateException("listener 出错");
+                second.countDown();
+            }
+        });
+        mUploader.start();
+        mUploader.enqueue(purchase(1));
+        flushWhenQueued(mUploader, 1);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (mUploader.getQueuedCount() > 0 && System.nanoTime() < deadline)
+            Thread.sleep(5);
+
+        mUploader.enqueue(purchase(2));
+        flushWhenQueued(mUploader, 1);
+        assertTrue(second.await(10, TimeUnit.SECONDS));
+        assertEquals(2, mEndpoint.getReceivedCount());
+    }
+
+    @Test
+    public void startResubmitsPendingPurchases() throws Exception {
+        mJournal.append(purchase(1));
+        mJournal.append(purchase(2));
+        Recorder recorder = new Recorder(2);
+        mUploader.setListener(recorder);
+        mUploader.start();
+        recorder.await();
+
+        assertEquals("[GPA.0000-1, GPA.0000-2]", mEndpoint.getOrderIds().toString());
+        assertTrue(mJournal.getPending().isEmpty());
+    }
+
+    @Test
+    public void resubmittedReceiptIsStillValid() throws Exception {
+        Recorder first = new Recorder(1);
+        mUploader.setListener(first);
+        mUploader.start();
+        mUploader.enqueue(purchase(1));
+        flushWhenQueued(mUploader, 1);
+        first.await();
+
+        // 响应丢失、journal 中的购买没有标记完成时，下次启动会重新提交同一张收据
+        PurchaseUploader again = newUploader(null);
+        Recorder second = new Recorder(2);
+        again.setListener(second);
+        again.start();
+        try {
+            again.enqueue(purchase(1));
+            // 同一个 orderId 的另一张收据
+            again.enqueue(purchase(1, "token-forged", "forged"));
+            flushWhenQueued(again, 2);
+            second.await();
+        } finally {
+            again.close();
+        }
+
+        assertTrue(second.statuses.contains("GPA.0000-1=valid"));
+        assertTrue(second.statuses.contains("GPA.0000-1=duplicate"));
+        assertEquals(1, mEndpoint.getResubmittedCount());
+    }
+}
@@ -0,0 +1,214 @@
+package com.googlewalletlib.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * 外部排序: 内存中的记录超过 maxRunBytes 时排序后写入临时文件 (一段)，
+ * 最后多路归并所有的段，按 ReconcileEntry.BY_ORDER_ID 的顺序读出。
+ * 段数超过 MAX_FAN_IN 时先分组归并成更少的段，同时打开的文件数有上限
+ */
+final class ExternalSorter implements Closeable {
+    static final int MAX_FAN_IN = 128;
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * 排好序的记录
+     */
+    interface Source extends Closeable {
+        /**
+         * @return 没有更多时返回 null
+         */
+        ReconcileEntry next() throws IOException;
+    }
+
+    private final String mName;
+    private final File mDir;
+    private final long mMaxRunBytes;
+    private final List<ReconcileEntry> mBuffer = new ArrayList<ReconcileEntry>();
+    private long mBufferBytes;
+    private final List<File> mRuns = new ArrayList<File>();
+    private final List<File> mAllFiles = new ArrayList<File>();
+    private long mCount;
+
+    /**
+     * @param name 临时文件名的前缀
+     * @param dir 临时文件的目录，null 表示系统默认
+     * @param maxRunBytes 内存中最多保存的记录的大小 (估计值)
+     */
+    ExternalSorter(String name, File dir, long maxRunBytes) {
+        mName = name;
+        mDir = dir;
+        mMaxRunBytes = maxRunBytes;
+    }
+
+    void add(ReconcileEntry e) throws IOException {
+        mBuffer.add(e);
+        mBufferBytes += e.estimatedSize();
+        mCount++;
+        if (mBufferBytes >= mMaxRunBytes)
+            spill();
+    }
+
+    long getCount() {
+        return mCount;
+    }
+
+    int getRunCount() {
+        return mAllFiles.size();
+    }
+
+    /**
+     * 结束添加，返回排好序的记录。全部在内存中时不写文件
+     */
+    Source sorted() throws IOException {
+        if (mRuns.isEmpty()) {
+            Collections.sort(mBuffer, ReconcileEntry.BY_ORDER_ID);
+            final Iterator<ReconcileEntry> it = mBuffer.iterator();
+            return new Source() {
+                public ReconcileEntry next() {
+                    return it.hasNext() ? it.next() : null;
+                }
+
+                public void close() {
+                }
+            };
+        }
+        if (!mBuffer.isEmpty())
+            spill();
+        while (mRuns.size() > MAX_FAN_IN) {
+            List<File> group = new ArrayList<File>(mRuns.subList(0, MAX_FAN_IN));
+            mRuns.subList(0, MAX_FAN_IN).clear();
+            File merged = newRunFile();
+            Source source = merge(group);
+            try {
+                DataOutputStream out = openRun(merged);
+                try {
+                    ReconcileEntry e;
+                    while ((e = source.next()) != null) {
+                        out.writeBoolean(true);
+                        e.writeTo(out);
+                    }
+                    out.writeBoolean(false);
+                } finally {
+                    out.close();
+                }
+            } finally {
+                source.close();
+            }
+            for (File f : group)
+                f.delete();
+            mRuns.add(merged);
+        }
+        return merge(new ArrayList<File>(mRuns));
+    }
+
+    private void spill() throws IOException {
+        Collections.sort(mBuffer, ReconcileEntry.BY_ORDER_ID);
+        File run = newRunFile();
+        DataOutputStream out = openRun(run);
+        try {
+            for (ReconcileEntry e : mBuffer) {
+                out.writeBoolean(true);
+                e.writeTo(out);
+            }
+            out.writeBoolean(false);
+        } finally {
+            out.close();
+        }
+        mRuns.add(run);
+        mBuffer.clear();
+        mBufferBytes = 0;
+    }
+
+    private File newRunFile() throws IOException {
+        File f = File.createTempFile(mName, ".run", mDir);
+        mAllFiles.add(f);
+        return f;
+    }
+
+    private static DataOutputStream openRun(File f) throws IOException {
+        return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f), BUFFER_SIZE));
+    }
+
+    private static Source merge(List<File> runs) throws IOException {
+        final PriorityQueue<RunCursor> heap = new PriorityQueue<RunCursor>(Math.max(1, runs.size()));
+        final List<RunCursor> cursors = new ArrayList<RunCursor>();
+        try {
+            for (File f : runs) {
+                RunCursor c = new RunCursor(f);
+                cursors.add(c);
+                if (c.advance())
+                    heap.add(c);
+            }
+        } catch (IOException e) {
+            for (RunCursor c : cursors)
+                c.close();
+            throw e;
+        }
+        return new Source() {
+            public ReconcileEntry next() throws IOException {
+                RunCursor c = heap.poll();
+                if (c == null)
+                    return null;
+                ReconcileEntry e = c.mHead;
+                if (c.advance())
+                    heap.add(c);
+                return e;
+            }
+
+            public void close() throws IOException {
+                for (RunCursor c : cursors)
+                    c.close();
+            }
+        };
+    }
+
+    /**
+     * 删除所有的临时文件
+     */
+    public void close() {
+        for (File f : mAllFiles)
+            f.delete();
+        mAllFiles.clear();
+        mRuns.clear();
+        mBuffer.clear();
+    }
+
+    /**
+     * 一段的当前记录
+     */
+    private static final class RunCursor implements Comparable<RunCursor> {
+        final DataInputStream mIn;
+        ReconcileEntry mHead;
+
+        RunCursor(File f) throws IOException {
+            mIn = new DataInputStream(new BufferedInputStream(new FileInputStream(f), BUFFER_SIZE));
+        }
+
+        boolean advance() throws IOException {
+            mHead = mIn.readBoolean() ? ReconcileEntry.readFrom(mIn) : null;
+            return mHead != null;
+        }
+
+        public int compareTo(RunCursor o) {
+            return ReconcileEntry.BY_ORDER_ID.compare(mHead, o.mHead);
+        }
+
+        void close() throws IOException {
+            mIn.close();
+        }
+    }
+}
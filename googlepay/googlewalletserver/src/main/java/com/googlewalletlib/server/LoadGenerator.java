@@ -0,0 +1,281 @@
+package com.googlewalletlib.server;
+
+import com.googlewalletlib.util.Base64;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 收据验证服务的压力测试。先签好所有收据 (不计时)，再用多个连接不停地提交批量请求，
+ * 最后输出每秒验证的收据数和每个核每秒验证的收据数。
+ * <pre>
+ * LoadGenerator [--receipts 20000] [--batch 100] [--connections 核数*2]
+ *               [--url http://host:port --private-key &lt;base64 PKCS8 私钥或 @文件&gt;]
+ *               [--slow-millis 0] [--virtual-threads]
+ * </pre>
+ * 没有 --url 时生成一对测试密钥，在本进程中启动 ReceiptServer，--virtual-threads 表示服务端
+ * 在虚拟线程上处理请求。--slow-millis 模拟慢速客户端，每个请求体分两次发送，中间等待这么久；
+ * 例如 --connections 20000 --batch 1 --slow-millis 2000 测试大量慢速客户端同时连接。
+ * 客户端在支持虚拟线程的 JVM 上每个连接使用一个虚拟线程
+ */
+public class LoadGenerator {
+
+    public static void main(String[] args) throws Exception {
+        int cores = Runtime.getRuntime().availableProcessors();
+        int count = Integer.parseInt(ReceiptServer.arg(args, "--receipts", "20000"));
+        int batch = Integer.parseInt(ReceiptServer.arg(args, "--batch", "100"));
+        int connections = Integer.parseInt(ReceiptServer.arg(args, "--connections",
+                String.valueOf(cores * 2)));
+        String url = ReceiptServer.arg(args, "--url", null);
+        long slowMillis = Long.parseLong(ReceiptServer.arg(args, "--slow-millis", "0"));
+
+        ReceiptServer server = null;
+        PrivateKey privateKey;
+        if (url == null) {
+            KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+            generator.initialize(2048);
+            KeyPair keys = generator.generateKeyPair();
+            privateKey = keys.getPrivate();
+            ReceiptVerifier verifier = new ReceiptVerifier(
+                    Base64.encode(keys.getPublic().getEncoded()));
+            ExecutorService executor = ReceiptServer.hasFlag(args, "--virtual-threads")
+                    ? ReceiptServer.newVirtualThreadExecutor() : null;
+            if (executor != null)
+                server = new ReceiptServer(verifier, 0, executor,
+                        ReceiptServer.VIRTUAL_THREADS_BACKLOG);
+            else
+                server = new ReceiptServer(verifier, 0, connections);
+            server.start();
+            url = "http://127.0.0.1:" + server.getPort();
+        } else {
+            String encoded = ReceiptServer.readValue(ReceiptServer.arg(args, "--private-key", null));
+            if (encoded == null)
+                throw new IllegalArgumentException("使用 --url 时需要 --private-key");
+            privateKey = KeyFactory.getInstance("RSA").generatePrivate(
+                    new PKCS8EncodedKeySpec(Base64.decode(encoded)));
+        }
+
+        System.out.println("签名 " + count + " 张收据...");
+        List<String> bodies = buildBodies(privateKey, count, batch, cores);
+
+        Stats before = fetchStats(url);
+        Result result = run(url, bodies, connections, slowMillis);
+        Stats after = fetchStats(url);
+
+        double seconds = result.elapsedNanos / 1e9;
+        double rate = result.receipts / seconds;
+        System.out.println(String.format(Locale.US,
+                "%d 张收据, %d 个请求, %d 个失败, %.2fs", result.receipts, bodies.size(),
+                result.failures, seconds));
+        System.out.println(String.format(Locale.US, "%.0f 张/秒", rate));
+        if (after != null && before != null) {
+            double busySeconds = after.busySeconds - before.busySeconds;
+            System.out.println(String.format(Locale.US, "服务端 %d 个验证线程: %.0f 张/秒/核, %.0f 张/核秒",
+                    after.cores, rate / after.cores,
+                    busySeconds <= 0 ? 0 : (after.receipts - before.receipts) / busySeconds));
+        }
+        if (server != null)
+            server.stop(0);
+    }
+
+    /**
+     * 签名收据并拼成批量请求体，签名在所有核上同时进行
+     */
+    static List<String> buildBodies(final PrivateKey key, int count, final int batch, int threads)
+            throws Exception {
+        final long now = System.currentTimeMillis();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<String>> futures = new ArrayList<Future<String>>();
+            for (int start = 0; start < count; start += batch) {
+                final int from = start;
+                final int to = Math.min(count, start + batch);
+                futures.add(pool.submit(new Callable<String>() {
+                    public String call() throws Exception {
+                        Signature signer = Signature.getInstance("SHA1withRSA");
+                        JSONArray receipts = new JSONArray();
+                        for (int i = from; i < to; i++) {
+                            String data = purchaseJson(i, now);
+                            signer.initSign(key);
+                            signer.update(data.getBytes());
+                            JSONObject r = new JSONObject();
+                            r.put("purchaseData", data);
+                            r.put("signature", Base64.encode(signer.sign()));
+                            receipts.put(r);
+                        }
+                        JSONObject body = new JSONObject();
+                        body.put("receipts", receipts);
+                        return body.toString();
+                    }
+                }));
+            }
+            List<String> bodies = new ArrayList<String>(futures.size());
+            for (Future<String> f : futures)
+                bodies.add(f.get());
+            return bodies;
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    static String purchaseJson(int i, long now) throws JSONException {
+        JSONObject o = new JSONObject();
+        o.put("orderId", "GPA.load-" + now + "-" + i);
+        o.put("packageName", "com.googlewalletlib.load");
+        o.put("productId", "sku_" + (i % 50));
+        o.put("purchaseTime", now);
+        o.put("purchaseState", 0);
+        o.put("developerPayload", "load");
+        o.put("purchaseToken", "token-" + now + "-" + i);
+        return o.toString();
+    }
+
+    static class Result {
+        long receipts;
+        long failures;
+        long elapsedNanos;
+    }
+
+    /**
+     * 用 connections 个线程提交所有请求，HTTP 错误和连接失败都计入 failures
+     */
+    static Result run(final String url, final List<String> bodies, int connections,
+                      final long slowMillis) throws Exception {
+        final AtomicInteger next = new AtomicInteger();
+        final AtomicLong receipts = new AtomicLong();
+        final AtomicLong failures = new AtomicLong();
+        ExecutorService pool = VirtualThreads.newPerTaskExecutor("load-");
+        if (pool == null)
+            pool = Executors.newFixedThreadPool(connections);
+        long start = System.nanoTime();
+        try {
+            List<Future<?>> futures = new ArrayList<Future<?>>();
+            for (int c = 0; c < connections; c++) {
+                futures.add(pool.submit(new Callable<Void>() {
+                    public Void call() throws Exception {
+                        int i;
+                        while ((i = next.getAndIncrement()) < bodies.size()) {
+                            String response;
+                            try {
+                                response = post(url + "/verify/batch", bodies.get(i), slowMillis);
+                            } catch (IOException e) {
+                                // 连接被拒绝、被重置等只算这个请求失败，不中断整个测试
+                                response = null;
+                            }
+                            if (response == null) {
+                                failures.incrementAndGet();
+                                continue;
+                            }
+                            receipts.addAndGet(new JSONObject(response).getJSONArray("verdicts")
+                                    .length());
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<?> f : futures)
+                f.get();
+        } finally {
+            pool.shutdown();
+        }
+        Result result = new Result();
+        result.elapsedNanos = System.nanoTime() - start;
+        result.receipts = receipts.get();
+        result.failures = failures.get();
+        return result;
+    }
+
+    /**
+     * 返回响应体，HTTP 状态不是 200 时返回 null
+     *
+     * @param slowMillis 大于 0 时请求体分两次发送，中间等待这么久
+     */
+    static String post(String url, String body, long slowMillis)
+            throws IOException, InterruptedException {
+        byte[] bytes = body.getBytes("UTF-8");
+        HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+        conn.setRequestMethod("POST");
+        conn.setDoOutput(true);
+        conn.setFixedLengthStreamingMode(bytes.length);
+        conn.setRequestProperty("Content-Type", "application/json; charset=utf-8");
+        OutputStream out = conn.getOutputStream();
+        if (slowMillis > 0) {
+            int half = bytes.length / 2;
+            out.write(bytes, 0, half);
+            out.flush();
+            Thread.sleep(slowMillis);
+            out.write(bytes, half, bytes.length - half);
+        } else {
+            out.write(bytes);
+        }
+        out.close();
+        if (conn.getResponseCode() != 200) {
+            InputStream error = conn.getErrorStream();
+            if (error != null)
+                readFully(error);
+            return null;
+        }
+        return readFully(conn.getInputStream());
+    }
+
+    static String readFully(InputStream in) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[8192];
+            int n;
+            while ((n = in.read(buf)) != -1)
+                out.write(buf, 0, n);
+            return out.toString("UTF-8");
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * /stats 中用到的字段
+     */
+    static class Stats {
+        int cores;
+        long receipts;
+        double busySeconds;
+    }
+
+    static Stats fetchStats(String url) {
+        try {
+            HttpURLConnection conn = (HttpURLConnection) new URL(url + "/stats").openConnection();
+            if (conn.getResponseCode() != 200)
+                return null;
+            JSONObject o = new JSONObject(readFully(conn.getInputStream()));
+            Stats s = new Stats();
+            s.cores = o.getInt("cores");
+            s.receipts = o.getLong("receipts");
+            s.busySeconds = o.optDouble("busySeconds", 0);
+            return s;
+        } catch (Exception e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,243 @@
+package com.googlewalletlib.server;
+
+import com.googlewalletlib.util.IabLog;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * 二进制协议的收据验证入口。收据从 socket 读入每个连接的缓冲区后，
+ * 直接以切片交给 Security.verify(PublicKey, ByteBuffer, ByteBuffer)，
+ * 不经过 String、json 解析和 Base64 字符串。
+ * <pre>
+ * 请求: int 帧长度 (不含这 4 字节) | int 购买数据长度 | 购买数据 (UTF-8 json) | Base64 签名
+ * 响应: 每个请求一个字节，Verdict.VALID 等
+ * </pre>
+ * 整数是大端序。一个连接可以连续发送多个请求，按顺序验证和响应，同时只有一个在验证。
+ * 一个线程负责所有连接的读写，验证在 ReceiptVerifier 的线程池上进行
+ */
+public class NioReceiptServer {
+    private static final String TAG = "NioReceiptServer";
+
+    // 一个请求的最大长度
+    public static final int MAX_FRAME = 64 * 1024;
+    static final int INITIAL_BUFFER = 4 * 1024;
+    static final int HEADER = 8;
+
+    private final ReceiptVerifier mVerifier;
+    private final Selector mSelector;
+    private final ServerSocketChannel mServerChannel;
+    // 验证完成、等待在 selector 线程上写回响应的连接
+    private final ConcurrentLinkedQueue<Connection> mCompleted = new ConcurrentLinkedQueue<Connection>();
+    private Thread mThread;
+    private volatile boolean mRunning;
+    // 连接的发送缓冲区大小，0 表示系统默认
+    private int mSendBufferSize;
+
+    /**
+     * @param port 0 表示任意空闲端口，见 getPort
+     */
+    public NioReceiptServer(ReceiptVerifier verifier, int port) throws IOException {
+        mVerifier = verifier;
+        mSelector = Selector.open();
+        mServerChannel = ServerSocketChannel.open();
+        mServerChannel.socket().bind(new InetSocketAddress(port), 1024);
+        mServerChannel.configureBlocking(false);
+        mServerChannel.register(mSelector, SelectionKey.OP_ACCEPT);
+    }
+
+    public void start() {
+        mRunning = true;
+        mThread = new Thread(new Runnable() {
+            public void run() {
+                loop();
+            }
+        }, "receipt-nio");
+        mThread.start();
+        IabLog.w(TAG, "二进制收据验证已启动, 端口 {}", getPort());
+    }
+
+    /**
+     * 关闭所有连接，不停止 ReceiptVerifier
+     */
+    public void stop() {
+        mRunning = false;
+        mSelector.wakeup();
+        try {
+            if (mThread != null)
+                mThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 设置之后接受的连接的发送缓冲区大小，测试写不完响应的情况用。在 start 之前调用
+     */
+    void setSendBufferSize(int bytes) {
+        mSendBufferSize = bytes;
+    }
+
+    public int getPort() {
+        return mServerChannel.socket().getLocalPort();
+    }
+
+    private void loop() {
+        try {
+            while (mRunning) {
+                mSelector.select();
+                Connection done;
+                while ((done = mCompleted.poll()) != null)
+                    respond(done);
+                Iterator<SelectionKey> it = mSelector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if (!key.isValid())
+                        continue;
+                    if (key.isAcceptable())
+                        accept();
+                    else if (key.isReadable())
+                        read((Connection) key.attachment());
+                    else if (key.isWritable())
+                        write((Connection) key.attachment());
+                }
+            }
+        } catch (IOException e) {
+            IabLog.e(TAG, "selector 出错", e);
+        } finally {
+            for (SelectionKey key : mSelector.keys())
+                close(key);
+            try {
+                mSelector.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = mServerChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            if (mSendBufferSize > 0)
+                channel.socket().setSendBufferSize(mSendBufferSize);
+            Connection c = new Connection();
+            c.key = channel.register(mSelector, SelectionKey.OP_READ, c);
+        }
+    }
+
+    private void read(Connection c) {
+        try {
+            int n = ((SocketChannel) c.key.channel()).read(c.in);
+            if (n < 0) {
+                close(c.key);
+                return;
+            }
+            dispatch(c);
+        } catch (IOException e) {
+            close(c.key);
+        }
+    }
+
+    /**
+     * 缓冲区中有完整的请求时交给验证线程，在响应写完之前不再读这个连接
+     */
+    private void dispatch(Connection c) {
+        ByteBuffer in = c.in;
+        if (in.position() < HEADER)
+            return;
+        int frame = in.getInt(0);
+        int dataLength = in.getInt(4);
+        if (frame < HEADER - 4 || frame > MAX_FRAME || dataLength < 0 || dataLength > frame - 4) {
+            IabLog.w(TAG, "无效的请求长度 {} {}", frame, dataLength);
+            close(c.key);
+            return;
+        }
+        int end = 4 + frame;
+        if (in.position() < end) {
+            if (end > in.capacity()) {
+                ByteBuffer bigger = ByteBuffer.allocate(Math.min(MAX_FRAME + 4,
+                        Math.max(end, in.capacity() * 2)));
+                in.flip();
+                bigger.put(in);
+                c.in = bigger;
+            }
+            return;
+        }
+        ByteBuffer data = in.duplicate();
+        data.limit(HEADER + dataLength).position(HEADER);
+        ByteBuffer signature = in.duplicate();
+        signature.limit(end).position(HEADER + dataLength);
+        c.frameEnd = end;
+        c.key.interestOps(0);
+        try {
+            mVerifier.verifyAsync(data.slice(), signature.slice(), c);
+        } catch (RejectedExecutionException e) {
+            // ReceiptVerifier 已经停止
+            close(c.key);
+        }
+    }
+
+    private void respond(Connection c) {
+        if (!c.key.isValid())
+            return;
+        // 去掉已经处理的请求，后面可能已经有下一个
+        c.in.flip();
+        c.in.position(c.frameEnd);
+        c.in.compact();
+        c.out.clear();
+        c.out.put((byte) c.status);
+        c.out.flip();
+        write(c);
+    }
+
+    private void write(Connection c) {
+        try {
+            ((SocketChannel) c.key.channel()).write(c.out);
+        } catch (IOException e) {
+            close(c.key);
+            return;
+        }
+        if (c.out.hasRemaining()) {
+            c.key.interestOps(SelectionKey.OP_WRITE);
+            return;
+        }
+        c.key.interestOps(SelectionKey.OP_READ);
+        dispatch(c);
+    }
+
+    private static void close(SelectionKey key) {
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * 一个连接的缓冲区和正在验证的请求
+     */
+    final class Connection implements ReceiptVerifier.Callback {
+        SelectionKey key;
+        // 堆上的缓冲区，Signature.update 和 Base64.decode 直接使用底层的数组
+        ByteBuffer in = ByteBuffer.allocate(INITIAL_BUFFER);
+        final ByteBuffer out = ByteBuffer.allocate(1);
+        int frameEnd;
+        volatile int status;
+
+        public void onVerdict(int status) {
+            this.status = status;
+            mCompleted.add(this);
+            mSelector.wakeup();
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package com.googlewalletlib.server;
+
+import com.googlewalletlib.util.IabConstants;
+
+import org.json.JSONObject;
+
+/**
+ * 客户端提交的一张收据，即购买返回的 INAPP_PURCHASE_DATA 和 INAPP_DATA_SIGNATURE
+ */
+public class Receipt {
+    final String mItemType;
+    final String mPurchaseData;
+    final String mSignature;
+
+    public Receipt(String itemType, String purchaseData, String signature) {
+        mItemType = itemType == null || itemType.length() == 0
+                ? IabConstants.ITEM_TYPE_INAPP : itemType;
+        mPurchaseData = purchaseData;
+        mSignature = signature;
+    }
+
+    /**
+     * 从请求中的 {"itemType": ..., "purchaseData": ..., "signature": ...} 读取，缺少的字段为 null
+     */
+    public static Receipt fromJson(JSONObject o) {
+        return new Receipt(o.optString("itemType", null), o.optString("purchaseData", null),
+                o.optString("signature", null));
+    }
+
+    public String getItemType() { return mItemType; }
+    public String getPurchaseData() { return mPurchaseData; }
+    public String getSignature() { return mSignature; }
+}
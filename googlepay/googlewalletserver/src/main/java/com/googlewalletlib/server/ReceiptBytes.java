@@ -0,0 +1,116 @@
+package com.googlewalletlib.server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * 直接在购买数据的字节上查找顶层的字符串字段，不解析整个 json，也不移动缓冲区的 position。
+ * 只用来取出去重用的 orderId 和 purchaseToken；值中的转义字符原样保留，
+ * Google 返回的这两个字段不包含需要转义的字符
+ */
+final class ReceiptBytes {
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    static final byte[] ORDER_ID = ascii("orderId");
+    static final byte[] PURCHASE_TOKEN = ascii("purchaseToken");
+    static final byte[] TOKEN = ascii("token");
+
+    private ReceiptBytes() {
+    }
+
+    static byte[] ascii(String s) {
+        return s.getBytes(UTF_8);
+    }
+
+    /**
+     * 查找顶层对象中名为 key 的字符串字段
+     *
+     * @return 值的范围 (不含引号)，高 32 位是开始，低 32 位是结束；没有找到或不是字符串时返回 -1
+     */
+    static long find(ByteBuffer b, byte[] key) {
+        int end = b.limit();
+        int depth = 0;
+        boolean expectKey = false;
+        for (int i = b.position(); i < end; i++) {
+            byte c = b.get(i);
+            if (c == '"') {
+                int close = closeQuote(b, i + 1, end);
+                if (close < 0)
+                    return -1;
+                if (depth == 1 && expectKey) {
+                    int colon = skipSpace(b, close + 1, end);
+                    if (colon >= end || b.get(colon) != ':')
+                        return -1;
+                    if (equals(b, i + 1, close, key)) {
+                        int value = skipSpace(b, colon + 1, end);
+                        if (value >= end || b.get(value) != '"')
+                            return -1;
+                        int valueEnd = closeQuote(b, value + 1, end);
+                        if (valueEnd < 0)
+                            return -1;
+                        return ((long) (value + 1) << 32) | valueEnd;
+                    }
+                    expectKey = false;
+                    i = colon;
+                } else {
+                    i = close;
+                }
+            } else if (c == '{' || c == '[') {
+                depth++;
+                expectKey = depth == 1 && c == '{';
+            } else if (c == '}' || c == ']') {
+                depth--;
+            } else if (c == ',' && depth == 1) {
+                expectKey = true;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * find 返回的范围对应的字符串，范围为 -1 时返回 null
+     */
+    static String string(ByteBuffer b, long range) {
+        if (range < 0)
+            return null;
+        int start = (int) (range >>> 32);
+        int end = (int) range;
+        byte[] bytes = new byte[end - start];
+        for (int i = 0; i < bytes.length; i++)
+            bytes[i] = b.get(start + i);
+        return new String(bytes, UTF_8);
+    }
+
+    // 从 from 开始找没有被转义的引号
+    private static int closeQuote(ByteBuffer b, int from, int end) {
+        for (int i = from; i < end; i++) {
+            byte c = b.get(i);
+            if (c == '\\')
+                i++;
+            else if (c == '"')
+                return i;
+        }
+        return -1;
+    }
+
+    private static int skipSpace(ByteBuffer b, int from, int end) {
+        int i = from;
+        while (i < end) {
+            byte c = b.get(i);
+            if (c != ' ' && c != '\t' && c != '\n' && c != '\r')
+                break;
+            i++;
+        }
+        return i;
+    }
+
+    private static boolean equals(ByteBuffer b, int start, int end, byte[] key) {
+        if (end - start != key.length)
+            return false;
+        for (int i = 0; i < key.length; i++) {
+            if (b.get(start + i) != key[i])
+                return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,327 @@
+package com.googlewalletlib.server;
+
+import com.googlewalletlib.util.IabLog;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 按 orderId 和 purchaseToken 给收据去重。先查 Bloom filter，"可能出现过" 时再查准确的记录 (Store)，
+ * 确认重复的收据在验证签名之前就返回 DUPLICATE，不做 RSA 验证；
+ * 大部分第一次出现的收据 Bloom filter 就能确定没有出现过，也不访问 Store。
+ * 收据在签名正确之后才记录，伪造的收据不能占用别人的 orderId。
+ * <p>
+ * Store 中每个键保存第一次记录它的收据的签名指纹。同一张收据再次提交 (例如客户端没有收到响应后重试)
+ * 时指纹相同，验证签名后仍然是 VALID；orderId 或 token 相同但签名不同的收据才是 DUPLICATE。
+ * <p>
+ * 结果只由 Store 决定，Bloom filter 漏掉的键只是多做一次验证。
+ * Bloom filter 只增不减，用 rebuild 按 Store 当前的大小重建，用 saveSnapshot 保存到文件，
+ * 重启时 loadSnapshot 读回，不用从 Store 重建
+ */
+public class ReceiptDedup {
+    private static final String TAG = "ReceiptDedup";
+
+    /**
+     * 准确的去重记录，例如数据库中的表
+     */
+    public interface Store {
+        /**
+         * @return 键对应的签名指纹，没有时返回 null
+         */
+        String get(String key);
+
+        /**
+         * 没有这个键时加入
+         *
+         * @return 已有的指纹，null 表示加入了；多个线程同时加入同一个键时只有一个返回 null
+         */
+        String putIfAbsent(String key, String fingerprint);
+
+        /**
+         * 键对应的指纹是 fingerprint 时去掉，记录之后的处理失败时调用
+         */
+        void remove(String key, String fingerprint);
+
+        /**
+         * 所有的键，重建 Bloom filter 用，可以是弱一致的
+         */
+        Iterator<String> keys();
+
+        int size();
+    }
+
+    /**
+     * 保存在内存中的 Store
+     */
+    public static class MemoryStore implements Store {
+        private final ConcurrentHashMap<String, String> mKeys = new ConcurrentHashMap<String, String>();
+
+        public String get(String key) {
+            return mKeys.get(key);
+        }
+
+        public String putIfAbsent(String key, String fingerprint) {
+            return mKeys.putIfAbsent(key, fingerprint);
+        }
+
+        public void remove(String key, String fingerprint) {
+            mKeys.remove(key, fingerprint);
+        }
+
+        public Iterator<String> keys() {
+            return mKeys.keySet().iterator();
+        }
+
+        public int size() {
+            return mKeys.size();
+        }
+    }
+
+    // lookup 和 mark 的结果
+    static final int NEW = 0;
+    static final int RESUBMITTED = 1;
+    static final int CONFLICT = 2;
+    static final int NO_KEY = 3;
+
+    // 签名指纹用的 64 位 FNV-1a
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    public static final int DEFAULT_CAPACITY = 1 << 20;
+    public static final double DEFAULT_FALSE_POSITIVE_RATE = 0.001;
+
+    private final Store mStore;
+    private final int mInitialCapacity;
+    private final double mFalsePositiveRate;
+    private volatile ScalableBloomFilter mFilter;
+    // rebuild 期间新加入的键同时写入
+    private volatile ScalableBloomFilter mNext;
+    private final AtomicLong mEarlyDuplicates = new AtomicLong();
+    private final AtomicLong mFalsePositives = new AtomicLong();
+    private final AtomicLong mStoreLookups = new AtomicLong();
+
+    public ReceiptDedup() {
+        this(new MemoryStore(), DEFAULT_CAPACITY, DEFAULT_FALSE_POSITIVE_RATE);
+    }
+
+    /**
+     * @param initialCapacity Bloom filter 第一段的容量
+     * @param falsePositiveRate Bloom filter 的误判率，误判时多查一次 Store
+     */
+    public ReceiptDedup(Store store, int initialCapacity, double falsePositiveRate) {
+        mStore = store;
+        mInitialCapacity = initialCapacity;
+        mFalsePositiveRate = falsePositiveRate;
+        mFilter = new ScalableBloomFilter(initialCapacity, falsePositiveRate);
+    }
+
+    public Store getStore() {
+        return mStore;
+    }
+
+    /**
+     * 签名的指纹，签名是 Base64 字符串，与 fingerprint(ByteBuffer) 对同样的内容结果相同
+     */
+    static String fingerprint(String signature) {
+        long h = FNV_OFFSET;
+        for (int i = 0; i < signature.length(); i++) {
+            h ^= signature.charAt(i) & 0xff;
+            h *= FNV_PRIME;
+        }
+        return Long.toHexString(h);
+    }
+
+    /**
+     * 不移动 signature 的 position
+     */
+    static String fingerprint(ByteBuffer signature) {
+        long h = FNV_OFFSET;
+        for (int i = signature.position(); i < signature.limit(); i++) {
+            h ^= signature.get(i) & 0xff;
+            h *= FNV_PRIME;
+        }
+        return Long.toHexString(h);
+    }
+
+    /**
+     * 验证签名之前调用
+     *
+     * @return NEW 没有记录过；RESUBMITTED 记录过同一张收据，验证签名后仍然有效；
+     * CONFLICT orderId 或 token 被另一张收据使用过
+     */
+    int lookup(String orderId, String token, String fingerprint) {
+        int o = seen("o:", orderId, fingerprint);
+        if (o == CONFLICT)
+            return CONFLICT;
+        int t = seen("t:", token, fingerprint);
+        if (t == CONFLICT)
+            return CONFLICT;
+        return o == RESUBMITTED || t == RESUBMITTED ? RESUBMITTED : NEW;
+    }
+
+    private int seen(String prefix, String value, String fingerprint) {
+        if (value == null || value.length() == 0)
+            return NEW;
+        String key = prefix + value;
+        if (!mFilter.mightContain(key))
+            return NEW;
+        mStoreLookups.incrementAndGet();
+        String recorded = mStore.get(key);
+        if (recorded == null) {
+            mFalsePositives.incrementAndGet();
+            return NEW;
+        }
+        if (recorded.equals(fingerprint))
+            return RESUBMITTED;
+        mEarlyDuplicates.incrementAndGet();
+        return CONFLICT;
+    }
+
+    /**
+     * 记录签名正确的收据。CONFLICT 时不留下这次加入的键
+     *
+     * @return NEW 第一次记录；RESUBMITTED 已经记录过同一张收据；CONFLICT 与另一张收据重复；
+     * 两个字段都没有时 NO_KEY
+     */
+    int mark(String orderId, String token, String fingerprint) {
+        boolean hasOrderId = orderId != null && orderId.length() > 0;
+        boolean hasToken = token != null && token.length() > 0;
+        if (!hasOrderId && !hasToken)
+            return NO_KEY;
+        // 两个都要记录，orderId 不同但 token 相同也算重复
+        int o = hasOrderId ? add("o:" + orderId, fingerprint) : NEW;
+        int t = hasToken ? add("t:" + token, fingerprint) : NEW;
+        if (o == CONFLICT || t == CONFLICT) {
+            if (hasOrderId && o == NEW)
+                mStore.remove("o:" + orderId, fingerprint);
+            if (hasToken && t == NEW)
+                mStore.remove("t:" + token, fingerprint);
+            return CONFLICT;
+        }
+        return o == RESUBMITTED || t == RESUBMITTED ? RESUBMITTED : NEW;
+    }
+
+    /**
+     * 撤销 mark 返回 NEW 时的记录，例如写入 journal 失败，客户端重试时再次验证。
+     * Bloom filter 不能删除，这些键以后只是多查一次 Store
+     */
+    void unmark(String orderId, String token, String fingerprint) {
+        if (orderId != null && orderId.length() > 0)
+            mStore.remove("o:" + orderId, fingerprint);
+        if (token != null && token.length() > 0)
+            mStore.remove("t:" + token, fingerprint);
+    }
+
+    private int add(String key, String fingerprint) {
+        String recorded = mStore.putIfAbsent(key, fingerprint);
+        boolean added = recorded == null;
+        // 先读 mNext 再读 mFilter: 读到的 mNext 为 null 时，要么 rebuild 还没开始 (会从 Store 读到这个键)，
+        // 要么已经结束 (mFilter 已经是新的)
+        ScalableBloomFilter next = mNext;
+        ScalableBloomFilter filter = mFilter;
+        // 已经在 Store 中但 Bloom filter 没有 (例如快照较旧) 时也补上
+        if (added || !filter.mightContain(key))
+            filter.add(key);
+        if (next != null && next != filter)
+            next.add(key);
+        if (added)
+            return NEW;
+        return recorded.equals(fingerprint) ? RESUBMITTED : CONFLICT;
+    }
+
+    /**
+     * 按 Store 当前的大小重新建立 Bloom filter，去掉增长出来的多余段。
+     * 期间可以继续去重
+     */
+    public synchronized void rebuild() {
+        long start = System.nanoTime();
+        int size = mStore.size();
+        ScalableBloomFilter next = new ScalableBloomFilter(
+                (int) Math.min(Integer.MAX_VALUE / 2, Math.max((long) mInitialCapacity, 2L * size)),
+                mFalsePositiveRate);
+        mNext = next;
+        Iterator<String> keys = mStore.keys();
+        while (keys.hasNext())
+            next.add(keys.next());
+        mFilter = next;
+        mNext = null;
+        IabLog.d(TAG, "重建 Bloom filter, {} 个键, {} 毫秒", size,
+                (System.nanoTime() - start) / 1000000);
+    }
+
+    /**
+     * 保存 Bloom filter，先写临时文件再替换
+     */
+    public synchronized void saveSnapshot(File file) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream fos = new FileOutputStream(tmp);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, 64 * 1024));
+            mFilter.writeTo(out);
+            out.flush();
+            fos.getFD().sync();
+        } finally {
+            fos.close();
+        }
+        if (!tmp.renameTo(file))
+            throw new IOException("无法替换 " + file);
+    }
+
+    /**
+     * 读取 saveSnapshot 保存的 Bloom filter，代替当前的。
+     * 在开始去重之前调用；文件不存在时返回 false。
+     * 快照损坏 (参数无效、长度不对或 CRC 不一致) 时改为从 Store 重建，也返回 false
+     */
+    public synchronized boolean loadSnapshot(File file) throws IOException {
+        if (!file.exists())
+            return false;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+        try {
+            mFilter = ScalableBloomFilter.readFrom(in, file.length());
+        } catch (IOException e) {
+            IabLog.e(TAG, "Bloom filter 快照 " + file + " 损坏, 从 Store 重建", e);
+            rebuild();
+            return false;
+        } finally {
+            in.close();
+        }
+        IabLog.d(TAG, "读取 Bloom filter 快照 {}, {} 个键", file, mFilter.getCount());
+        return true;
+    }
+
+    /** 验证签名之前就确认重复的收据数 */
+    public long getEarlyDuplicates() {
+        return mEarlyDuplicates.get();
+    }
+
+    /** Bloom filter 误判，查了 Store 但没有的次数 */
+    public long getFalsePositives() {
+        return mFalsePositives.get();
+    }
+
+    public JSONObject toJson() throws JSONException {
+        ScalableBloomFilter filter = mFilter;
+        JSONObject o = new JSONObject();
+        o.put("keys", mStore.size());
+        o.put("filterKeys", filter.getCount());
+        o.put("filterStages", filter.getStageCount());
+        o.put("filterBytes", filter.getSizeInBytes());
+        o.put("storeLookups", mStoreLookups.get());
+        o.put("earlyDuplicates", mEarlyDuplicates.get());
+        o.put("falsePositives", mFalsePositives.get());
+        return o;
+    }
+}
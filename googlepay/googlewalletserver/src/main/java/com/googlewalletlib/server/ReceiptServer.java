@@ -0,0 +1,485 @@
+package com.googlewalletlib.server;
+
+import com.googlewalletlib.util.IabLog;
+import com.googlewalletlib.util.Purchase;
+import com.googlewalletlib.util.PurchaseIndex;
+import com.googlewalletlib.util.PurchaseJournal;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipException;
+
+/**
+ * 收据验证服务，客户端 (PayTools.commitBuy) 把购买结果提交到这里验证:
+ * <pre>
+ * POST /verify        {"itemType": "inapp", "purchaseData": "...", "signature": "..."}
+ *                     返回 {"status": "valid", "orderId": ..., "productId": ..., "purchaseToken": ...}
+ * POST /verify/batch  {"receipts": [收据, ...]}，最多 MAX_BATCH 张
+ *                     返回 {"verdicts": [结果, ...]}，顺序与请求相同
+ * POST /purchase      {"orderId": ...} 或 {"purchaseToken": ...}，需要 --journal-index
+ *                     返回 journal 中记录的购买 {"found": true, "itemType": ..., "purchaseData": ..., "signature": ...}
+ * GET  /stats         吞吐量统计，见 ReceiptStats；去重的统计在 "dedup" 中，见 ReceiptDedup
+ * </pre>
+ * status 是 valid、invalid_signature、malformed 或 duplicate。duplicate 表示 orderId 或 purchaseToken
+ * 被另一张收据用过；再次提交已经通过的同一张收据仍然是 valid，并带有 "resubmitted": true。
+ * HTTP 线程只读写请求，签名验证在 ReceiptVerifier 的线程池上进行。
+ * 加上 --virtual-threads 时 (需要 Java 21) 每个请求在一个虚拟线程上处理，
+ * 大量慢速客户端只占用虚拟线程，验证仍然在固定大小的平台线程池上。
+ * <pre>
+ * java -jar googlewalletserver.jar --key &lt;base64 公钥或 @文件&gt; [--port 8080] [--workers 核数]
+ *                                  [--virtual-threads] [--backlog n] [--nio-port n]
+ *                                  [--journal 文件] [--journal-index 文件]
+ *                                  [--dedup-snapshot 文件] [--dedup-rebuild-minutes 60]
+ * </pre>
+ * --nio-port 同时在这个端口上接受 NioReceiptServer 的二进制协议。
+ * --journal 把验证通过的购买写入 PurchaseJournal 后才返回结果，重启后之前的购买仍然参与去重。
+ * --journal-index 用内存映射的 PurchaseIndex 索引 journal，对账时按 orderId 或 purchaseToken 查找。
+ * --dedup-snapshot 启动时读取去重用的 Bloom filter，定期重建后保存，停止时也保存
+ */
+public class ReceiptServer {
+    private static final String TAG = "ReceiptServer";
+
+    public static final int DEFAULT_PORT = 8080;
+    // 一次批量请求最多的收据数
+    public static final int MAX_BATCH = 1000;
+    // 请求体的最大长度
+    static final int MAX_BODY_BYTES = 4 * 1024 * 1024;
+    // 使用虚拟线程时默认的连接等待队列长度
+    static final int VIRTUAL_THREADS_BACKLOG = 4096;
+    // 默认每隔多久重建一次去重用的 Bloom filter
+    static final int DEFAULT_DEDUP_REBUILD_MINUTES = 60;
+
+    private final ReceiptVerifier mVerifier;
+    private final HttpServer mServer;
+    private final ExecutorService mHttpExecutor;
+    private volatile PurchaseJournal mJournal;
+    private volatile PurchaseIndex mJournalIndex;
+    private volatile File mDedupSnapshot;
+    private ScheduledExecutorService mMaintenance;
+
+    /**
+     * @param port 0 表示任意空闲端口，见 getPort
+     * @param httpThreads 处理请求的线程数，这些线程大部分时间在等待网络和验证线程
+     */
+    public ReceiptServer(ReceiptVerifier verifier, int port, int httpThreads) throws IOException {
+        this(verifier, port, newHttpExecutor(httpThreads), 0);
+    }
+
+    /**
+     * @param httpExecutor 处理请求的线程，例如 VirtualThreads.newPerTaskExecutor，stop 时关闭
+     * @param backlog 连接等待队列的长度，0 表示系统默认
+     */
+    public ReceiptServer(ReceiptVerifier verifier, int port, ExecutorService httpExecutor,
+                         int backlog) throws IOException {
+        mVerifier = verifier;
+        mServer = HttpServer.create(new InetSocketAddress(port), backlog);
+        mHttpExecutor = httpExecutor;
+        mServer.setExecutor(mHttpExecutor);
+        mServer.createContext("/verify", new Handler("POST") {
+            JSONObject handle(JSONObject request) throws Exception {
+                Verdict v = mVerifier.verify(Receipt.fromJson(request));
+                PurchaseJournal journal = mJournal;
+                if (journal != null && v.isValid() && !v.isResubmitted()) {
+                    try {
+                        journal.append(v.getPurchase());
+                    } catch (IOException e) {
+                        // 没有写入 journal 的购买不算出现过，客户端重试时不是 duplicate
+                        mVerifier.unmark(v.getPurchase());
+                        throw e;
+                    }
+                }
+                return v.toJson();
+            }
+        });
+        mServer.createContext("/verify/batch", new Handler("POST") {
+            JSONObject handle(JSONObject request) throws Exception {
+                JSONArray array = request.optJSONArray("receipts");
+                if (array == null)
+                    throw new BadRequestException(400, "缺少 receipts");
+                if (array.length() > MAX_BATCH)
+                    throw new BadRequestException(413, "一次最多 " + MAX_BATCH + " 张收据");
+                List<Receipt> receipts = new ArrayList<Receipt>(array.length());
+                for (int i = 0; i < array.length(); i++) {
+                    JSONObject o = array.optJSONObject(i);
+                    receipts.add(o == null ? new Receipt(null, null, null) : Receipt.fromJson(o));
+                }
+                List<Verdict> result = mVerifier.verifyAll(receipts);
+                PurchaseJournal journal = mJournal;
+                if (journal != null) {
+                    // 一批只 fsync 一次，同时进行的请求也会合并
+                    List<Purchase> valid = new ArrayList<Purchase>();
+                    for (Verdict v : result) {
+                        if (v.isValid() && !v.isResubmitted())
+                            valid.add(v.getPurchase());
+                    }
+                    try {
+                        journal.appendAll(valid);
+                    } catch (IOException e) {
+                        for (Purchase p : valid)
+                            mVerifier.unmark(p);
+                        throw e;
+                    }
+                }
+                JSONArray verdicts = new JSONArray();
+                for (Verdict v : result)
+                    verdicts.put(v.toJson());
+                JSONObject response = new JSONObject();
+                response.put("verdicts", verdicts);
+                return response;
+            }
+        });
+        mServer.createContext("/purchase", new Handler("POST") {
+            JSONObject handle(JSONObject request) throws Exception {
+                PurchaseJournal journal = mJournal;
+                if (journal == null || mJournalIndex == null)
+                    throw new BadRequestException(404, "没有 journal 索引");
+                String orderId = request.optString("orderId", null);
+                String token = request.optString("purchaseToken", null);
+                Purchase p;
+                if (orderId != null)
+                    p = journal.findByOrderId(orderId);
+                else if (token != null)
+                    p = journal.findByToken(token);
+                else
+                    throw new BadRequestException(400, "缺少 orderId 或 purchaseToken");
+                JSONObject response = new JSONObject();
+                response.put("found", p != null);
+                if (p != null) {
+                    response.put("itemType", p.getItemType());
+                    response.put("purchaseData", p.getOriginalJson());
+                    response.put("signature", p.getSignature());
+                }
+                return response;
+            }
+        });
+        mServer.createContext("/stats", new Handler("GET") {
+            JSONObject handle(JSONObject request) throws Exception {
+                JSONObject stats = mVerifier.getStats().toJson();
+                stats.put("dedup", mVerifier.getDedup().toJson());
+                return stats;
+            }
+        });
+    }
+
+    static ExecutorService newHttpExecutor(int threads) {
+        final AtomicInteger n = new AtomicInteger();
+        return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "receipt-http-" + n.incrementAndGet());
+            }
+        });
+    }
+
+    /**
+     * 每个请求一个虚拟线程的 executor，Java 21 以下返回 null
+     */
+    public static ExecutorService newVirtualThreadExecutor() {
+        return VirtualThreads.newPerTaskExecutor("receipt-http-");
+    }
+
+    /**
+     * 验证通过的购买在返回结果前写入 journal，重新提交的同一张收据 (isResubmitted) 不再写入；
+     * 已经在 journal 中的购买再次提交时仍然是 valid，用了它的 orderId 或 token 的其它收据是 duplicate。
+     * 写入失败时返回 500 并撤销这些购买的去重记录，客户端可以重试。
+     * 在 start 之前调用
+     */
+    public void setJournal(PurchaseJournal journal) {
+        if (journal != null) {
+            for (Purchase p : journal.getPending())
+                mVerifier.markSeen(p);
+        }
+        mJournal = journal;
+    }
+
+    /**
+     * 从 snapshot 读取去重用的 Bloom filter，之后每隔 rebuildMinutes 分钟按去重记录重建并保存，
+     * stop 时也保存。在 setJournal 和 start 之前调用
+     *
+     * @param rebuildMinutes 0 表示不定期重建，只在 stop 时保存
+     */
+    public void setDedupSnapshot(final File snapshot, long rebuildMinutes) throws IOException {
+        final ReceiptDedup dedup = mVerifier.getDedup();
+        dedup.loadSnapshot(snapshot);
+        mDedupSnapshot = snapshot;
+        if (rebuildMinutes <= 0)
+            return;
+        mMaintenance = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "receipt-dedup");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        mMaintenance.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    dedup.rebuild();
+                    dedup.saveSnapshot(snapshot);
+                } catch (IOException e) {
+                    IabLog.e(TAG, "保存 Bloom filter 失败", e);
+                }
+            }
+        }, rebuildMinutes, rebuildMinutes, TimeUnit.MINUTES);
+    }
+
+    /**
+     * 用 index 索引 journal，之后可以用 /purchase 查找。在 setJournal 之后、start 之前调用，
+     * 会扫描 journal 中还没有索引的记录
+     */
+    public void setJournalIndex(PurchaseIndex index) throws IOException {
+        mJournal.attachIndex(index);
+        mJournalIndex = index;
+    }
+
+    public void start() {
+        mServer.start();
+        IabLog.w(TAG, "收据验证服务已启动, 端口 {}, 验证线程 {}", getPort(),
+                mVerifier.getParallelism());
+    }
+
+    /**
+     * 停止接受请求，最多等待 delaySeconds 秒让正在处理的请求完成
+     */
+    public void stop(int delaySeconds) {
+        mServer.stop(delaySeconds);
+        mHttpExecutor.shutdown();
+        mVerifier.shutdown();
+        if (mMaintenance != null)
+            mMaintenance.shutdown();
+        File snapshot = mDedupSnapshot;
+        if (snapshot != null) {
+            try {
+                mVerifier.getDedup().saveSnapshot(snapshot);
+            } catch (IOException e) {
+                IabLog.e(TAG, "保存 Bloom filter 失败", e);
+            }
+        }
+        PurchaseJournal journal = mJournal;
+        if (journal != null) {
+            try {
+                journal.close();
+            } catch (IOException e) {
+                IabLog.e(TAG, "关闭 journal 失败", e);
+            }
+        }
+        PurchaseIndex index = mJournalIndex;
+        if (index != null) {
+            try {
+                index.close();
+            } catch (IOException e) {
+                IabLog.e(TAG, "关闭 journal 索引失败", e);
+            }
+        }
+    }
+
+    public int getPort() {
+        return mServer.getAddress().getPort();
+    }
+
+    public ReceiptVerifier getVerifier() {
+        return mVerifier;
+    }
+
+    /**
+     * 请求参数错误，返回给客户端的 HTTP 状态码和原因
+     */
+    static class BadRequestException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        final int mStatus;
+
+        BadRequestException(int status, String message) {
+            super(message);
+            mStatus = status;
+        }
+    }
+
+    /**
+     * 读取 json 请求体，写回 json 响应
+     */
+    abstract static class Handler implements HttpHandler {
+        private final String mMethod;
+
+        Handler(String method) {
+            mMethod = method;
+        }
+
+        /**
+         * @param request GET 请求时为空对象
+         */
+        abstract JSONObject handle(JSONObject request) throws Exception;
+
+        public void handle(HttpExchange exchange) throws IOException {
+            try {
+                JSONObject response;
+                try {
+                    if (!mMethod.equals(exchange.getRequestMethod()))
+                        throw new BadRequestException(405, "只支持 " + mMethod);
+                    JSONObject request = new JSONObject();
+                    if ("POST".equals(mMethod)) {
+                        try {
+                            InputStream body = exchange.getRequestBody();
+                            // PurchaseUploader 压缩请求体，长度限制按解压后计算
+                            if ("gzip".equalsIgnoreCase(exchange.getRequestHeaders().getFirst("Content-Encoding")))
+                                body = new GZIPInputStream(body);
+                            request = new JSONObject(readBody(body));
+                        } catch (ZipException | EOFException e) {
+                            throw new BadRequestException(400, "gzip 数据无效");
+                        } catch (JSONException e) {
+                            throw new BadRequestException(400, "请求不是 json 对象");
+                        }
+                    }
+                    response = handle(request);
+                } catch (BadRequestException e) {
+                    sendError(exchange, e.mStatus, e.getMessage());
+                    return;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    sendError(exchange, 503, "服务正在停止");
+                    return;
+                } catch (Exception e) {
+                    IabLog.e(TAG, "处理请求失败: " + exchange.getRequestURI(), e);
+                    sendError(exchange, 500, "内部错误");
+                    return;
+                }
+                send(exchange, 200, response.toString());
+            } finally {
+                exchange.close();
+            }
+        }
+    }
+
+    static String readBody(InputStream in) throws IOException, BadRequestException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[8192];
+        int n;
+        while ((n = in.read(buf)) != -1) {
+            out.write(buf, 0, n);
+            if (out.size() > MAX_BODY_BYTES)
+                throw new BadRequestException(413, "请求太大");
+        }
+        return out.toString("UTF-8");
+    }
+
+    static void sendError(HttpExchange exchange, int status, String message) throws IOException {
+        try {
+            JSONObject o = new JSONObject();
+            o.put("error", message);
+            send(exchange, status, o.toString());
+        } catch (JSONException e) {
+            send(exchange, status, "{}");
+        }
+    }
+
+    static void send(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes("UTF-8");
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(bytes);
+        out.close();
+    }
+
+    /**
+     * 读取命令行参数 --name value
+     */
+    static String arg(String[] args, String name, String defaultValue) {
+        for (int i = 0; i + 1 < args.length; i++) {
+            if (args[i].equals(name))
+                return args[i + 1];
+        }
+        return defaultValue;
+    }
+
+    static boolean hasFlag(String[] args, String name) {
+        for (String a : args) {
+            if (a.equals(name))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * 参数值以 @ 开头时读取文件内容
+     */
+    static String readValue(String value) throws IOException {
+        if (value != null && value.startsWith("@"))
+            return new String(Files.readAllBytes(new File(value.substring(1)).toPath()), "UTF-8").trim();
+        return value;
+    }
+
+    public static void main(String[] args) throws IOException {
+        String key = readValue(arg(args, "--key", System.getenv("GOOGLE_PLAY_PUBLIC_KEY")));
+        if (key == null) {
+            System.err.println("usage: ReceiptServer --key <base64 公钥或 @文件> [--port "
+                    + DEFAULT_PORT + "] [--workers 核数] [--http-threads n] [--virtual-threads]"
+                    + " [--backlog n] [--nio-port n] [--journal 文件] [--journal-index 文件]"
+                    + " [--dedup-snapshot 文件]"
+                    + " [--dedup-rebuild-minutes " + DEFAULT_DEDUP_REBUILD_MINUTES + "]");
+            System.exit(2);
+        }
+        int cores = Runtime.getRuntime().availableProcessors();
+        int port = Integer.parseInt(arg(args, "--port", String.valueOf(DEFAULT_PORT)));
+        int workers = Integer.parseInt(arg(args, "--workers", String.valueOf(cores)));
+        int httpThreads = Integer.parseInt(arg(args, "--http-threads", String.valueOf(cores * 4)));
+        ExecutorService executor = null;
+        int backlog = 0;
+        if (hasFlag(args, "--virtual-threads")) {
+            executor = newVirtualThreadExecutor();
+            if (executor == null)
+                IabLog.w(TAG, "当前 JVM 不支持虚拟线程, 使用 {} 个 HTTP 线程", httpThreads);
+            else
+                backlog = VIRTUAL_THREADS_BACKLOG;
+        }
+        if (executor == null)
+            executor = newHttpExecutor(httpThreads);
+        backlog = Integer.parseInt(arg(args, "--backlog", String.valueOf(backlog)));
+        ReceiptVerifier verifier = new ReceiptVerifier(key, workers);
+        final ReceiptServer server = new ReceiptServer(verifier, port, executor, backlog);
+        String snapshot = arg(args, "--dedup-snapshot", null);
+        if (snapshot != null)
+            server.setDedupSnapshot(new File(snapshot), Long.parseLong(arg(args,
+                    "--dedup-rebuild-minutes", String.valueOf(DEFAULT_DEDUP_REBUILD_MINUTES))));
+        String journal = arg(args, "--journal", null);
+        if (journal != null)
+            server.setJournal(PurchaseJournal.open(new File(journal)));
+        String journalIndex = arg(args, "--journal-index", null);
+        if (journal != null && journalIndex != null)
+            server.setJournalIndex(PurchaseIndex.open(new File(journalIndex), 0));
+        String nioPort = arg(args, "--nio-port", null);
+        final NioReceiptServer nio = nioPort == null ? null
+                : new NioReceiptServer(verifier, Integer.parseInt(nioPort));
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            public void run() {
+                if (nio != null)
+                    nio.stop();
+                server.stop(1);
+            }
+        });
+        server.start();
+        if (nio != null)
+            nio.start();
+    }
+}
@@ -0,0 +1,85 @@
+package com.googlewalletlib.server;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 验证服务的吞吐量统计。
+ * 除了每秒验证的收据数，还记录验证线程实际占用的时间，
+ * 用 "每个核每秒验证的收据数" 比较不同机器和不同并发度下的结果
+ */
+public class ReceiptStats {
+    private final int mCores;
+    private final AtomicLongArray mCounts = new AtomicLongArray(Verdict.STATUS_COUNT);
+    private final AtomicLong mBusyNanos = new AtomicLong();
+    private volatile long mStartNanos = System.nanoTime();
+
+    /**
+     * @param cores 验证线程数
+     */
+    public ReceiptStats(int cores) {
+        mCores = cores;
+    }
+
+    void record(int status, long elapsedNanos) {
+        mCounts.incrementAndGet(status);
+        mBusyNanos.addAndGet(elapsedNanos);
+    }
+
+    public long getCount() {
+        long n = 0;
+        for (int i = 0; i < Verdict.STATUS_COUNT; i++)
+            n += mCounts.get(i);
+        return n;
+    }
+
+    public long getCount(int status) {
+        return mCounts.get(status);
+    }
+
+    /**
+     * 从创建或 reset 开始，平均每秒验证的收据数
+     */
+    public double getReceiptsPerSecond() {
+        double seconds = (System.nanoTime() - mStartNanos) / 1e9;
+        return seconds <= 0 ? 0 : getCount() / seconds;
+    }
+
+    /**
+     * 每秒验证的收据数除以验证线程数，验证线程空闲时会偏低
+     */
+    public double getReceiptsPerSecondPerCore() {
+        return getReceiptsPerSecond() / mCores;
+    }
+
+    /**
+     * 每个核在验证上花费一秒能验证的收据数，不受空闲时间影响
+     */
+    public double getReceiptsPerCoreSecond() {
+        long busy = mBusyNanos.get();
+        return busy == 0 ? 0 : getCount() / (busy / 1e9);
+    }
+
+    public void reset() {
+        for (int i = 0; i < Verdict.STATUS_COUNT; i++)
+            mCounts.set(i, 0);
+        mBusyNanos.set(0);
+        mStartNanos = System.nanoTime();
+    }
+
+    public JSONObject toJson() throws JSONException {
+        JSONObject o = new JSONObject();
+        o.put("cores", mCores);
+        o.put("receipts", getCount());
+        for (int i = 0; i < Verdict.STATUS_COUNT; i++)
+            o.put(Verdict.STATUS_NAMES[i], mCounts.get(i));
+        o.put("busySeconds", mBusyNanos.get() / 1e9);
+        o.put("receiptsPerSecond", getReceiptsPerSecond());
+        o.put("receiptsPerSecondPerCore", getReceiptsPerSecondPerCore());
+        o.put("receiptsPerCoreSecond", getReceiptsPerCoreSecond());
+        return o;
+    }
+}
@@ -0,0 +1,365 @@
+package com.googlewalletlib.server;
+
+import com.googlewalletlib.util.IabLog;
+import com.googlewalletlib.util.Purchase;
+import com.googlewalletlib.util.Security;
+
+import org.json.JSONException;
+
+import java.nio.ByteBuffer;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 用 Security 验证收据的签名，并用 ReceiptDedup 按 orderId 和 purchaseToken 去重，
+ * orderId 或 purchaseToken 被另一张收据用过时在验证签名之前就返回 DUPLICATE；
+ * 再次提交同一张收据时验证签名后仍然是 VALID (Verdict.isResubmitted)，客户端重试是幂等的。
+ * 签名验证是 CPU 密集的，在固定大小的线程池上执行，默认每个核一个线程；
+ * 批量验证时分成和线程数相同的几段同时进行。
+ * 排队的任务数有上限，超过时提交的线程阻塞等待，请求在虚拟线程上处理时
+ * 大量并发请求只会在这里排队，不会让验证线程池的队列无限增长。
+ * 只有签名正确的收据才参与去重，伪造的收据不能占用别人的 orderId
+ */
+public class ReceiptVerifier {
+    private static final String TAG = "ReceiptVerifier";
+
+    // 每段至少这么多张收据，小批量不拆分
+    static final int MIN_CHUNK = 16;
+    // 每个验证线程最多排队的任务数
+    static final int QUEUE_PER_THREAD = 32;
+
+    private final PublicKey mKey;
+    private final int mParallelism;
+    private final ExecutorService mWorkers;
+    private final ReceiptStats mStats;
+    // 正在执行和排队的任务数的上限
+    private final Semaphore mPermits;
+    // verifyAsync 的任务在没有许可时在这里等待，不阻塞调用的线程
+    private final ConcurrentLinkedQueue<Runnable> mWaiting = new ConcurrentLinkedQueue<Runnable>();
+    private final ReceiptDedup mDedup;
+
+    /**
+     * verifyAsync 的结果
+     */
+    public interface Callback {
+        /**
+         * 在验证线程上调用
+         *
+         * @param status Verdict.VALID 等
+         */
+        void onVerdict(int status);
+    }
+
+    public ReceiptVerifier(String base64PublicKey) {
+        this(base64PublicKey, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param base64PublicKey Google Play 后台的开发公共密钥
+     * @param parallelism 验证线程数
+     */
+    public ReceiptVerifier(String base64PublicKey, int parallelism) {
+        this(base64PublicKey, parallelism, new ReceiptDedup());
+    }
+
+    /**
+     * @param dedup 去重的记录，可以使用数据库等外部的 Store
+     */
+    public ReceiptVerifier(String base64PublicKey, int parallelism, ReceiptDedup dedup) {
+        if (parallelism <= 0)
+            throw new IllegalArgumentException("parallelism: " + parallelism);
+        // 公钥只解析一次，不用 Security.verifyPurchase(String, ...) 每次解析
+        mKey = Security.generatePublicKey(base64PublicKey);
+        mParallelism = parallelism;
+        mDedup = dedup;
+        mStats = new ReceiptStats(parallelism);
+        mPermits = new Semaphore(parallelism * QUEUE_PER_THREAD);
+        final AtomicInteger n = new AtomicInteger();
+        mWorkers = Executors.newFixedThreadPool(parallelism, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "receipt-verify-" + n.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    public int getParallelism() {
+        return mParallelism;
+    }
+
+    public ReceiptStats getStats() {
+        return mStats;
+    }
+
+    public ReceiptDedup getDedup() {
+        return mDedup;
+    }
+
+    /**
+     * 在验证线程上验证一张收据，等待结果
+     */
+    public Verdict verify(final Receipt receipt) throws InterruptedException {
+        Future<Verdict> f = submit(new Callable<Verdict>() {
+            public Verdict call() {
+                return verifyNow(receipt);
+            }
+        });
+        try {
+            return await(f);
+        } catch (InterruptedException e) {
+            f.cancel(true);
+            throw e;
+        }
+    }
+
+    /**
+     * 同时验证多张收据，结果与参数的顺序相同。
+     * 同一批中 orderId 或 token 相同的不同收据只有一张是 VALID，其余是 DUPLICATE；
+     * 完全相同的收据都是 VALID，只有一张不是 isResubmitted
+     */
+    public List<Verdict> verifyAll(final List<Receipt> receipts) throws InterruptedException {
+        int size = receipts.size();
+        int chunk = Math.max(MIN_CHUNK, (size + mParallelism - 1) / mParallelism);
+        final Verdict[] verdicts = new Verdict[size];
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        try {
+            for (int start = 0; start < size; start += chunk) {
+                final int from = start;
+                final int to = Math.min(size, start + chunk);
+                futures.add(submit(new Callable<Void>() {
+                    public Void call() {
+                        for (int i = from; i < to; i++)
+                            verdicts[i] = verifyNow(receipts.get(i));
+                        return null;
+                    }
+                }));
+            }
+            for (Future<?> f : futures)
+                await(f);
+        } catch (InterruptedException e) {
+            for (Future<?> f : futures)
+                f.cancel(true);
+            throw e;
+        }
+        List<Verdict> result = new ArrayList<Verdict>(size);
+        for (Verdict v : verdicts)
+            result.add(v);
+        return result;
+    }
+
+    /**
+     * 在验证线程上验证缓冲区中的收据，不创建 Purchase 和中间的 String。
+     * 与 verify 共用排队的上限，但不阻塞调用的线程 (NioReceiptServer 的 selector 线程)：
+     * 达到上限时任务按顺序等待，有任务完成时再交给验证线程。
+     * 回调一定会被调用，验证出错时是 Verdict.MALFORMED；回调之前 data 和 signature 不能被修改
+     *
+     * @param data 购买数据的 UTF-8 字节
+     * @param signature Base64 编码的签名
+     * @throws RejectedExecutionException 已经 shutdown
+     */
+    public void verifyAsync(final ByteBuffer data, final ByteBuffer signature,
+                            final Callback callback) {
+        if (mWorkers.isShutdown())
+            throw new RejectedExecutionException("shutdown");
+        mWaiting.add(new Runnable() {
+            public void run() {
+                try {
+                    callback.onVerdict(verifyNow(data, signature));
+                } finally {
+                    mPermits.release();
+                    startWaiting();
+                }
+            }
+        });
+        startWaiting();
+    }
+
+    /**
+     * 有许可时把等待的 verifyAsync 任务交给验证线程
+     */
+    private void startWaiting() {
+        while (!mWaiting.isEmpty() && mPermits.tryAcquire()) {
+            Runnable task = mWaiting.poll();
+            if (task == null) {
+                mPermits.release();
+                continue;
+            }
+            try {
+                mWorkers.execute(task);
+            } catch (RejectedExecutionException e) {
+                // 已经 shutdown，剩下的连接由调用方关闭
+                mPermits.release();
+                IabLog.w(TAG, "验证线程已停止, 丢弃等待的收据");
+                return;
+            }
+        }
+    }
+
+    /**
+     * 剩余的许可数，测试用
+     */
+    int availablePermits() {
+        return mPermits.availablePermits();
+    }
+
+    int verifyNow(ByteBuffer data, ByteBuffer signature) {
+        long start = System.nanoTime();
+        int status;
+        try {
+            status = check(data, signature);
+        } catch (RuntimeException e) {
+            IabLog.w(TAG, "无法验证的收据", e);
+            status = Verdict.MALFORMED;
+        }
+        mStats.record(status, System.nanoTime() - start);
+        return status;
+    }
+
+    private int check(ByteBuffer data, ByteBuffer signature) {
+        if (!data.hasRemaining() || !signature.hasRemaining())
+            return Verdict.MALFORMED;
+        // 先取出字段，Security.verify 会移动 data 的 position
+        String orderId = ReceiptBytes.string(data, ReceiptBytes.find(data, ReceiptBytes.ORDER_ID));
+        // 与 Purchase 相同，token 优先于 purchaseToken
+        long token = ReceiptBytes.find(data, ReceiptBytes.TOKEN);
+        if (token < 0)
+            token = ReceiptBytes.find(data, ReceiptBytes.PURCHASE_TOKEN);
+        String tokenValue = ReceiptBytes.string(data, token);
+        String fingerprint = ReceiptDedup.fingerprint(signature);
+        int seen = mDedup.lookup(orderId, tokenValue, fingerprint);
+        if (seen == ReceiptDedup.CONFLICT)
+            return Verdict.DUPLICATE;
+        // 同一张收据再次提交时也验证签名，签名相同但购买数据被改过的收据不会通过
+        if (!Security.verify(mKey, data, signature))
+            return Verdict.INVALID_SIGNATURE;
+        if (seen == ReceiptDedup.RESUBMITTED)
+            return Verdict.VALID;
+        return status(mDedup.mark(orderId, tokenValue, fingerprint));
+    }
+
+    private static int status(int mark) {
+        switch (mark) {
+            case ReceiptDedup.NEW:
+            case ReceiptDedup.RESUBMITTED:
+                return Verdict.VALID;
+            case ReceiptDedup.CONFLICT:
+                return Verdict.DUPLICATE;
+            default:
+                return Verdict.MALFORMED;
+        }
+    }
+
+    /**
+     * 在当前线程上验证
+     */
+    Verdict verifyNow(Receipt receipt) {
+        long start = System.nanoTime();
+        Verdict v = check(receipt);
+        mStats.record(v.mStatus, System.nanoTime() - start);
+        return v;
+    }
+
+    private Verdict check(Receipt receipt) {
+        String data = receipt.getPurchaseData();
+        String signature = receipt.getSignature();
+        // Security.verifyPurchase 对空签名返回 true (测试用的商品)，服务端不接受
+        if (data == null || signature == null || signature.length() == 0)
+            return new Verdict(Verdict.MALFORMED, null, "缺少 purchaseData 或 signature");
+        Purchase purchase;
+        try {
+            purchase = new Purchase(receipt.getItemType(), data, signature);
+        } catch (JSONException e) {
+            return new Verdict(Verdict.MALFORMED, null, "purchaseData 不是 json");
+        }
+        // 重复的收据不再验证签名，伪造的收据用了已有的 orderId 时也是 DUPLICATE，不会得到任何东西
+        String fingerprint = ReceiptDedup.fingerprint(signature);
+        int seen = mDedup.lookup(purchase.getOrderId(), purchase.getToken(), fingerprint);
+        if (seen == ReceiptDedup.CONFLICT)
+            return new Verdict(Verdict.DUPLICATE, purchase, null);
+        if (!Security.verify(mKey, data, signature))
+            return new Verdict(Verdict.INVALID_SIGNATURE, purchase, null);
+        if (seen != ReceiptDedup.RESUBMITTED)
+            seen = mDedup.mark(purchase.getOrderId(), purchase.getToken(), fingerprint);
+        if (seen == ReceiptDedup.NO_KEY)
+            return new Verdict(Verdict.MALFORMED, purchase, "没有 orderId 和 purchaseToken");
+        return new Verdict(status(seen), purchase, null, seen == ReceiptDedup.RESUBMITTED);
+    }
+
+    /**
+     * 撤销验证结果为 VALID 的购买的去重记录，结果没有保存下来 (例如写入 journal 失败) 时调用，
+     * 客户端重新提交时再次验证
+     */
+    void unmark(Purchase purchase) {
+        mDedup.unmark(purchase.getOrderId(), purchase.getToken(),
+                ReceiptDedup.fingerprint(purchase.getSignature()));
+    }
+
+    /**
+     * 把之前验证过的购买 (例如 PurchaseJournal 中的) 标记为已出现，
+     * 以后再提交同一张收据时是 VALID (isResubmitted)，用了它的 orderId 或 token 的其它收据是 DUPLICATE
+     */
+    public void markSeen(Purchase purchase) {
+        String signature = purchase.getSignature();
+        mDedup.mark(purchase.getOrderId(), purchase.getToken(),
+                ReceiptDedup.fingerprint(signature == null ? "" : signature));
+    }
+
+    /**
+     * 排队的任务达到上限时等待。许可在验证线程执行完任务之后才释放，并启动等待的 verifyAsync 任务；
+     * 取消一个正在执行的任务不释放，否则同时执行的任务数会超过上限
+     */
+    private <T> Future<T> submit(Callable<T> task) throws InterruptedException {
+        mPermits.acquire();
+        final FutureTask<T> future = new FutureTask<T>(task);
+        try {
+            mWorkers.execute(new Runnable() {
+                public void run() {
+                    try {
+                        // 已经取消的任务直接返回
+                        future.run();
+                    } finally {
+                        mPermits.release();
+                        startWaiting();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            mPermits.release();
+            startWaiting();
+            throw e;
+        }
+        return future;
+    }
+
+    private static <T> T await(Future<T> f) throws InterruptedException {
+        try {
+            return f.get();
+        } catch (ExecutionException e) {
+            // verifyNow 不抛出受检异常，这里只会是 RuntimeException 或 Error
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            throw (Error) cause;
+        }
+    }
+
+    /**
+     * 停止验证线程，正在进行的验证会完成
+     */
+    public void shutdown() {
+        mWorkers.shutdown();
+    }
+}
@@ -0,0 +1,87 @@
+package com.googlewalletlib.server;
+
+import com.googlewalletlib.util.Purchase;
+
+import org.json.JSONObject;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Comparator;
+
+/**
+ * 对账时的一条记录，只保留需要的字段，按 orderId 排序。
+ * 账本中的购买: value 是 purchaseState，time 是 purchaseTime，detail 是 itemType，seq 是在 journal 中的序号；
+ * 作废的订单: value 是 voidedReason，time 是 voidedTimeMillis，detail 是 voidedSource，seq 是行号
+ */
+final class ReconcileEntry {
+    // orderId 相同时按时间，时间相同时按 seq，账本中同一个订单的最后一条是最新的。
+    // 取消、退款后 purchaseTime 不变，同一个订单的几条记录靠 seq 区分先后，排序结果与分段无关
+    static final Comparator<ReconcileEntry> BY_ORDER_ID = new Comparator<ReconcileEntry>() {
+        public int compare(ReconcileEntry a, ReconcileEntry b) {
+            int c = a.mOrderId.compareTo(b.mOrderId);
+            if (c != 0)
+                return c;
+            if (a.mTime != b.mTime)
+                return a.mTime < b.mTime ? -1 : 1;
+            return a.mSeq < b.mSeq ? -1 : a.mSeq == b.mSeq ? 0 : 1;
+        }
+    };
+
+    final String mOrderId;
+    final String mToken;
+    final String mSku;
+    final int mValue;
+    final long mTime;
+    final String mDetail;
+    final long mSeq;
+
+    ReconcileEntry(String orderId, String token, String sku, int value, long time, String detail,
+                   long seq) {
+        mOrderId = orderId;
+        mToken = token == null ? "" : token;
+        mSku = sku == null ? "" : sku;
+        mValue = value;
+        mTime = time;
+        mDetail = detail == null ? "" : detail;
+        mSeq = seq;
+    }
+
+    /**
+     * @param seq 在 journal 中的序号，后写入的大
+     */
+    static ReconcileEntry fromPurchase(Purchase p, long seq) {
+        return new ReconcileEntry(p.getOrderId(), p.getToken(), p.getSku(), p.getPurchaseState(),
+                p.getPurchaseTime(), p.getItemType(), seq);
+    }
+
+    /**
+     * Voided Purchases API 返回的一项:
+     * {"orderId", "purchaseToken", "voidedTimeMillis", "voidedReason", "voidedSource"}
+     */
+    static ReconcileEntry fromVoided(JSONObject o, long seq) {
+        return new ReconcileEntry(o.optString("orderId"), o.optString("purchaseToken"), "",
+                o.optInt("voidedReason"), o.optLong("voidedTimeMillis"), o.optString("voidedSource"),
+                seq);
+    }
+
+    /** 在内存中大约占用的字节数，决定什么时候写出一段 */
+    int estimatedSize() {
+        return 104 + 2 * (mOrderId.length() + mToken.length() + mSku.length() + mDetail.length());
+    }
+
+    void writeTo(DataOutputStream out) throws IOException {
+        out.writeUTF(mOrderId);
+        out.writeUTF(mToken);
+        out.writeUTF(mSku);
+        out.writeInt(mValue);
+        out.writeLong(mTime);
+        out.writeUTF(mDetail);
+        out.writeLong(mSeq);
+    }
+
+    static ReconcileEntry readFrom(DataInputStream in) throws IOException {
+        return new ReconcileEntry(in.readUTF(), in.readUTF(), in.readUTF(), in.readInt(),
+                in.readLong(), in.readUTF(), in.readLong());
+    }
+}
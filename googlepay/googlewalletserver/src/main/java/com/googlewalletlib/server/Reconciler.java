@@ -0,0 +1,300 @@
+package com.googlewalletlib.server;
+
+import com.googlewalletlib.util.IabLog;
+import com.googlewalletlib.util.Purchase;
+import com.googlewalletlib.util.PurchaseJournal;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/**
+ * 用 Google Play 作废订单 (Voided Purchases API) 的记录核对本地的购买账本 (PurchaseJournal)。
+ * 两边分别按 orderId 外部排序，然后一次顺序归并，内存占用只取决于 maxRunBytes，与账本大小无关:
+ * <ul>
+ * <li>账本中是已购买 (purchaseState 0)，但订单已经作废: 需要收回权益 (onRevoke)</li>
+ * <li>账本中已经是取消或退款: 已经处理过，只计数</li>
+ * <li>作废的订单不在账本中、token 不一致、账本中同一个订单有不同的 token: 需要调查 (onDiscrepancy)</li>
+ * </ul>
+ * 作废订单的输入每行一个 json 对象，即 API 返回的 voidedPurchases 中的一项，
+ * 可以用 jq -c '.voidedPurchases[]' 从 API 的响应转换。
+ * <pre>
+ * Reconciler --ledger purchases.journal --voided voided.jsonl
+ *            [--revoke revoke.jsonl] [--discrepancies discrepancies.jsonl]
+ *            [--tmp 临时目录] [--run-mb 64]
+ * </pre>
+ */
+public class Reconciler {
+    private static final String TAG = "Reconciler";
+
+    public static final long DEFAULT_MAX_RUN_BYTES = 64L * 1024 * 1024;
+
+    // onDiscrepancy 的 kind
+    /** 作废的订单不在账本中 */
+    public static final String UNKNOWN_ORDER = "unknown_order";
+    /** 账本和作废记录中同一个订单的 purchaseToken 不同 */
+    public static final String TOKEN_MISMATCH = "token_mismatch";
+    /** 账本中同一个订单有不同的 purchaseToken */
+    public static final String CONFLICTING_LEDGER = "conflicting_ledger";
+
+    /**
+     * 对账的结果，按 orderId 的顺序调用
+     */
+    public interface Listener {
+        /**
+         * 订单已经作废，但账本中仍然是已购买，应该收回对应的商品
+         *
+         * @param voidedReason 0 其它、1 退款、... 见 Voided Purchases API
+         */
+        void onRevoke(String orderId, String token, String sku, long voidedTimeMillis,
+                      int voidedReason) throws IOException;
+
+        /**
+         * 需要人工调查的不一致
+         *
+         * @param kind UNKNOWN_ORDER 等
+         */
+        void onDiscrepancy(String kind, String orderId, String detail) throws IOException;
+    }
+
+    /**
+     * 对账的统计
+     */
+    public static class Result {
+        long mLedgerEntries;
+        long mVoidedEntries;
+        long mSkipped;
+        long mRevoked;
+        long mAlreadyRevoked;
+        long mDiscrepancies;
+        int mRuns;
+
+        public long getRevoked() { return mRevoked; }
+        public long getAlreadyRevoked() { return mAlreadyRevoked; }
+        public long getDiscrepancies() { return mDiscrepancies; }
+
+        public JSONObject toJson() throws JSONException {
+            JSONObject o = new JSONObject();
+            o.put("ledgerEntries", mLedgerEntries);
+            o.put("voidedEntries", mVoidedEntries);
+            o.put("skipped", mSkipped);
+            o.put("revoked", mRevoked);
+            o.put("alreadyRevoked", mAlreadyRevoked);
+            o.put("discrepancies", mDiscrepancies);
+            o.put("runs", mRuns);
+            return o;
+        }
+    }
+
+    private final File mTmpDir;
+    private final long mMaxRunBytes;
+
+    /**
+     * @param tmpDir 排序用的临时目录，null 表示系统默认，需要大约两个输入大小的空间
+     * @param maxRunBytes 每一边在内存中最多保存的记录的大小
+     */
+    public Reconciler(File tmpDir, long maxRunBytes) {
+        mTmpDir = tmpDir;
+        mMaxRunBytes = maxRunBytes;
+    }
+
+    public Result reconcile(File ledger, File voided, Listener listener) throws IOException {
+        Result result = new Result();
+        long start = System.nanoTime();
+        ExternalSorter ledgerSorter = new ExternalSorter("ledger", mTmpDir, mMaxRunBytes);
+        ExternalSorter voidedSorter = new ExternalSorter("voided", mTmpDir, mMaxRunBytes);
+        try {
+            readLedger(ledger, ledgerSorter, result);
+            readVoided(voided, voidedSorter, result);
+            result.mRuns = ledgerSorter.getRunCount() + voidedSorter.getRunCount();
+            ExternalSorter.Source l = ledgerSorter.sorted();
+            try {
+                ExternalSorter.Source v = voidedSorter.sorted();
+                try {
+                    join(l, v, listener, result);
+                } finally {
+                    v.close();
+                }
+            } finally {
+                l.close();
+            }
+        } finally {
+            ledgerSorter.close();
+            voidedSorter.close();
+        }
+        IabLog.d(TAG, "对账完成, {} 条账本, {} 条作废, {} 毫秒", result.mLedgerEntries,
+                result.mVoidedEntries, (System.nanoTime() - start) / 1000000);
+        return result;
+    }
+
+    private static void readLedger(File ledger, ExternalSorter sorter, Result result)
+            throws IOException {
+        PurchaseJournal.Reader reader = PurchaseJournal.openReader(ledger);
+        try {
+            Purchase p;
+            long seq = 0;
+            while ((p = reader.next()) != null) {
+                seq++;
+                // 测试商品没有 orderId
+                if (p.getOrderId() == null || p.getOrderId().length() == 0) {
+                    result.mSkipped++;
+                    continue;
+                }
+                sorter.add(ReconcileEntry.fromPurchase(p, seq));
+                result.mLedgerEntries++;
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static void readVoided(File voided, ExternalSorter sorter, Result result)
+            throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(voided), "UTF-8"), 64 * 1024);
+        try {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.length() == 0)
+                    continue;
+                ReconcileEntry e;
+                try {
+                    e = ReconcileEntry.fromVoided(new JSONObject(line), lineNumber);
+                } catch (JSONException ex) {
+                    IabLog.w(TAG, "{} 第 {} 行不是 json 对象", voided, lineNumber);
+                    result.mSkipped++;
+                    continue;
+                }
+                if (e.mOrderId.length() == 0) {
+                    result.mSkipped++;
+                    continue;
+                }
+                sorter.add(e);
+                result.mVoidedEntries++;
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * 两边都按 orderId 排好序，每次取出一个 orderId 在两边的所有记录
+     */
+    static void join(ExternalSorter.Source ledger, ExternalSorter.Source voided, Listener listener,
+                     Result result) throws IOException {
+        ReconcileEntry l = ledger.next();
+        ReconcileEntry v = voided.next();
+        while (l != null || v != null) {
+            String orderId = l == null ? v.mOrderId
+                    : v == null || l.mOrderId.compareTo(v.mOrderId) <= 0 ? l.mOrderId : v.mOrderId;
+            ReconcileEntry latest = null;
+            boolean conflicting = false;
+            while (l != null && l.mOrderId.equals(orderId)) {
+                if (latest != null && !latest.mToken.equals(l.mToken))
+                    conflicting = true;
+                latest = l;
+                l = ledger.next();
+            }
+            ReconcileEntry voidedEntry = null;
+            while (v != null && v.mOrderId.equals(orderId)) {
+                voidedEntry = v;
+                v = voided.next();
+            }
+
+            if (conflicting) {
+                result.mDiscrepancies++;
+                listener.onDiscrepancy(CONFLICTING_LEDGER, orderId, "最新的 token " + latest.mToken);
+            }
+            if (voidedEntry == null)
+                continue;
+            if (latest == null) {
+                result.mDiscrepancies++;
+                listener.onDiscrepancy(UNKNOWN_ORDER, orderId, "作废的 token " + voidedEntry.mToken);
+            } else if (voidedEntry.mToken.length() > 0 && latest.mToken.length() > 0
+                    && !voidedEntry.mToken.equals(latest.mToken)) {
+                result.mDiscrepancies++;
+                listener.onDiscrepancy(TOKEN_MISMATCH, orderId,
+                        "账本 " + latest.mToken + ", 作废 " + voidedEntry.mToken);
+            } else if (latest.mValue == 0) {
+                result.mRevoked++;
+                listener.onRevoke(orderId, latest.mToken, latest.mSku, voidedEntry.mTime,
+                        voidedEntry.mValue);
+            } else {
+                // 已经是取消 (1) 或退款 (2)
+                result.mAlreadyRevoked++;
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        String ledger = ReceiptServer.arg(args, "--ledger", null);
+        String voided = ReceiptServer.arg(args, "--voided", null);
+        if (ledger == null || voided == null) {
+            System.err.println("usage: Reconciler --ledger <journal> --voided <jsonl>"
+                    + " [--revoke revoke.jsonl] [--discrepancies discrepancies.jsonl]"
+                    + " [--tmp 目录] [--run-mb 64]");
+            System.exit(2);
+        }
+        String tmp = ReceiptServer.arg(args, "--tmp", null);
+        long runBytes = Long.parseLong(ReceiptServer.arg(args, "--run-mb",
+                String.valueOf(DEFAULT_MAX_RUN_BYTES >> 20))) << 20;
+        final Writer revoke = open(ReceiptServer.arg(args, "--revoke", "revoke.jsonl"));
+        final Writer discrepancies = open(ReceiptServer.arg(args, "--discrepancies",
+                "discrepancies.jsonl"));
+        Result result;
+        try {
+            result = new Reconciler(tmp == null ? null : new File(tmp), runBytes).reconcile(
+                    new File(ledger), new File(voided), new Listener() {
+                        public void onRevoke(String orderId, String token, String sku,
+                                             long voidedTimeMillis, int voidedReason) throws IOException {
+                            JSONObject o = new JSONObject();
+                            try {
+                                o.put("orderId", orderId);
+                                o.put("purchaseToken", token);
+                                o.put("productId", sku);
+                                o.put("voidedTimeMillis", voidedTimeMillis);
+                                o.put("voidedReason", voidedReason);
+                            } catch (JSONException e) {
+                                throw new IOException(e);
+                            }
+                            revoke.write(o.toString());
+                            revoke.write('\n');
+                        }
+
+                        public void onDiscrepancy(String kind, String orderId, String detail)
+                                throws IOException {
+                            JSONObject o = new JSONObject();
+                            try {
+                                o.put("kind", kind);
+                                o.put("orderId", orderId);
+                                o.put("detail", detail);
+                            } catch (JSONException e) {
+                                throw new IOException(e);
+                            }
+                            discrepancies.write(o.toString());
+                            discrepancies.write('\n');
+                        }
+                    });
+        } finally {
+            revoke.close();
+            discrepancies.close();
+        }
+        System.out.println(result.toJson().toString());
+    }
+
+    private static Writer open(String path) throws IOException {
+        return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(path), "UTF-8"));
+    }
+}
@@ -0,0 +1,265 @@
+package com.googlewalletlib.server;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * 可以扩容的 Bloom filter (Almeida 等, "Scalable Bloom Filters")。
+ * 当前一段装满后加入容量翻倍、误判率减半的新一段，总误判率不超过创建时给定的值。
+ * 只有 "一定没有" 是可靠的，"可能有" 要再查一次准确的记录。
+ * 可以多个线程同时 add 和 mightContain
+ */
+final class ScalableBloomFilter {
+    static final int MAGIC = 0x49414246; // "IABF"
+    // 2: 最后加上 CRC32
+    static final int VERSION = 2;
+    static final int MAX_STAGES = 64;
+    // 每段的容量是前一段的几倍，每段的误判率是前一段的几分之一
+    static final int GROWTH = 2;
+    static final double TIGHTENING = 0.5;
+
+    private final int mInitialCapacity;
+    private final double mFalsePositiveRate;
+    // 只增加不减少，新的段在最后
+    private volatile Stage[] mStages;
+
+    /**
+     * @param initialCapacity 第一段的容量
+     * @param falsePositiveRate 总的误判率，例如 0.001
+     */
+    ScalableBloomFilter(int initialCapacity, double falsePositiveRate) {
+        if (initialCapacity <= 0 || falsePositiveRate <= 0 || falsePositiveRate >= 1)
+            throw new IllegalArgumentException(initialCapacity + " " + falsePositiveRate);
+        mInitialCapacity = initialCapacity;
+        mFalsePositiveRate = falsePositiveRate;
+        // 各段误判率是 p0, p0/2, p0/4 ...，总和不超过 2 * p0
+        mStages = new Stage[]{new Stage(initialCapacity, firstStageRate(falsePositiveRate))};
+    }
+
+    static double firstStageRate(double falsePositiveRate) {
+        return falsePositiveRate * (1 - TIGHTENING);
+    }
+
+    static int nextCapacity(int capacity) {
+        return (int) Math.min(Integer.MAX_VALUE / 2, (long) capacity * GROWTH);
+    }
+
+    private ScalableBloomFilter(int initialCapacity, double falsePositiveRate, Stage[] stages) {
+        mInitialCapacity = initialCapacity;
+        mFalsePositiveRate = falsePositiveRate;
+        mStages = stages;
+    }
+
+    boolean mightContain(String key) {
+        long h1 = hash(key);
+        long h2 = mix(h1 ^ 0x9e3779b97f4a7c15L);
+        Stage[] stages = mStages;
+        // 最近加入的多半在最后一段
+        for (int i = stages.length - 1; i >= 0; i--) {
+            if (stages[i].mightContain(h1, h2))
+                return true;
+        }
+        return false;
+    }
+
+    void add(String key) {
+        long h1 = hash(key);
+        long h2 = mix(h1 ^ 0x9e3779b97f4a7c15L);
+        Stage[] stages = mStages;
+        Stage last = stages[stages.length - 1];
+        if (last.mCount.get() >= last.mCapacity)
+            last = grow(last);
+        last.add(h1, h2);
+    }
+
+    private synchronized Stage grow(Stage full) {
+        Stage[] stages = mStages;
+        Stage last = stages[stages.length - 1];
+        // 其它线程已经加了新的一段
+        if (last != full)
+            return last;
+        Stage next = new Stage(nextCapacity(last.mCapacity), last.mFalsePositiveRate * TIGHTENING);
+        Stage[] grown = new Stage[stages.length + 1];
+        System.arraycopy(stages, 0, grown, 0, stages.length);
+        grown[stages.length] = next;
+        mStages = grown;
+        return next;
+    }
+
+    int getInitialCapacity() {
+        return mInitialCapacity;
+    }
+
+    double getFalsePositiveRate() {
+        return mFalsePositiveRate;
+    }
+
+    int getStageCount() {
+        return mStages.length;
+    }
+
+    /** 加入的数量，同一个键加入多次时重复计算 */
+    long getCount() {
+        long n = 0;
+        for (Stage s : mStages)
+            n += s.mCount.get();
+        return n;
+    }
+
+    /** 占用的内存 */
+    long getSizeInBytes() {
+        long n = 0;
+        for (Stage s : mStages)
+            n += (long) s.mBits.length() * 8;
+        return n;
+    }
+
+    /**
+     * 最后写入前面所有内容的 CRC32
+     */
+    void writeTo(DataOutputStream target) throws IOException {
+        Stage[] stages = mStages;
+        CRC32 crc = new CRC32();
+        DataOutputStream out = new DataOutputStream(new CheckedOutputStream(target, crc));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(mInitialCapacity);
+        out.writeDouble(mFalsePositiveRate);
+        out.writeInt(stages.length);
+        for (Stage s : stages) {
+            out.writeInt(s.mCapacity);
+            out.writeDouble(s.mFalsePositiveRate);
+            out.writeInt(s.mCount.get());
+            out.writeInt(s.mBits.length());
+            for (int i = 0; i < s.mBits.length(); i++)
+                out.writeLong(s.mBits.get(i));
+        }
+        out.flush();
+        target.writeLong(crc.getValue());
+    }
+
+    /**
+     * 读取 writeTo 写入的内容。分配内存之前检查各段的参数与 initialCapacity、falsePositiveRate
+     * 算出来的一致，并且位数组的总长度不超过 maxBytes (例如文件的长度)，损坏的快照不会分配过大的数组
+     *
+     * @throws IOException 格式不对、参数无效或 CRC 不一致
+     */
+    static ScalableBloomFilter readFrom(DataInputStream source, long maxBytes) throws IOException {
+        CRC32 crc = new CRC32();
+        DataInputStream in = new DataInputStream(new CheckedInputStream(source, crc));
+        if (in.readInt() != MAGIC || in.readInt() != VERSION)
+            throw new IOException("不是 Bloom filter 快照");
+        int initialCapacity = in.readInt();
+        double falsePositiveRate = in.readDouble();
+        int count = in.readInt();
+        if (initialCapacity <= 0 || !(falsePositiveRate > 0 && falsePositiveRate < 1))
+            throw new IOException("参数无效: " + initialCapacity + " " + falsePositiveRate);
+        if (count <= 0 || count > MAX_STAGES)
+            throw new IOException("段数无效: " + count);
+        Stage[] stages = new Stage[count];
+        int capacity = initialCapacity;
+        double rate = firstStageRate(falsePositiveRate);
+        long bytes = 0;
+        for (int i = 0; i < count; i++) {
+            int stageCapacity = in.readInt();
+            double stageRate = in.readDouble();
+            int stageCount = in.readInt();
+            int words = in.readInt();
+            if (stageCapacity != capacity || stageRate != rate)
+                throw new IOException("第 " + i + " 段参数无效: " + stageCapacity + " " + stageRate);
+            if (words != Stage.words(capacity, rate) || stageCount < 0)
+                throw new IOException("第 " + i + " 段长度无效: " + words);
+            bytes += (long) words * 8;
+            if (bytes > maxBytes)
+                throw new IOException("快照长度不够: " + bytes + " > " + maxBytes);
+            Stage s = new Stage(capacity, rate);
+            s.mCount.set(stageCount);
+            for (int j = 0; j < words; j++)
+                s.mBits.set(j, in.readLong());
+            stages[i] = s;
+            capacity = nextCapacity(capacity);
+            rate *= TIGHTENING;
+        }
+        long expected = crc.getValue();
+        if (source.readLong() != expected)
+            throw new IOException("快照 CRC 不一致");
+        return new ScalableBloomFilter(initialCapacity, falsePositiveRate, stages);
+    }
+
+    // FNV-1a 后再混合，Kirsch-Mitzenmacher: 第 i 个位置 = h1 + i * h2
+    static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            h ^= key.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return mix(h);
+    }
+
+    // splitmix64 的最后一步
+    static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * 固定容量的一段
+     */
+    static final class Stage {
+        final int mCapacity;
+        final double mFalsePositiveRate;
+        final int mHashes;
+        final long mBitCount;
+        final AtomicLongArray mBits;
+        final AtomicInteger mCount = new AtomicInteger();
+
+        Stage(int capacity, double falsePositiveRate) {
+            mCapacity = capacity;
+            mFalsePositiveRate = falsePositiveRate;
+            int words = words(capacity, falsePositiveRate);
+            mBits = new AtomicLongArray(words);
+            mBitCount = (long) words * 64;
+            mHashes = Math.max(1, (int) Math.ceil(-Math.log(falsePositiveRate) / Math.log(2)));
+        }
+
+        /**
+         * 位数组的长度 (long 的个数)。m = -n ln p / (ln 2)^2，k = log2(1/p)
+         */
+        static int words(int capacity, double falsePositiveRate) {
+            double bits = -capacity * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2));
+            return (int) Math.min(Integer.MAX_VALUE, Math.max(1, (long) Math.ceil(bits / 64)));
+        }
+
+        boolean mightContain(long h1, long h2) {
+            long h = h1;
+            for (int i = 0; i < mHashes; i++) {
+                long bit = (h & Long.MAX_VALUE) % mBitCount;
+                if ((mBits.get((int) (bit >>> 6)) & (1L << bit)) == 0)
+                    return false;
+                h += h2;
+            }
+            return true;
+        }
+
+        void add(long h1, long h2) {
+            long h = h1;
+            for (int i = 0; i < mHashes; i++) {
+                long bit = (h & Long.MAX_VALUE) % mBitCount;
+                int word = (int) (bit >>> 6);
+                long mask = 1L << bit;
+                long old;
+                while (((old = mBits.get(word)) & mask) == 0 && !mBits.compareAndSet(word, old, old | mask)) {
+                }
+                h += h2;
+            }
+            mCount.incrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package com.googlewalletlib.server;
+
+import com.googlewalletlib.util.Purchase;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * 一张收据的验证结果
+ */
+public class Verdict {
+
+    // 验证结果
+    public static final int VALID = 0;
+    public static final int INVALID_SIGNATURE = 1;
+    public static final int MALFORMED = 2;
+    public static final int DUPLICATE = 3;
+    public static final int STATUS_COUNT = 4;
+
+    static final String[] STATUS_NAMES = {
+            "valid", "invalid_signature", "malformed", "duplicate"
+    };
+
+    final int mStatus;
+    final Purchase mPurchase;
+    final String mMessage;
+    // 同一张收据之前已经验证通过
+    final boolean mResubmitted;
+
+    Verdict(int status, Purchase purchase, String message) {
+        this(status, purchase, message, false);
+    }
+
+    Verdict(int status, Purchase purchase, String message, boolean resubmitted) {
+        mStatus = status;
+        mPurchase = purchase;
+        mMessage = message;
+        mResubmitted = resubmitted;
+    }
+
+    public int getStatus() { return mStatus; }
+    public boolean isValid() { return mStatus == VALID; }
+    /** 解析失败时为 null */
+    public Purchase getPurchase() { return mPurchase; }
+    public String getMessage() { return mMessage; }
+    /** VALID 并且之前已经提交过同一张收据，例如客户端没有收到响应后重试 */
+    public boolean isResubmitted() { return mResubmitted; }
+
+    public JSONObject toJson() throws JSONException {
+        JSONObject o = new JSONObject();
+        o.put("status", STATUS_NAMES[mStatus]);
+        if (mPurchase != null) {
+            o.put("orderId", mPurchase.getOrderId());
+            o.put("productId", mPurchase.getSku());
+            o.put("purchaseToken", mPurchase.getToken());
+        }
+        if (mMessage != null)
+            o.put("message", mMessage);
+        if (mResubmitted)
+            o.put("resubmitted", true);
+        return o;
+    }
+
+    public String toString() {
+        return "Verdict(" + STATUS_NAMES[mStatus] + (mMessage == null ? "" : ": " + mMessage) + ")";
+    }
+}
@@ -0,0 +1,50 @@
+package com.googlewalletlib.server;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Java 21 的虚拟线程。模块按 Java 7 编译，通过反射调用，
+ * 在更早的 JVM 上 isSupported 返回 false
+ */
+final class VirtualThreads {
+
+    private VirtualThreads() {
+    }
+
+    static boolean isSupported() {
+        return factory("probe-") != null;
+    }
+
+    /**
+     * 每个任务一个虚拟线程的 ExecutorService，线程名是 prefix 加序号；不支持时返回 null
+     */
+    static ExecutorService newPerTaskExecutor(String prefix) {
+        ThreadFactory factory = factory(prefix);
+        if (factory == null)
+            return null;
+        try {
+            Method m = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+            return (ExecutorService) m.invoke(null, factory);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * Thread.ofVirtual().name(prefix, 0).factory()
+     */
+    static ThreadFactory factory(String prefix) {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> ofVirtual = Class.forName("java.lang.Thread$Builder$OfVirtual");
+            builder = ofVirtual.getMethod("name", String.class, long.class)
+                    .invoke(builder, prefix, 0L);
+            return (ThreadFactory) ofVirtual.getMethod("factory").invoke(builder);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+}
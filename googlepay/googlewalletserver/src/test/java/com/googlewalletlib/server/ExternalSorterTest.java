@@ -0,0 +1,146 @@
+package com.googlewalletlib.server;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * ExternalSorter 在内存中、分段和多级归并时的顺序
+ */
+public class ExternalSorterTest {
+
+    private File mDir;
+
+    @Before
+    public void setUp() throws IOException {
+        mDir = File.createTempFile("sorter", "");
+        mDir.delete();
+        assertTrue(mDir.mkdir());
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File f : files)
+                f.delete();
+        }
+        mDir.delete();
+    }
+
+    private static ReconcileEntry entry(String orderId, long time, long seq) {
+        return new ReconcileEntry(orderId, "token-" + seq, "gas", 0, time, "inapp", seq);
+    }
+
+    private static List<ReconcileEntry> randomEntries(int n) {
+        Random random = new Random(42);
+        List<ReconcileEntry> entries = new ArrayList<ReconcileEntry>();
+        for (int i = 0; i < n; i++)
+            entries.add(entry("GPA." + random.nextInt(n / 4), random.nextInt(3), i));
+        return entries;
+    }
+
+    private List<ReconcileEntry> sort(List<ReconcileEntry> entries, long maxRunBytes, int[] runs)
+            throws IOException {
+        ExternalSorter sorter = new ExternalSorter("test", mDir, maxRunBytes);
+        try {
+            for (ReconcileEntry e : entries)
+                sorter.add(e);
+            List<ReconcileEntry> sorted = new ArrayList<ReconcileEntry>();
+            ExternalSorter.Source source = sorter.sorted();
+            try {
+                ReconcileEntry e;
+                while ((e = source.next()) != null)
+                    sorted.add(e);
+                assertNull(source.next());
+            } finally {
+                source.close();
+            }
+            runs[0] = sorter.getRunCount();
+            assertEquals(entries.size(), sorter.getCount());
+            return sorted;
+        } finally {
+            sorter.close();
+        }
+    }
+
+    private static void assertSameOrder(List<ReconcileEntry> expected, List<ReconcileEntry> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++)
+            assertEquals("第 " + i + " 条", expected.get(i).mSeq, actual.get(i).mSeq);
+    }
+
+    @Test
+    public void sortsInMemory() throws IOException {
+        List<ReconcileEntry> entries = randomEntries(1000);
+        int[] runs = new int[1];
+        List<ReconcileEntry> sorted = sort(entries, Long.MAX_VALUE, runs);
+        assertEquals(0, runs[0]);
+        Collections.sort(entries, ReconcileEntry.BY_ORDER_ID);
+        assertSameOrder(entries, sorted);
+    }
+
+    @Test
+    public void spilledRunsMergeToSameOrder() throws IOException {
+        List<ReconcileEntry> entries = randomEntries(1000);
+        int[] runs = new int[1];
+        List<ReconcileEntry> sorted = sort(entries, 20 * 1024, runs);
+        assertTrue("runs " + runs[0], runs[0] > 1);
+        Collections.sort(entries, ReconcileEntry.BY_ORDER_ID);
+        assertSameOrder(entries, sorted);
+        // close 删除所有的段
+        assertEquals(0, mDir.listFiles().length);
+    }
+
+    @Test
+    public void moreRunsThanFanInAreMergedInGroups() throws IOException {
+        List<ReconcileEntry> entries = randomEntries(ExternalSorter.MAX_FAN_IN * 3);
+        int[] runs = new int[1];
+        // 每条记录一段
+        List<ReconcileEntry> sorted = sort(entries, 1, runs);
+        assertTrue("runs " + runs[0], runs[0] > ExternalSorter.MAX_FAN_IN * 3);
+        Collections.sort(entries, ReconcileEntry.BY_ORDER_ID);
+        assertSameOrder(entries, sorted);
+        assertEquals(0, mDir.listFiles().length);
+    }
+
+    @Test
+    public void sameOrderAndTimeKeepJournalOrderAcrossRuns() throws IOException {
+        // 同一个订单取消后 purchaseTime 不变，后写入的在不同的段里，也要排在后面
+        List<ReconcileEntry> entries = new ArrayList<ReconcileEntry>();
+        for (int seq = 10; seq > 0; seq--)
+            entries.add(entry("GPA.1", 1000, seq));
+        int[] runs = new int[1];
+        List<ReconcileEntry> sorted = sort(entries, 1, runs);
+        for (int i = 0; i < sorted.size(); i++)
+            assertEquals(i + 1, sorted.get(i).mSeq);
+    }
+
+    @Test
+    public void entryRoundTripsThroughRun() throws IOException {
+        ReconcileEntry e = new ReconcileEntry("GPA.订单", null, "gas", 2, 123456789L, "inapp", 7);
+        List<ReconcileEntry> entries = new ArrayList<ReconcileEntry>();
+        entries.add(e);
+        entries.add(entry("GPA.0", 1, 1));
+        List<ReconcileEntry> sorted = sort(entries, 1, new int[1]);
+        ReconcileEntry read = sorted.get(1);
+        assertEquals("GPA.订单", read.mOrderId);
+        assertEquals("", read.mToken);
+        assertEquals("gas", read.mSku);
+        assertEquals(2, read.mValue);
+        assertEquals(123456789L, read.mTime);
+        assertEquals("inapp", read.mDetail);
+        assertEquals(7, read.mSeq);
+    }
+}
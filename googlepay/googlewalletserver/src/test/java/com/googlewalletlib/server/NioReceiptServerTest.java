@@ -0,0 +1,164 @@
+package com.googlewalletlib.server;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * NioReceiptServer 的分帧：一次写入多个请求、分几次到达的请求、超过初始缓冲区的请求和写不完的响应
+ */
+public class NioReceiptServerTest {
+
+    private ReceiptVerifier mVerifier;
+    private NioReceiptServer mServer;
+    private Socket mSocket;
+
+    @BeforeClass
+    public static void generateKeys() throws Exception {
+        ReceiptVerifierTest.generateKeys();
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        mVerifier = new ReceiptVerifier(ReceiptVerifierTest.publicKey(), 2);
+        mServer = new NioReceiptServer(mVerifier, 0);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (mSocket != null)
+            mSocket.close();
+        mServer.stop();
+        mVerifier.shutdown();
+    }
+
+    private Socket connect() throws IOException {
+        mServer.start();
+        mSocket = new Socket("127.0.0.1", mServer.getPort());
+        mSocket.setSoTimeout(10000);
+        return mSocket;
+    }
+
+    static byte[] frame(String data, String signature) throws IOException {
+        byte[] d = data.getBytes("UTF-8");
+        byte[] s = signature.getBytes("US-ASCII");
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(4 + d.length + s.length);
+        out.writeInt(d.length);
+        out.write(d);
+        out.write(s);
+        return bytes.toByteArray();
+    }
+
+    static byte[] frame(Receipt r) throws IOException {
+        return frame(r.getPurchaseData(), r.getSignature());
+    }
+
+    @Test
+    public void pipelinedFramesAreAnsweredInOrder() throws Exception {
+        Socket socket = connect();
+        ByteArrayOutputStream requests = new ByteArrayOutputStream();
+        requests.write(frame(ReceiptVerifierTest.receipt("GPA.1", "token-1")));
+        requests.write(frame(ReceiptVerifierTest.receipt("GPA.1", "token-2")));
+        requests.write(frame("", "c2ln"));
+        requests.write(frame(ReceiptVerifierTest.receipt("GPA.1", "token-1")));
+        socket.getOutputStream().write(requests.toByteArray());
+
+        DataInputStream in = new DataInputStream(socket.getInputStream());
+        assertEquals(Verdict.VALID, in.readByte());
+        assertEquals(Verdict.DUPLICATE, in.readByte());
+        assertEquals(Verdict.MALFORMED, in.readByte());
+        assertEquals(Verdict.VALID, in.readByte());
+    }
+
+    @Test
+    public void frameArrivingInPiecesIsAssembled() throws Exception {
+        Socket socket = connect();
+        byte[] request = frame(ReceiptVerifierTest.receipt("GPA.1", "token-1"));
+        OutputStream out = socket.getOutputStream();
+        // 长度被拆开，内容分两次
+        int[] cuts = {2, 6, request.length / 2, request.length};
+        int from = 0;
+        for (int cut : cuts) {
+            out.write(request, from, cut - from);
+            out.flush();
+            Thread.sleep(20);
+            from = cut;
+        }
+        assertEquals(Verdict.VALID, socket.getInputStream().read());
+    }
+
+    @Test
+    public void largeFrameGrowsTheBuffer() throws Exception {
+        Socket socket = connect();
+        JSONObject o = new JSONObject(ReceiptVerifierTest.purchaseData("GPA.1", "token-1"));
+        StringBuilder payload = new StringBuilder();
+        while (payload.length() < 3 * NioReceiptServer.INITIAL_BUFFER)
+            payload.append("payload-");
+        o.put("developerPayload", payload.toString());
+        String data = o.toString();
+        byte[] large = frame(data, ReceiptVerifierTest.sign(ReceiptVerifierTest.sKeys.getPrivate(), data));
+        ByteArrayOutputStream requests = new ByteArrayOutputStream();
+        requests.write(large);
+        requests.write(frame(ReceiptVerifierTest.receipt("GPA.2", "token-2")));
+        socket.getOutputStream().write(requests.toByteArray());
+
+        DataInputStream in = new DataInputStream(socket.getInputStream());
+        assertEquals(Verdict.VALID, in.readByte());
+        assertEquals(Verdict.VALID, in.readByte());
+    }
+
+    @Test
+    public void oversizedFrameClosesTheConnection() throws Exception {
+        Socket socket = connect();
+        DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+        out.writeInt(NioReceiptServer.MAX_FRAME + 1);
+        out.writeInt(0);
+        out.flush();
+        assertEquals(-1, socket.getInputStream().read());
+    }
+
+    @Test
+    public void responsesResumeAfterTheClientCatchesUp() throws Exception {
+        // 客户端不读时响应写不完，selector 线程改为等待可写
+        mServer.setSendBufferSize(1024);
+        final Socket socket = connect();
+        final int count = 20000;
+        final byte[] request = frame("", "c2ln");
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        Thread writer = new Thread() {
+            public void run() {
+                try {
+                    ByteArrayOutputStream requests = new ByteArrayOutputStream();
+                    for (int i = 0; i < count; i++)
+                        requests.write(request);
+                    socket.getOutputStream().write(requests.toByteArray());
+                } catch (Throwable e) {
+                    error.set(e);
+                }
+            }
+        };
+        writer.start();
+        Thread.sleep(500);
+
+        DataInputStream in = new DataInputStream(socket.getInputStream());
+        for (int i = 0; i < count; i++)
+            assertEquals(Verdict.MALFORMED, in.readByte());
+        writer.join(10000);
+        assertNull(error.get());
+    }
+}
@@ -0,0 +1,63 @@
+package com.googlewalletlib.server;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * ReceiptBytes.find 只取顶层的字符串字段
+ */
+public class ReceiptBytesTest {
+
+    private static String find(String json, byte[] key) {
+        ByteBuffer b = ByteBuffer.wrap(json.getBytes(ReceiptBytes.UTF_8));
+        String value = ReceiptBytes.string(b, ReceiptBytes.find(b, key));
+        assertEquals(0, b.position());
+        return value;
+    }
+
+    @Test
+    public void nestedFieldsAreSkipped() {
+        String json = "{\"extra\":{\"orderId\":\"inner\",\"list\":[{\"orderId\":\"deeper\"}]},"
+                + "\"orderId\":\"GPA.1\"}";
+        assertEquals("GPA.1", find(json, ReceiptBytes.ORDER_ID));
+        assertNull(find("{\"extra\":{\"orderId\":\"inner\"}}", ReceiptBytes.ORDER_ID));
+        assertNull(find("[{\"orderId\":\"GPA.1\"}]", ReceiptBytes.ORDER_ID));
+    }
+
+    @Test
+    public void escapedQuotesDoNotEndTheString() {
+        String json = "{\"payload\":\"say \\\"orderId\\\":\\\"x\\\"\",\"orderId\":\"GPA.1\"}";
+        assertEquals("GPA.1", find(json, ReceiptBytes.ORDER_ID));
+        // 值中的转义字符原样保留
+        assertEquals("a\\\"b", find("{\"orderId\":\"a\\\"b\"}", ReceiptBytes.ORDER_ID));
+        // 字符串值与键相同时不是键
+        assertEquals("GPA.2", find("{\"x\":\"orderId\",\"orderId\":\"GPA.2\"}", ReceiptBytes.ORDER_ID));
+    }
+
+    @Test
+    public void whitespaceAroundTheColon() {
+        String json = "{ \"productId\" : \"gas\" ,\n\t\"orderId\"\r\n :\t\"GPA.1\" }";
+        assertEquals("GPA.1", find(json, ReceiptBytes.ORDER_ID));
+        assertEquals("gas", find(json, ReceiptBytes.ascii("productId")));
+    }
+
+    @Test
+    public void nonStringValuesAndBrokenJson() {
+        assertNull(find("{\"orderId\":12}", ReceiptBytes.ORDER_ID));
+        assertNull(find("{\"orderId\":\"GPA.1", ReceiptBytes.ORDER_ID));
+        assertNull(find("{\"orderId\" \"GPA.1\"}", ReceiptBytes.ORDER_ID));
+        assertNull(find("", ReceiptBytes.ORDER_ID));
+    }
+
+    @Test
+    public void findStartsAtThePosition() {
+        ByteBuffer b = ByteBuffer.wrap("xx{\"orderId\":\"GPA.1\"}".getBytes(ReceiptBytes.UTF_8));
+        b.position(2);
+        assertEquals("GPA.1", ReceiptBytes.string(b, ReceiptBytes.find(b, ReceiptBytes.ORDER_ID)));
+        assertEquals(2, b.position());
+    }
+}
@@ -0,0 +1,149 @@
+package com.googlewalletlib.server;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * ReceiptDedup 的去重结果和 Bloom filter 快照
+ */
+public class ReceiptDedupTest {
+
+    private File mFile;
+    private ReceiptDedup mDedup;
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("dedup", ".bloom");
+        mFile.delete();
+        mDedup = new ReceiptDedup(new ReceiptDedup.MemoryStore(), 64, 0.001);
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+        new File(mFile.getPath() + ".tmp").delete();
+    }
+
+    @Test
+    public void sameReceiptIsResubmittedOtherReceiptConflicts() {
+        String fp = ReceiptDedup.fingerprint("sig-1");
+        assertEquals(ReceiptDedup.NEW, mDedup.lookup("GPA.1", "token-1", fp));
+        assertEquals(ReceiptDedup.NEW, mDedup.mark("GPA.1", "token-1", fp));
+
+        assertEquals(ReceiptDedup.RESUBMITTED, mDedup.lookup("GPA.1", "token-1", fp));
+        assertEquals(ReceiptDedup.RESUBMITTED, mDedup.mark("GPA.1", "token-1", fp));
+
+        String other = ReceiptDedup.fingerprint("sig-2");
+        assertEquals(ReceiptDedup.CONFLICT, mDedup.lookup("GPA.1", "token-2", other));
+        // orderId 不同，token 相同也算重复
+        assertEquals(ReceiptDedup.CONFLICT, mDedup.lookup("GPA.2", "token-1", other));
+        assertEquals(2, mDedup.getEarlyDuplicates());
+    }
+
+    @Test
+    public void conflictingMarkLeavesNoKeys() {
+        mDedup.mark("GPA.1", "token-1", ReceiptDedup.fingerprint("sig-1"));
+        String other = ReceiptDedup.fingerprint("sig-2");
+        assertEquals(ReceiptDedup.CONFLICT, mDedup.mark("GPA.2", "token-1", other));
+        // GPA.2 没有被这次 mark 留下
+        assertEquals(ReceiptDedup.NEW, mDedup.lookup("GPA.2", "token-3", other));
+        assertEquals(2, mDedup.getStore().size());
+    }
+
+    @Test
+    public void unmarkAllowsRetry() {
+        String fp = ReceiptDedup.fingerprint("sig-1");
+        mDedup.mark("GPA.1", "token-1", fp);
+        mDedup.unmark("GPA.1", "token-1", fp);
+        assertEquals(0, mDedup.getStore().size());
+        assertEquals(ReceiptDedup.NEW, mDedup.lookup("GPA.1", "token-1", fp));
+        assertEquals(ReceiptDedup.NEW, mDedup.mark("GPA.1", "token-1", fp));
+    }
+
+    @Test
+    public void receiptWithoutKeys() {
+        assertEquals(ReceiptDedup.NO_KEY, mDedup.mark("", null, ReceiptDedup.fingerprint("sig")));
+    }
+
+    @Test
+    public void fingerprintOfBytesMatchesString() throws Exception {
+        ByteBuffer buffer = ByteBuffer.wrap("xxsig-1".getBytes("US-ASCII"));
+        buffer.position(2);
+        assertEquals(ReceiptDedup.fingerprint("sig-1"), ReceiptDedup.fingerprint(buffer));
+        assertEquals(2, buffer.position());
+    }
+
+    @Test
+    public void snapshotIsLoaded() throws IOException {
+        markMany(mDedup, 500);
+        mDedup.saveSnapshot(mFile);
+
+        ReceiptDedup restored = new ReceiptDedup(mDedup.getStore(), 64, 0.001);
+        assertTrue(restored.loadSnapshot(mFile));
+        assertAllResubmitted(restored, 500);
+        assertEquals(0, restored.getFalsePositives());
+    }
+
+    @Test
+    public void missingSnapshot() throws IOException {
+        assertFalse(mDedup.loadSnapshot(mFile));
+    }
+
+    @Test
+    public void corruptSnapshotIsRebuiltFromStore() throws IOException {
+        markMany(mDedup, 500);
+        mDedup.saveSnapshot(mFile);
+        RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+        try {
+            raf.seek(mFile.length() / 2);
+            int b = raf.read();
+            raf.seek(mFile.length() / 2);
+            raf.write(b ^ 0x01);
+        } finally {
+            raf.close();
+        }
+
+        ReceiptDedup restored = new ReceiptDedup(mDedup.getStore(), 64, 0.001);
+        assertFalse(restored.loadSnapshot(mFile));
+        // 没有因为错误的快照漏掉已经记录的收据
+        assertAllResubmitted(restored, 500);
+    }
+
+    @Test
+    public void truncatedSnapshotIsRebuiltFromStore() throws IOException {
+        markMany(mDedup, 500);
+        mDedup.saveSnapshot(mFile);
+        RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+        try {
+            raf.setLength(mFile.length() - 64);
+        } finally {
+            raf.close();
+        }
+
+        ReceiptDedup restored = new ReceiptDedup(mDedup.getStore(), 64, 0.001);
+        assertFalse(restored.loadSnapshot(mFile));
+        assertAllResubmitted(restored, 500);
+    }
+
+    private static void markMany(ReceiptDedup dedup, int n) {
+        for (int i = 0; i < n; i++)
+            dedup.mark("GPA." + i, "token-" + i, ReceiptDedup.fingerprint("sig-" + i));
+    }
+
+    private static void assertAllResubmitted(ReceiptDedup dedup, int n) {
+        for (int i = 0; i < n; i++) {
+            assertEquals("GPA." + i, ReceiptDedup.RESUBMITTED,
+                    dedup.lookup("GPA." + i, "token-" + i, ReceiptDedup.fingerprint("sig-" + i)));
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package com.googlewalletlib.server;
+
+import com.googlewalletlib.util.PurchaseJournal;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * ReceiptServer 的请求处理：状态码、gzip 请求体和写入 journal 失败时的去重记录
+ */
+public class ReceiptServerTest {
+
+    private ReceiptServer mServer;
+    private File mFile;
+
+    // 最近一次请求的响应体
+    private String mBody;
+
+    @BeforeClass
+    public static void generateKeys() throws Exception {
+        ReceiptVerifierTest.generateKeys();
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("receipts", ".journal");
+        mFile.delete();
+        mServer = new ReceiptServer(new ReceiptVerifier(ReceiptVerifierTest.publicKey(), 2), 0, 2);
+        mServer.start();
+    }
+
+    @After
+    public void tearDown() {
+        mServer.stop(0);
+        mFile.delete();
+    }
+
+    private int request(String method, String path, byte[] body, boolean gzip) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL("http://127.0.0.1:"
+                + mServer.getPort() + path).openConnection();
+        conn.setRequestMethod(method);
+        if (body != null) {
+            conn.setDoOutput(true);
+            if (gzip)
+                conn.setRequestProperty("Content-Encoding", "gzip");
+            OutputStream out = conn.getOutputStream();
+            out.write(body);
+            out.close();
+        }
+        int status = conn.getResponseCode();
+        InputStream in = status == 200 ? conn.getInputStream() : conn.getErrorStream();
+        mBody = in == null ? null : LoadGenerator.readFully(in);
+        return status;
+    }
+
+    private int post(String path, JSONObject body) throws IOException {
+        return request("POST", path, body.toString().getBytes("UTF-8"), false);
+    }
+
+    private static JSONObject receiptJson(String orderId, String token) throws Exception {
+        Receipt r = ReceiptVerifierTest.receipt(orderId, token);
+        JSONObject o = new JSONObject();
+        o.put("purchaseData", r.getPurchaseData());
+        o.put("signature", r.getSignature());
+        return o;
+    }
+
+    private static byte[] gzip(byte[] bytes) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        GZIPOutputStream gz = new GZIPOutputStream(out);
+        gz.write(bytes);
+        gz.close();
+        return out.toByteArray();
+    }
+
+    @Test
+    public void verdictsOverHttp() throws Exception {
+        JSONObject receipt = receiptJson("GPA.1", "token-1");
+        assertEquals(200, post("/verify", receipt));
+        JSONObject v = new JSONObject(mBody);
+        assertEquals("valid", v.getString("status"));
+        assertFalse(v.has("resubmitted"));
+
+        assertEquals(200, post("/verify", receipt));
+        v = new JSONObject(mBody);
+        assertEquals("valid", v.getString("status"));
+        assertTrue(v.getBoolean("resubmitted"));
+
+        assertEquals(200, post("/verify", receiptJson("GPA.1", "token-2")));
+        assertEquals("duplicate", new JSONObject(mBody).getString("status"));
+    }
+
+    @Test
+    public void batchLimits() throws Exception {
+        assertEquals(400, post("/verify/batch", new JSONObject()));
+
+        JSONArray receipts = new JSONArray();
+        for (int i = 0; i <= ReceiptServer.MAX_BATCH; i++)
+            receipts.put(new JSONObject());
+        JSONObject body = new JSONObject();
+        body.put("receipts", receipts);
+        assertEquals(413, post("/verify/batch", body));
+        assertTrue(mBody, new JSONObject(mBody).has("error"));
+
+        receipts = new JSONArray();
+        receipts.put(receiptJson("GPA.1", "token-1"));
+        receipts.put("not an object");
+        body.put("receipts", receipts);
+        assertEquals(200, post("/verify/batch", body));
+        JSONArray verdicts = new JSONObject(mBody).getJSONArray("verdicts");
+        assertEquals("valid", verdicts.getJSONObject(0).getString("status"));
+        assertEquals("malformed", verdicts.getJSONObject(1).getString("status"));
+    }
+
+    @Test
+    public void gzipBodies() throws Exception {
+        byte[] body = receiptJson("GPA.1", "token-1").toString().getBytes("UTF-8");
+        assertEquals(200, request("POST", "/verify", gzip(body), true));
+        assertEquals("valid", new JSONObject(mBody).getString("status"));
+
+        assertEquals(400, request("POST", "/verify", body, true));
+        assertEquals(400, request("POST", "/verify", "[1, 2]".getBytes("UTF-8"), false));
+    }
+
+    @Test
+    public void wrongMethod() throws Exception {
+        assertEquals(405, request("GET", "/verify", null, false));
+        assertEquals(405, request("POST", "/stats", "{}".getBytes("UTF-8"), false));
+        assertEquals(200, request("GET", "/stats", null, false));
+        assertTrue(mBody, new JSONObject(mBody).has("dedup"));
+    }
+
+    @Test
+    public void failedJournalWriteIsNotADuplicateOnRetry() throws Exception {
+        PurchaseJournal journal = PurchaseJournal.open(mFile);
+        mServer.setJournal(journal);
+        journal.close();
+        JSONObject receipt = receiptJson("GPA.1", "token-1");
+        assertEquals(500, post("/verify", receipt));
+        assertEquals(0, mServer.getVerifier().getDedup().getStore().size());
+
+        JSONArray receipts = new JSONArray();
+        receipts.put(receipt);
+        JSONObject batch = new JSONObject();
+        batch.put("receipts", receipts);
+        assertEquals(500, post("/verify/batch", batch));
+        assertEquals(0, mServer.getVerifier().getDedup().getStore().size());
+
+        // 客户端重试时写入成功，不是 resubmitted
+        journal = PurchaseJournal.open(mFile);
+        mServer.setJournal(journal);
+        assertEquals(200, post("/verify", receipt));
+        JSONObject v = new JSONObject(mBody);
+        assertEquals("valid", v.getString("status"));
+        assertFalse(v.has("resubmitted"));
+        assertEquals(1, journal.getPending().size());
+
+        // 不同的收据用了同一个 orderId
+        assertEquals(200, post("/verify", receiptJson("GPA.1", "token-2")));
+        assertEquals("duplicate", new JSONObject(mBody).getString("status"));
+        assertEquals(1, journal.getPending().size());
+    }
+}
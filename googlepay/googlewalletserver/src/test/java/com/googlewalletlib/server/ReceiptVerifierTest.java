@@ -0,0 +1,249 @@
+package com.googlewalletlib.server;
+
+import com.googlewalletlib.util.Base64;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * ReceiptVerifier 的验证结果、去重和排队的许可
+ */
+public class ReceiptVerifierTest {
+
+    static KeyPair sKeys;
+
+    private ReceiptVerifier mVerifier;
+
+    @BeforeClass
+    public static void generateKeys() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(1024);
+        sKeys = generator.generateKeyPair();
+    }
+
+    static String publicKey() {
+        return Base64.encode(sKeys.getPublic().getEncoded());
+    }
+
+    static String purchaseData(String orderId, String token) throws Exception {
+        JSONObject o = new JSONObject();
+        o.put("orderId", orderId);
+        o.put("productId", "gas");
+        o.put("purchaseState", 0);
+        o.put("purchaseToken", token);
+        return o.toString();
+    }
+
+    static String sign(PrivateKey key, String data) throws Exception {
+        Signature signer = Signature.getInstance("SHA1withRSA");
+        signer.initSign(key);
+        signer.update(data.getBytes("UTF-8"));
+        return Base64.encode(signer.sign());
+    }
+
+    static Receipt receipt(String orderId, String token) throws Exception {
+        String data = purchaseData(orderId, token);
+        return new Receipt(null, data, sign(sKeys.getPrivate(), data));
+    }
+
+    @After
+    public void tearDown() {
+        if (mVerifier != null)
+            mVerifier.shutdown();
+    }
+
+    /**
+     * putIfAbsent 一直阻塞到 release，不响应中断
+     */
+    static class BlockingStore extends ReceiptDedup.MemoryStore {
+        final CountDownLatch mEntered = new CountDownLatch(1);
+        private final CountDownLatch mRelease = new CountDownLatch(1);
+
+        void release() {
+            mRelease.countDown();
+        }
+
+        @Override
+        public String putIfAbsent(String key, String fingerprint) {
+            mEntered.countDown();
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    mRelease.await();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+            return super.putIfAbsent(key, fingerprint);
+        }
+    }
+
+    static void awaitPermits(ReceiptVerifier verifier, int permits) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (verifier.availablePermits() != permits && System.currentTimeMillis() < deadline)
+            Thread.sleep(5);
+        assertEquals(permits, verifier.availablePermits());
+    }
+
+    @Test
+    public void resubmittedReceiptIsValidOtherReceiptIsDuplicate() throws Exception {
+        mVerifier = new ReceiptVerifier(publicKey(), 2);
+        Receipt receipt = receipt("GPA.1", "token-1");
+
+        Verdict first = mVerifier.verify(receipt);
+        assertEquals(Verdict.VALID, first.getStatus());
+        assertFalse(first.isResubmitted());
+        assertEquals("GPA.1", first.getPurchase().getOrderId());
+
+        Verdict again = mVerifier.verify(receipt);
+        assertEquals(Verdict.VALID, again.getStatus());
+        assertTrue(again.isResubmitted());
+        assertTrue(again.toJson().getBoolean("resubmitted"));
+
+        // 签名正确但用了已有的 orderId 或 token
+        assertEquals(Verdict.DUPLICATE, mVerifier.verify(receipt("GPA.1", "token-2")).getStatus());
+        assertEquals(Verdict.DUPLICATE, mVerifier.verify(receipt("GPA.2", "token-1")).getStatus());
+    }
+
+    @Test
+    public void forgedAndMalformedReceipts() throws Exception {
+        mVerifier = new ReceiptVerifier(publicKey(), 1);
+        String data = purchaseData("GPA.1", "token-1");
+        String forged = purchaseData("GPA.1", "token-forged");
+        Verdict v = mVerifier.verify(new Receipt(null, forged, sign(sKeys.getPrivate(), data)));
+        assertEquals(Verdict.INVALID_SIGNATURE, v.getStatus());
+        // 伪造的收据没有占用 orderId
+        assertEquals(Verdict.VALID, mVerifier.verify(receipt("GPA.1", "token-1")).getStatus());
+
+        assertEquals(Verdict.MALFORMED, mVerifier.verify(new Receipt(null, data, "")).getStatus());
+        assertEquals(Verdict.MALFORMED, mVerifier.verify(new Receipt(null, null, "sig")).getStatus());
+        assertEquals(Verdict.MALFORMED, mVerifier.verify(
+                new Receipt(null, "not json", sign(sKeys.getPrivate(), "not json"))).getStatus());
+    }
+
+    @Test
+    public void batchKeepsOneValidReceiptPerKey() throws Exception {
+        mVerifier = new ReceiptVerifier(publicKey(), 2);
+        Receipt a = receipt("GPA.1", "token-1");
+        List<Verdict> verdicts = mVerifier.verifyAll(Arrays.asList(a, receipt("GPA.1", "token-2"),
+                a, receipt("GPA.3", "token-3")));
+        assertEquals(4, verdicts.size());
+        assertEquals(Verdict.VALID, verdicts.get(0).getStatus());
+        assertEquals(Verdict.DUPLICATE, verdicts.get(1).getStatus());
+        // 完全相同的收据都是 VALID，只有一张不是 isResubmitted
+        assertEquals(Verdict.VALID, verdicts.get(2).getStatus());
+        assertTrue(verdicts.get(0).isResubmitted() != verdicts.get(2).isResubmitted());
+        assertEquals(Verdict.VALID, verdicts.get(3).getStatus());
+    }
+
+    @Test
+    public void bufferVerificationPrefersTokenOverPurchaseToken() throws Exception {
+        mVerifier = new ReceiptVerifier(publicKey(), 1);
+        JSONObject o = new JSONObject(purchaseData("GPA.1", "token-b"));
+        o.put("token", "token-a");
+        String data = o.toString();
+        assertEquals(Verdict.VALID, verifyBytes(data, sign(sKeys.getPrivate(), data)));
+
+        // 去重用的是 token，purchaseToken 没有被记录
+        assertEquals(Verdict.VALID, verifyBytes(purchaseData("GPA.2", "token-b"),
+                sign(sKeys.getPrivate(), purchaseData("GPA.2", "token-b"))));
+        assertEquals(Verdict.DUPLICATE, verifyBytes(purchaseData("GPA.3", "token-a"),
+                sign(sKeys.getPrivate(), purchaseData("GPA.3", "token-a"))));
+    }
+
+    private int verifyBytes(String data, String signature) throws Exception {
+        return mVerifier.verifyNow(ByteBuffer.wrap(data.getBytes("UTF-8")),
+                ByteBuffer.wrap(signature.getBytes("US-ASCII")));
+    }
+
+    @Test
+    public void interruptedVerifyKeepsThePermitUntilTheTaskFinishes() throws Exception {
+        BlockingStore store = new BlockingStore();
+        mVerifier = new ReceiptVerifier(publicKey(), 1, new ReceiptDedup(store, 64, 0.001));
+        final int permits = mVerifier.availablePermits();
+        final Receipt receipt = receipt("GPA.1", "token-1");
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        Thread caller = new Thread() {
+            public void run() {
+                try {
+                    mVerifier.verify(receipt);
+                } catch (Throwable e) {
+                    error.set(e);
+                }
+            }
+        };
+        caller.start();
+        assertTrue(store.mEntered.await(5, TimeUnit.SECONDS));
+        assertEquals(permits - 1, mVerifier.availablePermits());
+
+        caller.interrupt();
+        caller.join(5000);
+        assertTrue(error.get() instanceof InterruptedException);
+        // 任务被取消，但验证线程还在执行它
+        assertEquals(permits - 1, mVerifier.availablePermits());
+
+        store.release();
+        awaitPermits(mVerifier, permits);
+    }
+
+    @Test
+    public void asyncTasksWaitForPermitsWithoutBlocking() throws Exception {
+        BlockingStore store = new BlockingStore();
+        mVerifier = new ReceiptVerifier(publicKey(), 1, new ReceiptDedup(store, 64, 0.001));
+        final int permits = mVerifier.availablePermits();
+        final int count = permits + 5;
+        final AtomicInteger valid = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(count);
+        ReceiptVerifier.Callback callback = new ReceiptVerifier.Callback() {
+            public void onVerdict(int status) {
+                if (status == Verdict.VALID)
+                    valid.incrementAndGet();
+                done.countDown();
+            }
+        };
+        for (int i = 0; i < count; i++) {
+            Receipt r = receipt("GPA." + i, "token-" + i);
+            // 超过上限的任务在队列中等待，不阻塞调用的线程
+            mVerifier.verifyAsync(ByteBuffer.wrap(r.getPurchaseData().getBytes("UTF-8")),
+                    ByteBuffer.wrap(r.getSignature().getBytes("US-ASCII")), callback);
+        }
+        assertTrue(store.mEntered.await(5, TimeUnit.SECONDS));
+        assertEquals(0, mVerifier.availablePermits());
+        assertEquals(count, done.getCount());
+
+        store.release();
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(count, valid.get());
+        awaitPermits(mVerifier, permits);
+
+        mVerifier.shutdown();
+        try {
+            mVerifier.verifyAsync(ByteBuffer.allocate(1), ByteBuffer.allocate(1), callback);
+            fail();
+        } catch (RejectedExecutionException expected) {
+        }
+    }
+}
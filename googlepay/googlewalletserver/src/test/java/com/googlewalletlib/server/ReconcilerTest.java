@@ -0,0 +1,158 @@
+package com.googlewalletlib.server;
+
+import com.googlewalletlib.util.Purchase;
+import com.googlewalletlib.util.PurchaseJournal;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Reconciler 用作废订单核对购买账本
+ */
+public class ReconcilerTest {
+
+    private File mLedger;
+    private File mVoided;
+    private PurchaseJournal mJournal;
+    private final List<String> mEvents = new ArrayList<String>();
+
+    private final Reconciler.Listener mListener = new Reconciler.Listener() {
+        public void onRevoke(String orderId, String token, String sku, long voidedTimeMillis,
+                             int voidedReason) {
+            mEvents.add("revoke " + orderId + " " + token + " " + sku + " " + voidedReason);
+        }
+
+        public void onDiscrepancy(String kind, String orderId, String detail) {
+            mEvents.add(kind + " " + orderId);
+        }
+    };
+
+    @Before
+    public void setUp() throws IOException {
+        mLedger = File.createTempFile("ledger", ".journal");
+        mLedger.delete();
+        mVoided = File.createTempFile("voided", ".jsonl");
+        mJournal = PurchaseJournal.open(mLedger);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mJournal.close();
+        mLedger.delete();
+        mVoided.delete();
+    }
+
+    private static Purchase purchase(String orderId, String token, int state) throws Exception {
+        JSONObject o = new JSONObject();
+        o.put("orderId", orderId);
+        o.put("packageName", "com.example");
+        o.put("productId", "gas");
+        o.put("purchaseTime", 1000L);
+        o.put("purchaseState", state);
+        o.put("purchaseToken", token);
+        return new Purchase("inapp", o.toString(), "sig");
+    }
+
+    /** 账本中记录一个购买，之后同一个 token 可以再次记录 (例如状态改变) */
+    private void record(String orderId, String token, int state) throws Exception {
+        Purchase p = purchase(orderId, token, state);
+        mJournal.append(p);
+        mJournal.markDone(p);
+    }
+
+    private void voided(String... lines) throws IOException {
+        Writer out = new OutputStreamWriter(new FileOutputStream(mVoided), "UTF-8");
+        try {
+            for (String line : lines)
+                out.write(line + "\n");
+        } finally {
+            out.close();
+        }
+    }
+
+    private static String voidedLine(String orderId, String token, int reason) throws Exception {
+        JSONObject o = new JSONObject();
+        o.put("orderId", orderId);
+        o.put("purchaseToken", token);
+        o.put("voidedTimeMillis", 2000L);
+        o.put("voidedReason", reason);
+        o.put("voidedSource", 0);
+        return o.toString();
+    }
+
+    private Reconciler.Result reconcile(long maxRunBytes) throws IOException {
+        mEvents.clear();
+        return new Reconciler(null, maxRunBytes).reconcile(mLedger, mVoided, mListener);
+    }
+
+    @Test
+    public void revokesVoidedPurchasesAndReportsDiscrepancies() throws Exception {
+        record("GPA.1", "t1", 0);
+        record("GPA.2", "t2", 0);
+        record("GPA.3", "t3", 0);
+        record("GPA.4", "t4a", 0);
+        record("GPA.4", "t4b", 0);
+        // 测试商品没有 orderId
+        record("", "test", 0);
+        voided(voidedLine("GPA.1", "t1", 1),
+                voidedLine("GPA.3", "other", 1),
+                voidedLine("GPA.9", "t9", 1),
+                "不是 json",
+                "");
+
+        Reconciler.Result result = reconcile(Reconciler.DEFAULT_MAX_RUN_BYTES);
+        assertEquals("[revoke GPA.1 t1 gas 1, "
+                + Reconciler.TOKEN_MISMATCH + " GPA.3, "
+                + Reconciler.CONFLICTING_LEDGER + " GPA.4, "
+                + Reconciler.UNKNOWN_ORDER + " GPA.9]", mEvents.toString());
+        assertEquals(1, result.getRevoked());
+        assertEquals(3, result.getDiscrepancies());
+        assertEquals(2, result.toJson().getLong("skipped"));
+    }
+
+    @Test
+    public void latestLedgerEntryWinsWhenTimesAreEqual() throws Exception {
+        // 同一个订单先购买后退款，purchaseTime 相同，按写入的顺序取最后一条
+        record("GPA.1", "t1", 0);
+        record("GPA.1", "t1", 2);
+        record("GPA.2", "t2", 2);
+        record("GPA.2", "t2", 0);
+        voided(voidedLine("GPA.1", "t1", 1), voidedLine("GPA.2", "t2", 1));
+
+        // 每条记录一段，和全部在内存中的结果相同
+        for (long maxRunBytes : new long[]{Reconciler.DEFAULT_MAX_RUN_BYTES, 1}) {
+            Reconciler.Result result = reconcile(maxRunBytes);
+            assertEquals("[revoke GPA.2 t2 gas 1]", mEvents.toString());
+            assertEquals(1, result.getAlreadyRevoked());
+            assertEquals(0, result.getDiscrepancies());
+        }
+    }
+
+    @Test
+    public void spillsWithSmallRuns() throws Exception {
+        for (int i = 0; i < 500; i++)
+            record("GPA." + i, "t" + i, 0);
+        String[] lines = new String[250];
+        for (int i = 0; i < lines.length; i++)
+            lines[i] = voidedLine("GPA." + (i * 2), "t" + (i * 2), 0);
+        voided(lines);
+
+        Reconciler.Result result = reconcile(4 * 1024);
+        assertEquals(250, result.getRevoked());
+        assertEquals(0, result.getDiscrepancies());
+        assertTrue(result.toJson().getInt("runs") > 2);
+    }
+}
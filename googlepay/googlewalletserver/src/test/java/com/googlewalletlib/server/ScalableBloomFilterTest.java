@@ -0,0 +1,128 @@
+package com.googlewalletlib.server;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * ScalableBloomFilter 的扩容、误判率和快照的读写
+ */
+public class ScalableBloomFilterTest {
+
+    @Test
+    public void addedKeysAreAlwaysFound() {
+        ScalableBloomFilter filter = new ScalableBloomFilter(100, 0.01);
+        for (int i = 0; i < 5000; i++)
+            filter.add("o:" + i);
+        for (int i = 0; i < 5000; i++)
+            assertTrue("o:" + i, filter.mightContain("o:" + i));
+        assertEquals(5000, filter.getCount());
+        // 100 + 200 + ... 装下 5000 个需要 6 段
+        assertEquals(6, filter.getStageCount());
+    }
+
+    @Test
+    public void falsePositiveRateStaysBelowTarget() {
+        ScalableBloomFilter filter = new ScalableBloomFilter(1000, 0.01);
+        for (int i = 0; i < 20000; i++)
+            filter.add("o:" + i);
+        int falsePositives = 0;
+        int probes = 100000;
+        for (int i = 0; i < probes; i++) {
+            if (filter.mightContain("t:" + i))
+                falsePositives++;
+        }
+        assertTrue("误判 " + falsePositives, falsePositives < probes * 0.01);
+    }
+
+    @Test
+    public void snapshotRoundTrip() throws IOException {
+        ScalableBloomFilter filter = new ScalableBloomFilter(64, 0.001);
+        for (int i = 0; i < 300; i++)
+            filter.add("o:" + i);
+        byte[] bytes = write(filter);
+
+        ScalableBloomFilter read = read(bytes);
+        assertEquals(filter.getStageCount(), read.getStageCount());
+        assertEquals(filter.getCount(), read.getCount());
+        assertEquals(filter.getSizeInBytes(), read.getSizeInBytes());
+        for (int i = 0; i < 300; i++)
+            assertTrue(read.mightContain("o:" + i));
+        // 读出来的可以继续扩容
+        for (int i = 300; i < 1000; i++)
+            read.add("o:" + i);
+        assertTrue(read.mightContain("o:999"));
+    }
+
+    @Test
+    public void corruptedSnapshotsAreRejected() throws IOException {
+        ScalableBloomFilter filter = new ScalableBloomFilter(64, 0.001);
+        for (int i = 0; i < 300; i++)
+            filter.add("o:" + i);
+        byte[] bytes = write(filter);
+
+        // 误判率写成 0
+        byte[] zeroRate = bytes.clone();
+        for (int i = 12; i < 20; i++)
+            zeroRate[i] = 0;
+        assertRejected(zeroRate);
+
+        // 位数组中翻转一位，只有 CRC 能发现
+        byte[] flipped = bytes.clone();
+        flipped[bytes.length / 2] ^= 0x10;
+        assertRejected(flipped);
+
+        byte[] truncated = new byte[bytes.length - 100];
+        System.arraycopy(bytes, 0, truncated, 0, truncated.length);
+        assertRejected(truncated);
+
+        // 段数很大时不分配数组
+        byte[] stages = bytes.clone();
+        stages[20] = 0x7f;
+        assertRejected(stages);
+    }
+
+    @Test
+    public void snapshotLongerThanMaxBytesIsRejected() throws IOException {
+        ScalableBloomFilter filter = new ScalableBloomFilter(64, 0.001);
+        byte[] bytes = write(filter);
+        try {
+            ScalableBloomFilter.readFrom(new DataInputStream(new ByteArrayInputStream(bytes)), 16);
+            fail();
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void zeroFalsePositiveRateIsInvalid() {
+        new ScalableBloomFilter(100, 0);
+    }
+
+    private static void assertRejected(byte[] bytes) {
+        try {
+            read(bytes);
+            fail("读取了损坏的快照");
+        } catch (IOException expected) {
+        }
+    }
+
+    private static byte[] write(ScalableBloomFilter filter) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        filter.writeTo(out);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static ScalableBloomFilter read(byte[] bytes) throws IOException {
+        return ScalableBloomFilter.readFrom(new DataInputStream(new ByteArrayInputStream(bytes)), bytes.length);
+    }
+}
@@ -0,0 +1,83 @@
+package com.googlewalletlib.server;
+
+import org.junit.Test;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * VirtualThreads 在 Java 21 上创建虚拟线程，在更早的 JVM 上返回 null
+ */
+public class VirtualThreadsTest {
+
+    private static boolean isJava21() {
+        String version = System.getProperty("java.specification.version");
+        if (version.startsWith("1."))
+            return false;
+        return Integer.parseInt(version) >= 21;
+    }
+
+    private static boolean isVirtual(Thread t) throws Exception {
+        return (Boolean) Thread.class.getMethod("isVirtual").invoke(t);
+    }
+
+    @Test
+    public void supportFollowsTheJvm() {
+        assertEquals(isJava21(), VirtualThreads.isSupported());
+        if (!isJava21()) {
+            assertNull(VirtualThreads.factory("x-"));
+            assertNull(VirtualThreads.newPerTaskExecutor("x-"));
+            assertNull(ReceiptServer.newVirtualThreadExecutor());
+        }
+    }
+
+    @Test
+    public void tasksRunOnNamedVirtualThreads() throws Exception {
+        if (!VirtualThreads.isSupported())
+            return;
+        ExecutorService executor = VirtualThreads.newPerTaskExecutor("test-");
+        try {
+            Callable<Thread> current = new Callable<Thread>() {
+                public Thread call() {
+                    return Thread.currentThread();
+                }
+            };
+            Thread first = executor.submit(current).get();
+            Thread second = executor.submit(current).get();
+            assertTrue(isVirtual(first));
+            // 每个任务一个新线程，名字是前缀加序号
+            assertTrue(first != second);
+            assertTrue(first.getName(), first.getName().startsWith("test-"));
+            assertTrue(!first.getName().equals(second.getName()));
+        } finally {
+            executor.shutdown();
+        }
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void serverHandlesRequestsOnVirtualThreads() throws Exception {
+        ExecutorService executor = ReceiptServer.newVirtualThreadExecutor();
+        if (executor == null)
+            executor = ReceiptServer.newHttpExecutor(1);
+        ReceiptVerifierTest.generateKeys();
+        ReceiptServer server = new ReceiptServer(
+                new ReceiptVerifier(ReceiptVerifierTest.publicKey(), 1), 0, executor,
+                ReceiptServer.VIRTUAL_THREADS_BACKLOG);
+        server.start();
+        try {
+            String response = LoadGenerator.post("http://127.0.0.1:" + server.getPort() + "/verify",
+                    "{}", 0);
+            assertTrue(response, response.contains("malformed"));
+        } finally {
+            server.stop(0);
+        }
+        // stop 关闭了传入的 executor
+        assertTrue(executor.isShutdown());
+    }
+}